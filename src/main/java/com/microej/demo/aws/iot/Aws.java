@@ -14,27 +14,53 @@ import static ej.aws.iot.ShadowResult.delta;
 import static ej.aws.iot.ShadowResult.documents;
 import static ej.aws.iot.ShadowResult.rejected;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.eclipse.paho.client.mqttv3.MqttException;
-import org.json.me.JSONException;
-import org.json.me.JSONObject;
-
+import com.microej.demo.aws.iot.connection.ConnectionSupervisor;
+import com.microej.demo.aws.iot.dispatch.InboundPipeline;
+import com.microej.demo.aws.iot.dispatch.OverflowPolicy;
+import com.microej.demo.aws.iot.dispatch.TopicRouter;
+import com.microej.demo.aws.iot.gateway.GatewayShadows;
+import com.microej.demo.aws.iot.metrics.BootTimings;
+import com.microej.demo.aws.iot.metrics.Gauge;
+import com.microej.demo.aws.iot.metrics.LatencyProbe;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+import com.microej.demo.aws.iot.network.NetworkState;
+import com.microej.demo.aws.iot.payload.PayloadFormat;
+import com.microej.demo.aws.iot.publish.BatchPublisher;
+import com.microej.demo.aws.iot.publish.ClientPool;
+import com.microej.demo.aws.iot.publish.ClientPublisher;
+import com.microej.demo.aws.iot.publish.MessagePublisher;
+import com.microej.demo.aws.iot.publish.OfflineQueue;
+import com.microej.demo.aws.iot.publish.PublishWindow;
+import com.microej.demo.aws.iot.publish.StoreAndForwardPublisher;
+import com.microej.demo.aws.iot.schedule.DeadbandStream;
+import com.microej.demo.aws.iot.schedule.TimerWheel;
 import com.microej.demo.aws.iot.shadow.DeleteAccepted;
 import com.microej.demo.aws.iot.shadow.DeleteRejected;
+import com.microej.demo.aws.iot.shadow.DeltaProcessor;
 import com.microej.demo.aws.iot.shadow.GetAccepeted;
 import com.microej.demo.aws.iot.shadow.GetRejected;
+import com.microej.demo.aws.iot.shadow.ShadowCache;
+import com.microej.demo.aws.iot.shadow.ShadowClient;
+import com.microej.demo.aws.iot.shadow.ShadowRefresher;
 import com.microej.demo.aws.iot.shadow.UpdateAccepted;
-import com.microej.demo.aws.iot.shadow.UpdateDelta;
 import com.microej.demo.aws.iot.shadow.UpdateRejected;
+import com.microej.demo.aws.iot.time.TimeService;
 
 import ej.aws.iot.AwsIotClient;
 import ej.aws.iot.AwsIotClientOptions;
 import ej.aws.iot.AwsIotClientOptions.Builder;
 import ej.aws.iot.AwsIotException;
+import ej.aws.iot.AwsIotMessageCallback;
+import ej.aws.iot.ShadowAction;
+import ej.aws.iot.ShadowResult;
 import ej.bon.Constants;
 import ej.bon.Timer;
-import ej.bon.Util;
 
 /**
  * AWS client configuration and test flow
@@ -45,13 +71,22 @@ import ej.bon.Util;
  *
  * - Perform a Just in time provisioning of the device if necessary
  *
+ * - Reconnect the client whenever the connection is lost
+ *
  * - Subscribe to the test 'AWS_TOPIC_SAMPLE' topic
  *
- * - Start publishing a message to 'AWS_TOPIC_SAMPLE' topic every 2 seconds
+ * - Start sampling data from several streams and publishing it in batches to 'AWS_TOPIC_SAMPLE' topic, storing the
+ * batches while the connection is lost
  *
  * - Subscribe to default Device shadow updates
  *
  * - Perform some device shadow modifications
+ *
+ * - Periodically report the device state changes to the shadow
+ *
+ * - Periodically publish a snapshot of the client metrics to 'AWS_TOPIC_METRICS' topic
+ *
+ * - Optionally run a load test publishing samples and updating the shadow at increasing rates
  */
 @SuppressWarnings("nls")
 public class Aws {
@@ -63,31 +98,91 @@ public class Aws {
 	 */
 	public static final String AWS_TOPIC_SAMPLE = "awsiot/demo/sample"; //$NON-NLS-1$
 
-	private static final int SLEEP_TIME = 1000;
+	/**
+	 * Metrics snapshots topic.
+	 */
+	public static final String AWS_TOPIC_METRICS = "awsiot/demo/metrics"; //$NON-NLS-1$
 
-	private static final int AWS_MAX_CONNECTION_RETRIES = 3;
+	private static final int SHADOW_PAYLOAD_SIZE = 512;
+	// Index of the sample topic of the downstream things, after the ones of the sample and heap streams
+	private static final int GATEWAY_SAMPLE_TOPIC = 2;
+	// Number of results of the shadow actions: accepted and rejected for each, delta and documents for an update
+	private static final int SHADOW_RESULT_COUNT = 8;
 
 	/**
 	 * AWS IoT client
 	 */
 	private final AwsIotClient awsClient;
 
+	/**
+	 * Supervisor keeping the client connected
+	 */
+	private final ConnectionSupervisor supervisor;
+
+	/**
+	 * Router dispatching the received messages to their handler
+	 */
+	private final TopicRouter router;
+
+	/**
+	 * Pipeline handing the received messages over to the router in worker threads
+	 */
+	private final InboundPipeline pipeline;
+
+	/**
+	 * Clock of the reported timestamps
+	 */
+	private final TimeService timeService;
+	private final NetworkState networkState;
+
+	/**
+	 * Topic filters subscribed to for the downstream things, which may also cover the shadow topics of the device
+	 */
+	private String[] gatewayFilters = new String[0];
+
 	/**
 	 * Constructor
+	 *
+	 * @param timeService
+	 *            the clock of the reported timestamps
+	 * @param networkState
+	 *            the network state, whose IP address the reconnections wait for
+	 */
+	public Aws(TimeService timeService, NetworkState networkState) {
+		this.networkState = networkState;
+		this.timeService = timeService;
+		this.awsClient = new AwsIotClient(createOptions(Constants.getString("aws.thing.name")));
+		this.supervisor = new ConnectionSupervisor(this.awsClient, Constants.getString("aws.thing.name"),
+				Constants.getLong("aws.reconnect.delay.base"), Constants.getLong("aws.reconnect.delay.max"));
+		this.supervisor.setNetworkState(networkState);
+		this.supervisor.setCheckPeriod(Constants.getLong("aws.connection.check.period"));
+		this.router = new TopicRouter();
+		this.pipeline = new InboundPipeline(this.router, Constants.getInt("aws.inbound.workers"),
+				Constants.getInt("aws.inbound.queue.capacity"),
+				OverflowPolicy.valueOf(Constants.getString("aws.inbound.overflow.policy")));
+	}
+
+	/**
+	 * Creates the options of an AWS client.
+	 *
+	 * @param clientId
+	 *            the MQTT client ID of the connection
+	 * @return the client options
 	 */
-	public Aws() {
+	private static AwsIotClientOptions createOptions(String clientId) {
 		// AWS IoT Client options
-		final AwsIotClientOptions options = Builder.builder() //
+		final Builder builder = Builder.builder() //
 				.host(Constants.getString("aws.url"))//
 				.port(Constants.getInt("aws.port"))//
 				.thingName(Constants.getString("aws.thing.name"))//
-				.clientID(Constants.getString("aws.thing.name"))//
-				.secure(SslContextBuilder.getSslContext().getSocketFactory())//
+				.clientID(clientId)//
 				.timeout(60)//
-				.keepAlive(60)//
-				.build();
-
-		this.awsClient = new AwsIotClient(options);
+				.keepAlive(60);
+		// A plain TCP connection is only meant for a local broker, see tools/broker-standin
+		if (Constants.getBoolean("aws.secure")) {
+			builder.secure(SslContextBuilder.getSocketFactory());
+		}
+		return builder.build();
 	}
 
 	/**
@@ -97,121 +192,521 @@ public class Aws {
 	 *             on error while retrying the connection during the provisioning
 	 * @throws AwsIotException
 	 *             on error with AWS client
-	 * @throws JSONException
-	 *             on error with json data used to update the Shadow
 	 */
 
-	public void start() throws InterruptedException, AwsIotException, JSONException {
+	public void start() throws InterruptedException, AwsIotException {
+		start(new BootTimings());
+	}
+
+	/**
+	 * Start test flow, recording the connection and the first publication in the timings of the boot.
+	 *
+	 * @param timings
+	 *            the timings of the boot, see {@link BootPipeline}
+	 * @throws InterruptedException
+	 *             on error while retrying the connection during the provisioning
+	 * @throws AwsIotException
+	 *             on error with AWS client
+	 */
+	public void start(BootTimings timings) throws InterruptedException, AwsIotException {
 
 		// Connect my AWS IoT Thing (my device) to the broker
 		LOGGER.info("Connecting to AWS IoT Core Server. JIT provisioning will be done if necessary.");
-		justInTimeProvisionAndConnect();
+		timings.begin("connect");
+		this.supervisor.connect();
+		timings.end("connect");
 		LOGGER.info("Device connected to the broker."); //$NON-NLS-1$
 
-		// Add a listener on the sample topic
-		this.awsClient.subscribe(AWS_TOPIC_SAMPLE, new TopicSubscriber());
-		LOGGER.info("Update listener added, we're now subscribed to the topic " + AWS_TOPIC_SAMPLE); //$NON-NLS-1$
+		// Reconnect the client whenever the connection is lost
+		this.supervisor.start();
 
-		// Schedule a timer task that publishes sample messages to a topic every 2 seconds
-		Timer samplePublishTimer = new Timer();
-		samplePublishTimer.schedule(new PublishTimerTask(this.awsClient), 0, 2000);
-		LOGGER.info("Sample data publishing timer task initialized."); //$NON-NLS-1$
+		// Handle the received messages out of the client thread
+		this.pipeline.start();
 
-		// AWS IoT / Shadow Management
-		// Subscribe to shadow result on every action (get, delete, update)
-		this.awsClient.subscribeToShadow(get, accepted, new GetAccepeted());
-		this.awsClient.subscribeToShadow(get, rejected, new GetRejected());
+		// Add a listener on the sample topic
+		// Subscriptions are made through the supervisor so that they are restored after a reconnection, and the
+		// pipeline is the only callback given to the client
+		// In probe mode the samples are stamped to measure their round trip through the broker
+		boolean loadTest = Constants.getBoolean("aws.loadtest.enabled");
+		LatencyProbe probe = Constants.getBoolean("aws.probe.enabled") || loadTest
+				? new LatencyProbe(Constants.getInt("aws.probe.log.interval"))
+				: null;
+		// The sample and metrics payloads are JSON or CBOR, the shadow documents are always JSON
+		PayloadFormat sampleFormat = PayloadFormat.valueOf(Constants.getString("aws.sample.payload.format"));
+		TopicSubscriber sampleSubscriber = new TopicSubscriber(probe, sampleFormat);
+		// The samples may be spread over sub-topics, so that they can be sharded over the connections of a pool
+		int sampleTopicCount = Constants.getInt("aws.sample.topics");
+		String sampleFilter = sampleTopicCount > 1 ? AWS_TOPIC_SAMPLE + "/+" : AWS_TOPIC_SAMPLE;
+		this.router.addRoute(sampleFilter, sampleSubscriber);
+		this.supervisor.subscribe(sampleFilter, this.pipeline);
+		LOGGER.info("Update listener added, we're now subscribed to the topic " + sampleFilter); //$NON-NLS-1$
+
+		if (Constants.getBoolean("aws.payload.compare")) {
+			PayloadComparison.run(Constants.getInt("aws.sample.batch.size"),
+					Constants.getInt("aws.sample.batch.payload.size"),
+					Constants.getInt("aws.payload.compare.iterations"));
+		}
+
+		// Schedule a timer task that samples data and publishes it to a topic in batches
+		Timer timer = new Timer();
+		ClientPublisher clientPublisher = new ClientPublisher(this.awsClient, this.supervisor);
+		// The samples may be spread over several connections, the other messages use the connection of the device
+		MessagePublisher samplePublisher = createClientPool(clientPublisher);
+		PublishWindow window = createPublishWindow(samplePublisher);
+		MessagePublisher publisher = createOfflinePublisher(window != null ? window : samplePublisher, window, timer);
+		BatchPublisher[] batchPublishers = new BatchPublisher[sampleTopicCount > 1 ? sampleTopicCount : 1];
+		// The streams only add their samples to the batches, they are published from the timer
+		long flushPeriod = Constants.getLong("aws.sample.batch.flush.period");
+		for (int i = 0; i < batchPublishers.length; i++) {
+			batchPublishers[i] = new BatchPublisher(publisher, getSampleTopic(i, sampleTopicCount),
+					Constants.getInt("aws.sample.batch.capacity"), Constants.getInt("aws.sample.batch.size"),
+					Constants.getLong("aws.sample.batch.max.age"),
+					sampleFormat.newWriter(Constants.getInt("aws.sample.batch.payload.size")), probe);
+			timer.schedule(new BatchFlushTask(batchPublishers[i]), flushPeriod, flushPeriod);
+		}
+		if (Constants.getInt("aws.pool.size") > batchPublishers.length) {
+			LOGGER.warning("Fewer sample topics than connections, some connections will not publish."); //$NON-NLS-1$
+		}
+		if (!loadTest) {
+			scheduleStreams(batchPublishers);
+			LOGGER.info("Sample data publishing streams initialized."); //$NON-NLS-1$
+		}
 
-		this.awsClient.subscribeToShadow(delete, accepted, new DeleteAccepted());
-		this.awsClient.subscribeToShadow(delete, rejected, new DeleteRejected());
+		// Schedule a timer task that publishes the metrics, directly as a late snapshot is of no use
+		registerGauges(batchPublishers);
+		long metricsPeriod = Constants.getLong("aws.metrics.period");
+		PayloadFormat metricsFormat = PayloadFormat.valueOf(Constants.getString("aws.metrics.payload.format"));
+		timer.schedule(new MetricsReportTask(MetricsRegistry.getDefault(), clientPublisher, AWS_TOPIC_METRICS,
+				metricsFormat.newWriter(Constants.getInt("aws.metrics.payload.size")), this.timeService), metricsPeriod,
+				metricsPeriod);
+
+		// In gateway mode, the shadows and the telemetry of downstream things go through the connection of the device
+		// Started before the shadows of the device, whose topics may be covered by the wildcard subscriptions
+		if (Constants.getBoolean("aws.gateway.enabled")) {
+			startGateway(clientPublisher, publisher, getSampleTopic(GATEWAY_SAMPLE_TOPIC, sampleTopicCount),
+					sampleFormat, timer);
+		}
 
-		this.awsClient.subscribeToShadow(update, accepted, new UpdateAccepted());
-		this.awsClient.subscribeToShadow(update, rejected, new UpdateRejected());
-		this.awsClient.subscribeToShadow(update, delta, new UpdateDelta());
-		this.awsClient.subscribeToShadow(update, documents, new UpdateDelta());
+		// AWS IoT / Shadow Management
+		// The static state and the state changing at runtime go to different named shadows, so that the frequent
+		// updates and their documents messages do not carry the static state
+		String staticShadowName = getShadowName(Constants.getString("aws.shadow.static.name"));
+		String runtimeShadowName = getShadowName(Constants.getString("aws.shadow.runtime.name"));
+		ShadowClient staticShadow = createShadow(staticShadowName, clientPublisher, timer);
+		boolean sameShadow = runtimeShadowName == null ? staticShadowName == null
+				: runtimeShadowName.equals(staticShadowName);
+		ShadowClient runtimeShadow = sameShadow ? staticShadow
+				: createShadow(runtimeShadowName, clientPublisher, timer);
 
 		// Report device state
 		LOGGER.info("Create or Update Device Shadow by reporting the device state"); //$NON-NLS-1$
 
 		// device location
-		JSONObject location = new JSONObject();
-		location.put("country", "FR");
-		location.put("city", "Nantes");
+		ShadowCache staticState = staticShadow.getCache();
+		staticState.set("location", "country", "FR");
+		staticState.set("location", "city", "Nantes");
+
+		staticState.set(null, "firmware-version", "1.8.3");
 
 		// device capabilities
-		JSONObject capabilities = new JSONObject();
-		capabilities.put("network", "WIFI");
-		capabilities.put("ble", true);
-		capabilities.put("ota", true);
-
-		JSONObject device = new JSONObject();
-		device.put("location", location);
-		device.put("firmware-version", "1.8.3");
-		device.put("capabilities", capabilities);
-		device.put("state", "ready"); // report firmware update state here for example
-		device.put("timestamp", Util.currentTimeMillis());
-
-		// Shadow format
-		JSONObject reported = new JSONObject();
-		reported.put("reported", device);
-		JSONObject state = new JSONObject();
-		state.put("state", reported);
-
-		this.awsClient.updateShadow(state.toString().getBytes());
+		staticState.set("capabilities", "network", "WIFI");
+		staticState.set("capabilities", "ble", true);
+		staticState.set("capabilities", "ota", true);
+
+		ShadowCache runtimeState = runtimeShadow.getCache();
+		runtimeState.set(null, "state", "ready"); // report firmware update state here for example
+		runtimeState.set(null, "timestamp", this.timeService.currentTimeMillis());
+
+		// The first reports are full ones, the next ones only contain the changes
+		staticShadow.flush();
+		if (runtimeShadow != staticShadow) {
+			runtimeShadow.flush();
+		}
+		timings.mark("first.publish");
+		long reportPeriod = Constants.getLong("aws.shadow.report.period");
+		timer.schedule(new ShadowReportTask(runtimeShadow, this.timeService), reportPeriod, reportPeriod);
+
+		// In load test mode, the samples are published and the shadow is updated at increasing rates
+		if (loadTest) {
+			String acceptedTopic = TopicRouter.getShadowTopic(Constants.getString("aws.thing.name"), runtimeShadowName,
+					update, accepted);
+			timer.schedule(
+					new LoadTestTask(timer, batchPublishers, runtimeShadow, probe, acceptedTopic,
+							LoadTestTask.parseRates(Constants.getString("aws.loadtest.rates"))),
+					0, Constants.getLong("aws.loadtest.step.duration"));
+		}
 	}
 
 	/**
-	 * Just in time provision and connect client to AWS IoT platform.
+	 * Subscribes to the shadow responses of the downstream things and schedules the simulation of their sensors.
 	 *
-	 * @param client
-	 * @throws InterruptedException
+	 * @param publisher
+	 *            the publisher of the shadow updates
+	 * @param samplePublisher
+	 *            the publisher of the samples of the things
+	 * @param sampleTopic
+	 *            the topic of the samples of the things
+	 * @param sampleFormat
+	 *            the format of the sample batches
+	 * @param timer
+	 *            the timer running the simulation
+	 * @throws AwsIotException
+	 *             on error while subscribing
 	 */
-	private void justInTimeProvisionAndConnect() throws InterruptedException {
+	private void startGateway(MessagePublisher publisher, MessagePublisher samplePublisher, String sampleTopic,
+			PayloadFormat sampleFormat, Timer timer) throws AwsIotException {
+		GatewayShadows shadows = new GatewayShadows(publisher,
+				GatewayShadows.parseList(Constants.getString("aws.gateway.things")),
+				GatewayShadows.parseList(Constants.getString("aws.gateway.fields")),
+				Constants.getInt("aws.gateway.payload.size"));
+		// one wildcard subscription per response type, whatever the number of things
+		String[] filters = GatewayShadows.getFilters();
+		for (String filter : filters) {
+			this.router.addRoute(filter, shadows);
+			this.supervisor.subscribe(filter, this.pipeline);
+		}
+		this.gatewayFilters = filters;
+		long period = Constants.getLong("aws.gateway.period");
+		// the samples of the things have their own batch, sized so that the changes of a period fit in one message
+		int capacity = GatewayReportTask.getBatchCapacity(shadows);
+		final BatchPublisher batchPublisher = new BatchPublisher(samplePublisher, sampleTopic, capacity, capacity,
+				period, sampleFormat.newWriter(GatewayReportTask.getBatchPayloadSize(shadows)), null);
+		MetricsRegistry.getDefault().gauge("gateway.batch.dropped", new Gauge() {
+			@Override
+			public long getValue() {
+				return batchPublisher.getDroppedCount();
+			}
+		});
+		timer.schedule(new GatewayReportTask(shadows, batchPublisher), period, period);
+		LOGGER.info("Gateway started for " + shadows.getThingCount() + " things."); //$NON-NLS-1$
+	}
 
-		try {
-			// If this is the first time the thing is trying to connect to AWS,
-			// it will fail with connection lost and start the JITP process
-			// we retry the connection when this happens.
-			// The client should connect successfully when it provisioned by AWS
-			this.awsClient.connect();
+	/**
+	 * Gets the topic of the samples of a source: the sample topic, or one of its sub-topics if the samples are spread
+	 * over several topics.
+	 *
+	 * @param index
+	 *            the index of the source
+	 * @param topicCount
+	 *            the number of sample topics
+	 * @return the topic
+	 */
+	private static String getSampleTopic(int index, int topicCount) {
+		return topicCount > 1 ? AWS_TOPIC_SAMPLE + "/" + index % topicCount : AWS_TOPIC_SAMPLE;
+	}
 
-		} catch (final AwsIotException e) {
-			retryConnection();
-		}
+	/**
+	 * Schedules the streams sampling data on a timer wheel, with different phases so that their runs are spread.
+	 *
+	 * @param batchPublishers
+	 *            the batches the samples are added to, one per sample topic
+	 */
+	private static void scheduleStreams(BatchPublisher[] batchPublishers) {
+		TimerWheel wheel = new TimerWheel(Constants.getLong("aws.scheduler.tick"),
+				Constants.getInt("aws.scheduler.slots"));
+		// each stream has its own sample topic, as long as there are enough of them
+		BatchPublisher batchPublisher = batchPublishers[0];
+		wheel.schedule(new PublishTimerTask(batchPublisher), Constants.getLong("aws.sample.period"), 0);
+		batchPublisher = batchPublishers[1 % batchPublishers.length];
+		// the free heap is only sent when it has changed by more than the deadband
+		wheel.schedule(new DeadbandStream("heap", new Gauge() {
+			@Override
+			public long getValue() {
+				return Runtime.getRuntime().freeMemory();
+			}
+		}, Constants.getLong("aws.stream.heap.deadband"), Constants.getLong("aws.stream.heap.max.silence"),
+				batchPublisher), Constants.getLong("aws.stream.heap.period"),
+				Constants.getLong("aws.stream.heap.phase"));
+		wheel.start();
 	}
 
 	/**
-	 * Retry the connection. This is used in JITP process
+	 * Creates the cache and the client of a shadow of the thing and subscribes to its responses.
 	 *
-	 * @throws InterruptedException
+	 * @param shadowName
+	 *            the name of the shadow, or {@code null} for the classic shadow
+	 * @param publisher
+	 *            the publisher of the shadow updates
+	 * @param timer
+	 *            the timer of the shadow client
+	 * @return the shadow client
+	 * @throws AwsIotException
+	 *             on error while subscribing
 	 */
-	private void retryConnection() throws InterruptedException {
-		int retryCount = 1;
-		while (retryCount <= AWS_MAX_CONNECTION_RETRIES) {
-			try {
-
-				Thread.sleep(retryCount * SLEEP_TIME); // exponential wait
-				LOGGER.info("Connection lost: retrying the connection (" + retryCount + ") ..."); //$NON-NLS-1$ //$NON-NLS-2$
-				this.awsClient.connect();
-				return; // client connected, stop retrying and break while loop.
-
-			} catch (final AwsIotException e) {
-				retryCount++;
-				if (e.getCause() == null || !(e.getCause() instanceof MqttException)) {
-					// if the cause is not an MQTT error throw an exception and do not retry
-					throw new IllegalStateException(e);
-				}
+	private ShadowClient createShadow(String shadowName, MessagePublisher publisher, Timer timer)
+			throws AwsIotException {
+		// The cache keeps the acknowledged reported state so that only the changes are reported
+		String updateTopic = TopicRouter.getShadowRequestTopic(Constants.getString("aws.thing.name"), shadowName,
+				update);
+		ShadowCache shadowCache = new ShadowCache(publisher, updateTopic, SHADOW_PAYLOAD_SIZE);
+		// The client coalesces the changes made within a short window and follows each update by its client token
+		ShadowClient shadowClient = new ShadowClient(shadowCache, timer, Constants.getLong("aws.shadow.coalesce.delay"),
+				Constants.getLong("aws.shadow.update.timeout"), Constants.getInt("aws.shadow.pending.max"));
+
+		// Route the shadow result of every action (get, delete, update)
+		List<String> topics = new ArrayList<>(SHADOW_RESULT_COUNT);
+		routeShadow(topics, shadowName, get, accepted, new GetAccepeted(shadowCache));
+		routeShadow(topics, shadowName, get, rejected, new GetRejected(shadowCache));
+
+		// The delta and documents messages of an update are applied once, the stale ones are dropped
+		DeltaProcessor deltaProcessor = new DeltaProcessor();
+
+		routeShadow(topics, shadowName, delete, accepted, new DeleteAccepted(deltaProcessor, shadowClient));
+		routeShadow(topics, shadowName, delete, rejected, new DeleteRejected());
+
+		routeShadow(topics, shadowName, update, accepted, new UpdateAccepted(shadowCache, shadowClient));
+		routeShadow(topics, shadowName, update, rejected, new UpdateRejected(shadowCache, shadowClient));
+		routeShadow(topics, shadowName, update, delta, deltaProcessor);
+		routeShadow(topics, shadowName, update, documents, deltaProcessor);
+		subscribeToShadow(shadowName, topics);
+
+		// The shadow is read now and after each reconnection, so that the cache knows its version and reported state
+		ShadowRefresher refresher = new ShadowRefresher(publisher,
+				TopicRouter.getShadowRequestTopic(Constants.getString("aws.thing.name"), shadowName, get));
+		this.supervisor.addListener(refresher);
+		refresher.refresh();
+		return shadowClient;
+	}
+
+	/**
+	 * Gets the name of a shadow from its configuration.
+	 *
+	 * @param name
+	 *            the configured name
+	 * @return the name, or {@code null} for the classic shadow if the configured name is empty
+	 */
+	private static String getShadowName(String name) {
+		return name.length() == 0 ? null : name;
+	}
+
+	/**
+	 * Routes the messages of a shadow action result to a handler.
+	 *
+	 * @param topics
+	 *            the list the topic of the result is added to
+	 * @param shadowName
+	 *            the name of the shadow, or {@code null} for the classic shadow
+	 * @param action
+	 *            the shadow action
+	 * @param result
+	 *            the result of the action
+	 * @param handler
+	 *            the handler of the messages
+	 */
+	private void routeShadow(List<String> topics, String shadowName, ShadowAction action, ShadowResult result,
+			AwsIotMessageCallback handler) {
+		String topic = TopicRouter.getShadowTopic(Constants.getString("aws.thing.name"), shadowName, action, result);
+		this.router.addRoute(topic, handler);
+		topics.add(topic);
+	}
 
-				final MqttException error = (MqttException) e.getCause();
-				if (error.getReasonCode() == MqttException.REASON_CODE_CLIENT_CONNECTED) {
-					// client is already connected.
-					// this can happen when connection state change really fast during an auto provisioning
-					return; // break the while loop
-				} else if (error.getReasonCode() != MqttException.REASON_CODE_CONNECTION_LOST) {
-					// throw an exception if the error is not a connection lost
-					throw new IllegalStateException(e);
+	/**
+	 * Subscribes the pipeline to the results of a shadow with a single wildcard subscription, restored with the other
+	 * ones on each reconnection. If some of them are already received through a subscription of the gateway, the other
+	 * ones are subscribed one by one instead.
+	 *
+	 * @param shadowName
+	 *            the name of the shadow, or {@code null} for the classic shadow
+	 * @param topics
+	 *            the topics of the results of the shadow
+	 * @throws AwsIotException
+	 *             on error while subscribing
+	 */
+	private void subscribeToShadow(String shadowName, List<String> topics) throws AwsIotException {
+		// a second subscription covering a topic would deliver its messages, and run its handler, twice
+		boolean[] covered = new boolean[topics.size()];
+		boolean anyCovered = false;
+		for (int i = 0; i < covered.length; i++) {
+			for (String filter : this.gatewayFilters) {
+				if (TopicRouter.matches(filter, topics.get(i))) {
+					covered[i] = true;
+					anyCovered = true;
+					break;
 				}
 			}
 		}
+		if (!anyCovered) {
+			this.supervisor.subscribe(
+					TopicRouter.getShadowResultFilter(Constants.getString("aws.thing.name"), shadowName),
+					this.pipeline);
+			return;
+		}
+		for (int i = 0; i < covered.length; i++) {
+			if (!covered[i]) {
+				this.supervisor.subscribe(topics.get(i), this.pipeline);
+			}
+		}
+	}
+
+	/**
+	 * Creates a pool spreading the topics over several connections of the device, if configured. The connection of the
+	 * device is the first one of the pool, the other ones use the client ID of the device suffixed with their index.
+	 * <p>
+	 * The other connections are established in the background by their supervisor: they are unhealthy, their topics
+	 * going to the connection of the device, until they are connected.
+	 *
+	 * @param clientPublisher
+	 *            the publisher of the connection of the device
+	 * @return the pool, or the given publisher if the messages are published with the connection of the device only
+	 */
+	private MessagePublisher createClientPool(ClientPublisher clientPublisher) {
+		int size = Constants.getInt("aws.pool.size");
+		if (size <= 1) {
+			return clientPublisher;
+		}
+		String thingName = Constants.getString("aws.thing.name");
+		final ClientPool pool = new ClientPool(Constants.getInt("aws.pool.virtual.nodes"),
+				Constants.getLong("aws.pool.quarantine"));
+		pool.addShard(thingName, clientPublisher, this.supervisor);
+		for (int i = 1; i < size; i++) {
+			String clientId = thingName + "-" + i;
+			AwsIotClient client = new AwsIotClient(createOptions(clientId));
+			ConnectionSupervisor supervisor = new ConnectionSupervisor(client, clientId,
+					Constants.getLong("aws.reconnect.delay.base"), Constants.getLong("aws.reconnect.delay.max"));
+			supervisor.setNetworkState(this.networkState);
+			supervisor.setCheckPeriod(Constants.getLong("aws.connection.check.period"));
+			pool.addShard(clientId, new ClientPublisher(client, supervisor), supervisor);
+			supervisor.start();
+		}
+		LOGGER.info("Samples published over " + size + " connections."); //$NON-NLS-1$
+		MetricsRegistry.getDefault().gauge("pool.healthy", new Gauge() {
+			@Override
+			public long getValue() {
+				return pool.getHealthyCount();
+			}
+		});
+		return pool;
+	}
+
+	/**
+	 * Creates and starts a window publishing several messages in parallel, if configured.
+	 *
+	 * @param publisher
+	 *            the publisher used by the window
+	 * @return the started window, or {@code null} if the messages are published one at a time by the caller
+	 */
+	private static PublishWindow createPublishWindow(MessagePublisher publisher) {
+		int size = Constants.getInt("aws.publish.window");
+		if (size <= 1) {
+			return null;
+		}
+		final PublishWindow window = new PublishWindow(publisher, size,
+				Constants.getLong("aws.publish.window.timeout"));
+		window.start();
+		MetricsRegistry.getDefault().gauge("publish.inflight", new Gauge() {
+			@Override
+			public long getValue() {
+				return window.getInFlightCount();
+			}
+		});
+		return window;
+	}
+
+	/**
+	 * Creates a publisher that stores the messages in an offline queue while they cannot be published, and schedules
+	 * their replay.
+	 *
+	 * @param publisher
+	 *            the publisher used to publish the messages
+	 * @param window
+	 *            the window the publisher is, to store the messages it fails to publish, or {@code null}
+	 * @param timer
+	 *            the timer the replay is scheduled on
+	 * @return the store and forward publisher, or the given publisher if the offline queue cannot be opened
+	 */
+	private static MessagePublisher createOfflinePublisher(MessagePublisher publisher, PublishWindow window,
+			Timer timer) {
+		OfflineQueue queue;
+		try {
+			queue = new OfflineQueue(Constants.getString("aws.offline.queue.path"),
+					Constants.getLong("aws.offline.queue.size"));
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Offline queue unavailable, messages will be lost while disconnected", e);
+			return publisher;
+		}
+		StoreAndForwardPublisher storeAndForward = new StoreAndForwardPublisher(publisher, queue,
+				Constants.getInt("aws.offline.replay.count"));
+		if (window != null) {
+			window.setCallback(storeAndForward);
+		}
+		long replayPeriod = Constants.getLong("aws.offline.replay.period");
+		timer.schedule(new OfflineReplayTask(storeAndForward), replayPeriod, replayPeriod);
+		final OfflineQueue offlineQueue = queue;
+		MetricsRegistry.getDefault().gauge("offline.size", new Gauge() {
+			@Override
+			public long getValue() {
+				return offlineQueue.size();
+			}
+		});
+		return storeAndForward;
+	}
+
+	/**
+	 * Registers the gauges sampling the state of the client.
+	 *
+	 * @param batchPublishers
+	 *            the publishers of the samples
+	 */
+	private void registerGauges(final BatchPublisher[] batchPublishers) {
+		MetricsRegistry registry = MetricsRegistry.getDefault();
+		registry.gauge("heap.free", new Gauge() {
+			@Override
+			public long getValue() {
+				return Runtime.getRuntime().freeMemory();
+			}
+		});
+		final ConnectionSupervisor supervisor = this.supervisor;
+		registry.gauge("reconnects", new Gauge() {
+			@Override
+			public long getValue() {
+				return supervisor.getReconnectCount();
+			}
+		});
+		registry.gauge("down.time", new Gauge() {
+			@Override
+			public long getValue() {
+				return supervisor.getTotalDownTime();
+			}
+		});
+		final TimeService timeService = this.timeService;
+		registry.gauge("time.uncertainty", new Gauge() {
+			@Override
+			public long getValue() {
+				return timeService.getUncertainty();
+			}
+		});
+		final InboundPipeline pipeline = this.pipeline;
+		registry.gauge("inbound.depth", new Gauge() {
+			@Override
+			public long getValue() {
+				return pipeline.getDepth();
+			}
+		});
+		registry.gauge("inbound.dropped", new Gauge() {
+			@Override
+			public long getValue() {
+				return pipeline.getDroppedCount();
+			}
+		});
+		registry.gauge("batch.size", new Gauge() {
+			@Override
+			public long getValue() {
+				long size = 0;
+				for (BatchPublisher batchPublisher : batchPublishers) {
+					size += batchPublisher.size();
+				}
+				return size;
+			}
+		});
+		registry.gauge("batch.dropped", new Gauge() {
+			@Override
+			public long getValue() {
+				long dropped = 0;
+				for (BatchPublisher batchPublisher : batchPublishers) {
+					dropped += batchPublisher.getDroppedCount();
+				}
+				return dropped;
+			}
+		});
 	}
 }
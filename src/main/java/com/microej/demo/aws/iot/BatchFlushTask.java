@@ -0,0 +1,52 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.publish.BatchPublisher;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.TimerTask;
+
+/**
+ * Timer task that flushes a batch once its size or age threshold is reached.
+ * <p>
+ * The streams of the {@link com.microej.demo.aws.iot.schedule.TimerWheel} only add their samples to the batch, as
+ * they must not block: the publication, which may wait for the network or write to the offline queue, runs in the
+ * thread of the timer of this task.
+ */
+@SuppressWarnings("nls")
+public class BatchFlushTask extends TimerTask {
+
+	private static final Logger LOGGER = Logger.getLogger(BatchFlushTask.class.getName());
+
+	private final BatchPublisher batchPublisher;
+
+	/**
+	 * Initializes the timer task.
+	 *
+	 * @param batchPublisher
+	 *            the batch to flush
+	 */
+	public BatchFlushTask(BatchPublisher batchPublisher) {
+		this.batchPublisher = batchPublisher;
+	}
+
+	@Override
+	public void run() {
+		try {
+			this.batchPublisher.flushIfNeeded();
+		} catch (AwsIotException e) {
+			LOGGER.severe("An error occured while publishing. " + e.getMessage());
+		} catch (RuntimeException e) {
+			// not propagated to the timer, which would stop running its tasks
+			LOGGER.log(Level.SEVERE, "Unexpected error while publishing.", e);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.metrics.BootTimings;
+import com.microej.demo.aws.iot.metrics.Gauge;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+import com.microej.demo.aws.iot.network.NetworkState;
+import com.microej.demo.aws.iot.network.Readiness;
+import com.microej.demo.aws.iot.time.TimeService;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.Constants;
+import ej.bon.Util;
+
+/**
+ * Boot sequence from the network join to the first publication, shortening the time to the first message.
+ * <p>
+ * The stages that do not depend on each other run in parallel threads as soon as an IP address is acquired:
+ * <ul>
+ * <li>{@code ssl}: the SSL context is built (the certificates and the key are parsed), see
+ * {@link SslContextBuilder},</li>
+ * <li>{@code dns}: the broker host name is resolved, so that the connection finds it in the resolver cache,</li>
+ * <li>{@code ntp}: the {@link TimeService} is started and the stage ends with its first synchronization.</li>
+ * </ul>
+ * The connection needs a plausible time to check the validity of the broker certificate, but not an exact one: if the
+ * local time is already later than {@code aws.boot.plausible.time} (kept by a real-time clock, or restored by the time
+ * service from its last saved time), the connection starts without waiting for NTP. Otherwise it waits for
+ * {@link Readiness#TIME_SYNCHRONIZED}, set by the {@code ntp} stage. The client is then created (waiting for the SSL
+ * context if it is still being built) and started.
+ * <p>
+ * The timings of the stages, in milliseconds since the network join, are logged once the first message is published
+ * and the time to the first message is published as the {@code boot.duration} gauge of the default
+ * {@link MetricsRegistry}.
+ */
+@SuppressWarnings("nls")
+public class BootPipeline {
+
+	private static final Logger LOGGER = Logger.getLogger(BootPipeline.class.getName());
+
+	private final BootTimings timings = new BootTimings();
+	private final NetworkState networkState;
+
+	/**
+	 * Creates the boot sequence of a network just joined, the origin of the timings.
+	 *
+	 * @param networkState
+	 *            the network state, notified of the time synchronization and waited for by the reconnections
+	 */
+	public BootPipeline(NetworkState networkState) {
+		this.networkState = networkState;
+		this.timings.mark("join");
+	}
+
+	/**
+	 * Runs the boot sequence in a new thread, so that the caller (for example a listener of the network state) is not
+	 * blocked.
+	 */
+	public void start() {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BootPipeline.this.run();
+				} catch (InterruptedException | AwsIotException e) {
+					LOGGER.log(Level.SEVERE, "AWS ERROR", e);
+				}
+			}
+		}, "aws-boot").start();
+	}
+
+	/**
+	 * Runs the boot sequence and starts the demo, see {@link Aws#start(BootTimings)}.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for a stage or connecting
+	 * @throws AwsIotException
+	 *             on error with AWS client
+	 */
+	public void run() throws InterruptedException, AwsIotException {
+		final BootTimings timings = this.timings;
+		final NetworkState networkState = this.networkState;
+		timings.mark("ip");
+
+		if (Constants.getBoolean("aws.secure")) {
+			startStage("ssl", new Runnable() {
+				@Override
+				public void run() {
+					SslContextBuilder.getSocketFactory();
+				}
+			});
+		}
+		startStage("dns", new Runnable() {
+			@Override
+			public void run() {
+				String host = Constants.getString("aws.url");
+				try {
+					InetAddress.getByName(host);
+				} catch (IOException e) {
+					LOGGER.warning("Cannot resolve " + host + ", the connection will retry. " + e.getMessage());
+				}
+			}
+		});
+		final TimeService timeService = new TimeService(Constants.getString("aws.time.path"),
+				Constants.getString("aws.time.servers"), Constants.getInt("aws.time.timeout"),
+				Constants.getLong("aws.time.resync.period"), Constants.getLong("aws.time.retry.delay"),
+				Constants.getLong("aws.time.retry.delay.max"), Constants.getLong("aws.time.slew.rate"),
+				Constants.getLong("aws.time.step.threshold"));
+		timeService.start();
+		startStage("ntp", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					timeService.awaitSynchronization(0);
+					networkState.setReady(Readiness.TIME_SYNCHRONIZED);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		if (Util.currentTimeMillis() >= Constants.getLong("aws.boot.plausible.time")) {
+			LOGGER.info("Local time is plausible, connecting without waiting for NTP");
+		} else {
+			networkState.await(Readiness.TIME_SYNCHRONIZED, 0);
+		}
+
+		timings.begin("client");
+		// waits for the ssl stage if it is still running
+		Aws aws = new Aws(timeService, networkState);
+		timings.end("client");
+		aws.start(timings);
+
+		LOGGER.info("Boot timings: " + timings);
+		MetricsRegistry.getDefault().gauge("boot.duration", new Gauge() {
+			@Override
+			public long getValue() {
+				return timings.getEnd("first.publish");
+			}
+		});
+	}
+
+	/**
+	 * Runs a stage in a new thread.
+	 *
+	 * @param name
+	 *            the name of the stage
+	 * @param stage
+	 *            the stage
+	 */
+	private void startStage(final String name, final Runnable stage) {
+		final BootTimings timings = this.timings;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				timings.begin(name);
+				try {
+					stage.run();
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.SEVERE, "Boot stage " + name + " failed", e);
+				}
+				timings.end(name);
+			}
+		}, "boot-" + name);
+		thread.start();
+	}
+}
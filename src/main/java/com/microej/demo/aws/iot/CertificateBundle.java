@@ -0,0 +1,146 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+
+/**
+ * Certificates and keys pre-decoded at build time into a single resource.
+ * <p>
+ * The bundle is generated by the {@code tools/certificate-bundle} build step: its entries are the DER encoding of the
+ * files listed in the certificates list, indexed by their resource path. The entries are read from the bundle content,
+ * which is loaded with a single read.
+ */
+@SuppressWarnings("nls")
+class CertificateBundle {
+
+	private static final Logger LOGGER = Logger.getLogger(CertificateBundle.class.getName());
+
+	private static final byte[] MAGIC = { 'A', 'W', 'S', 'B' };
+	private static final int VERSION = 1;
+
+	private final String[] paths;
+	private final int[] offsets;
+	private final int[] lengths;
+	private final byte[] data;
+
+	private CertificateBundle(String[] paths, int[] offsets, int[] lengths, byte[] data) {
+		this.paths = paths;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.data = data;
+	}
+
+	/**
+	 * Loads a bundle.
+	 *
+	 * @param resourcePath
+	 *            the resource path of the bundle
+	 * @return the bundle or {@code null} if the resource does not exist or is not a valid bundle
+	 */
+	static CertificateBundle load(String resourcePath) {
+		try (InputStream stream = CertificateBundle.class.getResourceAsStream(resourcePath)) {
+			if (stream == null) {
+				LOGGER.info("No certificate bundle " + resourcePath);
+				return null;
+			}
+			DataInputStream input = new DataInputStream(stream);
+			for (byte b : MAGIC) {
+				if (input.readByte() != b) {
+					throw new IOException("bad magic");
+				}
+			}
+			if (input.readUnsignedByte() != VERSION) {
+				throw new IOException("unsupported version");
+			}
+			int count = input.readUnsignedShort();
+			byte[] data = new byte[input.readInt()];
+			input.readFully(data);
+			return index(count, data);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warning("Invalid certificate bundle " + resourcePath + ": " + e);
+			return null;
+		}
+	}
+
+	private static CertificateBundle index(int count, byte[] data) throws IOException {
+		String[] paths = new String[count];
+		int[] offsets = new int[count];
+		int[] lengths = new int[count];
+		int offset = 0;
+		for (int i = 0; i < count; i++) {
+			// path (modified UTF-8 with a 2 bytes length), data length (4 bytes), data
+			int pathLength = readUnsignedShort(data, offset);
+			paths[i] = new String(data, offset + 2, pathLength);
+			offset += 2 + pathLength;
+			int length = readInt(data, offset);
+			offset += 4;
+			if (length < 0 || offset + length > data.length) {
+				throw new IOException("truncated entry " + paths[i]);
+			}
+			offsets[i] = offset;
+			lengths[i] = length;
+			offset += length;
+		}
+		return new CertificateBundle(paths, offsets, lengths, data);
+	}
+
+	/**
+	 * Gets the content of an entry.
+	 *
+	 * @param resourcePath
+	 *            the resource path of the entry
+	 * @return a stream on the content of the entry or {@code null} if the bundle does not contain it
+	 */
+	InputStream getEntry(String resourcePath) {
+		int index = indexOf(resourcePath);
+		if (index < 0) {
+			return null;
+		}
+		return new ByteArrayInputStream(this.data, this.offsets[index], this.lengths[index]);
+	}
+
+	/**
+	 * Gets the content of an entry as a byte array.
+	 *
+	 * @param resourcePath
+	 *            the resource path of the entry
+	 * @return a copy of the content of the entry or {@code null} if the bundle does not contain it
+	 */
+	byte[] getEntryBytes(String resourcePath) {
+		int index = indexOf(resourcePath);
+		if (index < 0) {
+			return null;
+		}
+		byte[] entry = new byte[this.lengths[index]];
+		System.arraycopy(this.data, this.offsets[index], entry, 0, entry.length);
+		return entry;
+	}
+
+	private int indexOf(String resourcePath) {
+		String[] paths = this.paths;
+		for (int i = 0; i < paths.length; i++) {
+			if (paths[i].equals(resourcePath)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int readUnsignedShort(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+				| (data[offset + 3] & 0xff);
+	}
+}
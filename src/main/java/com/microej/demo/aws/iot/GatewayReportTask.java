@@ -0,0 +1,123 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.gateway.GatewayShadows;
+import com.microej.demo.aws.iot.publish.BatchPublisher;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.TimerTask;
+
+/**
+ * Timer task that simulates the sensors of the things behind a gateway. The values of their fields drift randomly;
+ * the changed values are added to a batch as samples looking like {@code thing/field=value}, then the shadows of the
+ * things are reported, see {@link GatewayShadows}.
+ * <p>
+ * The batch is flushed at each run. It is meant to be dedicated to the things and sized for the changes of a run, see
+ * {@link #getBatchCapacity(GatewayShadows)} and {@link #getBatchPayloadSize(GatewayShadows)}, so that the samples of
+ * a run are published in one message whatever the number of things.
+ */
+@SuppressWarnings("nls")
+public class GatewayReportTask extends TimerTask {
+
+	private static final Logger LOGGER = Logger.getLogger(GatewayReportTask.class.getName());
+
+	// Size of a sample besides its text, in JSON ({"message":"..."} and a separator) or in CBOR
+	private static final int SAMPLE_OVERHEAD = 20;
+	// Maximum number of bytes of an encoded character of a name
+	private static final int MAX_CHAR_SIZE = 3;
+	// Maximum length of an integer value
+	private static final int MAX_VALUE_LENGTH = 20;
+	// Size of the beginning and the end of the batch array
+	private static final int BATCH_OVERHEAD = 2;
+
+	private final GatewayShadows shadows;
+	private final BatchPublisher batchPublisher;
+	private final Random random = new Random();
+
+	/**
+	 * Initializes the timer task.
+	 *
+	 * @param shadows
+	 *            the shadows of the things
+	 * @param batchPublisher
+	 *            the batch the samples are added to and flushed at each run
+	 */
+	public GatewayReportTask(final GatewayShadows shadows, final BatchPublisher batchPublisher) {
+		this.shadows = shadows;
+		this.batchPublisher = batchPublisher;
+	}
+
+	/**
+	 * Gets the number of samples of a run when every field of every thing has changed.
+	 *
+	 * @param shadows
+	 *            the shadows of the things
+	 * @return the capacity of the batch
+	 */
+	public static int getBatchCapacity(GatewayShadows shadows) {
+		return shadows.getThingCount() * shadows.getFieldCount();
+	}
+
+	/**
+	 * Gets the maximum size of a batch message holding the samples of a run, see {@link #getBatchCapacity}.
+	 *
+	 * @param shadows
+	 *            the shadows of the things
+	 * @return the maximum size in bytes of a batch message, in JSON or in CBOR
+	 */
+	public static int getBatchPayloadSize(GatewayShadows shadows) {
+		int maxThingLength = 0;
+		for (int thing = 0; thing < shadows.getThingCount(); thing++) {
+			maxThingLength = Math.max(maxThingLength, shadows.getThingName(thing).length());
+		}
+		int maxFieldLength = 0;
+		for (int field = 0; field < shadows.getFieldCount(); field++) {
+			maxFieldLength = Math.max(maxFieldLength, shadows.getFieldName(field).length());
+		}
+		// thing/field=value
+		int maxSampleSize = SAMPLE_OVERHEAD + MAX_CHAR_SIZE * (maxThingLength + maxFieldLength + 2) + MAX_VALUE_LENGTH;
+		return BATCH_OVERHEAD + getBatchCapacity(shadows) * maxSampleSize;
+	}
+
+	@Override
+	public void run() {
+		GatewayShadows shadows = this.shadows;
+		for (int thing = 0; thing < shadows.getThingCount(); thing++) {
+			for (int field = 0; field < shadows.getFieldCount(); field++) {
+				int step = this.random.nextInt(3) - 1;
+				if (step == 0) {
+					continue;
+				}
+				long value = shadows.get(thing, field) + step;
+				shadows.set(thing, field, value);
+				this.batchPublisher.add(shadows.getThingName(thing) + "/" + shadows.getFieldName(field) + "=" + value);
+			}
+		}
+
+		try {
+			this.batchPublisher.flush();
+		} catch (AwsIotException e) {
+			LOGGER.severe("An error occured while publishing the gateway samples. " + e.getMessage());
+		} catch (RuntimeException e) {
+			// not propagated to the timer, which would stop running its tasks
+			LOGGER.log(Level.SEVERE, "Unexpected error while publishing the gateway samples.", e);
+		}
+		try {
+			shadows.report();
+		} catch (AwsIotException e) {
+			LOGGER.severe("An error occured while reporting the gateway things. " + e.getMessage());
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Unexpected error while reporting the gateway things.", e);
+		}
+	}
+
+}
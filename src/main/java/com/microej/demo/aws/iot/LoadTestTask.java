@@ -0,0 +1,217 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.metrics.Histogram;
+import com.microej.demo.aws.iot.metrics.LatencyProbe;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+import com.microej.demo.aws.iot.publish.BatchPublisher;
+import com.microej.demo.aws.iot.shadow.ShadowClient;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.Timer;
+import ej.bon.TimerTask;
+import ej.bon.Util;
+
+/**
+ * Timer task running a load test: the samples are published and the shadow is updated at increasing rates, one step
+ * per rate, and the throughput, latency and heap usage of each step are logged.
+ * <p>
+ * Each step schedules a {@link PublishTimerTask} and a {@link BatchFlushTask} per sample topic, sharing the rate of the
+ * step, and a shadow update task at the rate of the step, and resets the {@link LatencyProbe} summary. At the end of
+ * the step, the task logs:
+ * <ul>
+ * <li>the sample messages and bytes published per second,</li>
+ * <li>the samples received back per second and their round-trip time (p50, p99, max) measured by the probe,</li>
+ * <li>the shadow updates accepted per second,</li>
+ * <li>the heap used after a garbage collection.</li>
+ * </ul>
+ * The test is meant to be run against a local broker (see {@code tools/broker-standin}), the AWS IoT service throttling
+ * the publications and the shadow updates of a device.
+ */
+@SuppressWarnings("nls")
+public class LoadTestTask extends TimerTask {
+
+	private static final Logger LOGGER = Logger.getLogger(LoadTestTask.class.getName());
+
+	private static final long MILLIS_PER_SECOND = 1000;
+
+	/**
+	 * Timer task updating a shadow field.
+	 */
+	private static class ShadowUpdateTask extends TimerTask {
+		private final ShadowClient shadowClient;
+		private long counter;
+
+		ShadowUpdateTask(ShadowClient shadowClient) {
+			this.shadowClient = shadowClient;
+		}
+
+		@Override
+		public void run() {
+			// sent right away through the client, so that the response is matched by its client token
+			this.shadowClient.set("loadtest", "counter", ++this.counter);
+			this.shadowClient.flush();
+		}
+	}
+
+	private final Timer timer;
+	private final BatchPublisher[] batchPublishers;
+	private final ShadowClient shadowClient;
+	private final LatencyProbe probe;
+	private final String shadowAcceptedTopic;
+	private final int[] rates;
+
+	private int step = -1;
+	private TimerTask[] publishTasks;
+	private TimerTask shadowTask;
+
+	// Values at the beginning of the current step
+	private long stepStart;
+	private long publishedCount;
+	private long publishedBytes;
+	private long receivedCount;
+	private long acceptedCount;
+
+	/**
+	 * Creates a load test.
+	 *
+	 * @param timer
+	 *            the timer the publications are scheduled on
+	 * @param batchPublishers
+	 *            the publishers the samples are added to, one per sample topic
+	 * @param shadowClient
+	 *            the client of the shadow updated by the test
+	 * @param probe
+	 *            the probe measuring the round trip of the samples
+	 * @param shadowAcceptedTopic
+	 *            the topic of the accepted shadow updates
+	 * @param rates
+	 *            the rates of the steps, in samples (and shadow updates) per second
+	 */
+	public LoadTestTask(Timer timer, BatchPublisher[] batchPublishers, ShadowClient shadowClient, LatencyProbe probe,
+			String shadowAcceptedTopic, int[] rates) {
+		this.timer = timer;
+		this.batchPublishers = batchPublishers.clone();
+		this.shadowClient = shadowClient;
+		this.probe = probe;
+		this.shadowAcceptedTopic = shadowAcceptedTopic;
+		this.rates = rates.clone();
+	}
+
+	/**
+	 * Parses a comma-separated list of rates.
+	 *
+	 * @param rates
+	 *            the list, for example {@code 1,2,5,10}
+	 * @return the rates
+	 * @throws NumberFormatException
+	 *             if a rate is not a positive integer
+	 */
+	public static int[] parseRates(String rates) {
+		int count = 1;
+		for (int i = 0; i < rates.length(); i++) {
+			if (rates.charAt(i) == ',') {
+				count++;
+			}
+		}
+		int[] parsed = new int[count];
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int end = rates.indexOf(',', start);
+			if (end < 0) {
+				end = rates.length();
+			}
+			parsed[i] = Integer.parseInt(rates.substring(start, end).trim());
+			if (parsed[i] <= 0) {
+				throw new NumberFormatException(rates);
+			}
+			start = end + 1;
+		}
+		return parsed;
+	}
+
+	@Override
+	public void run() {
+		if (this.step >= 0) {
+			endStep();
+		}
+		this.step++;
+		if (this.step < this.rates.length) {
+			startStep(this.rates[this.step]);
+		} else {
+			LOGGER.info("Load test done");
+			cancel();
+		}
+	}
+
+	private void startStep(int rate) {
+		MetricsRegistry registry = MetricsRegistry.getDefault();
+		this.stepStart = Util.platformTimeMillis();
+		this.publishedCount = registry.counter("publish.count").getValue();
+		this.publishedBytes = registry.counter("publish.bytes").getValue();
+		this.receivedCount = registry.counter("probe.received").getValue();
+		this.acceptedCount = registry.getReceivedCount(this.shadowAcceptedTopic);
+		this.probe.reset();
+
+		BatchPublisher[] batchPublishers = this.batchPublishers;
+		LOGGER.info("Load test step " + (this.step + 1) + "/" + this.rates.length + ": " + rate + " samples/s over "
+				+ batchPublishers.length + " topics");
+		long period = Math.max(1, MILLIS_PER_SECOND / rate);
+		long topicPeriod = Math.max(1, MILLIS_PER_SECOND * batchPublishers.length / rate);
+		this.publishTasks = new TimerTask[batchPublishers.length * 2];
+		for (int i = 0; i < batchPublishers.length; i++) {
+			// the batches are checked at the rate they are filled
+			TimerTask publishTask = new PublishTimerTask(batchPublishers[i]);
+			TimerTask flushTask = new BatchFlushTask(batchPublishers[i]);
+			this.publishTasks[i * 2] = publishTask;
+			this.publishTasks[i * 2 + 1] = flushTask;
+			this.timer.schedule(publishTask, 0, topicPeriod);
+			this.timer.schedule(flushTask, topicPeriod, topicPeriod);
+		}
+		this.shadowTask = new ShadowUpdateTask(this.shadowClient);
+		this.timer.schedule(this.shadowTask, 0, period);
+	}
+
+	private void endStep() {
+		for (TimerTask publishTask : this.publishTasks) {
+			publishTask.cancel();
+		}
+		this.shadowTask.cancel();
+		try {
+			for (BatchPublisher batchPublisher : this.batchPublishers) {
+				batchPublisher.flush();
+			}
+		} catch (AwsIotException e) {
+			LOGGER.warning("Flush failed. " + e.getMessage());
+		}
+
+		MetricsRegistry registry = MetricsRegistry.getDefault();
+		long duration = Math.max(1, Util.platformTimeMillis() - this.stepStart);
+		long published = registry.counter("publish.count").getValue() - this.publishedCount;
+		long bytes = registry.counter("publish.bytes").getValue() - this.publishedBytes;
+		long received = registry.counter("probe.received").getValue() - this.receivedCount;
+		long accepted = registry.getReceivedCount(this.shadowAcceptedTopic) - this.acceptedCount;
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+		Histogram roundTrip = this.probe.getRoundTrip();
+
+		LOGGER.info("Load test step " + (this.step + 1) + " at " + this.rates[this.step] + " samples/s: published "
+				+ perSecond(published, duration) + " msg/s (" + perSecond(bytes, duration) + " B/s), received "
+				+ perSecond(received, duration) + " samples/s, round trip p50=" + roundTrip.getPercentile(50)
+				+ "us p99=" + roundTrip.getPercentile(99) + "us max=" + roundTrip.getMax() + "us, shadow accepted "
+				+ perSecond(accepted, duration) + "/s, lost " + this.probe.getLostCount() + ", heap used "
+				+ heapUsed + " B");
+	}
+
+	private static long perSecond(long count, long duration) {
+		return count * MILLIS_PER_SECOND / duration;
+	}
+}
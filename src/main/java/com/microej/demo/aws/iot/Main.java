@@ -9,9 +9,12 @@ package com.microej.demo.aws.iot;
 import java.io.IOException;
 import java.util.logging.Logger;
 
+import com.microej.demo.aws.iot.network.NetworkState;
+import com.microej.demo.aws.iot.wifi.WifiConfigurationStore;
 import com.microej.example.wifi.setup.ConfigurationManager;
 import com.microej.example.wifi.setup.web.WebSoftAPConnector;
 
+import ej.bon.Constants;
 import ej.ecom.wifi.SecurityMode;
 import ej.ecom.wifi.SoftAPConfiguration;
 import ej.net.util.wifi.AccessPointConfiguration;
@@ -25,7 +28,8 @@ import ej.net.util.wifi.AccessPointConfiguration;
  *
  * 3) Subscribe to the test 'AWS_TOPIC_SAMPLE' topic see {@link TopicSubscriber}
  *
- * 4) Start publishing a message to 'AWS_TOPIC_SAMPLE' topic every 2 seconds see {@link PublishTimerTask}
+ * 4) Start sampling data and publishing it in batches to 'AWS_TOPIC_SAMPLE' topic see {@link PublishTimerTask} and
+ * {@link BatchFlushTask}
  *
  * 5) Subscribe to default Device shadow updates. See {@link Aws}
  *
@@ -61,21 +65,20 @@ public class Main {
 	 *
 	 */
 	public static void main(String[] args) throws IOException {
+		// The configuration is kept across reboots, so that the device joins the network directly once configured
+		final WifiConfigurationStore store = new WifiConfigurationStore(Constants.getString("aws.wifi.config.path"));
 		webSoftAPConnector = new WebSoftAPConnector(new ConfigurationManager() {
 
-			private AccessPointConfiguration config = null;
-
 			@Override
 			public void storeAPConfiguration(final AccessPointConfiguration config) {
 				LOGGER.info("Storing AP config for reuse");
-				// can be stored to the FS for later reuse.
-				this.config = config;
+				store.store(config);
 			}
 
 			@Override
 			public AccessPointConfiguration loadAPConfiguration() {
 				LOGGER.info("Loading Stored AP config");
-				return this.config;
+				return store.load();
 			}
 
 			@Override
@@ -88,7 +91,7 @@ public class Main {
 				return config;
 			}
 		}, WIFI_WEBAPP_CONFIG_PORT);
-		webSoftAPConnector.addListener(new Wifi(webSoftAPConnector));
+		webSoftAPConnector.addListener(new Wifi(webSoftAPConnector, store, new NetworkState()));
 		webSoftAPConnector.start();
 	}
 
@@ -0,0 +1,106 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+import com.microej.demo.aws.iot.payload.JsonWriter;
+import com.microej.demo.aws.iot.payload.PayloadWriter;
+import com.microej.demo.aws.iot.publish.MessagePublisher;
+import com.microej.demo.aws.iot.time.TimeService;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.TimerTask;
+
+/**
+ * Timer task that publishes a snapshot of the metrics of the application.
+ */
+@SuppressWarnings("nls")
+public class MetricsReportTask extends TimerTask {
+
+	private static final Logger LOGGER = Logger.getLogger(MetricsReportTask.class.getName());
+
+	private final MetricsRegistry registry;
+	private final MessagePublisher publisher;
+	private final String topic;
+	private final PayloadWriter writer;
+	private final TimeService timeService;
+
+	/**
+	 * Initializes the timer task.
+	 *
+	 * @param registry
+	 *            the registry of the metrics to publish
+	 * @param publisher
+	 *            the publisher used to publish the snapshots
+	 * @param topic
+	 *            the topic the snapshots are published to
+	 * @param payloadSize
+	 *            the maximum size in bytes of a snapshot
+	 * @param timeService
+	 *            the clock of the snapshot timestamps
+	 */
+	public MetricsReportTask(MetricsRegistry registry, MessagePublisher publisher, String topic, int payloadSize,
+			TimeService timeService) {
+		this(registry, publisher, topic, new JsonWriter(payloadSize), timeService);
+	}
+
+	/**
+	 * Initializes the timer task with the writer encoding the snapshots.
+	 *
+	 * @param registry
+	 *            the registry of the metrics to publish
+	 * @param publisher
+	 *            the publisher used to publish the snapshots
+	 * @param topic
+	 *            the topic the snapshots are published to
+	 * @param writer
+	 *            the writer encoding the snapshots, its capacity is the maximum size of a snapshot
+	 * @param timeService
+	 *            the clock of the snapshot timestamps
+	 */
+	public MetricsReportTask(MetricsRegistry registry, MessagePublisher publisher, String topic,
+			PayloadWriter writer, TimeService timeService) {
+		this.registry = registry;
+		this.publisher = publisher;
+		this.topic = topic;
+		this.writer = writer;
+		this.timeService = timeService;
+	}
+
+	@Override
+	public void run() {
+		try {
+			report();
+		} catch (RuntimeException e) {
+			// not propagated to the timer, which would stop running its tasks
+			LOGGER.log(Level.SEVERE, "Unexpected error while reporting the metrics.", e);
+		}
+	}
+
+	private void report() {
+		PayloadWriter writer = this.writer.reset().beginObject();
+		writer.name("ts").value(this.timeService.currentTimeMillis());
+		try {
+			this.registry.writeMembers(writer);
+			writer.endObject();
+		} catch (IllegalStateException e) {
+			LOGGER.warning("Metrics snapshot too large for the payload buffer. " + e.getMessage());
+			return;
+		}
+		try {
+			// a snapshot is not stored while disconnected, the next one will be up to date
+			this.publisher.publish(this.topic, writer.toPayload());
+			this.registry.onSnapshotPublished();
+		} catch (AwsIotException e) {
+			LOGGER.info("Metrics snapshot not published. " + e.getMessage());
+		}
+	}
+
+}
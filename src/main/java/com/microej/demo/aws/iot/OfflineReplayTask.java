@@ -0,0 +1,36 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import com.microej.demo.aws.iot.publish.StoreAndForwardPublisher;
+
+import ej.bon.TimerTask;
+
+/**
+ * Timer task that replays the messages stored while the device was offline. The number of messages replayed at each
+ * execution is bounded, which controls the replay rate.
+ */
+public class OfflineReplayTask extends TimerTask {
+
+	private final StoreAndForwardPublisher publisher;
+
+	/**
+	 * Initializes the timer task.
+	 *
+	 * @param publisher
+	 *            the publisher holding the stored messages
+	 */
+	public OfflineReplayTask(final StoreAndForwardPublisher publisher) {
+		this.publisher = publisher;
+	}
+
+	@Override
+	public void run() {
+		this.publisher.replay();
+	}
+
+}
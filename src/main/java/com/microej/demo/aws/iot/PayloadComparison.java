@@ -0,0 +1,77 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.payload.PayloadFormat;
+import com.microej.demo.aws.iot.payload.PayloadWriter;
+
+import ej.bon.Util;
+
+/**
+ * Compares the size and the encoding time of a sample batch in each {@link PayloadFormat}.
+ * <p>
+ * The batch has the same layout as the ones published by {@link com.microej.demo.aws.iot.publish.BatchPublisher} with
+ * a latency probe: {@code [{"message":"...","seq":12,"sent":123456789},...]}. It is encoded a number of times with a
+ * warmed-up writer of each format, and the size and average encoding time are logged.
+ */
+@SuppressWarnings("nls")
+public class PayloadComparison {
+
+	private static final Logger LOGGER = Logger.getLogger(PayloadComparison.class.getName());
+
+	private static final String[] SAMPLES = { "MicroEJ", "is", "a", "unique", "solution", "for", "building",
+			"Internet", "of", "Things" };
+
+	private PayloadComparison() {
+		// static methods only
+	}
+
+	/**
+	 * Encodes a batch in each format and logs the results.
+	 *
+	 * @param batchSize
+	 *            the number of samples of the batch
+	 * @param payloadSize
+	 *            the capacity of the writers
+	 * @param iterations
+	 *            the number of times the batch is encoded in each format
+	 */
+	public static void run(int batchSize, int payloadSize, int iterations) {
+		PayloadFormat[] formats = PayloadFormat.values();
+		int jsonSize = 0;
+		for (PayloadFormat format : formats) {
+			PayloadWriter writer = format.newWriter(payloadSize);
+			// warm up
+			encode(writer, batchSize);
+			long start = Util.platformTimeNanos();
+			for (int i = 0; i < iterations; i++) {
+				encode(writer, batchSize);
+			}
+			long duration = Util.platformTimeNanos() - start;
+			int size = writer.size();
+			if (format == PayloadFormat.JSON) {
+				jsonSize = size;
+			}
+			LOGGER.info(format + " batch of " + batchSize + " samples: " + size + " bytes"
+					+ (jsonSize > 0 ? " (" + (size * 100 / jsonSize) + "% of JSON)" : "") + ", "
+					+ (duration / iterations) + " ns per encoding");
+		}
+	}
+
+	private static void encode(PayloadWriter writer, int batchSize) {
+		long sent = Util.platformTimeNanos() / 1000;
+		writer.reset().beginArray();
+		for (int i = 0; i < batchSize; i++) {
+			writer.beginObject().name("message").value(SAMPLES[i % SAMPLES.length]);
+			writer.name("seq").value(i).name("sent").value(sent);
+			writer.endObject();
+		}
+		writer.endArray().toPayload();
+	}
+}
@@ -6,23 +6,17 @@
  */
 package com.microej.demo.aws.iot;
 
-import java.util.logging.Logger;
+import com.microej.demo.aws.iot.publish.BatchPublisher;
 
-import org.json.me.JSONException;
-import org.json.me.JSONObject;
-
-import ej.aws.iot.AwsIotClient;
-import ej.aws.iot.AwsIotException;
 import ej.bon.TimerTask;
 
 /**
- * Timer task that publishes data to a topic.
+ * Timer task that samples data and adds it to a batch, published by a {@link BatchFlushTask}. It can also be run as a
+ * stream of a {@link com.microej.demo.aws.iot.schedule.TimerWheel}, as it does not block.
  */
 @SuppressWarnings("nls")
 public class PublishTimerTask extends TimerTask {
 
-	private static final Logger LOGGER = Logger.getLogger(PublishTimerTask.class.getName());
-
 	// Sample data to be published
 	private static final String[] SAMPLE_DATA_PUBLISH_ARRAY = { "MicroEJ", "is", "a", "unique", "solution", "for",
 			"building", "Internet", "of", "Things", "and", "embedded", "software", "and", "can", "now", "communicate",
@@ -30,32 +24,23 @@ public class PublishTimerTask extends TimerTask {
 
 	private int index = 0;
 
-	// The AWS Client
-	private final AwsIotClient awsClient;
+	// The batch the samples are added to
+	private final BatchPublisher batchPublisher;
 
 	/**
 	 * Initializes the timer task.
 	 *
-	 * @param awsClient
-	 *            the AWS thing for being able to publish with it
+	 * @param batchPublisher
+	 *            the batch publisher the samples are added to
 	 */
-	public PublishTimerTask(final AwsIotClient awsClient) {
-		this.awsClient = awsClient;
+	public PublishTimerTask(final BatchPublisher batchPublisher) {
+		this.batchPublisher = batchPublisher;
 	}
 
 	@Override
 	public void run() {
-		try {
-			JSONObject data = new JSONObject();
-			data.put("message", SAMPLE_DATA_PUBLISH_ARRAY[this.index]);
-
-			this.awsClient.publish(Aws.AWS_TOPIC_SAMPLE, data.toString().getBytes());
-
-			this.index = (this.index + 1) % SAMPLE_DATA_PUBLISH_ARRAY.length;
-
-		} catch (AwsIotException | JSONException e) {
-			LOGGER.severe("An error occured while publishing. " + e.getMessage());
-		}
+		this.batchPublisher.add(SAMPLE_DATA_PUBLISH_ARRAY[this.index]);
+		this.index = (this.index + 1) % SAMPLE_DATA_PUBLISH_ARRAY.length;
 	}
 
 }
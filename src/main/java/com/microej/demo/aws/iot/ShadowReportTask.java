@@ -0,0 +1,45 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import com.microej.demo.aws.iot.shadow.ShadowCache;
+import com.microej.demo.aws.iot.shadow.ShadowClient;
+import com.microej.demo.aws.iot.time.TimeService;
+
+import ej.bon.TimerTask;
+
+/**
+ * Timer task that reports the device state to the shadow. Only the fields that changed since the last acknowledged
+ * report are sent, see {@link ShadowCache}, along with the changes made in the same coalescing window, see
+ * {@link ShadowClient}.
+ */
+@SuppressWarnings("nls")
+public class ShadowReportTask extends TimerTask {
+
+	private final ShadowClient shadowClient;
+	private final TimeService timeService;
+
+	/**
+	 * Initializes the timer task.
+	 *
+	 * @param shadowClient
+	 *            the client reporting the state
+	 * @param timeService
+	 *            the clock of the reported timestamps
+	 */
+	public ShadowReportTask(final ShadowClient shadowClient, final TimeService timeService) {
+		this.shadowClient = shadowClient;
+		this.timeService = timeService;
+	}
+
+	@Override
+	public void run() {
+		// the errors are logged by the client
+		this.shadowClient.set(null, "timestamp", this.timeService.currentTimeMillis());
+	}
+
+}
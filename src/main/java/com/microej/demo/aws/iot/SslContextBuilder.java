@@ -18,44 +18,87 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.util.logging.Logger;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
 import ej.bon.Constants;
+import ej.bon.Util;
 
 /**
  * This class provides functions to help creating key stores and trust stores for initializing the SSL context.
+ * <p>
+ * The SSL context is built once and cached for the process lifetime, so that the certificates and the key are parsed
+ * only once: the boot pipeline builds it ahead of the connection, and the connections of the client pool share it. An
+ * AWS client keeps its socket factory across its reconnections, so the cache does not change their TLS handshakes.
+ * <p>
+ * The certificates and the key are read from the bundle generated by the module build (see {@link CertificateBundle}),
+ * which holds them already decoded to DER. A file that is not in the bundle is loaded from its own PEM or DER resource,
+ * which is only embedded if it is listed in {@code com.microej.demo.aws.iot.resources.list}. When neither is found, the
+ * error says to build the module, which generates the bundle.
  */
 @SuppressWarnings("nls")
 public class SslContextBuilder {
 
+	private static final Logger LOGGER = Logger.getLogger(SslContextBuilder.class.getName());
+
 	private static final String TLS_V_1_2 = "TLSv1.2";
 
+	private static SSLContext sslContext;
+
 	/**
-	 * Builds an SSL context based BON Constants in test.constants.list file
+	 * Gets the SSL context configured by the BON constants of {@code com.microej.demo.aws.iot.constants.list}. The
+	 * context is built on the first call.
 	 *
 	 * @return an configured SSL context.
 	 */
-	public static SSLContext getSslContext() {
+	public static synchronized SSLContext getSslContext() {
+		SSLContext context = sslContext;
+		if (context == null) {
+			long start = Util.platformTimeMillis();
+			context = buildSslContext();
+			LOGGER.info("SSL context built in " + (Util.platformTimeMillis() - start) + " ms");
+			sslContext = context;
+		}
+		return context;
+	}
+
+	/**
+	 * Gets a socket factory of the SSL context, built on the first call.
+	 *
+	 * @return the socket factory of the SSL context.
+	 */
+	public static SSLSocketFactory getSocketFactory() {
+		return getSslContext().getSocketFactory();
+	}
+
+	/**
+	 * Builds an SSL context configured by the BON constants of {@code com.microej.demo.aws.iot.constants.list}.
+	 *
+	 * @return an configured SSL context.
+	 */
+	private static SSLContext buildSslContext() {
 
 		try {
+			CertificateBundle bundle = CertificateBundle.load(Constants.getString("aws.certificate.bundle"));
 
 			// Trust managers
 			KeyStore tStore = KeyStore.getInstance(KeyStore.getDefaultType());
 			tStore.load(null, null);
 			tStore.setCertificateEntry("AmazonRootCA3",
-					loadCertificate(Constants.getString("aws.trusted.server.certificate1")));
+					loadCertificate(bundle, Constants.getString("aws.trusted.server.certificate1")));
 			tStore.setCertificateEntry("SFSRootCAG2",
-					loadCertificate(Constants.getString("aws.trusted.server.certificate2")));
+					loadCertificate(bundle, Constants.getString("aws.trusted.server.certificate2")));
 			TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("X509");
 			trustManagerFactory.init(tStore);
 
 			// key manager
-			Certificate root = loadCertificate(Constants.getString("aws.root.certificate"));
-			Certificate device = loadCertificate(Constants.getString("aws.device.certificate"));
-			byte[] key = loadResource(Constants.getString("aws.device.key"));
+			Certificate root = loadCertificate(bundle, Constants.getString("aws.root.certificate"));
+			Certificate device = loadCertificate(bundle, Constants.getString("aws.device.certificate"));
+			byte[] key = loadResource(bundle, Constants.getString("aws.device.key"));
 			KeyStore kstore = KeyStore.getInstance(KeyStore.getDefaultType());
 			kstore.load(null, null);
 			kstore.setKeyEntry("device", key, new Certificate[] { device, root });
@@ -74,16 +117,20 @@ public class SslContextBuilder {
 	}
 
 	/**
+	 * @param bundle
+	 *            the certificate bundle, may be {@code null}
 	 * @param certPath
 	 * @return
 	 * @throws IOException
 	 * @throws CertificateException
 	 */
-	private static Certificate loadCertificate(String certPath) throws IOException, CertificateException {
+	private static Certificate loadCertificate(CertificateBundle bundle, String certPath)
+			throws IOException, CertificateException {
 		Certificate cert;
-		try (InputStream in = SslContextBuilder.class.getResourceAsStream(certPath)) {
+		InputStream entry = bundle != null ? bundle.getEntry(certPath) : null;
+		try (InputStream in = entry != null ? entry : SslContextBuilder.class.getResourceAsStream(certPath)) {
 			if (in == null) {
-				throw new IllegalStateException("resource not found: " + certPath);
+				throw resourceNotFound(bundle, certPath);
 			}
 
 			// Generate the server certificates
@@ -92,11 +139,27 @@ public class SslContextBuilder {
 		return cert;
 	}
 
+	/**
+	 * Creates the error thrown when a certificate or the key is neither in the bundle nor in the resources.
+	 */
+	private static IllegalStateException resourceNotFound(CertificateBundle bundle, String resourcePath) {
+		if (bundle == null) {
+			return new IllegalStateException("resource not found: " + resourcePath + ", the certificate bundle "
+					+ Constants.getString("aws.certificate.bundle")
+					+ " is missing: build the module (Build Module) to generate it before running the application");
+		}
+		return new IllegalStateException("resource not found: " + resourcePath + ", not in the certificate bundle: "
+				+ "check com.microej.demo.aws.iot.certificates.list and build the module again");
+	}
+
 	/**
 	 * Loads the content of a resource into a byte array.
 	 * <p>
-	 * This method uses {@link Class#getResourceAsStream(String)} to load the resource.
+	 * The content is taken from the bundle if it contains the resource, otherwise this method uses
+	 * {@link Class#getResourceAsStream(String)} to load the resource.
 	 *
+	 * @param bundle
+	 *            the certificate bundle, may be {@code null}
 	 * @param resourcePath
 	 *            name of the resource
 	 *
@@ -107,10 +170,16 @@ public class SslContextBuilder {
 	 *
 	 * @see Class#getResourceAsStream(String)
 	 */
-	private static byte[] loadResource(String resourcePath) throws IOException {
+	private static byte[] loadResource(CertificateBundle bundle, String resourcePath) throws IOException {
+		if (bundle != null) {
+			byte[] entry = bundle.getEntryBytes(resourcePath);
+			if (entry != null) {
+				return entry;
+			}
+		}
 		try (InputStream stream = SslContextBuilder.class.getResourceAsStream(resourcePath)) {
 			if (stream == null) {
-				throw new IllegalStateException("resource not found " + resourcePath);
+				throw resourceNotFound(bundle, resourcePath);
 			}
 
 			DataInputStream dataInputStream = new DataInputStream(stream);
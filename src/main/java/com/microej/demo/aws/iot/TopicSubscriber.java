@@ -8,21 +8,96 @@ package com.microej.demo.aws.iot;
 
 import java.util.logging.Logger;
 
+import com.microej.demo.aws.iot.metrics.LatencyProbe;
+import com.microej.demo.aws.iot.payload.PayloadFormat;
+import com.microej.demo.aws.iot.payload.PayloadReader;
+
 import ej.aws.iot.AwsIotMessage;
 import ej.aws.iot.AwsIotMessageCallback;
 
 /**
  * A topic listener that prints the received data.
+ * <p>
+ * With a {@link LatencyProbe}, the listener also reads the sequence number and the send time of each sample of the
+ * received batches (see {@link com.microej.demo.aws.iot.publish.BatchPublisher}) and gives them to the probe.
+ * <p>
+ * The received data is printed as text if it is JSON, only its size is printed if it is in a binary format.
  */
 @SuppressWarnings("nls")
 public class TopicSubscriber implements AwsIotMessageCallback {
 
 	private static final Logger LOGGER = Logger.getLogger(TopicSubscriber.class.getName());
 
+	private final LatencyProbe probe;
+	private final PayloadFormat format;
+	private final PayloadReader reader;
+
+	/**
+	 * Creates a listener that only prints the received data.
+	 */
+	public TopicSubscriber() {
+		this(null, PayloadFormat.JSON);
+	}
+
+	/**
+	 * Creates a listener that prints the received data and measures their round trip.
+	 *
+	 * @param probe
+	 *            the probe the received samples are given to, or {@code null} not to measure the round trip
+	 * @param format
+	 *            the format of the received data
+	 */
+	public TopicSubscriber(LatencyProbe probe, PayloadFormat format) {
+		this.probe = probe;
+		this.format = format;
+		this.reader = probe != null ? format.newReader() : null;
+	}
+
 	@Override
 	public void onMessageReceived(AwsIotMessage message) {
 		// Here we have the topic on which the message is received and the data
-		LOGGER.info("Message received on topic " + message.getTopic() + " => " + new String(message.getPayload()));
+		if (this.format == PayloadFormat.JSON) {
+			LOGGER.info("Message received on topic " + message.getTopic() + " => " + new String(message.getPayload()));
+		} else {
+			LOGGER.info("Message received on topic " + message.getTopic() + " => " + message.getPayload().length
+					+ " bytes of " + this.format);
+		}
+
+		if (this.probe != null) {
+			probe(message.getPayload());
+		}
+	}
+
+	/**
+	 * Gives the sequence number and send time of each sample of a batch to the probe.
+	 */
+	private void probe(byte[] payload) {
+		PayloadReader reader = this.reader.reset(payload);
+		if (reader.next() != PayloadReader.BEGIN_ARRAY) {
+			return;
+		}
+		while (reader.next() == PayloadReader.BEGIN_OBJECT) {
+			long sequence = -1;
+			long sent = -1;
+			while (reader.nextMember()) {
+				if (reader.nameEquals("seq")) {
+					sequence = readLong(reader);
+				} else if (reader.nameEquals("sent")) {
+					sent = readLong(reader);
+				}
+			}
+			if (sequence >= 0 && sent >= 0) {
+				this.probe.onReceived(sequence, sent);
+			}
+		}
+	}
+
+	private static long readLong(PayloadReader reader) {
+		if (reader.next() == PayloadReader.NUMBER) {
+			return reader.longValue();
+		}
+		reader.skipValue();
+		return -1;
 	}
 
 }
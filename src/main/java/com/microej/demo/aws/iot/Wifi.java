@@ -10,20 +10,23 @@ import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.json.me.JSONException;
-
+import com.microej.demo.aws.iot.network.NetworkState;
+import com.microej.demo.aws.iot.network.Readiness;
+import com.microej.demo.aws.iot.wifi.WifiConfigurationStore;
 import com.microej.example.wifi.setup.ConnectorListener;
 import com.microej.example.wifi.setup.web.WebSoftAPConnector;
 
-import ej.aws.iot.AwsIotException;
 import ej.ecom.wifi.AccessPoint;
 import ej.ecom.wifi.SoftAPConfiguration;
 import ej.net.util.NetUtil;
-import ej.net.util.NtpUtil;
 import ej.net.util.wifi.AccessPointConfiguration;
 
 /**
  * WIFI State Listener
+ * <p>
+ * The listener only reports the Wi-Fi events to the {@link NetworkState} and returns, so that the thread of the
+ * connector is not blocked: the configuration instructions are logged and the demo is started once an IP address is
+ * acquired.
  */
 @SuppressWarnings("nls")
 public class Wifi implements ConnectorListener {
@@ -31,26 +34,43 @@ public class Wifi implements ConnectorListener {
 	private static final Logger LOGGER = Logger.getLogger(Wifi.class.getName());
 
 	private final WebSoftAPConnector connector;
+	private final WifiConfigurationStore store;
+	private final NetworkState networkState;
+
+	// Access points found by the last scan
+	private AccessPoint[] scanned = new AccessPoint[0];
+	// Started once, on the first join
+	private BootPipeline bootPipeline;
 
 	/**
 	 *
 	 * @param connector
 	 *            websoft ap connector
+	 * @param store
+	 *            the store of the configuration, updated with the access point joined
+	 * @param networkState
+	 *            the network state, notified of the IP address acquisition
 	 */
-	public Wifi(final WebSoftAPConnector connector) {
+	public Wifi(final WebSoftAPConnector connector, final WifiConfigurationStore store,
+			final NetworkState networkState) {
 		this.connector = connector;
+		this.store = store;
+		this.networkState = networkState;
 	}
 
 	@Override
-	public void onSoftAPMount(SoftAPConfiguration softAPConfiguration) {
-		// Wait for an IP address
-		while (NetUtil.getFirstHostAddress() == null) {
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				// no-op
+	public void onSoftAPMount(final SoftAPConfiguration softAPConfiguration) {
+		NetworkState networkState = this.networkState;
+		networkState.whenReady(Readiness.IP_ACQUIRED, new Runnable() {
+			@Override
+			public void run() {
+				logInstructions(softAPConfiguration);
 			}
-		}
+		});
+		networkState.probeAddress();
+	}
+
+	private void logInstructions(SoftAPConfiguration softAPConfiguration) {
 		final String host = NetUtil.getFirstHostAddress().getHostAddress();
 		final int port = this.connector.getServerPort();
 		LOGGER.info("\n############ Wi-Fi CONFIG INSTRUCTIONS ###################\n" //
@@ -67,31 +87,30 @@ public class Wifi implements ConnectorListener {
 	@Override
 	public void onSuccessfulJoin(AccessPointConfiguration apConfiguration) {
 		LOGGER.info("Successfully joined Wi-Fi Network: " + apConfiguration.getSSID());
-		// Update time on the board
-		final String ntpServer = System.getProperty(NtpUtil.NTP_URL_PROPERTY, NtpUtil.NTP_DEFAULT_SERVER);
-		final int port = Integer.getInteger(NtpUtil.NTP_PORT_PROPERTY, NtpUtil.NTP_DEFAULT_PORT).intValue();
-		for (;;) {
-			try {
-				Thread.sleep(3_000);
-				LOGGER.info("Updating local time from NTP server " + ntpServer + ":" + port);
-				NtpUtil.updateLocalTime();
-				break;
-			} catch (IOException | InterruptedException e) {
-				LOGGER.log(Level.SEVERE, "NTP ERROR," + e.getMessage() + ". Retrying...");
+		rememberAccessPoint(apConfiguration.getSSID());
+
+		// Update time on the board and start AWS DEMO once the address is acquired, see BootPipeline
+		NetworkState networkState = this.networkState;
+		synchronized (this) {
+			if (this.bootPipeline == null) {
+				final BootPipeline bootPipeline = new BootPipeline(networkState);
+				this.bootPipeline = bootPipeline;
+				networkState.whenReady(Readiness.IP_ACQUIRED, new Runnable() {
+					@Override
+					public void run() {
+						bootPipeline.start();
+					}
+				});
 			}
 		}
-
-		// Start AWS DEMO
-		try {
-			new Aws().start();
-		} catch (InterruptedException | AwsIotException | JSONException e) {
-			LOGGER.log(Level.SEVERE, "AWS ERROR", e);
-		}
+		networkState.probeAddress();
 	}
 
 	@Override
 	public void onTryingJoin(AccessPointConfiguration apConfiguration) {
 		LOGGER.info("Trying Join:" + apConfiguration.getSSID());
+		// the address of the soft access point, if any, is not the address of the network to join
+		this.networkState.setLost(Readiness.IP_ACQUIRED);
 	}
 
 	@Override
@@ -106,6 +125,7 @@ public class Wifi implements ConnectorListener {
 
 	@Override
 	public void onScan(AccessPoint[] accessPoints) {
+		this.scanned = accessPoints;
 		LOGGER.info("Scan:");
 		for (int i = 0; i < accessPoints.length; i++) {
 			LOGGER.info("-" + accessPoints[i].getSSID());
@@ -117,4 +137,24 @@ public class Wifi implements ConnectorListener {
 		LOGGER.log(Level.SEVERE, "Join Error: " + apConfiguration.getSSID(), e);
 	}
 
+	/**
+	 * Stores the BSSID and the channel of the strongest access point of the joined network found by the last scan, if
+	 * any: when the stored configuration is joined directly, no scan is made.
+	 */
+	private void rememberAccessPoint(String ssid) {
+		AccessPoint joined = null;
+		for (AccessPoint accessPoint : this.scanned) {
+			if (ssid.equals(accessPoint.getSSID()) && (joined == null || accessPoint.getRSSI() > joined.getRSSI())) {
+				joined = accessPoint;
+			}
+		}
+		if (joined != null) {
+			this.store.setAccessPoint(joined.getBSSID(), joined.getChannel());
+		}
+		byte[] bssid = this.store.getBssid();
+		if (bssid != null) {
+			LOGGER.info("Access point " + WifiConfigurationStore.toString(bssid) + ", channel "
+					+ this.store.getChannel());
+		}
+	}
 }
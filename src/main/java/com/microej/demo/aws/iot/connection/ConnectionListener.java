@@ -0,0 +1,23 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.connection;
+
+/**
+ * Listener notified of the connection state changes of a {@link ConnectionSupervisor}.
+ */
+public interface ConnectionListener {
+
+	/**
+	 * Called when the client is connected and its subscriptions are restored.
+	 */
+	void onConnected();
+
+	/**
+	 * Called when the connection is detected as lost.
+	 */
+	void onDisconnected();
+}
@@ -0,0 +1,469 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import com.microej.demo.aws.iot.network.NetworkState;
+import com.microej.demo.aws.iot.network.Readiness;
+
+import ej.aws.iot.AwsIotClient;
+import ej.aws.iot.AwsIotException;
+import ej.aws.iot.AwsIotMessageCallback;
+import ej.bon.Util;
+
+/**
+ * Keeps an AWS client connected.
+ * <p>
+ * The supervisor connects the client, records the subscriptions made through it and, once started, reconnects the
+ * client in a dedicated thread whenever the connection is reported as lost with {@link #onError(AwsIotException)}. The
+ * reconnection attempts are spaced by a capped exponential backoff with full jitter (a random delay between zero and
+ * the backoff), so that a fleet of devices does not reconnect all at once after an outage. The subscriptions are
+ * restored after each reconnection.
+ * <p>
+ * Given a {@link NetworkState}, the supervisor does not spend its attempts while the device has no IP address: it waits
+ * for {@link Readiness#IP_ACQUIRED}, at most the maximum delay between two attempts in case the state is stale, and
+ * reconnects after a jitter as soon as the address is back, the backoff starting over.
+ * <p>
+ * The client reports no connection loss by itself: the loss is detected when an operation fails, such as a publication
+ * (see {@link #onError(AwsIotException)}). So that a device that only receives messages detects it too, the supervisor
+ * checks the connection periodically (see {@link #setCheckPeriod(long)}) with an unsubscription from a topic the client
+ * is not subscribed to, a round trip to the broker that requires no permission and delivers no message.
+ * <p>
+ * The broker refusals that a new attempt cannot fix (bad credentials, client not authorized, invalid client ID or
+ * protocol version) are not retried: {@link #connect()} throws them and the thread stops. A thing denied by its policy
+ * is disconnected by AWS IoT rather than refused, the same way as a thing being provisioned, so that case is retried.
+ * <p>
+ * The supervisor also measures the connection: number of reconnections, duration of the last connection attempt and
+ * connection down time.
+ */
+@SuppressWarnings("nls")
+public class ConnectionSupervisor implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(ConnectionSupervisor.class.getName());
+
+	// Highest power of two applied to the base delay, to avoid an overflow
+	private static final int MAX_BACKOFF_SHIFT = 20;
+	// Prefix of the topic unsubscribed from to check the connection, followed by the client ID
+	private static final String CHECK_TOPIC_PREFIX = "connection-check/";
+
+	/**
+	 * A subscription to restore after a reconnection.
+	 */
+	private static class Subscription {
+		final String topic;
+		final AwsIotMessageCallback callback;
+
+		Subscription(String topic, AwsIotMessageCallback callback) {
+			this.topic = topic;
+			this.callback = callback;
+		}
+
+		void subscribe(AwsIotClient awsClient) throws AwsIotException {
+			awsClient.subscribe(this.topic, this.callback);
+		}
+	}
+
+	private final AwsIotClient awsClient;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final Random random;
+	private final String checkTopic;
+
+	private final List<Subscription> subscriptions = new ArrayList<>();
+	private final List<ConnectionListener> listeners = new ArrayList<>();
+
+	private NetworkState networkState;
+	private long checkPeriod;
+	private boolean connected;
+	// Whether the client has been connected at least once, the next connections are reconnections
+	private boolean connectedOnce;
+	private Thread thread;
+
+	// Metrics, in platform time milliseconds
+	private long stateChangeTime;
+	private long lastConnectDuration;
+	private long lastDownTime;
+	private long totalDownTime;
+	private int reconnectCount;
+
+	/**
+	 * Creates a connection supervisor.
+	 *
+	 * @param awsClient
+	 *            the AWS client to keep connected
+	 * @param clientId
+	 *            the client ID, used to seed the jitter so that devices do not draw the same delays
+	 * @param baseDelay
+	 *            the delay in milliseconds before the first reconnection attempt, doubled after each failure
+	 * @param maxDelay
+	 *            the maximum delay in milliseconds between two reconnection attempts
+	 */
+	public ConnectionSupervisor(AwsIotClient awsClient, String clientId, long baseDelay, long maxDelay) {
+		this.awsClient = awsClient;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.random = new Random(Util.platformTimeMillis() ^ clientId.hashCode());
+		this.checkTopic = CHECK_TOPIC_PREFIX + clientId;
+		this.stateChangeTime = Util.platformTimeMillis();
+	}
+
+	/**
+	 * Connects the client, retrying until the connection succeeds.
+	 * <p>
+	 * If this is the first time the thing connects to AWS, the first attempt fails with a connection lost while AWS
+	 * performs the Just in Time Provisioning, the next attempts succeed once the thing is provisioned.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for the next attempt
+	 * @throws AwsIotException
+	 *             if the broker refuses the connection for a reason that a new attempt cannot fix
+	 */
+	public void connect() throws InterruptedException, AwsIotException {
+		int attempt = 0;
+		while (!tryConnect()) {
+			Thread.sleep(nextDelay(attempt++));
+		}
+		setConnected();
+	}
+
+	/**
+	 * Starts the thread that reconnects the client when the connection is lost. If the client has not been connected
+	 * with {@link #connect()}, the thread connects it first, without blocking the caller.
+	 */
+	public synchronized void start() {
+		if (this.thread == null) {
+			Thread thread = new Thread(this, "AWS connection supervisor");
+			this.thread = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * Subscribes to a topic. The subscription is restored after each reconnection.
+	 *
+	 * @param topic
+	 *            the topic to subscribe to
+	 * @param callback
+	 *            the callback called when a message is received
+	 * @throws AwsIotException
+	 *             on error while subscribing
+	 */
+	public void subscribe(String topic, AwsIotMessageCallback callback) throws AwsIotException {
+		addSubscription(new Subscription(topic, callback));
+	}
+
+	/**
+	 * Sets the network state the reconnections wait for, see {@link Readiness#IP_ACQUIRED}.
+	 *
+	 * @param networkState
+	 *            the network state, or {@code null} to retry whatever the state of the network
+	 */
+	public synchronized void setNetworkState(NetworkState networkState) {
+		this.networkState = networkState;
+	}
+
+	/**
+	 * Sets the period of the connection checks, made while the client is connected.
+	 *
+	 * @param checkPeriod
+	 *            the period in milliseconds, or 0 to only detect a connection loss when an operation fails
+	 */
+	public synchronized void setCheckPeriod(long checkPeriod) {
+		this.checkPeriod = checkPeriod;
+		notifyAll();
+	}
+
+	/**
+	 * Adds a listener notified of the connection state changes.
+	 *
+	 * @param listener
+	 *            the listener to add
+	 */
+	public synchronized void addListener(ConnectionListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Reports an error of the client. If the error is a connection loss, the client is reconnected.
+	 *
+	 * @param e
+	 *            the error raised by the client
+	 */
+	public void onError(AwsIotException e) {
+		if (!isConnectionError(e)) {
+			return;
+		}
+		ConnectionListener[] listeners;
+		synchronized (this) {
+			if (!this.connected) {
+				return;
+			}
+			LOGGER.warning("Connection lost: " + e.getMessage());
+			this.connected = false;
+			this.stateChangeTime = Util.platformTimeMillis();
+			listeners = this.listeners.toArray(new ConnectionListener[this.listeners.size()]);
+			notifyAll();
+		}
+		for (ConnectionListener listener : listeners) {
+			listener.onDisconnected();
+		}
+	}
+
+	/**
+	 * Gets whether the client is connected.
+	 *
+	 * @return {@code true} if the client is connected, {@code false} if the connection is lost
+	 */
+	public synchronized boolean isConnected() {
+		return this.connected;
+	}
+
+	/**
+	 * Gets the number of reconnections since the first connection.
+	 *
+	 * @return the number of reconnections
+	 */
+	public synchronized int getReconnectCount() {
+		return this.reconnectCount;
+	}
+
+	/**
+	 * Gets the duration of the last successful connection attempt, TLS handshake included.
+	 *
+	 * @return the duration in milliseconds
+	 */
+	public synchronized long getLastConnectDuration() {
+		return this.lastConnectDuration;
+	}
+
+	/**
+	 * Gets the time since the connection is up, or down.
+	 *
+	 * @return the duration of the current connection state in milliseconds
+	 */
+	public synchronized long getStateDuration() {
+		return Util.platformTimeMillis() - this.stateChangeTime;
+	}
+
+	/**
+	 * Gets the duration of the last connection loss.
+	 *
+	 * @return the duration in milliseconds
+	 */
+	public synchronized long getLastDownTime() {
+		return this.lastDownTime;
+	}
+
+	/**
+	 * Gets the cumulated duration of the connection losses, excluding the current one.
+	 *
+	 * @return the duration in milliseconds
+	 */
+	public synchronized long getTotalDownTime() {
+		return this.totalDownTime;
+	}
+
+	@Override
+	public void run() {
+		try {
+			for (;;) {
+				awaitConnectionLoss();
+				int attempt = 0;
+				do {
+					if (awaitAddress()) {
+						// the attempts failed for want of an address, not because of the broker
+						attempt = 0;
+					}
+					Thread.sleep(nextDelay(attempt++));
+					LOGGER.info((isConnectedOnce() ? "Reconnecting" : "Connecting") + " (attempt " + attempt + ") ...");
+				} while (!tryConnect() || !restoreSubscriptions());
+				setConnected();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (AwsIotException e) {
+			LOGGER.log(Level.SEVERE, "Connection refused, not retrying", e);
+		}
+	}
+
+	/**
+	 * Waits for the connection to be lost, checking it periodically.
+	 */
+	private void awaitConnectionLoss() throws InterruptedException {
+		for (;;) {
+			long checkPeriod;
+			synchronized (this) {
+				checkPeriod = this.checkPeriod;
+				if (!this.connected) {
+					return;
+				}
+				wait(checkPeriod);
+				if (!this.connected) {
+					return;
+				}
+			}
+			if (checkPeriod > 0) {
+				checkConnection();
+			}
+		}
+	}
+
+	/**
+	 * Checks the connection with a round trip to the broker, a failure being reported with
+	 * {@link #onError(AwsIotException)}.
+	 */
+	private void checkConnection() {
+		try {
+			this.awsClient.unsubscribe(this.checkTopic);
+		} catch (AwsIotException e) {
+			onError(e);
+		}
+	}
+
+	/**
+	 * Waits for the IP address of the device if it is lost.
+	 *
+	 * @return {@code true} if the address was lost and has been acquired again, {@code false} if it was not lost or if
+	 *         the wait timed out
+	 */
+	private boolean awaitAddress() throws InterruptedException {
+		NetworkState networkState;
+		synchronized (this) {
+			networkState = this.networkState;
+		}
+		if (networkState == null || networkState.isReady(Readiness.IP_ACQUIRED)) {
+			return false;
+		}
+		LOGGER.info("Waiting for an IP address before reconnecting");
+		return networkState.await(Readiness.IP_ACQUIRED, this.maxDelay);
+	}
+
+	/**
+	 * Tries to connect the client.
+	 *
+	 * @return {@code true} if the client is connected, {@code false} otherwise
+	 * @throws AwsIotException
+	 *             if the broker refuses the connection for a reason that a new attempt cannot fix
+	 */
+	private boolean tryConnect() throws AwsIotException {
+		long start = Util.platformTimeMillis();
+		try {
+			try {
+				this.awsClient.disconnect();
+			} catch (AwsIotException e) {
+				// not connected, nothing to close
+			}
+			this.awsClient.connect();
+		} catch (AwsIotException e) {
+			int reasonCode = getReasonCode(e);
+			if (isRefusal(reasonCode)) {
+				throw e;
+			}
+			if (reasonCode != MqttException.REASON_CODE_CLIENT_CONNECTED) {
+				LOGGER.info("Connection failed: " + e.getMessage());
+				return false;
+			}
+			// the connection state changed really fast, for example during an auto provisioning
+		}
+		synchronized (this) {
+			this.lastConnectDuration = Util.platformTimeMillis() - start;
+		}
+		return true;
+	}
+
+	private boolean restoreSubscriptions() {
+		Subscription[] subscriptions;
+		synchronized (this) {
+			subscriptions = this.subscriptions.toArray(new Subscription[this.subscriptions.size()]);
+		}
+		try {
+			for (Subscription subscription : subscriptions) {
+				subscription.subscribe(this.awsClient);
+			}
+			return true;
+		} catch (AwsIotException e) {
+			LOGGER.log(Level.WARNING, "Restoring the subscriptions failed", e);
+			return false;
+		}
+	}
+
+	private void setConnected() {
+		ConnectionListener[] listeners;
+		synchronized (this) {
+			long now = Util.platformTimeMillis();
+			if (this.connectedOnce) {
+				// reconnection
+				this.reconnectCount++;
+				this.lastDownTime = now - this.stateChangeTime;
+				this.totalDownTime += this.lastDownTime;
+			}
+			this.connected = true;
+			this.connectedOnce = true;
+			this.stateChangeTime = now;
+			listeners = this.listeners.toArray(new ConnectionListener[this.listeners.size()]);
+			LOGGER.info("Connected in " + this.lastConnectDuration + " ms (down for " + this.lastDownTime + " ms)");
+		}
+		for (ConnectionListener listener : listeners) {
+			listener.onConnected();
+		}
+	}
+
+	private synchronized boolean isConnectedOnce() {
+		return this.connectedOnce;
+	}
+
+	private void addSubscription(Subscription subscription) throws AwsIotException {
+		subscription.subscribe(this.awsClient);
+		synchronized (this) {
+			this.subscriptions.add(subscription);
+		}
+	}
+
+	/**
+	 * Gets a random delay between zero and the capped exponential backoff of the given attempt.
+	 */
+	private long nextDelay(int attempt) {
+		long backoff = Math.min(this.maxDelay, this.baseDelay << Math.min(attempt, MAX_BACKOFF_SHIFT));
+		synchronized (this.random) {
+			return (long) (this.random.nextDouble() * backoff);
+		}
+	}
+
+	private static boolean isConnectionError(AwsIotException e) {
+		int reasonCode = getReasonCode(e);
+		return reasonCode == -1 || reasonCode == MqttException.REASON_CODE_CONNECTION_LOST
+				|| reasonCode == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+				|| reasonCode == MqttException.REASON_CODE_CLIENT_TIMEOUT;
+	}
+
+	/**
+	 * Gets whether a reason code is a refusal of the connection that a new attempt cannot fix.
+	 */
+	private static boolean isRefusal(int reasonCode) {
+		return reasonCode == MqttException.REASON_CODE_FAILED_AUTHENTICATION
+				|| reasonCode == MqttException.REASON_CODE_NOT_AUTHORIZED
+				|| reasonCode == MqttException.REASON_CODE_INVALID_CLIENT_ID
+				|| reasonCode == MqttException.REASON_CODE_INVALID_PROTOCOL_VERSION;
+	}
+
+	/**
+	 * Gets the MQTT reason code of an error.
+	 *
+	 * @return the reason code or -1 if the error is not an MQTT error (for example a network error)
+	 */
+	private static int getReasonCode(AwsIotException e) {
+		Throwable cause = e.getCause();
+		return cause instanceof MqttException ? ((MqttException) cause).getReasonCode() : -1;
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.dispatch;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.metrics.Histogram;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+
+import ej.aws.iot.AwsIotMessage;
+import ej.aws.iot.AwsIotMessageCallback;
+import ej.bon.Util;
+
+/**
+ * Hands the received messages over to worker threads, so that a slow handler does not block the receiving thread of
+ * the AWS client (and its keep-alive processing).
+ * <p>
+ * Each worker has its own bounded queue. The worker of a message is chosen from the hash of its topic: the messages of
+ * a topic are always handled by the same worker, in the order they have been received. When a queue is full, the
+ * {@link OverflowPolicy} of the pipeline decides whether a message is dropped or the receiving thread waits.
+ * <p>
+ * The messages of the AWS reserved topics ({@code $aws/...}, such as the shadow deltas and responses) are never
+ * dropped: losing one would leave a shadow out of sync until its next change. A full queue drops its oldest message of
+ * another topic to make room for them, or makes the receiving thread wait if it only holds reserved messages.
+ * <p>
+ * The pipeline counts the received, dropped and handled messages, and measures the queue depth and the time spent in
+ * the handler. The messages received per topic and the handler latency are also recorded in the default
+ * {@link MetricsRegistry}.
+ */
+@SuppressWarnings("nls")
+public class InboundPipeline implements AwsIotMessageCallback {
+
+	private static final Logger LOGGER = Logger.getLogger(InboundPipeline.class.getName());
+
+	// Handler duration in microseconds
+	private static final Histogram HANDLER_LATENCY = MetricsRegistry.getDefault().histogram("inbound.latency");
+
+	private static final long NANOS_PER_MICRO = 1000;
+
+	// Prefix of the AWS reserved topics, whose messages are never dropped
+	private static final String RESERVED_TOPIC_PREFIX = "$aws/";
+
+	/**
+	 * A worker thread and its queue.
+	 */
+	private class Worker implements Runnable {
+		// Ring buffer of the queued messages
+		final AwsIotMessage[] queue;
+		int head;
+		int count;
+
+		long received;
+		long dropped;
+		long handled;
+		int maxDepth;
+		long totalHandlerTime;
+		long maxHandlerTime;
+
+		Worker(int capacity) {
+			this.queue = new AwsIotMessage[capacity];
+		}
+
+		synchronized void enqueue(AwsIotMessage message) throws InterruptedException {
+			this.received++;
+			AwsIotMessage[] queue = this.queue;
+			if (this.count == queue.length && !makeRoom(message)) {
+				return;
+			}
+			queue[(this.head + this.count) % queue.length] = message;
+			this.count++;
+			if (this.count > this.maxDepth) {
+				this.maxDepth = this.count;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Makes room in the full queue for a message, dropping a message or waiting according to the policy.
+		 *
+		 * @return {@code true} if there is room for the message, {@code false} if the message has been dropped
+		 */
+		private boolean makeRoom(AwsIotMessage message) throws InterruptedException {
+			OverflowPolicy policy = InboundPipeline.this.policy;
+			if (policy != OverflowPolicy.BLOCK) {
+				boolean reserved = isReserved(message);
+				if (!reserved && policy == OverflowPolicy.DROP_NEWEST) {
+					drop(message);
+					return false;
+				}
+				if (dropOldest()) {
+					return true;
+				}
+				if (!reserved) {
+					// the queue only holds reserved messages
+					drop(message);
+					return false;
+				}
+			}
+			AwsIotMessage[] queue = this.queue;
+			while (this.count == queue.length) {
+				wait();
+			}
+			return true;
+		}
+
+		/**
+		 * Drops the oldest queued message that is not reserved.
+		 *
+		 * @return {@code true} if a message has been dropped, {@code false} if the queue only holds reserved messages
+		 */
+		private boolean dropOldest() {
+			AwsIotMessage[] queue = this.queue;
+			int length = queue.length;
+			for (int i = 0; i < this.count; i++) {
+				int index = (this.head + i) % length;
+				if (!isReserved(queue[index])) {
+					drop(queue[index]);
+					// the older reserved messages move up by one
+					for (int j = i; j > 0; j--) {
+						queue[(this.head + j) % length] = queue[(this.head + j - 1) % length];
+					}
+					queue[this.head] = null;
+					this.head = (this.head + 1) % length;
+					this.count--;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void drop(AwsIotMessage message) {
+			this.dropped++;
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Inbound queue full, message received on " + message.getTopic() + " dropped");
+			}
+		}
+
+		synchronized AwsIotMessage dequeue() throws InterruptedException {
+			while (this.count == 0) {
+				wait();
+			}
+			AwsIotMessage message = this.queue[this.head];
+			this.queue[this.head] = null;
+			this.head = (this.head + 1) % this.queue.length;
+			this.count--;
+			// wake up the receiving thread if it is blocked on a full queue
+			notifyAll();
+			return message;
+		}
+
+		synchronized void onHandled(long duration) {
+			HANDLER_LATENCY.record(duration / NANOS_PER_MICRO);
+			this.handled++;
+			this.totalHandlerTime += duration;
+			if (duration > this.maxHandlerTime) {
+				this.maxHandlerTime = duration;
+			}
+		}
+
+		@Override
+		public void run() {
+			AwsIotMessageCallback handler = InboundPipeline.this.handler;
+			try {
+				while (true) {
+					AwsIotMessage message = dequeue();
+					long start = Util.platformTimeNanos();
+					try {
+						handler.onMessageReceived(message);
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Error while handling a message received on " + message.getTopic(),
+								e);
+					}
+					onHandled(Util.platformTimeNanos() - start);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private final AwsIotMessageCallback handler;
+	private final OverflowPolicy policy;
+	private final Worker[] workers;
+	private Thread[] threads;
+
+	/**
+	 * Creates an inbound pipeline.
+	 *
+	 * @param handler
+	 *            the handler of the messages, called by the workers
+	 * @param workerCount
+	 *            the number of worker threads
+	 * @param queueCapacity
+	 *            the maximum number of messages waiting to be handled, per worker
+	 * @param policy
+	 *            what to do with a message received while the queue of its worker is full
+	 */
+	public InboundPipeline(AwsIotMessageCallback handler, int workerCount, int queueCapacity, OverflowPolicy policy) {
+		if (workerCount <= 0 || queueCapacity <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.handler = handler;
+		this.policy = policy;
+		this.workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			this.workers[i] = new Worker(queueCapacity);
+		}
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	public synchronized void start() {
+		if (this.threads != null) {
+			return;
+		}
+		Worker[] workers = this.workers;
+		Thread[] threads = new Thread[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			threads[i] = new Thread(workers[i], "aws-inbound-" + i);
+			threads[i].start();
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Stops the worker threads. The messages still queued are not handled.
+	 */
+	public synchronized void stop() {
+		Thread[] threads = this.threads;
+		if (threads != null) {
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+			this.threads = null;
+		}
+	}
+
+	@Override
+	public void onMessageReceived(AwsIotMessage message) {
+		Worker[] workers = this.workers;
+		String topic = message.getTopic();
+		MetricsRegistry.getDefault().onMessageReceived(topic);
+		Worker worker = workers[(topic.hashCode() & Integer.MAX_VALUE) % workers.length];
+		try {
+			worker.enqueue(message);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.warning("Interrupted while waiting for room in the inbound queue, message received on " + topic
+					+ " dropped");
+		}
+	}
+
+	private static boolean isReserved(AwsIotMessage message) {
+		return message.getTopic().startsWith(RESERVED_TOPIC_PREFIX);
+	}
+
+	/**
+	 * Gets the number of messages received.
+	 *
+	 * @return the number of received messages
+	 */
+	public long getReceivedCount() {
+		long total = 0;
+		for (Worker worker : this.workers) {
+			synchronized (worker) {
+				total += worker.received;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of messages dropped because a queue was full.
+	 *
+	 * @return the number of dropped messages
+	 */
+	public long getDroppedCount() {
+		long total = 0;
+		for (Worker worker : this.workers) {
+			synchronized (worker) {
+				total += worker.dropped;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of messages handled.
+	 *
+	 * @return the number of handled messages
+	 */
+	public long getHandledCount() {
+		long total = 0;
+		for (Worker worker : this.workers) {
+			synchronized (worker) {
+				total += worker.handled;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of messages waiting to be handled.
+	 *
+	 * @return the current depth of the queues
+	 */
+	public int getDepth() {
+		int total = 0;
+		for (Worker worker : this.workers) {
+			synchronized (worker) {
+				total += worker.count;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the highest depth reached by a worker queue.
+	 *
+	 * @return the maximum depth of a queue
+	 */
+	public int getMaxDepth() {
+		int max = 0;
+		for (Worker worker : this.workers) {
+			synchronized (worker) {
+				max = Math.max(max, worker.maxDepth);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Gets the average time spent in the handler per message.
+	 *
+	 * @return the average handler latency in microseconds
+	 */
+	public long getAverageHandlerLatency() {
+		long time = 0;
+		long handled = 0;
+		for (Worker worker : this.workers) {
+			synchronized (worker) {
+				time += worker.totalHandlerTime;
+				handled += worker.handled;
+			}
+		}
+		return handled == 0 ? 0 : time / handled / NANOS_PER_MICRO;
+	}
+
+	/**
+	 * Gets the longest time spent in the handler for a message.
+	 *
+	 * @return the maximum handler latency in microseconds
+	 */
+	public long getMaxHandlerLatency() {
+		long max = 0;
+		for (Worker worker : this.workers) {
+			synchronized (worker) {
+				max = Math.max(max, worker.maxHandlerTime);
+			}
+		}
+		return max / NANOS_PER_MICRO;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.dispatch;
+
+/**
+ * What to do with a message received while the queue of its worker is full.
+ * <p>
+ * Whatever the policy, the messages of the AWS reserved topics ({@code $aws/...}) are not dropped, see
+ * {@link InboundPipeline}.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Drops the oldest queued message to make room for the new one, or the new one if the queue only holds reserved
+	 * messages.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Drops the new message, unless it is reserved: the oldest queued message is dropped instead.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Blocks the receiving thread until there is room in the queue.
+	 */
+	BLOCK
+}
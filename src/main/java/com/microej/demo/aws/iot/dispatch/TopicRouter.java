@@ -0,0 +1,394 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.dispatch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ej.aws.iot.AwsIotMessage;
+import ej.aws.iot.AwsIotMessageCallback;
+import ej.aws.iot.ShadowAction;
+import ej.aws.iot.ShadowResult;
+
+/**
+ * Dispatches the received messages to the handlers registered for their topic.
+ * <p>
+ * The router is the single callback given to the AWS client: it is registered for every subscribed topic and finds the
+ * handlers of a message in a trie of topic levels. Matching a topic costs one lookup per topic level (plus one per
+ * matching wildcard), whatever the number of routes, so that thousands of topics can be routed (for example the
+ * shadows of the devices of a gateway).
+ * <p>
+ * Route filters follow the MQTT syntax: {@code +} matches exactly one level and {@code #}, as the last level, matches
+ * any number of levels including none. As in MQTT, a filter starting with a wildcard does not match the topics starting
+ * with {@code $} (such as the {@code $aws/things/...} shadow topics).
+ * <p>
+ * A message is delivered once to each handler of each matching route. Handlers are called in the thread delivering the
+ * message (see {@link InboundPipeline}), outside of the router lock, so a handler may add or remove routes.
+ */
+@SuppressWarnings("nls")
+public class TopicRouter implements AwsIotMessageCallback {
+
+	private static final Logger LOGGER = Logger.getLogger(TopicRouter.class.getName());
+
+	private static final char SEPARATOR = '/';
+	private static final String SINGLE_LEVEL_WILDCARD = "+";
+	private static final String MULTI_LEVEL_WILDCARD = "#";
+
+	private static final AwsIotMessageCallback[] NO_HANDLERS = new AwsIotMessageCallback[0];
+
+	/**
+	 * A topic level of the trie.
+	 */
+	private static class Node {
+		// Children by level name, created on the first route
+		Map<String, Node> children;
+		Node singleLevelChild;
+		// Handlers of the filter ending at this node and of the filter ending with '#' after this node
+		AwsIotMessageCallback[] handlers = NO_HANDLERS;
+		AwsIotMessageCallback[] multiLevelHandlers = NO_HANDLERS;
+
+		Node getChild(String level) {
+			if (SINGLE_LEVEL_WILDCARD.equals(level)) {
+				return this.singleLevelChild;
+			}
+			return this.children != null ? this.children.get(level) : null;
+		}
+
+		Node getOrCreateChild(String level) {
+			Node child = getChild(level);
+			if (child == null) {
+				child = new Node();
+				if (SINGLE_LEVEL_WILDCARD.equals(level)) {
+					this.singleLevelChild = child;
+				} else {
+					if (this.children == null) {
+						this.children = new HashMap<>();
+					}
+					this.children.put(level, child);
+				}
+			}
+			return child;
+		}
+	}
+
+	private final Node root = new Node();
+	private int routeCount;
+
+	// Handlers matched by the current dispatch, only used under the router lock
+	private AwsIotMessageCallback[] matched = new AwsIotMessageCallback[4];
+	private int matchedCount;
+
+	/**
+	 * Gets the topic of a shadow action result.
+	 *
+	 * @param thingName
+	 *            the name of the thing
+	 * @param action
+	 *            the shadow action
+	 * @param result
+	 *            the result of the action
+	 * @return the topic, for example {@code $aws/things/Thermostat-1/shadow/update/delta}
+	 */
+	public static String getShadowTopic(String thingName, ShadowAction action, ShadowResult result) {
+		return getShadowTopic(thingName, null, action, result);
+	}
+
+	/**
+	 * Gets the topic of a named shadow action result.
+	 *
+	 * @param thingName
+	 *            the name of the thing
+	 * @param shadowName
+	 *            the name of the shadow, or {@code null} for the classic shadow of the thing
+	 * @param action
+	 *            the shadow action
+	 * @param result
+	 *            the result of the action
+	 * @return the topic, for example {@code $aws/things/Thermostat-1/shadow/name/runtime/update/delta}
+	 */
+	public static String getShadowTopic(String thingName, String shadowName, ShadowAction action,
+			ShadowResult result) {
+		return getShadowRequestTopic(thingName, shadowName, action) + SEPARATOR + result.name();
+	}
+
+	/**
+	 * Gets the topic a named shadow action is requested on.
+	 *
+	 * @param thingName
+	 *            the name of the thing
+	 * @param shadowName
+	 *            the name of the shadow, or {@code null} for the classic shadow of the thing
+	 * @param action
+	 *            the shadow action
+	 * @return the topic, for example {@code $aws/things/Thermostat-1/shadow/name/runtime/update}
+	 */
+	public static String getShadowRequestTopic(String thingName, String shadowName, ShadowAction action) {
+		return getShadowPrefix(thingName, shadowName) + action.name();
+	}
+
+	/**
+	 * Gets the topic filter matching the results of every action of a named shadow, but not the requests.
+	 *
+	 * @param thingName
+	 *            the name of the thing
+	 * @param shadowName
+	 *            the name of the shadow, or {@code null} for the classic shadow of the thing
+	 * @return the topic filter, for example {@code $aws/things/Thermostat-1/shadow/name/runtime/+/+}
+	 */
+	public static String getShadowResultFilter(String thingName, String shadowName) {
+		return getShadowPrefix(thingName, shadowName) + SINGLE_LEVEL_WILDCARD + SEPARATOR + SINGLE_LEVEL_WILDCARD;
+	}
+
+	private static String getShadowPrefix(String thingName, String shadowName) {
+		String shadow = shadowName == null ? "/shadow/" : "/shadow/name/" + shadowName + SEPARATOR;
+		return "$aws/things/" + thingName + shadow;
+	}
+
+	/**
+	 * Gets whether a topic matches a topic filter, with the rules of the routes.
+	 *
+	 * @param filter
+	 *            the topic filter, possibly with wildcards
+	 * @param topic
+	 *            the topic
+	 * @return {@code true} if a message received on the topic is delivered to a subscription to the filter
+	 */
+	public static boolean matches(String filter, String topic) {
+		if (topic.length() > 0 && topic.charAt(0) == '$' && (filter.length() == 0 || filter.charAt(0) != '$')) {
+			// MQTT: the topics starting with '$' are not matched by a wildcard at the first level
+			return false;
+		}
+		int filterStart = 0;
+		int topicStart = 0;
+		while (true) {
+			int filterEnd = levelEnd(filter, filterStart);
+			int topicEnd = levelEnd(topic, topicStart);
+			String level = filter.substring(filterStart, filterEnd);
+			if (MULTI_LEVEL_WILDCARD.equals(level)) {
+				return true;
+			}
+			int length = filterEnd - filterStart;
+			if (!SINGLE_LEVEL_WILDCARD.equals(level) && (length != topicEnd - topicStart
+					|| !filter.regionMatches(filterStart, topic, topicStart, length))) {
+				return false;
+			}
+			boolean filterLast = filterEnd == filter.length();
+			boolean topicLast = topicEnd == topic.length();
+			if (topicLast) {
+				// '#' also matches the parent level
+				return filterLast || filter.length() == filterEnd + 2
+						&& filter.startsWith(MULTI_LEVEL_WILDCARD, filterEnd + 1);
+			}
+			if (filterLast) {
+				return false;
+			}
+			filterStart = filterEnd + 1;
+			topicStart = topicEnd + 1;
+		}
+	}
+
+	/**
+	 * Adds a route. A handler added twice for the same filter receives the messages once.
+	 *
+	 * @param filter
+	 *            the topic filter, possibly with wildcards
+	 * @param handler
+	 *            the handler of the messages received on a matching topic
+	 * @throws IllegalArgumentException
+	 *             if the filter is not valid
+	 */
+	public synchronized void addRoute(String filter, AwsIotMessageCallback handler) {
+		Node node = this.root;
+		int start = 0;
+		while (true) {
+			int end = levelEnd(filter, start);
+			String level = filter.substring(start, end);
+			if (MULTI_LEVEL_WILDCARD.equals(level)) {
+				if (end != filter.length()) {
+					throw new IllegalArgumentException("'#' must be the last level of " + filter);
+				}
+				node.multiLevelHandlers = add(node.multiLevelHandlers, handler);
+				return;
+			}
+			if (!SINGLE_LEVEL_WILDCARD.equals(level)
+					&& (level.indexOf('+') >= 0 || level.indexOf('#') >= 0)) {
+				throw new IllegalArgumentException("a wildcard must be a whole level of " + filter);
+			}
+			node = node.getOrCreateChild(level);
+			if (end == filter.length()) {
+				node.handlers = add(node.handlers, handler);
+				return;
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Removes a route. The levels of the trie that are no longer used are kept so that routes can be added again
+	 * without allocating.
+	 *
+	 * @param filter
+	 *            the topic filter given to {@link #addRoute(String, AwsIotMessageCallback)}
+	 * @param handler
+	 *            the handler to remove
+	 * @return {@code true} if the route has been removed, {@code false} if it does not exist
+	 */
+	public synchronized boolean removeRoute(String filter, AwsIotMessageCallback handler) {
+		Node node = this.root;
+		int start = 0;
+		while (node != null) {
+			int end = levelEnd(filter, start);
+			String level = filter.substring(start, end);
+			if (MULTI_LEVEL_WILDCARD.equals(level)) {
+				AwsIotMessageCallback[] handlers = remove(node.multiLevelHandlers, handler);
+				if (handlers == node.multiLevelHandlers) {
+					return false;
+				}
+				node.multiLevelHandlers = handlers;
+				return true;
+			}
+			node = node.getChild(level);
+			if (node != null && end == filter.length()) {
+				AwsIotMessageCallback[] handlers = remove(node.handlers, handler);
+				if (handlers == node.handlers) {
+					return false;
+				}
+				node.handlers = handlers;
+				return true;
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of routes.
+	 *
+	 * @return the number of routes
+	 */
+	public synchronized int getRouteCount() {
+		return this.routeCount;
+	}
+
+	@Override
+	public void onMessageReceived(AwsIotMessage message) {
+		String topic = message.getTopic();
+		AwsIotMessageCallback[] handlers;
+		int count;
+		synchronized (this) {
+			this.matchedCount = 0;
+			match(this.root, topic, 0, true);
+			count = this.matchedCount;
+			if (count == 0) {
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.fine("No route for topic " + topic);
+				}
+				return;
+			}
+			handlers = new AwsIotMessageCallback[count];
+			System.arraycopy(this.matched, 0, handlers, 0, count);
+		}
+		for (int i = 0; i < count; i++) {
+			try {
+				handlers[i].onMessageReceived(message);
+			} catch (RuntimeException e) {
+				// a failing handler must not prevent the other ones from receiving the message
+				LOGGER.log(Level.WARNING, "Error while handling a message received on " + topic, e);
+			}
+		}
+	}
+
+	/**
+	 * Collects the handlers of the routes matching the topic from the given level.
+	 */
+	private void match(Node node, String topic, int start, boolean firstLevel) {
+		// MQTT: the topics starting with '$' are not matched by a wildcard at the first level
+		boolean wildcardAllowed = !firstLevel || topic.length() == 0 || topic.charAt(0) != '$';
+		if (wildcardAllowed) {
+			// '#' also matches the parent level
+			addMatched(node.multiLevelHandlers);
+		}
+		int end = levelEnd(topic, start);
+		boolean last = end == topic.length();
+		if (node.children != null) {
+			Node child = node.children.get(topic.substring(start, end));
+			if (child != null) {
+				matchChild(child, topic, end, last);
+			}
+		}
+		if (wildcardAllowed && node.singleLevelChild != null) {
+			matchChild(node.singleLevelChild, topic, end, last);
+		}
+	}
+
+	private void matchChild(Node child, String topic, int end, boolean last) {
+		if (last) {
+			addMatched(child.handlers);
+			addMatched(child.multiLevelHandlers);
+		} else {
+			match(child, topic, end + 1, false);
+		}
+	}
+
+	private void addMatched(AwsIotMessageCallback[] handlers) {
+		for (AwsIotMessageCallback handler : handlers) {
+			// a handler of several matching routes is only called once
+			boolean found = false;
+			for (int i = 0; i < this.matchedCount; i++) {
+				if (this.matched[i] == handler) {
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				if (this.matchedCount == this.matched.length) {
+					AwsIotMessageCallback[] newMatched = new AwsIotMessageCallback[this.matchedCount * 2];
+					System.arraycopy(this.matched, 0, newMatched, 0, this.matchedCount);
+					this.matched = newMatched;
+				}
+				this.matched[this.matchedCount++] = handler;
+			}
+		}
+	}
+
+	private AwsIotMessageCallback[] add(AwsIotMessageCallback[] handlers, AwsIotMessageCallback handler) {
+		for (AwsIotMessageCallback existing : handlers) {
+			if (existing == handler) {
+				return handlers;
+			}
+		}
+		AwsIotMessageCallback[] newHandlers = new AwsIotMessageCallback[handlers.length + 1];
+		System.arraycopy(handlers, 0, newHandlers, 0, handlers.length);
+		newHandlers[handlers.length] = handler;
+		this.routeCount++;
+		return newHandlers;
+	}
+
+	private AwsIotMessageCallback[] remove(AwsIotMessageCallback[] handlers, AwsIotMessageCallback handler) {
+		for (int i = 0; i < handlers.length; i++) {
+			if (handlers[i] == handler) {
+				if (handlers.length == 1) {
+					this.routeCount--;
+					return NO_HANDLERS;
+				}
+				AwsIotMessageCallback[] newHandlers = new AwsIotMessageCallback[handlers.length - 1];
+				System.arraycopy(handlers, 0, newHandlers, 0, i);
+				System.arraycopy(handlers, i + 1, newHandlers, i, newHandlers.length - i);
+				this.routeCount--;
+				return newHandlers;
+			}
+		}
+		return handlers;
+	}
+
+	private static int levelEnd(String topic, int start) {
+		int end = topic.indexOf(SEPARATOR, start);
+		return end < 0 ? topic.length() : end;
+	}
+}
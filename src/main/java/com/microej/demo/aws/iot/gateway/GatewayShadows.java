@@ -0,0 +1,457 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.gateway;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.payload.JsonReader;
+import com.microej.demo.aws.iot.payload.JsonWriter;
+import com.microej.demo.aws.iot.publish.MessagePublisher;
+
+import ej.aws.iot.AwsIotException;
+import ej.aws.iot.AwsIotMessage;
+import ej.aws.iot.AwsIotMessageCallback;
+import ej.bon.Util;
+
+/**
+ * Shadows of the downstream things of a gateway, managed over the connection of the gateway.
+ * <p>
+ * The AWS client only handles the shadow of its own thing, so the shadows of the downstream things are updated by
+ * publishing to their {@code $aws/things/<thing>/shadow/update} topic, and their responses are received through
+ * wildcard subscriptions ({@link #getFilters()}) shared by all the things: the number of subscriptions does not depend
+ * on the number of things. The thing of a response is found by a binary search of the thing name in the topic, without
+ * allocating a substring.
+ * <p>
+ * All the things have the same integer fields. Their state is kept in flat arrays indexed by thing (and by field for
+ * the values): {@code 8 * (fields + 3)} bytes per thing, plus its name, its update topic and the client token of its
+ * awaited update. For each thing, the fields changed since the last report are tracked in a bit mask, so that
+ * {@link #report()} only sends the changes.
+ * <p>
+ * Each update carries a client token, as the updates of a {@link com.microej.demo.aws.iot.shadow.ShadowClient}, and
+ * only the response echoing the token of the last update of a thing acknowledges or re-marks its fields: the responses
+ * to the updates of other clients (for example an application setting a desired value) only give the version. A thing
+ * has at most one update awaited: the fields of an update still in flight are sent again with the next one.
+ * <ul>
+ * <li>an accepted update acknowledges the reported fields,</li>
+ * <li>a rejected update marks the reported fields as changed again, so that they are sent with the next report,</li>
+ * <li>any accepted update gives the version of the shadow,</li>
+ * <li>a delta sets the desired values of the known fields, which are reported back with the next report.</li>
+ * </ul>
+ */
+@SuppressWarnings("nls")
+public class GatewayShadows implements AwsIotMessageCallback {
+
+	private static final Logger LOGGER = Logger.getLogger(GatewayShadows.class.getName());
+
+	/**
+	 * Maximum number of fields per thing, one bit of the change masks per field.
+	 */
+	public static final int MAX_FIELDS = 64;
+
+	private static final String THINGS_PREFIX = "$aws/things/";
+	private static final String SHADOW_LEVEL = "/shadow/";
+	private static final String UPDATE_ACCEPTED = "update/accepted";
+	private static final String UPDATE_REJECTED = "update/rejected";
+	private static final String UPDATE_DELTA = "update/delta";
+
+	private final MessagePublisher publisher;
+	private final String[] fields;
+
+	// Sorted thing names and their update topics
+	private final String[] things;
+	private final String[] updateTopics;
+
+	// Values of the fields of thing i at [i * fields.length + field]
+	private final long[] values;
+	private final long[] versions;
+	// Bit f set when field f has changed since the last report, or is being reported
+	private final long[] changed;
+	private final long[] reporting;
+	// Client token of the update awaited for each thing, null if none
+	private final String[] tokens;
+
+	// Distinguishes the tokens of this boot from the ones of the responses to a previous boot
+	private final String tokenPrefix;
+	private int tokenCount;
+
+	private final JsonWriter writer;
+	private final JsonReader reader = new JsonReader();
+	private final Object reportLock = new Object();
+
+	/**
+	 * Creates the shadows of downstream things. All the fields of all the things are 0 and sent with the first
+	 * report.
+	 *
+	 * @param publisher
+	 *            the publisher used to publish the shadow updates
+	 * @param thingNames
+	 *            the names of the things
+	 * @param fieldNames
+	 *            the names of the fields of the things, at most {@link #MAX_FIELDS}
+	 * @param payloadSize
+	 *            the maximum size in bytes of a shadow update of a thing
+	 */
+	public GatewayShadows(MessagePublisher publisher, String[] thingNames, String[] fieldNames, int payloadSize) {
+		if (fieldNames.length == 0 || fieldNames.length > MAX_FIELDS) {
+			throw new IllegalArgumentException();
+		}
+		this.publisher = publisher;
+		this.fields = fieldNames.clone();
+		String[] things = sort(thingNames.clone());
+		int count = things.length;
+		this.things = things;
+		this.updateTopics = new String[count];
+		for (int i = 0; i < count; i++) {
+			if (i > 0 && things[i].equals(things[i - 1])) {
+				throw new IllegalArgumentException("duplicate thing " + things[i]);
+			}
+			this.updateTopics[i] = THINGS_PREFIX + things[i] + SHADOW_LEVEL + "update";
+		}
+		this.values = new long[count * fieldNames.length];
+		this.versions = new long[count];
+		this.changed = new long[count];
+		this.reporting = new long[count];
+		this.tokens = new String[count];
+		this.tokenPrefix = Integer.toHexString((int) Util.platformTimeNanos()) + "-";
+		long allFields = fieldNames.length == MAX_FIELDS ? -1L : (1L << fieldNames.length) - 1;
+		for (int i = 0; i < count; i++) {
+			this.changed[i] = allFields;
+		}
+		this.writer = new JsonWriter(payloadSize);
+	}
+
+	/**
+	 * Gets the topic filters of the shadow responses handled by {@link #onMessageReceived(AwsIotMessage)}.
+	 *
+	 * @return the topic filters to subscribe to
+	 */
+	public static String[] getFilters() {
+		String anyThing = THINGS_PREFIX + "+" + SHADOW_LEVEL;
+		return new String[] { anyThing + UPDATE_ACCEPTED, anyThing + UPDATE_REJECTED, anyThing + UPDATE_DELTA };
+	}
+
+	/**
+	 * Parses a comma-separated list of names.
+	 *
+	 * @param list
+	 *            the list, for example {@code sensor-1,sensor-2}
+	 * @return the names, without the surrounding whitespaces
+	 */
+	public static String[] parseList(String list) {
+		int count = 1;
+		for (int i = 0; i < list.length(); i++) {
+			if (list.charAt(i) == ',') {
+				count++;
+			}
+		}
+		String[] names = new String[count];
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int end = list.indexOf(',', start);
+			if (end < 0) {
+				end = list.length();
+			}
+			names[i] = list.substring(start, end).trim();
+			start = end + 1;
+		}
+		return names;
+	}
+
+	/**
+	 * Gets the number of things.
+	 *
+	 * @return the number of things
+	 */
+	public int getThingCount() {
+		return this.things.length;
+	}
+
+	/**
+	 * Gets the name of a thing.
+	 *
+	 * @param thing
+	 *            the index of the thing, the things are sorted by name
+	 * @return the name of the thing
+	 */
+	public String getThingName(int thing) {
+		return this.things[thing];
+	}
+
+	/**
+	 * Gets the index of a thing.
+	 *
+	 * @param thingName
+	 *            the name of the thing
+	 * @return the index of the thing, or -1 if it is not a thing of this gateway
+	 */
+	public int indexOf(String thingName) {
+		return find(thingName, 0, thingName.length());
+	}
+
+	/**
+	 * Gets the number of fields of the things.
+	 *
+	 * @return the number of fields
+	 */
+	public int getFieldCount() {
+		return this.fields.length;
+	}
+
+	/**
+	 * Gets the name of a field.
+	 *
+	 * @param field
+	 *            the index of the field
+	 * @return the name of the field
+	 */
+	public String getFieldName(int field) {
+		return this.fields[field];
+	}
+
+	/**
+	 * Sets the value of a field of a thing. The field is reported with the next report if its value has changed.
+	 *
+	 * @param thing
+	 *            the index of the thing
+	 * @param field
+	 *            the index of the field
+	 * @param value
+	 *            the value
+	 */
+	public synchronized void set(int thing, int field, long value) {
+		int index = thing * this.fields.length + field;
+		if (this.values[index] != value) {
+			this.values[index] = value;
+			this.changed[thing] |= 1L << field;
+		}
+	}
+
+	/**
+	 * Gets the value of a field of a thing.
+	 *
+	 * @param thing
+	 *            the index of the thing
+	 * @param field
+	 *            the index of the field
+	 * @return the value
+	 */
+	public synchronized long get(int thing, int field) {
+		return this.values[thing * this.fields.length + field];
+	}
+
+	/**
+	 * Gets the version of the shadow of a thing, from its last accepted update.
+	 *
+	 * @param thing
+	 *            the index of the thing
+	 * @return the version of the shadow, 0 if no update has been accepted yet
+	 */
+	public synchronized long getVersion(int thing) {
+		return this.versions[thing];
+	}
+
+	/**
+	 * Reports the changed fields of all the things, one shadow update per thing.
+	 *
+	 * @return the number of things reported
+	 * @throws AwsIotException
+	 *             on error while publishing, the fields not reported are sent with the next report
+	 */
+	public int report() throws AwsIotException {
+		int reported = 0;
+		synchronized (this.reportLock) {
+			JsonWriter writer = this.writer;
+			for (int thing = 0; thing < this.things.length; thing++) {
+				String token;
+				synchronized (this) {
+					long fields = this.changed[thing];
+					if (fields == 0) {
+						continue;
+					}
+					// the response to the update in flight, if any, is no longer awaited: its fields are sent again
+					fields |= this.reporting[thing];
+					token = this.tokenPrefix + Integer.toString(++this.tokenCount);
+					writeUpdate(writer, thing, fields, token);
+					// the fields set while publishing are marked as changed again
+					this.changed[thing] = 0;
+					this.reporting[thing] = fields;
+					this.tokens[thing] = token;
+				}
+				// published out of the lock, the responses are handled meanwhile
+				try {
+					this.publisher.publish(this.updateTopics[thing], writer.toPayload());
+				} catch (AwsIotException e) {
+					synchronized (this) {
+						if (token.equals(this.tokens[thing])) {
+							onReportFailed(thing);
+						}
+					}
+					throw e;
+				}
+				reported++;
+			}
+		}
+		return reported;
+	}
+
+	@Override
+	public void onMessageReceived(AwsIotMessage message) {
+		String topic = message.getTopic();
+		int shadowLevel = topic.indexOf(SHADOW_LEVEL, THINGS_PREFIX.length());
+		if (!topic.startsWith(THINGS_PREFIX) || shadowLevel < 0) {
+			return;
+		}
+		int thing = find(topic, THINGS_PREFIX.length(), shadowLevel);
+		if (thing < 0) {
+			// the gateway itself, or a thing of another gateway
+			return;
+		}
+		int operation = shadowLevel + SHADOW_LEVEL.length();
+		try {
+			if (topic.startsWith(UPDATE_ACCEPTED, operation)) {
+				onResponse(thing, message.getPayload(), true);
+			} else if (topic.startsWith(UPDATE_REJECTED, operation)) {
+				onResponse(thing, message.getPayload(), false);
+			} else if (topic.startsWith(UPDATE_DELTA, operation)) {
+				onDelta(thing, message.getPayload());
+			}
+		} catch (IllegalArgumentException e) {
+			LOGGER.log(Level.WARNING, "Malformed shadow message on " + topic, e);
+		}
+	}
+
+	private synchronized void onResponse(int thing, byte[] payload, boolean accepted) {
+		JsonReader reader = this.reader.reset(payload);
+		if (reader.next() != JsonReader.BEGIN_OBJECT) {
+			return;
+		}
+		String token = this.tokens[thing];
+		boolean answersReport = false;
+		while (reader.nextMember()) {
+			if (reader.nameEquals("version")) {
+				if (reader.next() == JsonReader.NUMBER) {
+					this.versions[thing] = Math.max(this.versions[thing], reader.longValue());
+				} else {
+					reader.skipValue();
+				}
+			} else if (reader.nameEquals("clientToken")) {
+				if (reader.next() == JsonReader.STRING) {
+					answersReport = token != null && reader.valueEquals(token);
+				} else {
+					reader.skipValue();
+				}
+			}
+		}
+		if (!answersReport) {
+			// the response to the update of another client, or to an update whose fields have been sent again
+			return;
+		}
+		if (accepted) {
+			this.reporting[thing] = 0;
+			this.tokens[thing] = null;
+		} else {
+			LOGGER.info("Shadow update of " + this.things[thing] + " rejected");
+			onReportFailed(thing);
+		}
+	}
+
+	/**
+	 * Marks the fields of the update awaited for a thing as changed again, so that they are sent with the next report.
+	 */
+	private void onReportFailed(int thing) {
+		this.changed[thing] |= this.reporting[thing];
+		this.reporting[thing] = 0;
+		this.tokens[thing] = null;
+	}
+
+	private synchronized void onDelta(int thing, byte[] payload) {
+		JsonReader reader = this.reader.reset(payload);
+		if (reader.next() != JsonReader.BEGIN_OBJECT || !reader.moveToMember("state")
+				|| reader.next() != JsonReader.BEGIN_OBJECT) {
+			return;
+		}
+		String[] fields = this.fields;
+		while (reader.nextMember()) {
+			int field = -1;
+			for (int i = 0; i < fields.length; i++) {
+				if (reader.nameEquals(fields[i])) {
+					field = i;
+					break;
+				}
+			}
+			if (field < 0) {
+				continue;
+			}
+			if (reader.next() == JsonReader.NUMBER) {
+				// apply the desired value, it is reported back with the next report
+				this.values[thing * fields.length + field] = reader.longValue();
+				this.changed[thing] |= 1L << field;
+			} else {
+				reader.skipValue();
+			}
+		}
+	}
+
+	private void writeUpdate(JsonWriter writer, int thing, long fields, String token) {
+		writer.reset().beginObject().name("state").beginObject().name("reported").beginObject();
+		int base = thing * this.fields.length;
+		for (int field = 0; field < this.fields.length; field++) {
+			if ((fields & (1L << field)) != 0) {
+				writer.name(this.fields[field]).value(this.values[base + field]);
+			}
+		}
+		writer.endObject().endObject().name("clientToken").value(token).endObject();
+	}
+
+	/**
+	 * Finds a thing by its name, given as a region of a string.
+	 */
+	private int find(String string, int start, int end) {
+		String[] things = this.things;
+		int low = 0;
+		int high = things.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = compare(things[middle], string, start, end);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	private static int compare(String name, String string, int start, int end) {
+		int length = end - start;
+		int common = Math.min(name.length(), length);
+		for (int i = 0; i < common; i++) {
+			int difference = name.charAt(i) - string.charAt(start + i);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return name.length() - length;
+	}
+
+	private static String[] sort(String[] names) {
+		// insertion sort, the list is short and sorted once
+		for (int i = 1; i < names.length; i++) {
+			String name = names[i];
+			int j = i - 1;
+			while (j >= 0 && names[j].compareTo(name) > 0) {
+				names[j + 1] = names[j];
+				j--;
+			}
+			names[j + 1] = name;
+		}
+		return names;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ej.bon.Util;
+
+/**
+ * Timings of the stages of a boot, relative to its origin. The stages may overlap, each one is recorded when it begins
+ * and ends; an event is recorded as a stage that ends when it begins.
+ */
+@SuppressWarnings("nls")
+public class BootTimings {
+
+	/**
+	 * A stage of the boot, in milliseconds since the origin.
+	 */
+	private static class Stage {
+		final String name;
+		final long begin;
+		long end = -1;
+
+		Stage(String name, long begin) {
+			this.name = name;
+			this.begin = begin;
+		}
+	}
+
+	private final long origin;
+	private final List<Stage> stages = new ArrayList<>();
+
+	/**
+	 * Creates the timings of a boot starting now.
+	 */
+	public BootTimings() {
+		this.origin = Util.platformTimeMillis();
+	}
+
+	/**
+	 * Records the beginning of a stage.
+	 *
+	 * @param stage
+	 *            the name of the stage
+	 */
+	public synchronized void begin(String stage) {
+		this.stages.add(new Stage(stage, elapsed()));
+	}
+
+	/**
+	 * Records the end of a stage. Does nothing if the stage has not begun.
+	 *
+	 * @param stage
+	 *            the name of the stage
+	 */
+	public synchronized void end(String stage) {
+		Stage found = find(stage);
+		if (found != null) {
+			found.end = elapsed();
+		}
+	}
+
+	/**
+	 * Records an event.
+	 *
+	 * @param event
+	 *            the name of the event
+	 */
+	public synchronized void mark(String event) {
+		long now = elapsed();
+		Stage stage = new Stage(event, now);
+		stage.end = now;
+		this.stages.add(stage);
+	}
+
+	/**
+	 * Gets the time of the end of a stage, or of an event.
+	 *
+	 * @param stage
+	 *            the name of the stage or the event
+	 * @return the time in milliseconds since the origin, or -1 if the stage has not ended
+	 */
+	public synchronized long getEnd(String stage) {
+		Stage found = find(stage);
+		return found != null ? found.end : -1;
+	}
+
+	/**
+	 * Gets a summary of the timings, one {@code name=begin..end} entry per stage in milliseconds since the origin, and
+	 * one {@code name@time} entry per event.
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Stage stage : this.stages) {
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(stage.name);
+			if (stage.begin == stage.end) {
+				builder.append('@').append(stage.end);
+			} else {
+				builder.append('=').append(stage.begin).append("..");
+				if (stage.end >= 0) {
+					builder.append(stage.end);
+				}
+			}
+		}
+		return builder.append(" ms").toString();
+	}
+
+	private Stage find(String name) {
+		for (Stage stage : this.stages) {
+			if (stage.name.equals(name)) {
+				return stage;
+			}
+		}
+		return null;
+	}
+
+	private long elapsed() {
+		return Util.platformTimeMillis() - this.origin;
+	}
+}
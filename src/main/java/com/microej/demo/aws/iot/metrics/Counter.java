@@ -0,0 +1,44 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.metrics;
+
+/**
+ * A monotonic counter.
+ * <p>
+ * The platform provides no atomic variables: the value is updated under the counter own monitor, which is not shared
+ * with any other code and is therefore almost never contended.
+ */
+public class Counter {
+
+	private long value;
+
+	/**
+	 * Increments the counter.
+	 */
+	public synchronized void increment() {
+		this.value++;
+	}
+
+	/**
+	 * Adds a value to the counter.
+	 *
+	 * @param delta
+	 *            the value to add
+	 */
+	public synchronized void add(long delta) {
+		this.value += delta;
+	}
+
+	/**
+	 * Gets the value of the counter.
+	 *
+	 * @return the value
+	 */
+	public synchronized long getValue() {
+		return this.value;
+	}
+}
@@ -0,0 +1,20 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.metrics;
+
+/**
+ * A value sampled when a snapshot of the metrics is taken, for example a queue depth.
+ */
+public interface Gauge {
+
+	/**
+	 * Gets the current value.
+	 *
+	 * @return the value
+	 */
+	long getValue();
+}
@@ -0,0 +1,191 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.metrics;
+
+/**
+ * Distribution of positive values (typically latencies) in power of two buckets.
+ * <p>
+ * Bucket {@code i} counts the values between {@code 2^(i-1)} and {@code 2^i - 1} (bucket 0 counts the zeros), so that
+ * recording a value costs a few instructions and no memory, and a percentile is known within a factor of two. The exact
+ * minimum, maximum and sum are also kept.
+ * <p>
+ * As for {@link Counter}, the platform provides no atomic variables and the histogram is updated under its own monitor.
+ */
+public class Histogram {
+
+	private static final int BUCKET_COUNT = 64;
+
+	private final long[] buckets = new long[BUCKET_COUNT];
+	private long count;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	/**
+	 * Records a value. Negative values are recorded as zeros.
+	 *
+	 * @param value
+	 *            the value to record
+	 */
+	public synchronized void record(long value) {
+		long v = Math.max(value, 0);
+		this.buckets[bucketOf(v)]++;
+		this.count++;
+		this.sum += v;
+		if (v < this.min) {
+			this.min = v;
+		}
+		if (v > this.max) {
+			this.max = v;
+		}
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 *
+	 * @return the number of values
+	 */
+	public synchronized long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Gets the mean of the recorded values.
+	 *
+	 * @return the mean or 0 if no value has been recorded
+	 */
+	public synchronized long getMean() {
+		return this.count == 0 ? 0 : this.sum / this.count;
+	}
+
+	/**
+	 * Gets the minimum recorded value.
+	 *
+	 * @return the minimum or 0 if no value has been recorded
+	 */
+	public synchronized long getMin() {
+		return this.count == 0 ? 0 : this.min;
+	}
+
+	/**
+	 * Gets the maximum recorded value.
+	 *
+	 * @return the maximum or 0 if no value has been recorded
+	 */
+	public synchronized long getMax() {
+		return this.max;
+	}
+
+	/**
+	 * Gets an upper bound of a percentile of the recorded values: the upper bound of the bucket containing it, capped
+	 * by the maximum.
+	 *
+	 * @param percent
+	 *            the percentile, between 0 and 100
+	 * @return the percentile or 0 if no value has been recorded
+	 */
+	public synchronized long getPercentile(int percent) {
+		long count = this.count;
+		if (count == 0) {
+			return 0;
+		}
+		// rank of the value, rounded up
+		long rank = Math.max(1, (count * percent + 99) / 100);
+		long seen = 0;
+		long[] buckets = this.buckets;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), this.max);
+			}
+		}
+		return this.max;
+	}
+
+	/**
+	 * Clears the recorded values.
+	 */
+	public synchronized void reset() {
+		long[] buckets = this.buckets;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets[i] = 0;
+		}
+		this.count = 0;
+		this.sum = 0;
+		this.min = Long.MAX_VALUE;
+		this.max = 0;
+	}
+
+	/**
+	 * Copies the recorded values into another histogram, replacing its values.
+	 *
+	 * @param copy
+	 *            the histogram receiving the copy
+	 */
+	public synchronized void copyTo(Histogram copy) {
+		synchronized (copy) {
+			System.arraycopy(this.buckets, 0, copy.buckets, 0, BUCKET_COUNT);
+			copy.count = this.count;
+			copy.sum = this.sum;
+			copy.min = this.min;
+			copy.max = this.max;
+		}
+	}
+
+	/**
+	 * Removes the values of a copy made by {@link #copyTo(Histogram)}, keeping the values recorded since.
+	 * <p>
+	 * The minimum and the maximum of the remaining values are not known: the ones of all the values are kept as bounds
+	 * until the histogram is empty.
+	 *
+	 * @param copy
+	 *            the copy of the values to remove
+	 */
+	public synchronized void remove(Histogram copy) {
+		synchronized (copy) {
+			long[] buckets = this.buckets;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				buckets[i] -= copy.buckets[i];
+			}
+			this.count -= copy.count;
+			this.sum -= copy.sum;
+		}
+		if (this.count == 0) {
+			this.min = Long.MAX_VALUE;
+			this.max = 0;
+		}
+	}
+
+	/**
+	 * Gets the number of significant bits of a positive value.
+	 */
+	private static int bucketOf(long value) {
+		int bucket = 0;
+		long v = value;
+		if (v >= 1L << 32) {
+			v >>>= 32;
+			bucket += 32;
+		}
+		if (v >= 1L << 16) {
+			v >>>= 16;
+			bucket += 16;
+		}
+		if (v >= 1L << 8) {
+			v >>>= 8;
+			bucket += 8;
+		}
+		while (v != 0) {
+			v >>>= 1;
+			bucket++;
+		}
+		return bucket;
+	}
+
+	private static long upperBound(int bucket) {
+		return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+}
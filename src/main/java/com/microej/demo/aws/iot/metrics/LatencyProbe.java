@@ -0,0 +1,198 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.metrics;
+
+import java.util.logging.Logger;
+
+import ej.bon.Util;
+
+/**
+ * Measures the round trip of messages published to a topic the device is subscribed to.
+ * <p>
+ * Every probed message carries a sequence number and its send time, taken from the platform time of the device, so
+ * that the round-trip time is computed on receipt without any clock synchronization. The sequence numbers also reveal
+ * the lost, reordered and duplicated messages: the probe keeps a window of the last {@link #WINDOW_SIZE} sequence
+ * numbers received, a missing number counts as lost until it is received out of order.
+ * <p>
+ * The round-trip times (in microseconds) are recorded in the {@code probe.rtt} histogram of the default
+ * {@link MetricsRegistry}, the other measures in {@code probe.*} counters and gauges. A summary with the percentiles
+ * since the creation of the probe (or its last {@link #reset()}) is also logged periodically.
+ */
+@SuppressWarnings("nls")
+public class LatencyProbe {
+
+	private static final Logger LOGGER = Logger.getLogger(LatencyProbe.class.getName());
+
+	/**
+	 * Number of sequence numbers tracked below the highest one received.
+	 */
+	public static final int WINDOW_SIZE = 64;
+
+	private static final long NANOS_PER_MICRO = 1000;
+
+	private final Histogram roundTrip = new Histogram();
+	private final Histogram intervalRoundTrip;
+	private final Counter receivedCounter;
+	private final Counter reorderedCounter;
+	private final Counter duplicatedCounter;
+
+	// Sequence number of the next message sent
+	private long nextSequence;
+
+	// Highest sequence number received, and bit n of the window set if the number highest - n has been received
+	private long highest = -1;
+	private long window;
+	private long lost;
+
+	private final int logInterval;
+	private int receivedSinceLog;
+
+	/**
+	 * Creates a probe.
+	 *
+	 * @param logInterval
+	 *            the number of messages received between two summaries logged
+	 */
+	public LatencyProbe(int logInterval) {
+		this.logInterval = logInterval;
+		MetricsRegistry registry = MetricsRegistry.getDefault();
+		this.intervalRoundTrip = registry.histogram("probe.rtt");
+		this.receivedCounter = registry.counter("probe.received");
+		this.reorderedCounter = registry.counter("probe.reordered");
+		this.duplicatedCounter = registry.counter("probe.duplicated");
+		// not a counter: a lost message is no longer lost once it is received out of order
+		registry.gauge("probe.lost", new Gauge() {
+			@Override
+			public long getValue() {
+				return getLostCount();
+			}
+		});
+	}
+
+	/**
+	 * Gets the current time, to be sent as the send time of a probed message.
+	 *
+	 * @return the platform time in microseconds
+	 */
+	public static long now() {
+		return Util.platformTimeNanos() / NANOS_PER_MICRO;
+	}
+
+	/**
+	 * Gets the sequence number of the next message sent. It is consumed by {@link #onSent(int)} once the message has
+	 * been published, so that a message that could not be published is not counted as lost.
+	 *
+	 * @return the next sequence number
+	 */
+	public synchronized long peekSequence() {
+		return this.nextSequence;
+	}
+
+	/**
+	 * Consumes sequence numbers once the messages carrying them have been published.
+	 *
+	 * @param count
+	 *            the number of messages published
+	 */
+	public synchronized void onSent(int count) {
+		this.nextSequence += count;
+	}
+
+	/**
+	 * Records the receipt of a probed message.
+	 *
+	 * @param sequence
+	 *            the sequence number carried by the message
+	 * @param sentTime
+	 *            the send time carried by the message, see {@link #now()}
+	 */
+	public void onReceived(long sequence, long sentTime) {
+		long roundTrip = now() - sentTime;
+		this.receivedCounter.increment();
+		int lost;
+		boolean reordered = false;
+		boolean duplicated = false;
+		boolean logged = false;
+		synchronized (this) {
+			long highest = this.highest;
+			if (sequence > highest) {
+				long gap = sequence - highest;
+				// the numbers skipped are lost until they show up
+				lost = (int) Math.min(gap - 1, Integer.MAX_VALUE);
+				this.window = gap >= WINDOW_SIZE ? 1 : (this.window << gap) | 1;
+				this.highest = sequence;
+			} else {
+				long offset = highest - sequence;
+				long bit = offset < WINDOW_SIZE ? 1L << offset : 0;
+				if (bit != 0 && (this.window & bit) != 0) {
+					duplicated = true;
+					lost = 0;
+				} else {
+					// received late: it was counted as lost
+					this.window |= bit;
+					reordered = true;
+					lost = -1;
+				}
+			}
+			this.lost += lost;
+			if (!duplicated && ++this.receivedSinceLog >= this.logInterval) {
+				this.receivedSinceLog = 0;
+				logged = true;
+			}
+		}
+		if (duplicated) {
+			// the round trip of a duplicate is not meaningful
+			this.duplicatedCounter.increment();
+			return;
+		}
+		if (reordered) {
+			this.reorderedCounter.increment();
+		}
+		this.roundTrip.record(roundTrip);
+		this.intervalRoundTrip.record(roundTrip);
+		if (logged) {
+			log();
+		}
+	}
+
+	/**
+	 * Gets the number of messages sent and not received yet.
+	 *
+	 * @return the number of lost messages
+	 */
+	public synchronized long getLostCount() {
+		return this.lost;
+	}
+
+	/**
+	 * Gets the round-trip times measured since the probe creation or its last reset.
+	 *
+	 * @return the round-trip times in microseconds
+	 */
+	public Histogram getRoundTrip() {
+		return this.roundTrip;
+	}
+
+	/**
+	 * Clears the round-trip times of the summary, for example at the beginning of a load test step. The lost,
+	 * reordered and duplicated counts are kept.
+	 */
+	public void reset() {
+		this.roundTrip.reset();
+	}
+
+	/**
+	 * Logs a summary of the measures since the probe creation or its last reset.
+	 */
+	public void log() {
+		long lost = getLostCount();
+		Histogram roundTrip = this.roundTrip;
+		LOGGER.info("Round trip: n=" + roundTrip.getCount() + " p50=" + roundTrip.getPercentile(50) + "us p99="
+				+ roundTrip.getPercentile(99) + "us max=" + roundTrip.getMax() + "us, lost=" + lost + " reordered="
+				+ this.reorderedCounter.getValue() + " duplicated=" + this.duplicatedCounter.getValue());
+	}
+}
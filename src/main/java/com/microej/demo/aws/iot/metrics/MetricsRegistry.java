@@ -0,0 +1,265 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.microej.demo.aws.iot.payload.PayloadWriter;
+
+/**
+ * Named counters, histograms and gauges of the application.
+ * <p>
+ * Like loggers, the metrics are looked up once by name, typically in a static field, and then updated directly on the
+ * hot paths: the registry itself is only involved when a metric is created and when a snapshot is written.
+ * <p>
+ * The messages received are also counted per topic. The number of topic counters is bounded: once the limit is
+ * reached, the messages of the new topics are counted together under {@link #OTHER_TOPICS}.
+ * <p>
+ * A snapshot covers the histogram values recorded since the last snapshot published, see
+ * {@link #onSnapshotPublished()}, so that the values of a snapshot that could not be published are not lost.
+ */
+@SuppressWarnings("nls")
+public class MetricsRegistry {
+
+	/**
+	 * Name of the counter of the messages received on topics beyond the topic counters limit.
+	 */
+	public static final String OTHER_TOPICS = "other";
+
+	private static final int MAX_TOPIC_COUNTERS = 32;
+
+	// Bytes kept free after the topic counters of a snapshot: the counter of the other topics and the end of the
+	// snapshot
+	private static final int TOPICS_RESERVE = 48;
+	// Maximum size of an integer value
+	private static final int MAX_VALUE_SIZE = 20;
+	// Maximum size of the header of a CBOR string and of the quotes, colon and comma around a JSON name
+	private static final int MAX_NAME_OVERHEAD = 9;
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	private final Map<String, Counter> counters = new HashMap<>();
+	private final Map<String, Histogram> histograms = new HashMap<>();
+	private final Map<String, Gauge> gauges = new HashMap<>();
+	private final Map<String, Counter> topicCounters = new HashMap<>();
+	// Copies of the histograms written in the last snapshot
+	private final Map<String, Histogram> writtenHistograms = new HashMap<>();
+
+	/**
+	 * Gets the registry of the application.
+	 *
+	 * @return the default registry
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Gets a counter, creating it if needed.
+	 *
+	 * @param name
+	 *            the name of the counter
+	 * @return the counter
+	 */
+	public synchronized Counter counter(String name) {
+		Counter counter = this.counters.get(name);
+		if (counter == null) {
+			counter = new Counter();
+			this.counters.put(name, counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * Gets a histogram, creating it if needed.
+	 *
+	 * @param name
+	 *            the name of the histogram
+	 * @return the histogram
+	 */
+	public synchronized Histogram histogram(String name) {
+		Histogram histogram = this.histograms.get(name);
+		if (histogram == null) {
+			histogram = new Histogram();
+			this.histograms.put(name, histogram);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Registers a gauge, replacing the gauge previously registered with the same name.
+	 *
+	 * @param name
+	 *            the name of the gauge
+	 * @param gauge
+	 *            the gauge
+	 */
+	public synchronized void gauge(String name, Gauge gauge) {
+		this.gauges.put(name, gauge);
+	}
+
+	/**
+	 * Counts a message received on a topic.
+	 *
+	 * @param topic
+	 *            the topic of the message
+	 */
+	public void onMessageReceived(String topic) {
+		Counter counter;
+		synchronized (this) {
+			Map<String, Counter> topicCounters = this.topicCounters;
+			counter = topicCounters.get(topic);
+			if (counter == null) {
+				String name = topicCounters.size() < MAX_TOPIC_COUNTERS - 1 ? topic : OTHER_TOPICS;
+				counter = topicCounters.get(name);
+				if (counter == null) {
+					counter = new Counter();
+					topicCounters.put(name, counter);
+				}
+			}
+		}
+		counter.increment();
+	}
+
+	/**
+	 * Gets the number of messages received on a topic.
+	 *
+	 * @param topic
+	 *            the topic
+	 * @return the number of messages received on the topic, 0 if the topic has no counter
+	 */
+	public synchronized long getReceivedCount(String topic) {
+		Counter counter = this.topicCounters.get(topic);
+		return counter != null ? counter.getValue() : 0;
+	}
+
+	/**
+	 * Writes a snapshot of the metrics as members of the current JSON object.
+	 * <p>
+	 * The counters are cumulative. The histograms cover the values recorded since the previous snapshot published: call
+	 * {@link #onSnapshotPublished()} once the snapshot is published to clear them.
+	 * <p>
+	 * The topic counters are written last and only as long as they fit in the writer: the counters of the topics that
+	 * do not fit are summed up under {@link #OTHER_TOPICS}.
+	 * <p>
+	 * The members look like
+	 * {@code "c":{"publish.count":12},"g":{"heap.free":51200},
+	 * "h":{"publish.latency":{"n":12,"avg":830,"p50":1023,"p99":2047,"max":1650}},"t":{"awsiot/demo/sample":3}}
+	 *
+	 * @param writer
+	 *            the writer the members are written to, in an object
+	 */
+	public void writeMembers(PayloadWriter writer) {
+		// the gauges are sampled out of the registry lock as they may call other locked objects
+		String[] gaugeNames;
+		Gauge[] gauges;
+		synchronized (this) {
+			gaugeNames = this.gauges.keySet().toArray(new String[this.gauges.size()]);
+			gauges = new Gauge[gaugeNames.length];
+			for (int i = 0; i < gaugeNames.length; i++) {
+				gauges[i] = this.gauges.get(gaugeNames[i]);
+			}
+		}
+
+		synchronized (this) {
+			writer.name("c");
+			writeCounters(writer, this.counters);
+		}
+		writer.name("g").beginObject();
+		for (int i = 0; i < gauges.length; i++) {
+			writer.name(gaugeNames[i]).value(gauges[i].getValue());
+		}
+		writer.endObject();
+		synchronized (this) {
+			writer.name("h").beginObject();
+			Map<String, Histogram> writtenHistograms = this.writtenHistograms;
+			for (Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+				String name = entry.getKey();
+				Histogram written = writtenHistograms.get(name);
+				if (written == null) {
+					written = new Histogram();
+					writtenHistograms.put(name, written);
+				}
+				// the copy is written and then removed once published, keeping the values recorded meanwhile
+				entry.getValue().copyTo(written);
+				writer.name(name).beginObject();
+				writer.name("n").value(written.getCount());
+				writer.name("avg").value(written.getMean());
+				writer.name("p50").value(written.getPercentile(50));
+				writer.name("p99").value(written.getPercentile(99));
+				writer.name("max").value(written.getMax());
+				writer.endObject();
+			}
+			writer.endObject();
+			writer.name("t");
+			writeTopicCounters(writer);
+		}
+	}
+
+	/**
+	 * Clears the histogram values written in the last snapshot, once it is published.
+	 */
+	public synchronized void onSnapshotPublished() {
+		Map<String, Histogram> writtenHistograms = this.writtenHistograms;
+		for (Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+			Histogram written = writtenHistograms.get(entry.getKey());
+			if (written != null) {
+				entry.getValue().remove(written);
+				written.reset();
+			}
+		}
+	}
+
+	private void writeTopicCounters(PayloadWriter writer) {
+		writer.beginObject();
+		int limit = writer.capacity() - TOPICS_RESERVE;
+		long otherCount = 0;
+		for (Map.Entry<String, Counter> entry : this.topicCounters.entrySet()) {
+			String topic = entry.getKey();
+			long count = entry.getValue().getValue();
+			if (!OTHER_TOPICS.equals(topic) && writer.size() + maxMemberSize(topic) <= limit) {
+				writer.name(topic).value(count);
+			} else {
+				otherCount += count;
+			}
+		}
+		if (otherCount != 0) {
+			writer.name(OTHER_TOPICS).value(otherCount);
+		}
+		writer.endObject();
+	}
+
+	/**
+	 * Gets the maximum size of an integer member, in JSON or in CBOR.
+	 */
+	private static int maxMemberSize(String name) {
+		int size = MAX_NAME_OVERHEAD + MAX_VALUE_SIZE;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c < 0x20 || c == '"' || c == '\\') {
+				// escaped in JSON
+				size += 6;
+			} else if (c < 0x80) {
+				size++;
+			} else if (c < 0x800) {
+				size += 2;
+			} else {
+				size += 3;
+			}
+		}
+		return size;
+	}
+
+	private static void writeCounters(PayloadWriter writer, Map<String, Counter> counters) {
+		writer.beginObject();
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			writer.name(entry.getKey()).value(entry.getValue().getValue());
+		}
+		writer.endObject();
+	}
+}
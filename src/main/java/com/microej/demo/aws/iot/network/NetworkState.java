@@ -0,0 +1,194 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import ej.bon.Util;
+import ej.net.util.NetUtil;
+
+/**
+ * Readiness of the network for the application: IP address acquired, time synchronized.
+ * <p>
+ * Each condition can be followed in two ways:
+ * <ul>
+ * <li>as a future, with {@link #whenReady(Readiness, Runnable)} running an action once a condition is true,</li>
+ * <li>by blocking, with {@link #await(Readiness, long)}.</li>
+ * </ul>
+ * The components that know a condition set it with {@link #setReady(Readiness)} and {@link #setLost(Readiness)}, the
+ * waiting ones are woken up immediately instead of polling the condition.
+ * <p>
+ * The network stack does not notify the address changes: {@link #probeAddress()} checks the address in a dedicated
+ * thread from the moment the network is expected to come up (soft access point mounted, network joined), with short
+ * intervals at first so that the address is detected a few milliseconds after it is assigned.
+ */
+@SuppressWarnings("nls")
+public class NetworkState {
+
+	private static final Logger LOGGER = Logger.getLogger(NetworkState.class.getName());
+
+	// Delays in milliseconds between two checks of the address, doubled after each check
+	private static final long FIRST_PROBE_DELAY = 10;
+	private static final long MAX_PROBE_DELAY = 500;
+
+	/**
+	 * An action to run once a condition is true.
+	 */
+	private static class PendingAction {
+		final Readiness readiness;
+		final Runnable action;
+
+		PendingAction(Readiness readiness, Runnable action) {
+			this.readiness = readiness;
+			this.action = action;
+		}
+	}
+
+	private final boolean[] ready = new boolean[Readiness.values().length];
+	private final List<PendingAction> pendingActions = new ArrayList<>();
+
+	private Thread prober;
+
+	/**
+	 * Gets whether a condition is true.
+	 *
+	 * @param readiness
+	 *            the condition
+	 * @return {@code true} if the condition is true, {@code false} otherwise
+	 */
+	public synchronized boolean isReady(Readiness readiness) {
+		return this.ready[readiness.ordinal()];
+	}
+
+	/**
+	 * Runs an action once a condition is true: immediately in the calling thread if it is already true, otherwise in
+	 * the thread setting it. The action runs once, even if the condition is lost and set
+	 * again.
+	 *
+	 * @param readiness
+	 *            the condition
+	 * @param action
+	 *            the action to run
+	 */
+	public void whenReady(Readiness readiness, Runnable action) {
+		synchronized (this) {
+			if (!this.ready[readiness.ordinal()]) {
+				this.pendingActions.add(new PendingAction(readiness, action));
+				return;
+			}
+		}
+		action.run();
+	}
+
+	/**
+	 * Waits until a condition is true.
+	 *
+	 * @param readiness
+	 *            the condition
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds, 0 to wait forever
+	 * @return {@code true} if the condition is true, {@code false} if the timeout elapsed before
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized boolean await(Readiness readiness, long timeout) throws InterruptedException {
+		long deadline = Util.platformTimeMillis() + timeout;
+		while (!this.ready[readiness.ordinal()]) {
+			long remaining = timeout == 0 ? 0 : deadline - Util.platformTimeMillis();
+			if (timeout != 0 && remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Sets a condition as true. The pending actions of the condition are run if it was false.
+	 *
+	 * @param readiness
+	 *            the condition
+	 */
+	public void setReady(Readiness readiness) {
+		List<Runnable> actions = new ArrayList<>();
+		synchronized (this) {
+			if (this.ready[readiness.ordinal()]) {
+				return;
+			}
+			this.ready[readiness.ordinal()] = true;
+			notifyAll();
+			List<PendingAction> pendingActions = this.pendingActions;
+			for (int i = 0; i < pendingActions.size();) {
+				PendingAction pendingAction = pendingActions.get(i);
+				if (pendingAction.readiness == readiness) {
+					actions.add(pendingAction.action);
+					pendingActions.remove(i);
+				} else {
+					i++;
+				}
+			}
+		}
+		LOGGER.info("Network ready: " + readiness);
+		for (Runnable action : actions) {
+			action.run();
+		}
+	}
+
+	/**
+	 * Sets a condition as false.
+	 *
+	 * @param readiness
+	 *            the condition
+	 */
+	public void setLost(Readiness readiness) {
+		synchronized (this) {
+			if (!this.ready[readiness.ordinal()]) {
+				return;
+			}
+			this.ready[readiness.ordinal()] = false;
+		}
+		LOGGER.info("Network lost: " + readiness);
+	}
+
+	/**
+	 * Checks the IP address of the device until it has one, then sets {@link Readiness#IP_ACQUIRED}. Does nothing if
+	 * the address is already acquired or being checked.
+	 */
+	public synchronized void probeAddress() {
+		if (this.prober != null || this.ready[Readiness.IP_ACQUIRED.ordinal()]) {
+			return;
+		}
+		Thread prober = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				probe();
+			}
+		}, "aws-network");
+		this.prober = prober;
+		prober.start();
+	}
+
+	private void probe() {
+		long delay = FIRST_PROBE_DELAY;
+		try {
+			while (NetUtil.getFirstHostAddress() == null) {
+				Thread.sleep(delay);
+				delay = Math.min(delay * 2, MAX_PROBE_DELAY);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} finally {
+			synchronized (this) {
+				this.prober = null;
+			}
+		}
+		setReady(Readiness.IP_ACQUIRED);
+	}
+}
@@ -0,0 +1,23 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.network;
+
+/**
+ * A condition the application waits for before using the network, see {@link NetworkState}.
+ */
+public enum Readiness {
+
+	/**
+	 * The device has an IP address.
+	 */
+	IP_ACQUIRED,
+
+	/**
+	 * The time is synchronized with a time server.
+	 */
+	TIME_SYNCHRONIZED
+}
@@ -0,0 +1,392 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+/**
+ * Pull-style CBOR (RFC 8949) reader working directly on a raw byte array, with the same tokens as {@link JsonReader}.
+ * <p>
+ * Maps are read as objects and arrays as arrays, of definite or indefinite length. The text strings at a key position
+ * of a map are {@link #NAME} tokens, the other text and byte strings are {@link #STRING} tokens. Integers and
+ * floating-point numbers are {@link #NUMBER} tokens, the simple values {@code false}, {@code true} and {@code null} are
+ * {@link #BOOLEAN} and {@link #NULL} tokens. Tags are ignored, the tagged item is read instead.
+ * <p>
+ * The reader is lenient: it does not validate the document, it only tokenizes it. Indefinite-length strings are not
+ * supported. This class is not thread-safe.
+ */
+public class CborReader implements PayloadReader {
+
+	// Maximum nesting depth
+	private static final int MAX_DEPTH = 32;
+
+	private static final int MAJOR_UNSIGNED = 0;
+	private static final int MAJOR_NEGATIVE = 1;
+	private static final int MAJOR_BYTES = 2;
+	private static final int MAJOR_TEXT = 3;
+	private static final int MAJOR_ARRAY = 4;
+	private static final int MAJOR_MAP = 5;
+	private static final int MAJOR_TAG = 6;
+
+	private static final int ARGUMENT_1_BYTE = 24;
+	private static final int ARGUMENT_2_BYTES = 25;
+	private static final int ARGUMENT_4_BYTES = 26;
+	private static final int ARGUMENT_8_BYTES = 27;
+	private static final int INDEFINITE_LENGTH = 31;
+
+	private static final int FALSE = 0xf4;
+	private static final int TRUE = 0xf5;
+	private static final int NULL_VALUE = 0xf6;
+	private static final int UNDEFINED = 0xf7;
+	private static final int HALF_FLOAT = 0xf9;
+	private static final int FLOAT = 0xfa;
+	private static final int DOUBLE = 0xfb;
+	private static final int BREAK = 0xff;
+
+	private static final int HALF_FLOAT_EXPONENT_MASK = 0x1f;
+	private static final int HALF_FLOAT_MANTISSA_MASK = 0x3ff;
+	// Difference between the exponent biases of single and half-precision floats
+	private static final int HALF_TO_FLOAT_EXPONENT = 127 - 15;
+
+	private byte[] data;
+	private int position;
+	private int end;
+
+	private int token;
+	private int depth;
+
+	// Per container: whether it is a map, and its number of remaining items (-1 for indefinite length) and of items
+	// read. A map entry counts as two items.
+	private final boolean[] maps = new boolean[MAX_DEPTH];
+	private final long[] remaining = new long[MAX_DEPTH];
+	private final long[] itemCounts = new long[MAX_DEPTH];
+
+	// Range of the current string, or value of the current number or boolean
+	private int valueStart;
+	private int valueEnd;
+	private long value;
+
+	/**
+	 * Creates a CBOR reader. Call {@link #reset(byte[])} to start reading a document.
+	 */
+	public CborReader() {
+		reset(new byte[0]);
+	}
+
+	@Override
+	public CborReader reset(byte[] data) {
+		return reset(data, 0, data.length);
+	}
+
+	/**
+	 * Starts reading a document.
+	 *
+	 * @param data
+	 *            the buffer containing the CBOR encoded document
+	 * @param offset
+	 *            the offset of the document in the buffer
+	 * @param length
+	 *            the length of the document
+	 * @return this reader
+	 */
+	public CborReader reset(byte[] data, int offset, int length) {
+		this.data = data;
+		this.position = offset;
+		this.end = offset + length;
+		this.token = END_DOCUMENT;
+		this.depth = 0;
+		this.valueStart = offset;
+		this.valueEnd = offset;
+		this.value = 0;
+		return this;
+	}
+
+	@Override
+	public int next() {
+		int depth = this.depth;
+		if (depth > 0 && this.remaining[depth - 1] == 0) {
+			// end of a definite-length container
+			return this.token = pop();
+		}
+		if (this.position >= this.end) {
+			return this.token = END_DOCUMENT;
+		}
+		int initialByte = readByte();
+		if (initialByte == BREAK) {
+			if (depth == 0 || this.remaining[depth - 1] >= 0) {
+				throw new IllegalArgumentException("unexpected CBOR break at " + (this.position - 1)); //$NON-NLS-1$
+			}
+			return this.token = pop();
+		}
+
+		boolean key = false;
+		if (depth > 0) {
+			key = this.maps[depth - 1] && (this.itemCounts[depth - 1] & 1) == 0;
+			this.itemCounts[depth - 1]++;
+			if (this.remaining[depth - 1] > 0) {
+				this.remaining[depth - 1]--;
+			}
+		}
+
+		int majorType = initialByte >> 5;
+		while (majorType == MAJOR_TAG) {
+			readArgument(initialByte);
+			initialByte = readByte();
+			majorType = initialByte >> 5;
+		}
+		int token;
+		switch (majorType) {
+		case MAJOR_UNSIGNED:
+			this.value = readArgument(initialByte);
+			token = NUMBER;
+			break;
+		case MAJOR_NEGATIVE:
+			this.value = ~readArgument(initialByte);
+			token = NUMBER;
+			break;
+		case MAJOR_BYTES:
+		case MAJOR_TEXT:
+			if ((initialByte & 0x1f) == INDEFINITE_LENGTH) {
+				throw new IllegalArgumentException(
+						"indefinite-length CBOR string at " + (this.position - 1)); //$NON-NLS-1$
+			}
+			long length = readArgument(initialByte);
+			// an 8-byte length with its high bit set is negative and would move the position backwards
+			if (length < 0 || length > this.end - this.position) {
+				throw new IllegalArgumentException("truncated CBOR string at " + this.position); //$NON-NLS-1$
+			}
+			this.valueStart = this.position;
+			this.position += (int) length;
+			this.valueEnd = this.position;
+			token = key && majorType == MAJOR_TEXT ? NAME : STRING;
+			break;
+		case MAJOR_ARRAY:
+			push(false, initialByte);
+			token = BEGIN_ARRAY;
+			break;
+		case MAJOR_MAP:
+			push(true, initialByte);
+			token = BEGIN_OBJECT;
+			break;
+		default:
+			token = readSimpleValue(initialByte);
+		}
+		return this.token = token;
+	}
+
+	@Override
+	public int token() {
+		return this.token;
+	}
+
+	@Override
+	public int depth() {
+		return this.depth;
+	}
+
+	@Override
+	public void skipValue() {
+		int token = this.token;
+		if (token == NAME) {
+			token = next();
+		}
+		if (token == BEGIN_OBJECT || token == BEGIN_ARRAY) {
+			int depth = this.depth - 1;
+			do {
+				token = next();
+			} while (token != END_DOCUMENT && this.depth > depth);
+		}
+	}
+
+	@Override
+	public boolean nextMember() {
+		if (this.token == NAME) {
+			skipValue();
+		}
+		int depth = this.depth;
+		int token = next();
+		return token == NAME && this.depth == depth;
+	}
+
+	@Override
+	public boolean moveToMember(String name) {
+		while (nextMember()) {
+			if (nameEquals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean nameEquals(String name) {
+		return this.token == NAME && rawEquals(name);
+	}
+
+	@Override
+	public boolean valueEquals(String value) {
+		return this.token == STRING && rawEquals(value);
+	}
+
+	@Override
+	public long longValue() {
+		if (this.token != NUMBER) {
+			throw new IllegalStateException();
+		}
+		return this.value;
+	}
+
+	@Override
+	public boolean booleanValue() {
+		if (this.token != BOOLEAN) {
+			throw new IllegalStateException();
+		}
+		return this.value != 0;
+	}
+
+	@Override
+	public String stringValue() {
+		switch (this.token) {
+		case NAME:
+		case STRING:
+			return new String(this.data, this.valueStart, this.valueEnd - this.valueStart);
+		case NUMBER:
+			return Long.toString(this.value);
+		case BOOLEAN:
+			return this.value != 0 ? "true" : "false"; //$NON-NLS-1$ //$NON-NLS-2$
+		case NULL:
+			return "null"; //$NON-NLS-1$
+		default:
+			return ""; //$NON-NLS-1$
+		}
+	}
+
+	private boolean rawEquals(String value) {
+		byte[] data = this.data;
+		int position = this.valueStart;
+		int end = this.valueEnd;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				// fall back to decoding for non ASCII strings
+				return value.equals(stringValue());
+			}
+			if (position >= end || data[position++] != c) {
+				return false;
+			}
+		}
+		return position == end;
+	}
+
+	private void push(boolean map, int initialByte) {
+		int depth = this.depth;
+		if (depth >= MAX_DEPTH) {
+			throw new IllegalArgumentException("CBOR nesting too deep"); //$NON-NLS-1$
+		}
+		long count;
+		if ((initialByte & 0x1f) == INDEFINITE_LENGTH) {
+			count = -1;
+		} else {
+			count = readArgument(initialByte);
+			// each item takes at least one byte, a negative count would be read as an indefinite length
+			if (count < 0 || count > this.end - this.position) {
+				throw new IllegalArgumentException("truncated CBOR container at " + this.position); //$NON-NLS-1$
+			}
+			if (map) {
+				count *= 2;
+			}
+		}
+		this.maps[depth] = map;
+		this.remaining[depth] = count;
+		this.itemCounts[depth] = 0;
+		this.depth = depth + 1;
+	}
+
+	private int pop() {
+		int depth = --this.depth;
+		return this.maps[depth] ? END_OBJECT : END_ARRAY;
+	}
+
+	private int readSimpleValue(int initialByte) {
+		switch (initialByte) {
+		case FALSE:
+			this.value = 0;
+			return BOOLEAN;
+		case TRUE:
+			this.value = 1;
+			return BOOLEAN;
+		case NULL_VALUE:
+		case UNDEFINED:
+			return NULL;
+		case HALF_FLOAT:
+			this.value = (long) halfToFloat((int) readBigEndian(2));
+			return NUMBER;
+		case FLOAT:
+			this.value = (long) Float.intBitsToFloat((int) readBigEndian(4));
+			return NUMBER;
+		case DOUBLE:
+			this.value = (long) Double.longBitsToDouble(readBigEndian(8));
+			return NUMBER;
+		default:
+			throw new IllegalArgumentException("unsupported CBOR item at " + (this.position - 1)); //$NON-NLS-1$
+		}
+	}
+
+	private static float halfToFloat(int half) {
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >> 10) & HALF_FLOAT_EXPONENT_MASK;
+		int mantissa = half & HALF_FLOAT_MANTISSA_MASK;
+		int bits;
+		if (exponent == 0) {
+			// zero or subnormal, whose integer part is 0
+			bits = sign;
+		} else if (exponent == HALF_FLOAT_EXPONENT_MASK) {
+			// infinity or NaN
+			bits = sign | 0x7f800000 | (mantissa << 13);
+		} else {
+			bits = sign | ((exponent + HALF_TO_FLOAT_EXPONENT) << 23) | (mantissa << 13);
+		}
+		return Float.intBitsToFloat(bits);
+	}
+
+	private long readArgument(int initialByte) {
+		int additional = initialByte & 0x1f;
+		if (additional < ARGUMENT_1_BYTE) {
+			return additional;
+		}
+		switch (additional) {
+		case ARGUMENT_1_BYTE:
+			return readBigEndian(1);
+		case ARGUMENT_2_BYTES:
+			return readBigEndian(2);
+		case ARGUMENT_4_BYTES:
+			return readBigEndian(4);
+		case ARGUMENT_8_BYTES:
+			return readBigEndian(8);
+		default:
+			throw new IllegalArgumentException("malformed CBOR at " + (this.position - 1)); //$NON-NLS-1$
+		}
+	}
+
+	private long readBigEndian(int length) {
+		if (this.position + length > this.end) {
+			throw new IllegalArgumentException("truncated CBOR at " + this.position); //$NON-NLS-1$
+		}
+		byte[] data = this.data;
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			value = (value << 8) | (data[this.position++] & 0xff);
+		}
+		return value;
+	}
+
+	private int readByte() {
+		if (this.position >= this.end) {
+			throw new IllegalArgumentException("truncated CBOR at " + this.position); //$NON-NLS-1$
+		}
+		return this.data[this.position++] & 0xff;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+/**
+ * Writes CBOR (RFC 8949) documents into a pre-sized byte buffer without allocating memory.
+ * <p>
+ * The writer has the same API as {@link JsonWriter} and produces the equivalent CBOR data items: objects are written
+ * as maps and arrays as arrays, both of indefinite length so that the number of members does not have to be known in
+ * advance, names and strings as text strings, integers in their shortest encoding, booleans and {@code null} as simple
+ * values. The documents are smaller than their JSON equivalent and faster to encode, as integers are written in binary
+ * and strings are not escaped.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class CborWriter extends PayloadBuffer implements PayloadWriter {
+
+	private static final int MAJOR_UNSIGNED = 0 << 5;
+	private static final int MAJOR_NEGATIVE = 1 << 5;
+	private static final int MAJOR_TEXT = 3 << 5;
+
+	private static final int ARGUMENT_1_BYTE = 24;
+	private static final int ARGUMENT_2_BYTES = 25;
+	private static final int ARGUMENT_4_BYTES = 26;
+	private static final int ARGUMENT_8_BYTES = 27;
+
+	private static final int BEGIN_INDEFINITE_ARRAY = 0x9f;
+	private static final int BEGIN_INDEFINITE_MAP = 0xbf;
+	private static final int FALSE = 0xf4;
+	private static final int TRUE = 0xf5;
+	private static final int NULL = 0xf6;
+	private static final int BREAK = 0xff;
+
+	private int depth;
+
+	/**
+	 * Creates a CBOR writer.
+	 *
+	 * @param capacity
+	 *            the maximum size in bytes of the documents written
+	 */
+	public CborWriter(int capacity) {
+		super(capacity);
+	}
+
+	@Override
+	public CborWriter reset() {
+		this.size = 0;
+		this.depth = 0;
+		return this;
+	}
+
+	@Override
+	public CborWriter beginObject() {
+		write(BEGIN_INDEFINITE_MAP);
+		this.depth++;
+		return this;
+	}
+
+	@Override
+	public CborWriter endObject() {
+		return end();
+	}
+
+	@Override
+	public CborWriter beginArray() {
+		write(BEGIN_INDEFINITE_ARRAY);
+		this.depth++;
+		return this;
+	}
+
+	@Override
+	public CborWriter endArray() {
+		return end();
+	}
+
+	@Override
+	public CborWriter name(String name) {
+		writeText(name);
+		return this;
+	}
+
+	@Override
+	public CborWriter value(String value) {
+		if (value == null) {
+			write(NULL);
+		} else {
+			writeText(value);
+		}
+		return this;
+	}
+
+	@Override
+	public CborWriter value(long value) {
+		if (value >= 0) {
+			writeHead(MAJOR_UNSIGNED, value);
+		} else {
+			// a negative integer n is encoded as -1 - n
+			writeHead(MAJOR_NEGATIVE, ~value);
+		}
+		return this;
+	}
+
+	@Override
+	public CborWriter value(boolean value) {
+		write(value ? TRUE : FALSE);
+		return this;
+	}
+
+	private CborWriter end() {
+		if (this.depth == 0) {
+			throw new IllegalStateException("no CBOR map or array to end"); //$NON-NLS-1$
+		}
+		this.depth--;
+		write(BREAK);
+		return this;
+	}
+
+	private void writeText(String value) {
+		writeHead(MAJOR_TEXT, utf8Length(value));
+		int length = value.length();
+		int i = 0;
+		while (i < length) {
+			i = writeUtf8(value, i);
+		}
+	}
+
+	/**
+	 * Writes the initial byte of a data item and its argument in the shortest form.
+	 *
+	 * @param majorType
+	 *            the major type, in the 3 high-order bits
+	 * @param argument
+	 *            the argument, positive
+	 */
+	private void writeHead(int majorType, long argument) {
+		if (argument < ARGUMENT_1_BYTE) {
+			write(majorType | (int) argument);
+		} else if (argument <= 0xff) {
+			write(majorType | ARGUMENT_1_BYTE);
+			write((int) argument);
+		} else if (argument <= 0xffff) {
+			write(majorType | ARGUMENT_2_BYTES);
+			writeBigEndian(argument, 2);
+		} else if (argument <= 0xffffffffL) {
+			write(majorType | ARGUMENT_4_BYTES);
+			writeBigEndian(argument, 4);
+		} else {
+			write(majorType | ARGUMENT_8_BYTES);
+			writeBigEndian(argument, 8);
+		}
+	}
+
+	private void writeBigEndian(long value, int length) {
+		ensureCapacity(length);
+		byte[] buffer = this.buffer;
+		int end = this.size + length;
+		for (int i = end - 1; i >= this.size; i--) {
+			buffer[i] = (byte) value;
+			value >>>= 8;
+		}
+		this.size = end;
+	}
+}
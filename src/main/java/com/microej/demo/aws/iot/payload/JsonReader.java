@@ -0,0 +1,476 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+/**
+ * Pull-style JSON reader working directly on a raw UTF-8 byte array.
+ * <p>
+ * The document is read token by token with {@link #next()}. Names and values are compared and converted in place, so
+ * that extracting a few members of a large document neither builds a {@link String} of the document nor a tree of
+ * objects. Only {@link #stringValue()} allocates.
+ * <p>
+ * Typical usage to read the {@code state.desired} members of a document:
+ *
+ * <pre>
+ * reader.reset(payload);
+ * if (reader.next() == JsonReader.BEGIN_OBJECT &amp;&amp; reader.moveToMember("state")
+ * 		&amp;&amp; reader.next() == JsonReader.BEGIN_OBJECT &amp;&amp; reader.moveToMember("desired")
+ * 		&amp;&amp; reader.next() == JsonReader.BEGIN_OBJECT) {
+ * 	while (reader.nextMember()) {
+ * 		// reader is on the member name, read or skip its value
+ * 	}
+ * }
+ * </pre>
+ * <p>
+ * The reader is lenient: it does not validate the document, it only tokenizes it. This class is not thread-safe.
+ */
+public class JsonReader implements PayloadReader {
+
+	private byte[] data;
+	private int position;
+	private int end;
+
+	private int token;
+	private int depth;
+
+	// Raw range of the current name or value (content of the strings, without quotes)
+	private int valueStart;
+	private int valueEnd;
+	private boolean escaped;
+
+	/**
+	 * Creates a JSON reader. Call {@link #reset(byte[])} to start reading a document.
+	 */
+	public JsonReader() {
+		reset(new byte[0]);
+	}
+
+	/**
+	 * Starts reading a document.
+	 *
+	 * @param data
+	 *            the UTF-8 encoded document
+	 * @return this reader
+	 */
+	@Override
+	public JsonReader reset(byte[] data) {
+		return reset(data, 0, data.length);
+	}
+
+	/**
+	 * Starts reading a document.
+	 *
+	 * @param data
+	 *            the buffer containing the UTF-8 encoded document
+	 * @param offset
+	 *            the offset of the document in the buffer
+	 * @param length
+	 *            the length of the document
+	 * @return this reader
+	 */
+	public JsonReader reset(byte[] data, int offset, int length) {
+		this.data = data;
+		this.position = offset;
+		this.end = offset + length;
+		this.token = END_DOCUMENT;
+		this.depth = 0;
+		this.valueStart = offset;
+		this.valueEnd = offset;
+		this.escaped = false;
+		return this;
+	}
+
+	/**
+	 * Reads the next token.
+	 *
+	 * @return the token read, one of the constants of this class
+	 * @throws IllegalArgumentException
+	 *             if the document is malformed
+	 */
+	@Override
+	public int next() {
+		byte[] data = this.data;
+		int position = skipSeparators(this.position);
+		if (position >= this.end) {
+			this.position = position;
+			return this.token = END_DOCUMENT;
+		}
+
+		int token;
+		byte c = data[position];
+		switch (c) {
+		case '{':
+			this.depth++;
+			token = BEGIN_OBJECT;
+			position++;
+			break;
+		case '}':
+			this.depth--;
+			token = END_OBJECT;
+			position++;
+			break;
+		case '[':
+			this.depth++;
+			token = BEGIN_ARRAY;
+			position++;
+			break;
+		case ']':
+			this.depth--;
+			token = END_ARRAY;
+			position++;
+			break;
+		case '"':
+			position = readString(position + 1);
+			// a string followed by a colon is a member name
+			int next = skipWhitespaces(position);
+			if (next < this.end && data[next] == ':') {
+				token = NAME;
+				position = next + 1;
+			} else {
+				token = STRING;
+			}
+			break;
+		case 't':
+		case 'f':
+			token = BOOLEAN;
+			position = readLiteral(position);
+			break;
+		case 'n':
+			token = NULL;
+			position = readLiteral(position);
+			break;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				token = NUMBER;
+				position = readLiteral(position);
+			} else {
+				throw new IllegalArgumentException("malformed JSON at " + position); //$NON-NLS-1$
+			}
+		}
+		this.position = position;
+		return this.token = token;
+	}
+
+	/**
+	 * Gets the current token.
+	 *
+	 * @return the token returned by the last call to {@link #next()}
+	 */
+	@Override
+	public int token() {
+		return this.token;
+	}
+
+	/**
+	 * Gets the nesting depth of the reader. The depth is incremented by {@link #BEGIN_OBJECT} and {@link #BEGIN_ARRAY}
+	 * tokens and decremented by {@link #END_OBJECT} and {@link #END_ARRAY} tokens.
+	 *
+	 * @return the number of objects and arrays the reader is in
+	 */
+	@Override
+	public int depth() {
+		return this.depth;
+	}
+
+	/**
+	 * Skips the value of the current token: the value of the member if the reader is on a {@link #NAME}, the whole
+	 * object or array if it is on a {@link #BEGIN_OBJECT} or a {@link #BEGIN_ARRAY}. Does nothing otherwise.
+	 */
+	@Override
+	public void skipValue() {
+		int token = this.token;
+		if (token == NAME) {
+			token = next();
+		}
+		if (token == BEGIN_OBJECT || token == BEGIN_ARRAY) {
+			int depth = this.depth - 1;
+			do {
+				token = next();
+			} while (token != END_DOCUMENT && this.depth > depth);
+		}
+	}
+
+	/**
+	 * Moves to the next member of the current object. The reader must be just after a {@link #BEGIN_OBJECT} or after
+	 * a complete member value; if it is on a member name, the value of this member is skipped.
+	 *
+	 * @return {@code true} if the reader is on the name of the next member, {@code false} if the end of the object has
+	 *         been reached
+	 */
+	@Override
+	public boolean nextMember() {
+		if (this.token == NAME) {
+			skipValue();
+		}
+		int depth = this.depth;
+		int token = next();
+		return token == NAME && this.depth == depth;
+	}
+
+	/**
+	 * Moves to the member with the given name in the current object, skipping the other members. The reader must be
+	 * just after a {@link #BEGIN_OBJECT} or after a complete member value.
+	 *
+	 * @param name
+	 *            the name of the member
+	 * @return {@code true} if the reader is on the name of the member, {@code false} if the end of the object has been
+	 *         reached without finding it
+	 */
+	@Override
+	public boolean moveToMember(String name) {
+		while (nextMember()) {
+			if (nameEquals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the current {@link #NAME} is equal to the given name.
+	 *
+	 * @param name
+	 *            the name to compare with
+	 * @return {@code true} if the current token is a name equal to the given one, {@code false} otherwise
+	 */
+	@Override
+	public boolean nameEquals(String name) {
+		return this.token == NAME && rawEquals(name);
+	}
+
+	/**
+	 * Checks whether the current {@link #STRING} value is equal to the given string.
+	 *
+	 * @param value
+	 *            the string to compare with
+	 * @return {@code true} if the current token is a string equal to the given one, {@code false} otherwise
+	 */
+	@Override
+	public boolean valueEquals(String value) {
+		return this.token == STRING && rawEquals(value);
+	}
+
+	/**
+	 * Gets the current {@link #NUMBER} value as a long. The fractional part and the exponent, if any, are ignored.
+	 *
+	 * @return the integer part of the current number
+	 * @throws IllegalStateException
+	 *             if the current token is not a number
+	 */
+	@Override
+	public long longValue() {
+		if (this.token != NUMBER) {
+			throw new IllegalStateException();
+		}
+		byte[] data = this.data;
+		int position = this.valueStart;
+		boolean negative = data[position] == '-';
+		if (negative) {
+			position++;
+		}
+		long value = 0;
+		for (; position < this.valueEnd; position++) {
+			byte c = data[position];
+			if (c < '0' || c > '9') {
+				break;
+			}
+			value = value * 10 - (c - '0');
+		}
+		return negative ? value : -value;
+	}
+
+	/**
+	 * Gets the current {@link #BOOLEAN} value.
+	 *
+	 * @return the current boolean
+	 * @throws IllegalStateException
+	 *             if the current token is not a boolean
+	 */
+	@Override
+	public boolean booleanValue() {
+		if (this.token != BOOLEAN) {
+			throw new IllegalStateException();
+		}
+		return this.data[this.valueStart] == 't';
+	}
+
+	/**
+	 * Gets the current {@link #NAME} or {@link #STRING} as a string, or the raw text of any other scalar value. This
+	 * method allocates a new string.
+	 *
+	 * @return the current name or value
+	 */
+	@Override
+	public String stringValue() {
+		if (!this.escaped) {
+			return new String(this.data, this.valueStart, this.valueEnd - this.valueStart);
+		}
+		StringBuilder builder = new StringBuilder(this.valueEnd - this.valueStart);
+		int position = this.valueStart;
+		while (position < this.valueEnd) {
+			int start = position;
+			while (position < this.valueEnd && this.data[position] != '\\') {
+				position++;
+			}
+			builder.append(new String(this.data, start, position - start));
+			if (position < this.valueEnd) {
+				position = appendEscape(builder, position + 1);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Gets the offset of the raw content of the current name or value in the buffer. For strings, the quotes are
+	 * excluded and the escape sequences are not decoded.
+	 *
+	 * @return the offset of the current name or value
+	 */
+	public int valueOffset() {
+		return this.valueStart;
+	}
+
+	/**
+	 * Gets the length of the raw content of the current name or value in the buffer.
+	 *
+	 * @return the length of the current name or value
+	 */
+	public int valueLength() {
+		return this.valueEnd - this.valueStart;
+	}
+
+	private boolean rawEquals(String value) {
+		if (this.escaped) {
+			return value.equals(stringValue());
+		}
+		byte[] data = this.data;
+		int position = this.valueStart;
+		int end = this.valueEnd;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				// fall back to decoding for non ASCII strings
+				return value.equals(stringValue());
+			}
+			if (position >= end || data[position++] != c) {
+				return false;
+			}
+		}
+		return position == end;
+	}
+
+	private int readString(int start) {
+		byte[] data = this.data;
+		int end = this.end;
+		boolean escaped = false;
+		int position = start;
+		while (position < end) {
+			byte c = data[position];
+			if (c == '"') {
+				this.valueStart = start;
+				this.valueEnd = position;
+				this.escaped = escaped;
+				return position + 1;
+			} else if (c == '\\') {
+				escaped = true;
+				position += 2;
+			} else {
+				position++;
+			}
+		}
+		throw new IllegalArgumentException("unterminated JSON string at " + start); //$NON-NLS-1$
+	}
+
+	private int readLiteral(int start) {
+		byte[] data = this.data;
+		int end = this.end;
+		int position = start;
+		while (position < end) {
+			byte c = data[position];
+			if (c == ',' || c == '}' || c == ']' || c == ':' || isWhitespace(c)) {
+				break;
+			}
+			position++;
+		}
+		this.valueStart = start;
+		this.valueEnd = position;
+		this.escaped = false;
+		return position;
+	}
+
+	private int appendEscape(StringBuilder builder, int position) {
+		if (position >= this.valueEnd) {
+			return position;
+		}
+		byte c = this.data[position];
+		switch (c) {
+		case 'b':
+			builder.append('\b');
+			break;
+		case 'f':
+			builder.append('\f');
+			break;
+		case 'n':
+			builder.append('\n');
+			break;
+		case 'r':
+			builder.append('\r');
+			break;
+		case 't':
+			builder.append('\t');
+			break;
+		case 'u':
+			int value = 0;
+			for (int i = 1; i <= 4 && position + i < this.valueEnd; i++) {
+				value = (value << 4) | hexDigit(this.data[position + i]);
+			}
+			builder.append((char) value);
+			return position + 5;
+		default:
+			builder.append((char) c);
+		}
+		return position + 1;
+	}
+
+	private static int hexDigit(byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return 0;
+	}
+
+	private int skipSeparators(int position) {
+		byte[] data = this.data;
+		int end = this.end;
+		while (position < end) {
+			byte c = data[position];
+			if (c != ',' && c != ':' && !isWhitespace(c)) {
+				break;
+			}
+			position++;
+		}
+		return position;
+	}
+
+	private int skipWhitespaces(int position) {
+		byte[] data = this.data;
+		int end = this.end;
+		while (position < end && isWhitespace(data[position])) {
+			position++;
+		}
+		return position;
+	}
+
+	private static boolean isWhitespace(byte c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+}
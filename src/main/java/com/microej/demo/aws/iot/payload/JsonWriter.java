@@ -0,0 +1,253 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+/**
+ * Writes JSON documents into a pre-sized byte buffer without allocating memory.
+ * <p>
+ * The writer is meant to be reused: call {@link #reset()} before writing a new document, then write it with the
+ * {@code begin*}, {@code end*}, {@link #name(String)} and {@code value} methods. Separators are inserted
+ * automatically. Numbers are formatted directly into the buffer.
+ * <p>
+ * {@link #toPayload()} returns a copy of the document of its exact size, the only allocation of a document.
+ * <p>
+ * JSON is the format of the shadow documents and the default format of the other topics, see {@link PayloadFormat}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class JsonWriter extends PayloadBuffer implements PayloadWriter {
+
+	// Maximum nesting depth, one bit of the first element flags per level
+	private static final int MAX_DEPTH = 64;
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e',
+			'f' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+	// Bit n is set when no element has been written yet at depth n
+	private long firstFlags;
+	private int depth;
+	private boolean afterName;
+
+	/**
+	 * Creates a JSON writer.
+	 *
+	 * @param capacity
+	 *            the maximum size in bytes of the documents written
+	 */
+	public JsonWriter(int capacity) {
+		super(capacity);
+		reset();
+	}
+
+	/**
+	 * Discards the current document.
+	 *
+	 * @return this writer
+	 */
+	@Override
+	public JsonWriter reset() {
+		this.size = 0;
+		this.depth = 0;
+		this.firstFlags = 1;
+		this.afterName = false;
+		return this;
+	}
+
+	/**
+	 * Begins an object.
+	 *
+	 * @return this writer
+	 */
+	@Override
+	public JsonWriter beginObject() {
+		beginValue();
+		write('{');
+		push();
+		return this;
+	}
+
+	/**
+	 * Ends the current object.
+	 *
+	 * @return this writer
+	 */
+	@Override
+	public JsonWriter endObject() {
+		pop();
+		write('}');
+		return this;
+	}
+
+	/**
+	 * Begins an array.
+	 *
+	 * @return this writer
+	 */
+	@Override
+	public JsonWriter beginArray() {
+		beginValue();
+		write('[');
+		push();
+		return this;
+	}
+
+	/**
+	 * Ends the current array.
+	 *
+	 * @return this writer
+	 */
+	@Override
+	public JsonWriter endArray() {
+		pop();
+		write(']');
+		return this;
+	}
+
+	/**
+	 * Writes the name of the next member of the current object.
+	 *
+	 * @param name
+	 *            the member name
+	 * @return this writer
+	 */
+	@Override
+	public JsonWriter name(String name) {
+		beginValue();
+		writeString(name);
+		write(':');
+		this.afterName = true;
+		return this;
+	}
+
+	/**
+	 * Writes a string value.
+	 *
+	 * @param value
+	 *            the value, may be {@code null}
+	 * @return this writer
+	 */
+	@Override
+	public JsonWriter value(String value) {
+		beginValue();
+		if (value == null) {
+			write(NULL);
+		} else {
+			writeString(value);
+		}
+		return this;
+	}
+
+	/**
+	 * Writes an integer value.
+	 *
+	 * @param value
+	 *            the value
+	 * @return this writer
+	 */
+	@Override
+	public JsonWriter value(long value) {
+		beginValue();
+		writeLong(value);
+		return this;
+	}
+
+	/**
+	 * Writes a boolean value.
+	 *
+	 * @param value
+	 *            the value
+	 * @return this writer
+	 */
+	@Override
+	public JsonWriter value(boolean value) {
+		beginValue();
+		write(value ? TRUE : FALSE);
+		return this;
+	}
+
+	private void beginValue() {
+		if (this.afterName) {
+			this.afterName = false;
+			return;
+		}
+		long flag = 1L << this.depth;
+		if ((this.firstFlags & flag) != 0) {
+			this.firstFlags &= ~flag;
+		} else {
+			write(',');
+		}
+	}
+
+	private void push() {
+		int depth = this.depth + 1;
+		if (depth >= MAX_DEPTH) {
+			throw new IllegalStateException("JSON nesting too deep"); //$NON-NLS-1$
+		}
+		this.depth = depth;
+		this.firstFlags |= 1L << depth;
+	}
+
+	private void pop() {
+		if (this.depth == 0) {
+			throw new IllegalStateException("no JSON object or array to end"); //$NON-NLS-1$
+		}
+		this.depth--;
+	}
+
+	private void writeString(String value) {
+		write('"');
+		int length = value.length();
+		int i = 0;
+		while (i < length) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				write('\\');
+				write(c);
+				i++;
+			} else if (c < 0x20) {
+				write('\\');
+				write('u');
+				write('0');
+				write('0');
+				write(HEX[c >> 4]);
+				write(HEX[c & 0xf]);
+				i++;
+			} else {
+				i = writeUtf8(value, i);
+			}
+		}
+		write('"');
+	}
+
+	private void writeLong(long value) {
+		if (value == 0) {
+			write('0');
+			return;
+		}
+		// Work on the negative value so that Long.MIN_VALUE is handled
+		long remaining = value;
+		if (value < 0) {
+			write('-');
+		} else {
+			remaining = -value;
+		}
+		int digits = 0;
+		for (long v = remaining; v != 0; v /= 10) {
+			digits++;
+		}
+		int end = this.size + digits;
+		ensureCapacity(digits);
+		for (int i = end - 1; i >= this.size; i--) {
+			this.buffer[i] = (byte) ('0' - (remaining % 10));
+			remaining /= 10;
+		}
+		this.size = end;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+/**
+ * Pre-sized byte buffer shared by the {@link PayloadWriter} implementations.
+ * <p>
+ * Writing a document does not allocate anything. {@link #toPayload()} copies the document into a new byte array of its
+ * exact size, handed over to the caller: the publishers and the client may keep it after the publication returns (for
+ * example in a queue or for a retransmission), so it must not be reused for the next document.
+ */
+abstract class PayloadBuffer {
+
+	private static final char MIN_HIGH_SURROGATE = '\uD800';
+	private static final char MIN_LOW_SURROGATE = '\uDC00';
+	private static final char MAX_LOW_SURROGATE = '\uDFFF';
+	private static final int MIN_SUPPLEMENTARY_CODE_POINT = 0x10000;
+
+	/** The buffer, only the first {@link #size} bytes are meaningful. */
+	final byte[] buffer;
+	/** The number of bytes written since the last reset. */
+	int size;
+
+	PayloadBuffer(int capacity) {
+		this.buffer = new byte[capacity];
+	}
+
+	/**
+	 * Gets the maximum size of a document.
+	 *
+	 * @return the capacity in bytes of the buffer
+	 */
+	public int capacity() {
+		return this.buffer.length;
+	}
+
+	/**
+	 * Gets the size of the current document.
+	 *
+	 * @return the number of bytes written since the last reset
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Gets the internal buffer. Only the first {@link #size()} bytes are meaningful.
+	 *
+	 * @return the internal buffer
+	 */
+	public byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * Gets a copy of the current document as a byte array of its exact size.
+	 * <p>
+	 * The returned array is owned by the caller: it is the only allocation of a document.
+	 *
+	 * @return the current document
+	 */
+	public byte[] toPayload() {
+		int size = this.size;
+		byte[] payload = new byte[size];
+		System.arraycopy(this.buffer, 0, payload, 0, size);
+		return payload;
+	}
+
+	/**
+	 * Writes the UTF-8 encoding of the character at the given index of a string.
+	 *
+	 * @param value
+	 *            the string
+	 * @param index
+	 *            the index of the character
+	 * @return the index of the next character, after the low surrogate of a surrogate pair
+	 */
+	int writeUtf8(String value, int index) {
+		char c = value.charAt(index);
+		if (c < 0x80) {
+			write(c);
+		} else if (c < 0x800) {
+			write(0xc0 | (c >> 6));
+			write(0x80 | (c & 0x3f));
+		} else if (isSurrogatePair(value, index)) {
+			int codePoint = ((c - MIN_HIGH_SURROGATE) << 10) + (value.charAt(++index) - MIN_LOW_SURROGATE)
+					+ MIN_SUPPLEMENTARY_CODE_POINT;
+			write(0xf0 | (codePoint >> 18));
+			write(0x80 | ((codePoint >> 12) & 0x3f));
+			write(0x80 | ((codePoint >> 6) & 0x3f));
+			write(0x80 | (codePoint & 0x3f));
+		} else {
+			write(0xe0 | (c >> 12));
+			write(0x80 | ((c >> 6) & 0x3f));
+			write(0x80 | (c & 0x3f));
+		}
+		return index + 1;
+	}
+
+	/**
+	 * Computes the length of the UTF-8 encoding of a string, as written by {@link #writeUtf8(String, int)}.
+	 *
+	 * @param value
+	 *            the string
+	 * @return the number of bytes of the encoded string
+	 */
+	static int utf8Length(String value) {
+		int length = value.length();
+		int utf8Length = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				utf8Length++;
+			} else if (c < 0x800) {
+				utf8Length += 2;
+			} else if (isSurrogatePair(value, i)) {
+				utf8Length += 4;
+				i++;
+			} else {
+				utf8Length += 3;
+			}
+		}
+		return utf8Length;
+	}
+
+	private static boolean isSurrogatePair(String value, int index) {
+		char c = value.charAt(index);
+		if (c < MIN_HIGH_SURROGATE || c >= MIN_LOW_SURROGATE || index + 1 >= value.length()) {
+			return false;
+		}
+		char next = value.charAt(index + 1);
+		return next >= MIN_LOW_SURROGATE && next <= MAX_LOW_SURROGATE;
+	}
+
+	void write(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+		this.size += bytes.length;
+	}
+
+	void write(int b) {
+		ensureCapacity(1);
+		this.buffer[this.size++] = (byte) b;
+	}
+
+	void ensureCapacity(int length) {
+		if (this.size + length > this.buffer.length) {
+			throw new IllegalStateException("payload buffer overflow"); //$NON-NLS-1$
+		}
+	}
+}
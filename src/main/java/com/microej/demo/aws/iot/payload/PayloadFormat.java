@@ -0,0 +1,63 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+/**
+ * Encoding of the payloads published to a topic.
+ * <p>
+ * The format is chosen per topic: the shadow documents must be JSON, the telemetry can be CBOR to save bandwidth and
+ * encoding time, in which case it has to be decoded by its consumer (for example a Lambda function triggered by an
+ * IoT rule).
+ */
+public enum PayloadFormat {
+
+	/**
+	 * JSON text, see {@link JsonWriter} and {@link JsonReader}.
+	 */
+	JSON {
+		@Override
+		public PayloadWriter newWriter(int capacity) {
+			return new JsonWriter(capacity);
+		}
+
+		@Override
+		public PayloadReader newReader() {
+			return new JsonReader();
+		}
+	},
+
+	/**
+	 * CBOR binary, see {@link CborWriter} and {@link CborReader}.
+	 */
+	CBOR {
+		@Override
+		public PayloadWriter newWriter(int capacity) {
+			return new CborWriter(capacity);
+		}
+
+		@Override
+		public PayloadReader newReader() {
+			return new CborReader();
+		}
+	};
+
+	/**
+	 * Creates a writer of this format.
+	 *
+	 * @param capacity
+	 *            the maximum size in bytes of the documents written
+	 * @return the writer
+	 */
+	public abstract PayloadWriter newWriter(int capacity);
+
+	/**
+	 * Creates a reader of this format.
+	 *
+	 * @return the reader
+	 */
+	public abstract PayloadReader newReader();
+}
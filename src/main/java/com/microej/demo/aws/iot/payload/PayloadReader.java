@@ -0,0 +1,140 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+/**
+ * Pull-style reader of structured documents working directly on a raw byte array.
+ * <p>
+ * The document is read token by token with {@link #next()}. The encoding of the document depends on the
+ * implementation, see {@link PayloadFormat}.
+ */
+public interface PayloadReader {
+
+	/** The end of the document has been reached. */
+	int END_DOCUMENT = 0;
+	/** The beginning of an object. */
+	int BEGIN_OBJECT = 1;
+	/** The end of an object. */
+	int END_OBJECT = 2;
+	/** The beginning of an array. */
+	int BEGIN_ARRAY = 3;
+	/** The end of an array. */
+	int END_ARRAY = 4;
+	/** The name of an object member. */
+	int NAME = 5;
+	/** A string value. */
+	int STRING = 6;
+	/** A number value. */
+	int NUMBER = 7;
+	/** A boolean value. */
+	int BOOLEAN = 8;
+	/** A null value. */
+	int NULL = 9;
+
+	/**
+	 * Starts reading a document.
+	 *
+	 * @param data
+	 *            the encoded document
+	 * @return this reader
+	 */
+	PayloadReader reset(byte[] data);
+
+	/**
+	 * Reads the next token.
+	 *
+	 * @return the token read, one of the constants of this interface
+	 * @throws IllegalArgumentException
+	 *             if the document is malformed
+	 */
+	int next();
+
+	/**
+	 * Gets the current token.
+	 *
+	 * @return the token returned by the last call to {@link #next()}
+	 */
+	int token();
+
+	/**
+	 * Gets the nesting depth of the reader. The depth is incremented by {@link #BEGIN_OBJECT} and {@link #BEGIN_ARRAY}
+	 * tokens and decremented by {@link #END_OBJECT} and {@link #END_ARRAY} tokens.
+	 *
+	 * @return the number of objects and arrays the reader is in
+	 */
+	int depth();
+
+	/**
+	 * Skips the value of the current token: the value of the member if the reader is on a {@link #NAME}, the whole
+	 * object or array if it is on a {@link #BEGIN_OBJECT} or a {@link #BEGIN_ARRAY}. Does nothing otherwise.
+	 */
+	void skipValue();
+
+	/**
+	 * Moves to the next member of the current object. The reader must be just after a {@link #BEGIN_OBJECT} or after
+	 * a complete member value; if it is on a member name, the value of this member is skipped.
+	 *
+	 * @return {@code true} if the reader is on the name of the next member, {@code false} if the end of the object has
+	 *         been reached
+	 */
+	boolean nextMember();
+
+	/**
+	 * Moves to the member with the given name in the current object, skipping the other members. The reader must be
+	 * just after a {@link #BEGIN_OBJECT} or after a complete member value.
+	 *
+	 * @param name
+	 *            the name of the member
+	 * @return {@code true} if the reader is on the name of the member, {@code false} if the end of the object has been
+	 *         reached without finding it
+	 */
+	boolean moveToMember(String name);
+
+	/**
+	 * Checks whether the current {@link #NAME} is equal to the given name.
+	 *
+	 * @param name
+	 *            the name to compare with
+	 * @return {@code true} if the current token is a name equal to the given one, {@code false} otherwise
+	 */
+	boolean nameEquals(String name);
+
+	/**
+	 * Checks whether the current {@link #STRING} value is equal to the given string.
+	 *
+	 * @param value
+	 *            the string to compare with
+	 * @return {@code true} if the current token is a string equal to the given one, {@code false} otherwise
+	 */
+	boolean valueEquals(String value);
+
+	/**
+	 * Gets the current {@link #NUMBER} value as a long. The fractional part, if any, is ignored.
+	 *
+	 * @return the integer part of the current number
+	 * @throws IllegalStateException
+	 *             if the current token is not a number
+	 */
+	long longValue();
+
+	/**
+	 * Gets the current {@link #BOOLEAN} value.
+	 *
+	 * @return the current boolean
+	 * @throws IllegalStateException
+	 *             if the current token is not a boolean
+	 */
+	boolean booleanValue();
+
+	/**
+	 * Gets the current {@link #NAME} or {@link #STRING} as a string, or the text of any other scalar value. This
+	 * method allocates a new string.
+	 *
+	 * @return the current name or value
+	 */
+	String stringValue();
+}
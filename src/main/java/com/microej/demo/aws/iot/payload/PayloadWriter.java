@@ -0,0 +1,112 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+/**
+ * Writes structured documents (objects, arrays, strings, integers and booleans) into a pre-sized byte buffer.
+ * <p>
+ * The writer is meant to be reused: call {@link #reset()} before writing a new document, then write it with the
+ * {@code begin*}, {@code end*}, {@link #name(String)} and {@code value} methods. The encoding of the document depends
+ * on the implementation, see {@link PayloadFormat}.
+ */
+public interface PayloadWriter {
+
+	/**
+	 * Discards the current document.
+	 *
+	 * @return this writer
+	 */
+	PayloadWriter reset();
+
+	/**
+	 * Begins an object.
+	 *
+	 * @return this writer
+	 */
+	PayloadWriter beginObject();
+
+	/**
+	 * Ends the current object.
+	 *
+	 * @return this writer
+	 */
+	PayloadWriter endObject();
+
+	/**
+	 * Begins an array.
+	 *
+	 * @return this writer
+	 */
+	PayloadWriter beginArray();
+
+	/**
+	 * Ends the current array.
+	 *
+	 * @return this writer
+	 */
+	PayloadWriter endArray();
+
+	/**
+	 * Writes the name of the next member of the current object.
+	 *
+	 * @param name
+	 *            the member name
+	 * @return this writer
+	 */
+	PayloadWriter name(String name);
+
+	/**
+	 * Writes a string value.
+	 *
+	 * @param value
+	 *            the value, may be {@code null}
+	 * @return this writer
+	 */
+	PayloadWriter value(String value);
+
+	/**
+	 * Writes an integer value.
+	 *
+	 * @param value
+	 *            the value
+	 * @return this writer
+	 */
+	PayloadWriter value(long value);
+
+	/**
+	 * Writes a boolean value.
+	 *
+	 * @param value
+	 *            the value
+	 * @return this writer
+	 */
+	PayloadWriter value(boolean value);
+
+	/**
+	 * Gets the maximum size of a document.
+	 *
+	 * @return the capacity in bytes of the writer
+	 */
+	int capacity();
+
+	/**
+	 * Gets the size of the current document.
+	 *
+	 * @return the number of bytes written since the last reset
+	 */
+	int size();
+
+	/**
+	 * Gets a copy of the current document as a byte array of its exact size.
+	 * <p>
+	 * The returned array is owned by the caller and is not modified by the writer afterwards, so it may be kept after
+	 * the next document is written.
+	 *
+	 * @return the current document
+	 */
+	byte[] toPayload();
+}
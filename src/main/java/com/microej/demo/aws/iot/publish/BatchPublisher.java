@@ -0,0 +1,338 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.metrics.LatencyProbe;
+import com.microej.demo.aws.iot.payload.JsonWriter;
+import com.microej.demo.aws.iot.payload.PayloadWriter;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.Util;
+
+/**
+ * Accumulates samples into a bounded ring buffer and publishes them as a single array message, in JSON or in the
+ * format of the given {@link PayloadWriter}.
+ * <p>
+ * The buffer is flushed when it holds at least {@code flushSize} samples or when its oldest sample is older than
+ * {@code maxAge} milliseconds. When the buffer is full (for example because publishing keeps failing), the oldest
+ * sample is dropped to make room for the new one. A flush publishes the oldest samples that fit in a message and keeps
+ * the others for the next flush, so a backlog larger than a message is drained over several flushes.
+ * <p>
+ * The message is encoded with a reused writer, so that flushing only allocates the payload array handed over to the
+ * publisher.
+ * <p>
+ * The samples of a batch are taken from the buffer before it is published, and put back if publishing fails: the
+ * publication, which may wait for the publish window, the offline queue or the network, does not hold the lock of the
+ * buffer, so {@link #add(String)} never waits for it. The flushes are serialized by a lock of their own.
+ * <p>
+ * With a {@link LatencyProbe}, each sample of a batch also carries a sequence number and the send time of the batch
+ * ({@code {"message":"...","seq":12,"sent":123456789}}), so that the round trip can be measured when the batch is
+ * received back.
+ */
+@SuppressWarnings("nls")
+public class BatchPublisher {
+
+	private static final Logger LOGGER = Logger.getLogger(BatchPublisher.class.getName());
+
+	private final MessagePublisher publisher;
+	private final String topic;
+	private final int flushSize;
+	private final long maxAge;
+	private final PayloadWriter writer;
+	private final LatencyProbe probe;
+
+	// Ring buffer of samples and the platform time at which they were added
+	private final String[] samples;
+	private final long[] times;
+	private int head;
+	private int count;
+
+	// Samples of the batch being published, put back into the buffer if publishing fails, guarded by flushLock
+	private final Object flushLock = new Object();
+	private final String[] flushedSamples;
+	private final long[] flushedTimes;
+
+	private int dropped;
+	private int lastFlushCount;
+	private long totalDropped;
+
+	/**
+	 * Creates a batch publisher.
+	 *
+	 * @param publisher
+	 *            the publisher used to publish the batches
+	 * @param topic
+	 *            the topic the batches are published to
+	 * @param capacity
+	 *            the maximum number of samples kept in the buffer
+	 * @param flushSize
+	 *            the number of samples that triggers a flush
+	 * @param maxAge
+	 *            the age in milliseconds of the oldest sample that triggers a flush
+	 * @param payloadSize
+	 *            the maximum size in bytes of a batch message
+	 */
+	public BatchPublisher(MessagePublisher publisher, String topic, int capacity, int flushSize, long maxAge,
+			int payloadSize) {
+		this(publisher, topic, capacity, flushSize, maxAge, new JsonWriter(payloadSize), null);
+	}
+
+	/**
+	 * Creates a batch publisher encoding the batches with the given writer, and stamping the samples for a latency
+	 * probe.
+	 *
+	 * @param publisher
+	 *            the publisher used to publish the batches
+	 * @param topic
+	 *            the topic the batches are published to
+	 * @param capacity
+	 *            the maximum number of samples kept in the buffer
+	 * @param flushSize
+	 *            the number of samples that triggers a flush
+	 * @param maxAge
+	 *            the age in milliseconds of the oldest sample that triggers a flush
+	 * @param writer
+	 *            the writer encoding the batch messages, its capacity is the maximum size of a batch message
+	 * @param probe
+	 *            the probe giving the sequence numbers of the samples, or {@code null} not to stamp them
+	 */
+	public BatchPublisher(MessagePublisher publisher, String topic, int capacity, int flushSize, long maxAge,
+			PayloadWriter writer, LatencyProbe probe) {
+		if (capacity <= 0 || flushSize <= 0 || flushSize > capacity) {
+			throw new IllegalArgumentException();
+		}
+		this.publisher = publisher;
+		this.topic = topic;
+		this.flushSize = flushSize;
+		this.maxAge = maxAge;
+		this.samples = new String[capacity];
+		this.times = new long[capacity];
+		this.flushedSamples = new String[capacity];
+		this.flushedTimes = new long[capacity];
+		this.writer = writer;
+		this.probe = probe;
+	}
+
+	/**
+	 * Adds a sample to the buffer, dropping the oldest one if the buffer is full.
+	 *
+	 * @param sample
+	 *            the sample to add
+	 */
+	public synchronized void add(String sample) {
+		int capacity = this.samples.length;
+		if (this.count == capacity) {
+			// overwrite the oldest sample
+			this.head = (this.head + 1) % capacity;
+			this.count--;
+			this.dropped++;
+			this.totalDropped++;
+		}
+		int tail = (this.head + this.count) % capacity;
+		this.samples[tail] = sample;
+		this.times[tail] = Util.platformTimeMillis();
+		this.count++;
+	}
+
+	/**
+	 * Flushes the buffer if the size or the age threshold is reached.
+	 *
+	 * @return {@code true} if the buffer has been flushed, {@code false} otherwise
+	 * @throws AwsIotException
+	 *             on error while publishing
+	 */
+	public boolean flushIfNeeded() throws AwsIotException {
+		synchronized (this) {
+			if (this.count < this.flushSize
+					&& (this.count == 0 || Util.platformTimeMillis() - this.times[this.head] < this.maxAge)) {
+				return false;
+			}
+		}
+		flush();
+		return true;
+	}
+
+	/**
+	 * Publishes the buffered samples in a single message.
+	 * <p>
+	 * If the samples do not all fit in the payload of a message, the oldest ones that fit are published and the others
+	 * are kept for the next flush. A sample too large for a message on its own is dropped. The samples are put back in
+	 * the buffer if publishing fails so that they are sent with the next flush.
+	 *
+	 * @throws AwsIotException
+	 *             on error while publishing
+	 */
+	public void flush() throws AwsIotException {
+		synchronized (this.flushLock) {
+			LatencyProbe probe = this.probe;
+			int count;
+			byte[] payload;
+			synchronized (this) {
+				count = take();
+				if (count == 0) {
+					return;
+				}
+				payload = this.writer.toPayload();
+			}
+
+			try {
+				this.publisher.publish(this.topic, payload);
+			} catch (AwsIotException | RuntimeException e) {
+				putBack(count);
+				throw e;
+			}
+			if (probe != null) {
+				probe.onSent(count);
+			}
+
+			synchronized (this) {
+				this.lastFlushCount = count;
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.fine("Published " + count + " samples to " + this.topic + " (" + this.dropped
+							+ " dropped on overflow since last flush, " + this.count + " left for the next flush)");
+				}
+				this.dropped = 0;
+			}
+			// the published samples are no longer referenced
+			for (int i = 0; i < count; i++) {
+				this.flushedSamples[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Encodes the oldest samples that fit in a message and takes them from the buffer.
+	 *
+	 * @return the number of samples taken, encoded in the writer
+	 */
+	private int take() {
+		int count = this.count;
+		LatencyProbe probe = this.probe;
+		long sequence = probe != null ? probe.peekSequence() : 0;
+		long sent = probe != null ? LatencyProbe.now() : 0;
+		// the batch is encoded again with fewer samples until it fits
+		while (count > 0) {
+			int written = write(count, sequence, sent);
+			if (written == count) {
+				break;
+			}
+			if (written == 0) {
+				String sample = this.samples[this.head];
+				remove(1);
+				this.dropped++;
+				this.totalDropped++;
+				LOGGER.warning("Sample of " + sample.length() + " characters too large for a batch of " + this.topic
+						+ ", dropped");
+				count = this.count;
+			} else {
+				count = written;
+			}
+		}
+		int capacity = this.samples.length;
+		for (int i = 0; i < count; i++) {
+			int index = (this.head + i) % capacity;
+			this.flushedSamples[i] = this.samples[index];
+			this.flushedTimes[i] = this.times[index];
+		}
+		remove(count);
+		return count;
+	}
+
+	/**
+	 * Puts the samples of a failed flush back at the head of the buffer. If samples have been added meanwhile and the
+	 * buffer is full, the oldest samples are dropped as on overflow.
+	 */
+	private synchronized void putBack(int count) {
+		int capacity = this.samples.length;
+		for (int i = count - 1; i >= 0; i--) {
+			if (this.count == capacity) {
+				this.dropped += i + 1;
+				this.totalDropped += i + 1;
+				break;
+			}
+			this.head = (this.head - 1 + capacity) % capacity;
+			this.samples[this.head] = this.flushedSamples[i];
+			this.times[this.head] = this.flushedTimes[i];
+			this.count++;
+		}
+		for (int i = 0; i < count; i++) {
+			this.flushedSamples[i] = null;
+		}
+	}
+
+	/**
+	 * Encodes the oldest samples of the buffer into the writer.
+	 *
+	 * @param count
+	 *            the number of samples to encode
+	 * @return {@code count} if the batch has been encoded, otherwise the number of samples that have been encoded
+	 *         before the writer was full, the batch being incomplete
+	 */
+	private int write(int count, long sequence, long sent) {
+		int capacity = this.samples.length;
+		boolean stamped = this.probe != null;
+		PayloadWriter writer = this.writer.reset();
+		int written = 0;
+		try {
+			writer.beginArray();
+			for (; written < count; written++) {
+				writer.beginObject().name("message").value(this.samples[(this.head + written) % capacity]);
+				if (stamped) {
+					writer.name("seq").value(sequence + written).name("sent").value(sent);
+				}
+				writer.endObject();
+			}
+			writer.endArray();
+			return count;
+		} catch (IllegalStateException e) {
+			// payload buffer overflow, the last sample is incomplete or the array cannot be ended after it
+			return written == count ? count - 1 : written;
+		}
+	}
+
+	/**
+	 * Removes the oldest samples of the buffer.
+	 */
+	private void remove(int removed) {
+		int capacity = this.samples.length;
+		for (int i = 0; i < removed; i++) {
+			this.samples[(this.head + i) % capacity] = null;
+		}
+		this.head = (this.head + removed) % capacity;
+		this.count -= removed;
+	}
+
+	/**
+	 * Gets the number of samples contained in the last successful flush.
+	 *
+	 * @return the number of samples of the last flush
+	 */
+	public synchronized int getLastFlushCount() {
+		return this.lastFlushCount;
+	}
+
+	/**
+	 * Gets the number of samples dropped on overflow since the creation of this publisher.
+	 *
+	 * @return the number of dropped samples
+	 */
+	public synchronized long getDroppedCount() {
+		return this.totalDropped;
+	}
+
+	/**
+	 * Gets the number of samples currently buffered.
+	 *
+	 * @return the number of buffered samples
+	 */
+	public synchronized int size() {
+		return this.count;
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.connection.ConnectionSupervisor;
+import com.microej.demo.aws.iot.metrics.Counter;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.Util;
+
+/**
+ * Publisher spreading the topics over several connections (shards), to go beyond the throughput limits of a single
+ * connection.
+ * <p>
+ * The topics are assigned to the shards by consistent hashing: each shard is placed at several points (virtual nodes)
+ * of a hash ring, and a topic goes to the first shard found on the ring after the hash of the topic. All the messages
+ * of a topic go through the same connection, so they stay ordered.
+ * <p>
+ * A shard is healthy while its supervisor reports it as connected and no publication failed on it during the last
+ * quarantine duration. The topics of an unhealthy shard go to the next healthy shard on the ring, the topics of the
+ * other shards do not move. A message failing on a shard is retried on the next one, the reroutes are counted in the
+ * {@code pool.rerouted} counter of the default {@link MetricsRegistry}. While a shard is unhealthy, the order of the
+ * messages of its topics is not guaranteed.
+ */
+@SuppressWarnings("nls")
+public class ClientPool implements MessagePublisher {
+
+	private static final Logger LOGGER = Logger.getLogger(ClientPool.class.getName());
+
+	private static final Counter REROUTED = MetricsRegistry.getDefault().counter("pool.rerouted");
+
+	/**
+	 * Maximum number of shards, one bit of the mask of the shards tried per shard.
+	 */
+	public static final int MAX_SHARDS = 64;
+
+	private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	/**
+	 * A connection of the pool.
+	 */
+	private static class Shard {
+		final String id;
+		final MessagePublisher publisher;
+		final ConnectionSupervisor supervisor;
+
+		// Guarded by the pool
+		long quarantineEnd;
+		long published;
+		long failed;
+
+		Shard(String id, MessagePublisher publisher, ConnectionSupervisor supervisor) {
+			this.id = id;
+			this.publisher = publisher;
+			this.supervisor = supervisor;
+		}
+	}
+
+	private final int virtualNodes;
+	private final long quarantine;
+	private final List<Shard> shards = new ArrayList<>();
+
+	// Hash ring: sorted points and the index of the shard owning each point, rebuilt when a shard is added
+	private int[] points = new int[0];
+	private int[] owners = new int[0];
+
+	/**
+	 * Creates an empty pool, see {@link #addShard(String, MessagePublisher, ConnectionSupervisor)}.
+	 *
+	 * @param virtualNodes
+	 *            the number of points of each shard on the hash ring; more points spread the topics more evenly
+	 * @param quarantine
+	 *            the duration in milliseconds a shard is considered unhealthy after a failed publication
+	 */
+	public ClientPool(int virtualNodes, long quarantine) {
+		if (virtualNodes <= 0 || quarantine < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.virtualNodes = virtualNodes;
+		this.quarantine = quarantine;
+	}
+
+	/**
+	 * Adds a shard to the pool. Only the topics taken over by the new shard on the ring move.
+	 *
+	 * @param id
+	 *            the identifier of the shard, for example its client ID; it places the shard on the ring
+	 * @param publisher
+	 *            the publisher of the connection of the shard
+	 * @param supervisor
+	 *            the supervisor of the connection of the shard
+	 */
+	public synchronized void addShard(String id, MessagePublisher publisher, ConnectionSupervisor supervisor) {
+		List<Shard> shards = this.shards;
+		if (shards.size() == MAX_SHARDS) {
+			throw new IllegalStateException("too many shards");
+		}
+		shards.add(new Shard(id, publisher, supervisor));
+
+		int virtualNodes = this.virtualNodes;
+		int count = shards.size() * virtualNodes;
+		int[] points = new int[count];
+		int[] owners = new int[count];
+		for (int shard = 0; shard < shards.size(); shard++) {
+			String shardId = shards.get(shard).id;
+			for (int node = 0; node < virtualNodes; node++) {
+				// insertion sort, the ring is only built at startup
+				int point = hash(shardId + "#" + node);
+				int i = shard * virtualNodes + node;
+				while (i > 0 && points[i - 1] > point) {
+					points[i] = points[i - 1];
+					owners[i] = owners[i - 1];
+					i--;
+				}
+				points[i] = point;
+				owners[i] = shard;
+			}
+		}
+		this.points = points;
+		this.owners = owners;
+	}
+
+	/**
+	 * Publishes a message with the shard of its topic, or with the next healthy shards on the ring if it is not
+	 * healthy or if the publication fails.
+	 *
+	 * @throws AwsIotException
+	 *             if the message could not be published by any shard
+	 */
+	@Override
+	public void publish(String topic, byte[] payload) throws AwsIotException {
+		int hash = hash(topic);
+		long tried = 0;
+		AwsIotException error = null;
+		boolean rerouted = false;
+		for (;;) {
+			int index = selectShard(hash, tried);
+			if (index < 0) {
+				break;
+			}
+			Shard shard;
+			synchronized (this) {
+				shard = this.shards.get(index);
+			}
+			tried |= 1L << index;
+			if (rerouted) {
+				REROUTED.increment();
+			}
+			try {
+				shard.publisher.publish(topic, payload);
+				synchronized (this) {
+					shard.published++;
+				}
+				return;
+			} catch (AwsIotException e) {
+				error = e;
+				rerouted = true;
+				synchronized (this) {
+					shard.failed++;
+					shard.quarantineEnd = Util.platformTimeMillis() + this.quarantine;
+				}
+				LOGGER.info("Publishing with " + shard.id + " failed, trying the next connection. " + e.getMessage());
+			}
+		}
+		throw error != null ? error : new AwsIotException("no healthy connection");
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return the number of shards
+	 */
+	public synchronized int getShardCount() {
+		return this.shards.size();
+	}
+
+	/**
+	 * Gets the number of healthy shards.
+	 *
+	 * @return the number of shards connected and not in quarantine
+	 */
+	public synchronized int getHealthyCount() {
+		long now = Util.platformTimeMillis();
+		int healthy = 0;
+		for (Shard shard : this.shards) {
+			if (isHealthy(shard, now)) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+
+	/**
+	 * Gets the identifier of the shard of a topic, when all the shards are healthy.
+	 *
+	 * @param topic
+	 *            the topic
+	 * @return the identifier of the shard owning the topic on the ring
+	 */
+	public synchronized String getShardId(String topic) {
+		int[] points = this.points;
+		if (points.length == 0) {
+			throw new IllegalStateException();
+		}
+		return this.shards.get(this.owners[findPoint(hash(topic))]).id;
+	}
+
+	/**
+	 * Gets the number of messages published by a shard.
+	 *
+	 * @param shard
+	 *            the index of the shard, in the order they were added
+	 * @return the number of published messages
+	 */
+	public synchronized long getPublishedCount(int shard) {
+		return this.shards.get(shard).published;
+	}
+
+	/**
+	 * Gets the number of publications that failed on a shard.
+	 *
+	 * @param shard
+	 *            the index of the shard, in the order they were added
+	 * @return the number of failed publications
+	 */
+	public synchronized long getFailedCount(int shard) {
+		return this.shards.get(shard).failed;
+	}
+
+	/**
+	 * Selects the first healthy shard not tried yet, walking the ring from the point of a topic. If none is healthy,
+	 * the first shard not tried yet is selected, so that a message is not lost while the connections are coming back.
+	 *
+	 * @return the index of the shard, or -1 if all the shards have been tried
+	 */
+	private synchronized int selectShard(int hash, long tried) {
+		int[] points = this.points;
+		int[] owners = this.owners;
+		List<Shard> shards = this.shards;
+		int start = findPoint(hash);
+		long now = Util.platformTimeMillis();
+		int fallback = -1;
+		for (int i = 0; i < points.length; i++) {
+			int owner = owners[(start + i) % points.length];
+			if ((tried & (1L << owner)) != 0) {
+				continue;
+			}
+			if (isHealthy(shards.get(owner), now)) {
+				return owner;
+			}
+			if (fallback < 0) {
+				fallback = owner;
+			}
+		}
+		return fallback;
+	}
+
+	private boolean isHealthy(Shard shard, long now) {
+		return now >= shard.quarantineEnd && shard.supervisor.isConnected();
+	}
+
+	/**
+	 * Finds the first point of the ring greater than or equal to a hash, wrapping around to the first point.
+	 */
+	private int findPoint(int hash) {
+		int[] points = this.points;
+		int low = 0;
+		int high = points.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (points[middle] < hash) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low == points.length ? 0 : low;
+	}
+
+	/**
+	 * Hashes a string with 32-bit FNV-1a, followed by a final mix so that close strings land far apart on the ring.
+	 */
+	private static int hash(String string) {
+		int hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < string.length(); i++) {
+			hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+		}
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import com.microej.demo.aws.iot.connection.ConnectionSupervisor;
+import com.microej.demo.aws.iot.metrics.Counter;
+import com.microej.demo.aws.iot.metrics.Histogram;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+
+import ej.aws.iot.AwsIotClient;
+import ej.aws.iot.AwsIotException;
+import ej.bon.Util;
+
+/**
+ * Publishes messages directly with an AWS client. The errors are reported to the supervisor of the connection, so that
+ * a connection loss is detected as soon as a message cannot be published.
+ */
+@SuppressWarnings("nls")
+public class ClientPublisher implements MessagePublisher {
+
+	private static final Counter PUBLISH_COUNT = MetricsRegistry.getDefault().counter("publish.count");
+	private static final Counter PUBLISH_BYTES = MetricsRegistry.getDefault().counter("publish.bytes");
+	private static final Counter PUBLISH_ERRORS = MetricsRegistry.getDefault().counter("publish.errors");
+	// Publish duration in microseconds
+	private static final Histogram PUBLISH_LATENCY = MetricsRegistry.getDefault().histogram("publish.latency");
+
+	private static final long NANOS_PER_MICRO = 1000;
+
+	private final AwsIotClient awsClient;
+	private final ConnectionSupervisor supervisor;
+
+	/**
+	 * Creates a publisher.
+	 *
+	 * @param awsClient
+	 *            the AWS client used to publish
+	 * @param supervisor
+	 *            the supervisor of the client connection
+	 */
+	public ClientPublisher(AwsIotClient awsClient, ConnectionSupervisor supervisor) {
+		this.awsClient = awsClient;
+		this.supervisor = supervisor;
+	}
+
+	@Override
+	public void publish(String topic, byte[] payload) throws AwsIotException {
+		long start = Util.platformTimeNanos();
+		try {
+			this.awsClient.publish(topic, payload);
+		} catch (AwsIotException e) {
+			PUBLISH_ERRORS.increment();
+			this.supervisor.onError(e);
+			throw e;
+		}
+		PUBLISH_LATENCY.record((Util.platformTimeNanos() - start) / NANOS_PER_MICRO);
+		PUBLISH_COUNT.increment();
+		PUBLISH_BYTES.add(payload.length);
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import ej.aws.iot.AwsIotException;
+
+/**
+ * Publishes messages to topics.
+ */
+public interface MessagePublisher {
+
+	/**
+	 * Publishes a message.
+	 * <p>
+	 * The payload array may be reused by the caller once this method returns.
+	 *
+	 * @param topic
+	 *            the topic to publish to
+	 * @param payload
+	 *            the message payload
+	 * @throws AwsIotException
+	 *             if the message could not be published
+	 */
+	void publish(String topic, byte[] payload) throws AwsIotException;
+}
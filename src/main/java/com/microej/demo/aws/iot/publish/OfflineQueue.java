@@ -0,0 +1,334 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+import ej.aws.iot.AwsIotException;
+
+/**
+ * Bounded, append-only message log stored in a file.
+ * <p>
+ * Messages are appended at the end of the log file and replayed in order from the acknowledged offset, which is stored
+ * in a separate file. The acknowledged entries are removed by compacting the log once it is empty or once they take
+ * half of its maximum size. Delivery is at least once: a message may be replayed again if the device reboots before its
+ * acknowledgment has been stored.
+ * <p>
+ * A record is made of a marker byte, the topic length (2 bytes), the payload length (4 bytes), the topic and the
+ * payload. An incomplete record at the end of the log (for example after a power loss) is discarded when the queue is
+ * opened. The lengths read from the log are checked against the size of the log and the maximum size of the queue
+ * before anything is allocated: the log is truncated at the first invalid record, the records after it being lost.
+ */
+@SuppressWarnings("nls")
+public class OfflineQueue {
+
+	private static final Logger LOGGER = Logger.getLogger(OfflineQueue.class.getName());
+
+	private static final int RECORD_MARKER = 0xA5;
+	private static final int HEADER_SIZE = 1 + 2 + 4;
+	private static final int COPY_BUFFER_SIZE = 256;
+
+	private final File logFile;
+	private final File ackFile;
+	private final File tmpFile;
+	private final long maxSize;
+
+	// Offset of the first entry not acknowledged and size of the log
+	private long readOffset;
+	private long writeOffset;
+	private int count;
+	private long dropped;
+
+	/**
+	 * Opens a queue, restoring the entries stored by a previous run.
+	 *
+	 * @param path
+	 *            the path of the log file
+	 * @param maxSize
+	 *            the maximum size in bytes of the log file
+	 * @throws IOException
+	 *             if the log file cannot be read
+	 */
+	public OfflineQueue(String path, long maxSize) throws IOException {
+		this.logFile = new File(path);
+		this.ackFile = new File(path + ".ack");
+		this.tmpFile = new File(path + ".tmp");
+		this.maxSize = maxSize;
+		open();
+	}
+
+	/**
+	 * Appends a message at the end of the queue.
+	 *
+	 * @param topic
+	 *            the topic of the message
+	 * @param payload
+	 *            the payload of the message
+	 * @return {@code true} if the message has been stored, {@code false} if the queue is full
+	 * @throws IOException
+	 *             if the message cannot be written
+	 */
+	public synchronized boolean append(String topic, byte[] payload) throws IOException {
+		byte[] topicBytes = topic.getBytes();
+		long recordSize = HEADER_SIZE + topicBytes.length + payload.length;
+		if (this.writeOffset + recordSize > this.maxSize && this.readOffset > 0) {
+			compact(this.writeOffset);
+		}
+		if (this.writeOffset + recordSize > this.maxSize) {
+			this.dropped++;
+			return false;
+		}
+
+		try (DataOutputStream output = new DataOutputStream(new FileOutputStream(this.logFile, true))) {
+			output.writeByte(RECORD_MARKER);
+			output.writeShort(topicBytes.length);
+			output.writeInt(payload.length);
+			output.write(topicBytes);
+			output.write(payload);
+		}
+		this.writeOffset += recordSize;
+		this.count++;
+		return true;
+	}
+
+	/**
+	 * Publishes the oldest messages of the queue and removes them once published.
+	 *
+	 * @param publisher
+	 *            the publisher used to publish the messages
+	 * @param maxCount
+	 *            the maximum number of messages to publish
+	 * @return the number of messages published
+	 * @throws AwsIotException
+	 *             if a message could not be published, the messages published before are removed from the queue
+	 * @throws IOException
+	 *             if the queue cannot be read or written
+	 */
+	public synchronized int replay(MessagePublisher publisher, int maxCount) throws AwsIotException, IOException {
+		if (this.count == 0) {
+			return 0;
+		}
+		int replayed = 0;
+		boolean corrupted = false;
+		try (DataInputStream input = new DataInputStream(new FileInputStream(this.logFile))) {
+			skipFully(input, this.readOffset);
+			while (replayed < maxCount && this.count > 0) {
+				// the log may have been altered since it was opened
+				int marker = input.readUnsignedByte();
+				int topicLength = input.readUnsignedShort();
+				int payloadLength = input.readInt();
+				if (marker != RECORD_MARKER
+						|| !isValidRecord(topicLength, payloadLength, this.writeOffset - this.readOffset)) {
+					corrupted = true;
+					break;
+				}
+				byte[] topic = new byte[topicLength];
+				byte[] payload = new byte[payloadLength];
+				input.readFully(topic);
+				input.readFully(payload);
+
+				publisher.publish(new String(topic), payload);
+
+				this.readOffset += HEADER_SIZE + topicLength + payloadLength;
+				this.count--;
+				replayed++;
+			}
+		} catch (EOFException e) {
+			corrupted = true;
+		} finally {
+			if (corrupted) {
+				truncate();
+			} else if (replayed > 0) {
+				acknowledge();
+			}
+		}
+		return replayed;
+	}
+
+	/**
+	 * Gets whether the queue is empty.
+	 *
+	 * @return {@code true} if the queue contains no message, {@code false} otherwise
+	 */
+	public synchronized boolean isEmpty() {
+		return this.count == 0;
+	}
+
+	/**
+	 * Gets the number of messages in the queue.
+	 *
+	 * @return the number of messages
+	 */
+	public synchronized int size() {
+		return this.count;
+	}
+
+	/**
+	 * Gets the number of messages dropped because the queue was full, or discarded with an invalid record.
+	 *
+	 * @return the number of dropped messages
+	 */
+	public synchronized long getDroppedCount() {
+		return this.dropped;
+	}
+
+	private void open() throws IOException {
+		if (!this.logFile.exists() && this.tmpFile.exists()) {
+			// interrupted compaction: the acknowledged offset has already been reset
+			this.tmpFile.renameTo(this.logFile);
+		}
+		this.readOffset = readAcknowledgedOffset();
+		long length = this.logFile.exists() ? this.logFile.length() : 0;
+		if (this.readOffset > length) {
+			this.readOffset = 0;
+		}
+
+		// Count the valid records and find the end of the last complete one
+		long validEnd = this.readOffset;
+		int count = 0;
+		if (length > this.readOffset) {
+			try (DataInputStream input = new DataInputStream(new FileInputStream(this.logFile))) {
+				skipFully(input, this.readOffset);
+				while (validEnd + HEADER_SIZE <= length) {
+					if (input.readUnsignedByte() != RECORD_MARKER) {
+						break;
+					}
+					int topicLength = input.readUnsignedShort();
+					int payloadLength = input.readInt();
+					if (!isValidRecord(topicLength, payloadLength, length - validEnd)) {
+						break;
+					}
+					skipFully(input, (long) topicLength + payloadLength);
+					validEnd += HEADER_SIZE + topicLength + payloadLength;
+					count++;
+				}
+			}
+		}
+		this.count = count;
+		this.writeOffset = length;
+		if (validEnd < length || (count == 0 && length > 0)) {
+			LOGGER.info("Discarding " + (this.readOffset + length - validEnd)
+					+ " bytes of acknowledged or incomplete entries");
+			compact(validEnd);
+		}
+		if (count > 0) {
+			LOGGER.info("Restored " + count + " messages from the offline queue");
+		}
+	}
+
+	/**
+	 * Checks the lengths of a record read from the log.
+	 *
+	 * @param available
+	 *            the number of bytes of the log from the beginning of the record
+	 */
+	private boolean isValidRecord(int topicLength, int payloadLength, long available) {
+		long size = (long) HEADER_SIZE + topicLength + payloadLength;
+		return payloadLength >= 0 && size <= available && size <= this.maxSize;
+	}
+
+	/**
+	 * Discards the entries from the acknowledged offset, starting with an invalid record.
+	 */
+	private void truncate() throws IOException {
+		LOGGER.warning("Invalid record in the offline queue at offset " + this.readOffset + ", discarding "
+				+ this.count + " messages");
+		this.dropped += this.count;
+		this.count = 0;
+		compact(this.readOffset);
+	}
+
+	/**
+	 * Stores the acknowledged offset and compacts the log if needed.
+	 */
+	private void acknowledge() throws IOException {
+		if (this.count == 0 || this.readOffset >= this.maxSize / 2) {
+			compact(this.writeOffset);
+		} else {
+			writeAcknowledgedOffset(this.readOffset);
+		}
+	}
+
+	/**
+	 * Rewrites the log with the entries between the acknowledged offset and the given end.
+	 */
+	private void compact(long end) throws IOException {
+		File logFile = this.logFile;
+		File tmpFile = this.tmpFile;
+		long remaining = end - this.readOffset;
+		if (remaining > 0) {
+			try (InputStream input = new FileInputStream(logFile);
+					OutputStream output = new FileOutputStream(tmpFile)) {
+				skipFully(input, this.readOffset);
+				byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				while (remaining > 0) {
+					int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read < 0) {
+						throw new EOFException();
+					}
+					output.write(buffer, 0, read);
+					remaining -= read;
+				}
+			}
+		} else if (tmpFile.exists()) {
+			tmpFile.delete();
+		}
+		// Reset the offset first: an interruption then leads to duplicates rather than to lost messages
+		writeAcknowledgedOffset(0);
+		if (logFile.exists() && !logFile.delete()) {
+			throw new IOException("cannot delete " + logFile.getPath());
+		}
+		if (end > this.readOffset && !tmpFile.renameTo(logFile)) {
+			throw new IOException("cannot rename " + tmpFile.getPath());
+		}
+		this.writeOffset = end - this.readOffset;
+		this.readOffset = 0;
+	}
+
+	private long readAcknowledgedOffset() {
+		if (!this.ackFile.exists()) {
+			return 0;
+		}
+		try (DataInputStream input = new DataInputStream(new FileInputStream(this.ackFile))) {
+			long offset = input.readLong();
+			// the offset is followed by its complement to detect a partial write
+			return input.readLong() == ~offset && offset >= 0 ? offset : 0;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private void writeAcknowledgedOffset(long offset) throws IOException {
+		try (DataOutputStream output = new DataOutputStream(new FileOutputStream(this.ackFile))) {
+			output.writeLong(offset);
+			output.writeLong(~offset);
+		}
+	}
+
+	private static void skipFully(InputStream input, long length) throws IOException {
+		long remaining = length;
+		while (remaining > 0) {
+			long skipped = input.skip(remaining);
+			if (skipped <= 0) {
+				if (input.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import ej.aws.iot.AwsIotException;
+
+/**
+ * Notified of the completion of the messages published through a {@link PublishWindow}.
+ * <p>
+ * The methods are called by the sender threads of the window, once the slot of the message has been released.
+ */
+public interface PublishCallback {
+
+	/**
+	 * Called when a message has been published, that is when the client has returned from publishing it.
+	 *
+	 * @param topic
+	 *            the topic of the message
+	 * @param payload
+	 *            the payload of the message
+	 */
+	void onPublished(String topic, byte[] payload);
+
+	/**
+	 * Called when a message could not be published.
+	 *
+	 * @param topic
+	 *            the topic of the message
+	 * @param payload
+	 *            the payload of the message, owned by the callback from now on
+	 * @param error
+	 *            the error raised by the client
+	 */
+	void onFailed(String topic, byte[] payload, AwsIotException error);
+}
@@ -0,0 +1,279 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.metrics.Counter;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.Util;
+
+/**
+ * Publisher keeping up to a fixed number of messages in flight, so that the publications are pipelined instead of
+ * waiting for the acknowledgment of each message before sending the next one.
+ * <p>
+ * The publish method of the AWS client is blocking and does not expose the acknowledgments, so the window runs one
+ * sender thread per slot: each thread publishes one message at a time with the underlying publisher, and the window
+ * holds at most {@code size} messages queued or being published. {@link #publish(String, byte[])} copies the message
+ * into the window and returns immediately while a slot is free; when the window is full, the caller waits for a slot
+ * at most {@code throttleTimeout} milliseconds, then the publication fails. The memory used is bounded by the size of
+ * the window.
+ * <p>
+ * The completion of each message is notified to its {@link PublishCallback}. With more than one slot, the messages may
+ * complete out of order.
+ */
+@SuppressWarnings("nls")
+public class PublishWindow implements MessagePublisher {
+
+	private static final Logger LOGGER = Logger.getLogger(PublishWindow.class.getName());
+
+	private static final Counter THROTTLED = MetricsRegistry.getDefault().counter("publish.throttled");
+
+	/**
+	 * A message in the window.
+	 */
+	private static class Entry {
+		final String topic;
+		final byte[] payload;
+		final PublishCallback callback;
+
+		Entry(String topic, byte[] payload, PublishCallback callback) {
+			this.topic = topic;
+			this.payload = payload;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * A sender thread, publishing the messages of the window one at a time.
+	 */
+	private class Sender implements Runnable {
+		@Override
+		public void run() {
+			MessagePublisher publisher = PublishWindow.this.publisher;
+			try {
+				while (true) {
+					Entry entry = take();
+					AwsIotException error = null;
+					try {
+						publisher.publish(entry.topic, entry.payload);
+					} catch (AwsIotException e) {
+						error = e;
+					}
+					complete(entry, error);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private final MessagePublisher publisher;
+	private final long throttleTimeout;
+	private PublishCallback callback;
+
+	// Ring buffer of the messages waiting for a sender
+	private final Entry[] pending;
+	private int head;
+	private int count;
+
+	// Messages waiting for a sender or being published
+	private int inFlight;
+	private long published;
+	private long failed;
+
+	private Thread[] threads;
+
+	/**
+	 * Creates a publish window. Call {@link #start()} to start its sender threads.
+	 *
+	 * @param publisher
+	 *            the publisher used by the sender threads
+	 * @param size
+	 *            the maximum number of messages in flight
+	 * @param throttleTimeout
+	 *            the maximum time in milliseconds a caller waits for a free slot when the window is full
+	 */
+	public PublishWindow(MessagePublisher publisher, int size, long throttleTimeout) {
+		if (size <= 0 || throttleTimeout < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.publisher = publisher;
+		this.throttleTimeout = throttleTimeout;
+		this.pending = new Entry[size];
+	}
+
+	/**
+	 * Sets the callback notified of the completion of the messages published with {@link #publish(String, byte[])}.
+	 *
+	 * @param callback
+	 *            the callback, or {@code null} to only log the failures
+	 */
+	public synchronized void setCallback(PublishCallback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Starts the sender threads.
+	 */
+	public synchronized void start() {
+		if (this.threads != null) {
+			return;
+		}
+		Thread[] threads = new Thread[this.pending.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Sender(), "aws-publish-" + i);
+			threads[i].start();
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Stops the sender threads. The messages waiting for a sender are not published.
+	 */
+	public synchronized void stop() {
+		Thread[] threads = this.threads;
+		if (threads != null) {
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+			this.threads = null;
+		}
+		// wake up the callers waiting for a slot
+		notifyAll();
+	}
+
+	/**
+	 * Adds a message to the window, its completion is notified to the callback of the window.
+	 *
+	 * @throws AwsIotException
+	 *             if the window is stopped, or if it stayed full during the throttle timeout
+	 */
+	@Override
+	public void publish(String topic, byte[] payload) throws AwsIotException {
+		PublishCallback callback;
+		synchronized (this) {
+			callback = this.callback;
+		}
+		publish(topic, payload, callback);
+	}
+
+	/**
+	 * Adds a message to the window, waiting for a free slot if the window is full.
+	 *
+	 * @param topic
+	 *            the topic to publish to
+	 * @param payload
+	 *            the message payload, copied so that the array may be reused once this method returns
+	 * @param callback
+	 *            the callback notified of the completion of the message, or {@code null} to only log a failure
+	 * @throws AwsIotException
+	 *             if the window is stopped, or if it stayed full during the throttle timeout
+	 */
+	public void publish(String topic, byte[] payload, PublishCallback callback) throws AwsIotException {
+		byte[] copy = new byte[payload.length];
+		System.arraycopy(payload, 0, copy, 0, payload.length);
+		Entry entry = new Entry(topic, copy, callback);
+
+		synchronized (this) {
+			Entry[] pending = this.pending;
+			if (this.inFlight == pending.length && this.threads != null) {
+				THROTTLED.increment();
+				long deadline = Util.platformTimeMillis() + this.throttleTimeout;
+				try {
+					while (this.inFlight == pending.length && this.threads != null) {
+						long remaining = deadline - Util.platformTimeMillis();
+						if (remaining <= 0) {
+							throw new AwsIotException("publish window full");
+						}
+						wait(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new AwsIotException(e);
+				}
+			}
+			if (this.threads == null) {
+				throw new AwsIotException("publish window stopped");
+			}
+			pending[(this.head + this.count) % pending.length] = entry;
+			this.count++;
+			this.inFlight++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Gets the number of messages waiting for a sender or being published.
+	 *
+	 * @return the number of messages in flight
+	 */
+	public synchronized int getInFlightCount() {
+		return this.inFlight;
+	}
+
+	/**
+	 * Gets the number of messages published.
+	 *
+	 * @return the number of published messages
+	 */
+	public synchronized long getPublishedCount() {
+		return this.published;
+	}
+
+	/**
+	 * Gets the number of messages that could not be published.
+	 *
+	 * @return the number of failed messages
+	 */
+	public synchronized long getFailedCount() {
+		return this.failed;
+	}
+
+	private synchronized Entry take() throws InterruptedException {
+		while (this.count == 0) {
+			wait();
+		}
+		Entry[] pending = this.pending;
+		Entry entry = pending[this.head];
+		pending[this.head] = null;
+		this.head = (this.head + 1) % pending.length;
+		this.count--;
+		return entry;
+	}
+
+	private void complete(Entry entry, AwsIotException error) {
+		synchronized (this) {
+			this.inFlight--;
+			if (error == null) {
+				this.published++;
+			} else {
+				this.failed++;
+			}
+			// wake up the callers waiting for a slot
+			notifyAll();
+		}
+		// the callback is called out of the lock, it may publish or wait on other locks
+		PublishCallback callback = entry.callback;
+		try {
+			if (error == null) {
+				if (callback != null) {
+					callback.onPublished(entry.topic, entry.payload);
+				}
+			} else if (callback != null) {
+				callback.onFailed(entry.topic, entry.payload, error);
+			} else {
+				LOGGER.info("Message to " + entry.topic + " not published. " + error.getMessage());
+			}
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Error in the completion callback of a message to " + entry.topic, e);
+		}
+	}
+}
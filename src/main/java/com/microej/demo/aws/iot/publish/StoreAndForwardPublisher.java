@@ -0,0 +1,140 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ej.aws.iot.AwsIotException;
+
+/**
+ * Publisher that stores the messages in an {@link OfflineQueue} when they cannot be published, and replays them in
+ * order later on.
+ * <p>
+ * As long as the queue is not empty, the new messages are appended to it so that the publication order is kept.
+ * {@link #replay()} is expected to be called periodically: it publishes a bounded number of queued messages, so that
+ * the link is not flooded when the connection comes back.
+ * <p>
+ * When the underlying publisher is asynchronous (see {@link PublishWindow}), this publisher is also its
+ * {@link PublishCallback}: the messages that fail after having been accepted are stored in the queue as well, after the
+ * newer messages.
+ */
+@SuppressWarnings("nls")
+public class StoreAndForwardPublisher implements MessagePublisher, PublishCallback {
+
+	private static final Logger LOGGER = Logger.getLogger(StoreAndForwardPublisher.class.getName());
+
+	private final MessagePublisher publisher;
+	private final OfflineQueue queue;
+	private final int replayCount;
+
+	/**
+	 * Creates a store and forward publisher.
+	 *
+	 * @param publisher
+	 *            the publisher used to publish the messages
+	 * @param queue
+	 *            the queue the messages are stored in while they cannot be published
+	 * @param replayCount
+	 *            the maximum number of queued messages published by a call to {@link #replay()}
+	 */
+	public StoreAndForwardPublisher(MessagePublisher publisher, OfflineQueue queue, int replayCount) {
+		this.publisher = publisher;
+		this.queue = queue;
+		this.replayCount = replayCount;
+	}
+
+	/**
+	 * Publishes a message, or stores it if it cannot be published or if older messages are waiting to be replayed.
+	 *
+	 * @throws AwsIotException
+	 *             if the message could neither be published nor stored
+	 */
+	@Override
+	public synchronized void publish(String topic, byte[] payload) throws AwsIotException {
+		OfflineQueue queue = this.queue;
+		if (queue.isEmpty()) {
+			try {
+				this.publisher.publish(topic, payload);
+				return;
+			} catch (AwsIotException e) {
+				if (!store(topic, payload)) {
+					throw e;
+				}
+				LOGGER.info("Publishing failed, the message is stored until the connection is back. " + e.getMessage());
+			}
+		} else if (!store(topic, payload)) {
+			LOGGER.warning("Offline queue full, message to " + topic + " dropped");
+		}
+	}
+
+	@Override
+	public void onPublished(String topic, byte[] payload) {
+		// nothing to do
+	}
+
+	/**
+	 * Stores a message that failed asynchronously.
+	 * <p>
+	 * Not synchronized on this publisher: a caller of {@link #publish(String, byte[])} may hold the lock while waiting
+	 * for the asynchronous publisher, the queue has its own lock.
+	 */
+	@Override
+	public void onFailed(String topic, byte[] payload, AwsIotException error) {
+		if (store(topic, payload)) {
+			LOGGER.info("Publishing failed, the message is stored until the connection is back. " + error.getMessage());
+		} else {
+			LOGGER.warning("Offline queue full, message to " + topic + " dropped");
+		}
+	}
+
+	/**
+	 * Publishes some of the queued messages, if any.
+	 *
+	 * @return the number of messages published
+	 */
+	public synchronized int replay() {
+		OfflineQueue queue = this.queue;
+		if (queue.isEmpty()) {
+			return 0;
+		}
+		int replayed = 0;
+		try {
+			replayed = queue.replay(this.publisher, this.replayCount);
+		} catch (AwsIotException e) {
+			// still disconnected, retry later
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Replay failed, " + queue.size() + " messages left. " + e.getMessage());
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Offline queue error", e);
+		}
+		if (replayed > 0) {
+			LOGGER.info("Replayed " + replayed + " stored messages, " + queue.size() + " left");
+		}
+		return replayed;
+	}
+
+	/**
+	 * Gets the queue the messages are stored in.
+	 *
+	 * @return the offline queue
+	 */
+	public OfflineQueue getQueue() {
+		return this.queue;
+	}
+
+	private boolean store(String topic, byte[] payload) {
+		try {
+			return this.queue.append(topic, payload);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Offline queue error", e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.schedule;
+
+import com.microej.demo.aws.iot.metrics.Counter;
+import com.microej.demo.aws.iot.metrics.Gauge;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+import com.microej.demo.aws.iot.publish.BatchPublisher;
+
+import ej.bon.Util;
+
+/**
+ * Stream sampling a value and adding it to a batch only when it has changed.
+ * <p>
+ * A sample is sent when the value differs from the last value sent by more than the deadband, or when no sample has
+ * been sent for the maximum silence duration, so that the consumer can tell a steady value from a silent device. The
+ * samples look like {@code name=value}. The samples not sent are counted in the {@code stream.suppressed} counter of
+ * the default {@link MetricsRegistry}.
+ */
+@SuppressWarnings("nls")
+public class DeadbandStream implements Runnable {
+
+	private static final Counter SUPPRESSED = MetricsRegistry.getDefault().counter("stream.suppressed");
+
+	private final String name;
+	private final Gauge source;
+	private final long deadband;
+	private final long maxSilence;
+	private final BatchPublisher batchPublisher;
+
+	private boolean sent;
+	private long lastValue;
+	private long lastSendTime;
+
+	/**
+	 * Creates a deadband stream.
+	 *
+	 * @param name
+	 *            the name of the stream, the prefix of its samples
+	 * @param source
+	 *            the source of the values
+	 * @param deadband
+	 *            the maximum difference with the last value sent for which a value is not sent, 0 to send every
+	 *            change
+	 * @param maxSilence
+	 *            the maximum duration in milliseconds without sending a sample
+	 * @param batchPublisher
+	 *            the batch the samples are added to
+	 */
+	public DeadbandStream(String name, Gauge source, long deadband, long maxSilence, BatchPublisher batchPublisher) {
+		if (deadband < 0 || maxSilence <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.name = name;
+		this.source = source;
+		this.deadband = deadband;
+		this.maxSilence = maxSilence;
+		this.batchPublisher = batchPublisher;
+	}
+
+	@Override
+	public void run() {
+		long value = this.source.getValue();
+		long now = Util.platformTimeMillis();
+		if (this.sent && Math.abs(value - this.lastValue) <= this.deadband
+				&& now - this.lastSendTime < this.maxSilence) {
+			SUPPRESSED.increment();
+			return;
+		}
+		this.sent = true;
+		this.lastValue = value;
+		this.lastSendTime = now;
+		// published by the flush task of the batch, the stream must not block
+		this.batchPublisher.add(this.name + "=" + value);
+	}
+}
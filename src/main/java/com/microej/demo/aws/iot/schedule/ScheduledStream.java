@@ -0,0 +1,66 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.schedule;
+
+/**
+ * A periodic task scheduled on a {@link TimerWheel}.
+ * <p>
+ * The fields are guarded by the lock of the wheel.
+ */
+public class ScheduledStream {
+
+	final TimerWheel wheel;
+	final Runnable task;
+	final long periodTicks;
+
+	// Tick of the next run, and next stream of the same wheel slot
+	long deadline;
+	ScheduledStream next;
+
+	boolean cancelled;
+	long runCount;
+	long overrunCount;
+
+	ScheduledStream(TimerWheel wheel, Runnable task, long periodTicks, long deadline) {
+		this.wheel = wheel;
+		this.task = task;
+		this.periodTicks = periodTicks;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Cancels the stream. If it is running, the current run completes but it does not run anymore.
+	 */
+	public void cancel() {
+		synchronized (this.wheel) {
+			this.cancelled = true;
+		}
+	}
+
+	/**
+	 * Gets the number of times the stream has run.
+	 *
+	 * @return the number of runs
+	 */
+	public long getRunCount() {
+		synchronized (this.wheel) {
+			return this.runCount;
+		}
+	}
+
+	/**
+	 * Gets the number of runs skipped because the previous run, or the runs of the other streams, took longer than the
+	 * period.
+	 *
+	 * @return the number of skipped runs
+	 */
+	public long getOverrunCount() {
+		synchronized (this.wheel) {
+			return this.overrunCount;
+		}
+	}
+}
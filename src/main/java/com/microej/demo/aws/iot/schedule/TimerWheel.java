@@ -0,0 +1,218 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ej.bon.Util;
+
+/**
+ * Single-thread scheduler of periodic streams, based on a hashed timer wheel.
+ * <p>
+ * Time is divided in ticks of a fixed duration. Each stream is kept in the slot of the wheel of its next run tick
+ * (modulo the number of slots), so that a tick only looks at the streams of one slot, whatever the number of streams.
+ * A stream runs at the tick of its phase offset, then every period; the periods and the phases are rounded to the
+ * tick. Giving the streams different phases spreads their runs instead of aligning them on the same ticks.
+ * <p>
+ * The next run of a stream is computed from its previous deadline, so that the periods do not drift. If a run is
+ * late by more than a period (for example because another stream took too long), the missed runs are skipped and
+ * counted as overruns.
+ */
+@SuppressWarnings("nls")
+public class TimerWheel implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(TimerWheel.class.getName());
+
+	private final long tickDuration;
+	private final ScheduledStream[] slots;
+	private final int mask;
+
+	// Streams due at the current tick, reused from tick to tick
+	private final List<ScheduledStream> due = new ArrayList<>();
+
+	private long startTime;
+	private long tick;
+	private int size;
+	private Thread thread;
+
+	/**
+	 * Creates a timer wheel. Call {@link #start()} to start its thread.
+	 *
+	 * @param tickDuration
+	 *            the duration of a tick in milliseconds, the resolution of the periods
+	 * @param slotCount
+	 *            the number of slots of the wheel, rounded up to a power of two; periods up to
+	 *            {@code slotCount * tickDuration} are handled without looking at a stream more than once per run
+	 */
+	public TimerWheel(long tickDuration, int slotCount) {
+		if (tickDuration <= 0 || slotCount <= 0) {
+			throw new IllegalArgumentException();
+		}
+		int slots = 1;
+		while (slots < slotCount) {
+			slots <<= 1;
+		}
+		this.tickDuration = tickDuration;
+		this.slots = new ScheduledStream[slots];
+		this.mask = slots - 1;
+		this.startTime = Util.platformTimeMillis();
+	}
+
+	/**
+	 * Schedules a periodic stream.
+	 *
+	 * @param task
+	 *            the task run by the stream, in the thread of the wheel; it must not block
+	 * @param period
+	 *            the period in milliseconds
+	 * @param phase
+	 *            the delay in milliseconds before the first run
+	 * @return the scheduled stream
+	 */
+	public synchronized ScheduledStream schedule(Runnable task, long period, long phase) {
+		if (period <= 0 || phase < 0) {
+			throw new IllegalArgumentException();
+		}
+		long periodTicks = Math.max(1, (period + this.tickDuration / 2) / this.tickDuration);
+		long phaseTicks = Math.max(1, (phase + this.tickDuration / 2) / this.tickDuration);
+		ScheduledStream stream = new ScheduledStream(this, task, periodTicks, this.tick + phaseTicks);
+		insert(stream);
+		this.size++;
+		return stream;
+	}
+
+	/**
+	 * Gets the number of scheduled streams.
+	 *
+	 * @return the number of streams
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * Starts the thread of the wheel.
+	 */
+	public synchronized void start() {
+		if (this.thread != null) {
+			return;
+		}
+		// the ticks are counted from now on, the phases of the streams already scheduled are kept
+		this.startTime = Util.platformTimeMillis() - this.tick * this.tickDuration;
+		Thread thread = new Thread(this, "aws-scheduler");
+		this.thread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stops the thread of the wheel. The streams are kept and run again if the wheel is restarted.
+	 */
+	public synchronized void stop() {
+		Thread thread = this.thread;
+		if (thread != null) {
+			thread.interrupt();
+			this.thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		List<ScheduledStream> due = this.due;
+		try {
+			while (true) {
+				long tick;
+				synchronized (this) {
+					if (this.thread != Thread.currentThread()) {
+						return;
+					}
+					// wait for the end of the current tick
+					long delay;
+					while ((delay = this.startTime + (this.tick + 1) * this.tickDuration
+							- Util.platformTimeMillis()) > 0) {
+						wait(delay);
+					}
+					tick = ++this.tick;
+					collect(tick, due);
+				}
+				for (int i = 0; i < due.size(); i++) {
+					ScheduledStream stream = due.get(i);
+					try {
+						stream.task.run();
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Error in a scheduled stream", e);
+					}
+				}
+				synchronized (this) {
+					reschedule(due);
+				}
+				due.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Removes the streams due at a tick from their slot, and the cancelled ones.
+	 */
+	private void collect(long tick, List<ScheduledStream> due) {
+		int slot = (int) (tick & this.mask);
+		ScheduledStream previous = null;
+		ScheduledStream stream = this.slots[slot];
+		while (stream != null) {
+			ScheduledStream next = stream.next;
+			if (stream.cancelled || stream.deadline <= tick) {
+				if (previous == null) {
+					this.slots[slot] = next;
+				} else {
+					previous.next = next;
+				}
+				stream.next = null;
+				if (stream.cancelled) {
+					this.size--;
+				} else {
+					due.add(stream);
+				}
+			} else {
+				// due in a later round of the wheel
+				previous = stream;
+			}
+			stream = next;
+		}
+	}
+
+	private void reschedule(List<ScheduledStream> due) {
+		// the tick of the current time, ahead of the processed tick if the runs were late
+		long tick = Math.max(this.tick, (Util.platformTimeMillis() - this.startTime) / this.tickDuration);
+		for (int i = 0; i < due.size(); i++) {
+			ScheduledStream stream = due.get(i);
+			stream.runCount++;
+			if (stream.cancelled) {
+				this.size--;
+				continue;
+			}
+			long deadline = stream.deadline + stream.periodTicks;
+			if (deadline <= tick) {
+				// late by more than a period, skip the missed runs and keep the phase
+				long missed = (tick - deadline) / stream.periodTicks + 1;
+				stream.overrunCount += missed;
+				deadline += missed * stream.periodTicks;
+			}
+			stream.deadline = deadline;
+			insert(stream);
+		}
+	}
+
+	private void insert(ScheduledStream stream) {
+		int slot = (int) (stream.deadline & this.mask);
+		stream.next = this.slots[slot];
+		this.slots[slot] = stream;
+	}
+}
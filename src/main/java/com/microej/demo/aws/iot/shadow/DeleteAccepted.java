@@ -8,23 +8,47 @@ package com.microej.demo.aws.iot.shadow;
 
 import java.util.logging.Logger;
 
+import com.microej.demo.aws.iot.payload.JsonReader;
+
 import ej.aws.iot.AwsIotMessage;
 import ej.aws.iot.AwsIotMessageCallback;
 
 /**
  * Executed when a shadow is deleted successfully.
- *
+ * <p>
+ * The deleted shadow no longer holds the reported state: the cache is invalidated and every field is reported again,
+ * without version, which creates the shadow again. The versions of the new shadow follow those of the deleted one.
  */
 @SuppressWarnings("nls")
 public class DeleteAccepted implements AwsIotMessageCallback {
 
 	private static final Logger LOGGER = Logger.getLogger(DeleteAccepted.class.getName());
 
+	private final JsonReader reader = new JsonReader();
+	private final ShadowResponse response = new ShadowResponse();
+	private final DeltaProcessor deltaProcessor;
+	private final ShadowClient client;
+
+	/**
+	 * Creates the callback.
+	 *
+	 * @param deltaProcessor
+	 *            the delta processor of the shadow, reset by the deletion
+	 * @param client
+	 *            the client of the shadow, whose cache is reported again
+	 */
+	public DeleteAccepted(DeltaProcessor deltaProcessor, ShadowClient client) {
+		this.deltaProcessor = deltaProcessor;
+		this.client = client;
+	}
+
 	@Override
 	public void onMessageReceived(AwsIotMessage message) {
-
-		LOGGER.info("Message received on topic='" + message.getTopic() + ", payload='"
-				+ new String(message.getPayload()) + "'");
+		this.response.read(this.reader.reset(message.getPayload()));
+		LOGGER.info("Shadow deleted on topic='" + message.getTopic() + "', " + this.response);
+		this.deltaProcessor.reset();
+		this.client.getCache().invalidate();
+		this.client.flush();
 	}
 
 }
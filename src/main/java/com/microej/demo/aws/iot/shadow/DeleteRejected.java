@@ -8,6 +8,8 @@ package com.microej.demo.aws.iot.shadow;
 
 import java.util.logging.Logger;
 
+import com.microej.demo.aws.iot.payload.JsonReader;
+
 import ej.aws.iot.AwsIotMessage;
 import ej.aws.iot.AwsIotMessageCallback;
 
@@ -19,12 +21,13 @@ public class DeleteRejected implements AwsIotMessageCallback {
 
 	private static final Logger LOGGER = Logger.getLogger(DeleteRejected.class.getName());
 
+	private final JsonReader reader = new JsonReader();
+	private final ShadowResponse response = new ShadowResponse();
+
 	@Override
 	public void onMessageReceived(AwsIotMessage message) {
-
-		LOGGER.info("Message received on topic='" + message.getTopic() + ", payload='"
-				+ new String(message.getPayload()) + "'");
-
+		this.response.read(this.reader.reset(message.getPayload()));
+		LOGGER.info("Shadow delete rejected on topic='" + message.getTopic() + "', " + this.response);
 	}
 
 }
@@ -0,0 +1,273 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.shadow;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.metrics.Counter;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+import com.microej.demo.aws.iot.payload.JsonReader;
+
+import ej.aws.iot.AwsIotMessage;
+import ej.aws.iot.AwsIotMessageCallback;
+
+/**
+ * Applies the desired state changes of the shadow, received from both the {@code update/delta} and the
+ * {@code update/documents} messages.
+ * <p>
+ * The shadow service sends both messages for the same update, with the same version, and they may be handled out of
+ * order since they are received on different topics. The processor keeps the version of the last message applied and
+ * only applies a newer one: the other message of the same update is dropped as a duplicate, an older message as stale.
+ * The version is read first, skipping the rest of the payload without allocating, so that a dropped message costs a
+ * single scan. The applied and dropped messages are counted in the {@code shadow.delta.applied},
+ * {@code shadow.delta.duplicated} and {@code shadow.delta.stale} counters of the default {@link MetricsRegistry}.
+ * <p>
+ * The changes of a delta message are the members of its {@code state}. The changes of a documents message are the
+ * members of {@code current.state.desired} whose value differs from the one in {@code current.state.reported}, that is
+ * the content of the delta of the same version; object and array values are always considered as changed. A documents
+ * message without changes, sent for an update of the reported state only, is not counted as applied but its version
+ * is.
+ * <p>
+ * The version is not given to the {@link ShadowCache}: a delta may be received before the {@code update/accepted}
+ * message of an update still counted as in flight, the cache takes its version from the latter only.
+ * <p>
+ * The deletion of the shadow resets the processor, see {@link #reset()}. AWS IoT does not restart the versions of a
+ * deleted shadow, the messages of the shadow created again have higher versions anyway: the reset only forgets the
+ * state of the deleted shadow.
+ */
+@SuppressWarnings("nls")
+public class DeltaProcessor implements AwsIotMessageCallback {
+
+	private static final Logger LOGGER = Logger.getLogger(DeltaProcessor.class.getName());
+
+	private static final String DOCUMENTS_TOPIC_SUFFIX = "/documents";
+
+	// Maximum number of desired and reported members compared in a documents message, the next desired members are
+	// considered as changed
+	private static final int MAX_MEMBERS = 32;
+
+	/**
+	 * Raw members of an object, located in the payload.
+	 */
+	private static class Members {
+		final int[] nameOffsets = new int[MAX_MEMBERS];
+		final int[] nameLengths = new int[MAX_MEMBERS];
+		final int[] valueTokens = new int[MAX_MEMBERS];
+		final int[] valueOffsets = new int[MAX_MEMBERS];
+		final int[] valueLengths = new int[MAX_MEMBERS];
+		int count;
+	}
+
+	private final JsonReader reader = new JsonReader();
+	private final Members desired = new Members();
+	private final Members reported = new Members();
+
+	private final Counter appliedCounter;
+	private final Counter duplicatedCounter;
+	private final Counter staleCounter;
+
+	private long lastVersion = ShadowResponse.NONE;
+
+	/**
+	 * Creates a delta processor.
+	 */
+	public DeltaProcessor() {
+		MetricsRegistry registry = MetricsRegistry.getDefault();
+		this.appliedCounter = registry.counter("shadow.delta.applied");
+		this.duplicatedCounter = registry.counter("shadow.delta.duplicated");
+		this.staleCounter = registry.counter("shadow.delta.stale");
+	}
+
+	/**
+	 * Forgets the version of the last message applied, for example once the shadow is deleted.
+	 */
+	public synchronized void reset() {
+		this.lastVersion = ShadowResponse.NONE;
+	}
+
+	/**
+	 * Gets the version of the last message applied.
+	 *
+	 * @return the version or a negative value if none has been applied
+	 */
+	public synchronized long getLastVersion() {
+		return this.lastVersion;
+	}
+
+	/**
+	 * Gets the number of messages dropped, duplicated or stale.
+	 *
+	 * @return the number of suppressed messages
+	 */
+	public long getSuppressedCount() {
+		return this.duplicatedCounter.getValue() + this.staleCounter.getValue();
+	}
+
+	@Override
+	public synchronized void onMessageReceived(AwsIotMessage message) {
+		String topic = message.getTopic();
+		byte[] payload = message.getPayload();
+		boolean documents = topic.endsWith(DOCUMENTS_TOPIC_SUFFIX);
+		JsonReader reader = this.reader;
+
+		long version = readVersion(reader.reset(payload), documents);
+		if (version != ShadowResponse.NONE) {
+			long lastVersion = this.lastVersion;
+			if (version <= lastVersion) {
+				(version == lastVersion ? this.duplicatedCounter : this.staleCounter).increment();
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.fine("Shadow delta dropped on topic='" + topic + "', version=" + version + " (last applied "
+							+ lastVersion + ")");
+				}
+				return;
+			}
+			this.lastVersion = version;
+		}
+
+		StringBuilder changes = new StringBuilder();
+		reader.reset(payload);
+		if (reader.next() == JsonReader.BEGIN_OBJECT) {
+			if (documents) {
+				// {"previous":{...},"current":{"state":{"desired":{...},"reported":{...}},"version":n},...}
+				if (reader.moveToMember("current") && reader.next() == JsonReader.BEGIN_OBJECT
+						&& reader.moveToMember("state") && reader.next() == JsonReader.BEGIN_OBJECT) {
+					appendChangedMembers(reader, payload, changes);
+				}
+			} else if (reader.moveToMember("state") && reader.next() == JsonReader.BEGIN_OBJECT) {
+				// {"version":n,"state":{...},...}
+				appendMemberNames(reader, changes);
+			}
+		}
+		if (changes.length() == 0) {
+			return;
+		}
+		this.appliedCounter.increment();
+		LOGGER.info("Shadow delta on topic='" + topic + "', version=" + version + ", desired=[" + changes + "]");
+	}
+
+	/**
+	 * Reads the version of a delta or documents message, skipping the other members.
+	 *
+	 * @return the version or {@link ShadowResponse#NONE} if there is none
+	 */
+	private static long readVersion(JsonReader reader, boolean documents) {
+		if (reader.next() != JsonReader.BEGIN_OBJECT) {
+			return ShadowResponse.NONE;
+		}
+		if (documents && !(reader.moveToMember("current") && reader.next() == JsonReader.BEGIN_OBJECT)) {
+			return ShadowResponse.NONE;
+		}
+		return reader.moveToMember("version") ? ShadowResponse.readLong(reader, ShadowResponse.NONE)
+				: ShadowResponse.NONE;
+	}
+
+	/**
+	 * Appends the names of the desired members whose value differs from the reported one.
+	 *
+	 * @param reader
+	 *            the reader, just after the beginning of the state object
+	 */
+	private void appendChangedMembers(JsonReader reader, byte[] payload, StringBuilder changes) {
+		Members desired = this.desired;
+		Members reported = this.reported;
+		desired.count = 0;
+		reported.count = 0;
+		while (reader.nextMember()) {
+			if (reader.nameEquals("desired")) {
+				readMembers(reader, desired, changes);
+			} else if (reader.nameEquals("reported")) {
+				readMembers(reader, reported, null);
+			}
+		}
+		for (int i = 0; i < desired.count; i++) {
+			if (!isReported(payload, desired, i, reported)) {
+				append(changes, new String(payload, desired.nameOffsets[i], desired.nameLengths[i]));
+			}
+		}
+	}
+
+	/**
+	 * Locates the members of an object.
+	 *
+	 * @param reader
+	 *            the reader, on the name of the member holding the object
+	 * @param overflow
+	 *            the builder the names of the members that do not fit are appended to, or {@code null} to ignore them
+	 */
+	private static void readMembers(JsonReader reader, Members members, StringBuilder overflow) {
+		if (reader.next() != JsonReader.BEGIN_OBJECT) {
+			reader.skipValue();
+			return;
+		}
+		while (reader.nextMember()) {
+			int count = members.count;
+			if (count == MAX_MEMBERS) {
+				if (overflow != null) {
+					append(overflow, reader.stringValue());
+				}
+				continue;
+			}
+			members.nameOffsets[count] = reader.valueOffset();
+			members.nameLengths[count] = reader.valueLength();
+			int token = reader.next();
+			members.valueTokens[count] = token;
+			if (token == JsonReader.BEGIN_OBJECT || token == JsonReader.BEGIN_ARRAY) {
+				reader.skipValue();
+			} else {
+				members.valueOffsets[count] = reader.valueOffset();
+				members.valueLengths[count] = reader.valueLength();
+			}
+			members.count = count + 1;
+		}
+	}
+
+	/**
+	 * Checks whether a desired member has the same scalar value in the reported state.
+	 */
+	private static boolean isReported(byte[] payload, Members desired, int index, Members reported) {
+		int token = desired.valueTokens[index];
+		if (token == JsonReader.BEGIN_OBJECT || token == JsonReader.BEGIN_ARRAY) {
+			return false;
+		}
+		for (int i = 0; i < reported.count; i++) {
+			if (reported.valueTokens[i] == token
+					&& regionEquals(payload, desired.nameOffsets[index], desired.nameLengths[index],
+							reported.nameOffsets[i], reported.nameLengths[i])
+					&& regionEquals(payload, desired.valueOffsets[index], desired.valueLengths[index],
+							reported.valueOffsets[i], reported.valueLengths[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean regionEquals(byte[] data, int offset1, int length1, int offset2, int length2) {
+		if (length1 != length2) {
+			return false;
+		}
+		for (int i = 0; i < length1; i++) {
+			if (data[offset1 + i] != data[offset2 + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void appendMemberNames(JsonReader reader, StringBuilder names) {
+		while (reader.nextMember()) {
+			append(names, reader.stringValue());
+		}
+	}
+
+	private static void append(StringBuilder names, String name) {
+		if (names.length() > 0) {
+			names.append(',');
+		}
+		names.append(name);
+	}
+}
@@ -8,6 +8,8 @@ package com.microej.demo.aws.iot.shadow;
 
 import java.util.logging.Logger;
 
+import com.microej.demo.aws.iot.payload.JsonReader;
+
 import ej.aws.iot.AwsIotMessage;
 import ej.aws.iot.AwsIotMessageCallback;
 
@@ -19,11 +21,23 @@ public class GetAccepeted implements AwsIotMessageCallback {
 
 	private static final Logger LOGGER = Logger.getLogger(GetAccepeted.class.getName());
 
+	private final JsonReader reader = new JsonReader();
+	private final ShadowCache cache;
+
+	/**
+	 * Creates the callback.
+	 *
+	 * @param cache
+	 *            the shadow cache the reported fields are acknowledged to
+	 */
+	public GetAccepeted(ShadowCache cache) {
+		this.cache = cache;
+	}
+
 	@Override
 	public void onMessageReceived(AwsIotMessage message) {
-		LOGGER.info("Message received on topic='" + message.getTopic() + ", payload='"
-				+ new String(message.getPayload()) + "'");
-
+		this.cache.onGetAccepted(this.reader.reset(message.getPayload()));
+		LOGGER.info("Shadow read on topic='" + message.getTopic() + "', version=" + this.cache.getVersion());
 	}
 
 }
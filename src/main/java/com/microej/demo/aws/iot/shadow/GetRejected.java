@@ -8,6 +8,8 @@ package com.microej.demo.aws.iot.shadow;
 
 import java.util.logging.Logger;
 
+import com.microej.demo.aws.iot.payload.JsonReader;
+
 import ej.aws.iot.AwsIotMessage;
 import ej.aws.iot.AwsIotMessageCallback;
 
@@ -19,9 +21,24 @@ public class GetRejected implements AwsIotMessageCallback {
 
 	private static final Logger LOGGER = Logger.getLogger(GetRejected.class.getName());
 
+	private final JsonReader reader = new JsonReader();
+	private final ShadowResponse response = new ShadowResponse();
+	private final ShadowCache cache;
+
+	/**
+	 * Creates the callback.
+	 *
+	 * @param cache
+	 *            the shadow cache invalidated by a failure
+	 */
+	public GetRejected(ShadowCache cache) {
+		this.cache = cache;
+	}
+
 	@Override
 	public void onMessageReceived(AwsIotMessage message) {
-		LOGGER.info("Message received on topic='" + message.getTopic() + ", payload='"
-				+ new String(message.getPayload()) + "'");
+		this.response.read(this.reader.reset(message.getPayload()));
+		LOGGER.info("Shadow read rejected on topic='" + message.getTopic() + "', " + this.response);
+		this.cache.onGetRejected();
 	}
 }
@@ -0,0 +1,454 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.shadow;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.dispatch.TopicRouter;
+import com.microej.demo.aws.iot.payload.JsonReader;
+import com.microej.demo.aws.iot.payload.JsonWriter;
+import com.microej.demo.aws.iot.publish.MessagePublisher;
+
+import ej.aws.iot.AwsIotException;
+
+/**
+ * Device-side cache of the reported state of a shadow, classic or named.
+ * <p>
+ * The cache keeps the current value of every reported field and whether the shadow service has acknowledged it, as
+ * well as the last known version of the shadow. {@link #report()} only sends the fields whose value has not been
+ * acknowledged yet, along with the version so that a concurrent modification of the shadow is detected.
+ * <p>
+ * The values are acknowledged by the {@code update/accepted} and {@code get/accepted} messages. A version conflict
+ * or a rejected get invalidates the cache so that the next report is a full one.
+ * <p>
+ * Several reports may be in flight, see {@link ShadowClient}: as the shadow service increments the version of the
+ * shadow with each accepted update, a report sent while others are unanswered expects the version they will lead to.
+ * <p>
+ * Fields are either at the root of the reported state or in a one-level group object (for example
+ * {@code location.city}).
+ */
+@SuppressWarnings("nls")
+public class ShadowCache {
+
+	private static final Logger LOGGER = Logger.getLogger(ShadowCache.class.getName());
+
+	/**
+	 * Code of the rejected messages sent on a version conflict.
+	 */
+	public static final int VERSION_CONFLICT = 409;
+
+	private static final long UNKNOWN_VERSION = ShadowResponse.NONE;
+
+	private static final int TYPE_STRING = 0;
+	private static final int TYPE_LONG = 1;
+	private static final int TYPE_BOOLEAN = 2;
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	/**
+	 * A reported field.
+	 */
+	private static class Field {
+		final String group;
+		final String name;
+		int type;
+		String stringValue;
+		long longValue;
+		boolean acknowledged;
+
+		Field(String group, String name) {
+			this.group = group;
+			this.name = name;
+		}
+	}
+
+	private final MessagePublisher publisher;
+	private final String updateTopic;
+	private final JsonWriter writer;
+
+	private Field[] fields = new Field[INITIAL_CAPACITY];
+	private int fieldCount;
+	private long version = UNKNOWN_VERSION;
+
+	/**
+	 * Creates a shadow cache.
+	 *
+	 * @param publisher
+	 *            the publisher used to report the state
+	 * @param updateTopic
+	 *            the update topic of the shadow, see {@link TopicRouter#getShadowRequestTopic}
+	 * @param payloadSize
+	 *            the maximum size in bytes of a report
+	 */
+	public ShadowCache(MessagePublisher publisher, String updateTopic, int payloadSize) {
+		this.publisher = publisher;
+		this.updateTopic = updateTopic;
+		this.writer = new JsonWriter(payloadSize);
+	}
+
+	/**
+	 * Sets the value of a string field.
+	 *
+	 * @param group
+	 *            the group of the field or {@code null} if the field is at the root of the reported state
+	 * @param name
+	 *            the name of the field
+	 * @param value
+	 *            the value of the field
+	 */
+	public synchronized void set(String group, String name, String value) {
+		Field field = getField(group, name);
+		if (field.type != TYPE_STRING || !value.equals(field.stringValue)) {
+			field.type = TYPE_STRING;
+			field.stringValue = value;
+			field.acknowledged = false;
+		}
+	}
+
+	/**
+	 * Sets the value of an integer field.
+	 *
+	 * @param group
+	 *            the group of the field or {@code null} if the field is at the root of the reported state
+	 * @param name
+	 *            the name of the field
+	 * @param value
+	 *            the value of the field
+	 */
+	public synchronized void set(String group, String name, long value) {
+		setPrimitive(group, name, TYPE_LONG, value);
+	}
+
+	/**
+	 * Sets the value of a boolean field.
+	 *
+	 * @param group
+	 *            the group of the field or {@code null} if the field is at the root of the reported state
+	 * @param name
+	 *            the name of the field
+	 * @param value
+	 *            the value of the field
+	 */
+	public synchronized void set(String group, String name, boolean value) {
+		setPrimitive(group, name, TYPE_BOOLEAN, value ? 1 : 0);
+	}
+
+	/**
+	 * Reports the fields that have changed since their last acknowledgment.
+	 *
+	 * @return {@code true} if an update has been sent, {@code false} if every field is acknowledged
+	 * @throws AwsIotException
+	 *             on error while sending the update
+	 */
+	public boolean report() throws AwsIotException {
+		return report(null, 0);
+	}
+
+	/**
+	 * Reports the fields that have changed since their last acknowledgment, with a client token echoed by the
+	 * response.
+	 *
+	 * @param clientToken
+	 *            the client token of the update, or {@code null} for none
+	 * @param pendingReports
+	 *            the number of reports sent and not answered yet, added to the known version
+	 * @return {@code true} if an update has been sent, {@code false} if every field is acknowledged
+	 * @throws AwsIotException
+	 *             on error while sending the update
+	 */
+	public boolean report(String clientToken, int pendingReports) throws AwsIotException {
+		// The writer lock is kept while publishing so that the payload is not overwritten, the state lock is not so
+		// that the acknowledgments can be processed in the meantime.
+		synchronized (this.writer) {
+			byte[] payload;
+			synchronized (this) {
+				if (!writeUpdate(this.writer.reset(), clientToken, pendingReports)) {
+					return false;
+				}
+				payload = this.writer.toPayload();
+			}
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Reporting shadow state to " + this.updateTopic + " (" + payload.length + " bytes)");
+			}
+			this.publisher.publish(this.updateTopic, payload);
+			return true;
+		}
+	}
+
+	/**
+	 * Invalidates the cache: the next report contains every field and no version.
+	 */
+	public synchronized void invalidate() {
+		for (int i = 0; i < this.fieldCount; i++) {
+			this.fields[i].acknowledged = false;
+		}
+		this.version = UNKNOWN_VERSION;
+	}
+
+	/**
+	 * Gets the last known version of the shadow.
+	 *
+	 * @return the version or a negative value if it is unknown
+	 */
+	public synchronized long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Updates the known version of the shadow.
+	 */
+	private void onVersion(long version) {
+		if (version > this.version) {
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Acknowledges the reported fields of an {@code update/accepted} message.
+	 * <p>
+	 * Only the response to a report of this cache updates the known version: the reports in flight expect the versions
+	 * following the one of their last answered report, see {@link #report(String, int)}, which another response would
+	 * shift.
+	 *
+	 * @param reader
+	 *            the reader, reset on the message payload
+	 * @param answersReport
+	 *            whether the message answers a report of this cache
+	 */
+	public synchronized void onUpdateAccepted(JsonReader reader, boolean answersReport) {
+		readDocument(reader, answersReport);
+	}
+
+	/**
+	 * Acknowledges the reported fields of a {@code get/accepted} message. The fields that are not in the document are
+	 * reported again by the next report.
+	 *
+	 * @param reader
+	 *            the reader, reset on the message payload
+	 */
+	public synchronized void onGetAccepted(JsonReader reader) {
+		for (int i = 0; i < this.fieldCount; i++) {
+			this.fields[i].acknowledged = false;
+		}
+		readDocument(reader, true);
+	}
+
+	/**
+	 * Handles an {@code update/rejected} message. A version conflict invalidates the cache.
+	 *
+	 * @param code
+	 *            the error code of the message
+	 */
+	public void onUpdateRejected(int code) {
+		if (code == VERSION_CONFLICT) {
+			LOGGER.info("Shadow version conflict, the next report will be a full one");
+			invalidate();
+		}
+	}
+
+	/**
+	 * Handles a {@code get/rejected} message by invalidating the cache.
+	 */
+	public void onGetRejected() {
+		invalidate();
+	}
+
+	private boolean writeUpdate(JsonWriter writer, String clientToken, int pendingReports) {
+		Field[] fields = this.fields;
+		int fieldCount = this.fieldCount;
+		boolean changed = false;
+		for (int i = 0; i < fieldCount; i++) {
+			if (!fields[i].acknowledged) {
+				changed = true;
+				break;
+			}
+		}
+		if (!changed) {
+			return false;
+		}
+
+		// {"state":{"reported":{...}},"version":n,"clientToken":"..."}
+		writer.beginObject().name("state").beginObject().name("reported").beginObject();
+		for (int i = 0; i < fieldCount; i++) {
+			Field field = fields[i];
+			String group = field.group;
+			if (field.acknowledged || (group != null && isGroupWritten(group, i))) {
+				continue;
+			}
+			if (group == null) {
+				writeField(writer, field);
+			} else {
+				// write every changed field of the group, the following ones are skipped by the loop
+				writer.name(group).beginObject();
+				for (int j = i; j < fieldCount; j++) {
+					Field member = fields[j];
+					if (!member.acknowledged && group.equals(member.group)) {
+						writeField(writer, member);
+					}
+				}
+				writer.endObject();
+			}
+		}
+		writer.endObject().endObject();
+		if (this.version != UNKNOWN_VERSION) {
+			writer.name("version").value(this.version + pendingReports);
+		}
+		if (clientToken != null) {
+			writer.name("clientToken").value(clientToken);
+		}
+		writer.endObject();
+		return true;
+	}
+
+	/**
+	 * Checks whether a changed field of the given group comes before the given index, in which case the group has
+	 * already been written.
+	 */
+	private boolean isGroupWritten(String group, int index) {
+		Field[] fields = this.fields;
+		for (int i = 0; i < index; i++) {
+			if (!fields[i].acknowledged && group.equals(fields[i].group)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void writeField(JsonWriter writer, Field field) {
+		writer.name(field.name);
+		switch (field.type) {
+		case TYPE_STRING:
+			writer.value(field.stringValue);
+			break;
+		case TYPE_LONG:
+			writer.value(field.longValue);
+			break;
+		default:
+			writer.value(field.longValue != 0);
+		}
+	}
+
+	/**
+	 * Reads the version and the reported state of a shadow document and acknowledges the fields whose value matches.
+	 */
+	private void readDocument(JsonReader reader, boolean readVersion) {
+		if (reader.next() != JsonReader.BEGIN_OBJECT) {
+			return;
+		}
+		while (reader.nextMember()) {
+			if (readVersion && reader.nameEquals("version")) {
+				onVersion(ShadowResponse.readLong(reader, UNKNOWN_VERSION));
+			} else if (reader.nameEquals("state") && reader.next() == JsonReader.BEGIN_OBJECT) {
+				int stateDepth = reader.depth();
+				if (reader.moveToMember("reported") && reader.next() == JsonReader.BEGIN_OBJECT) {
+					readReported(reader);
+				}
+				// skip the rest of the state (desired, delta)
+				while (reader.depth() >= stateDepth && reader.next() != JsonReader.END_DOCUMENT) {
+					// skip
+				}
+			}
+		}
+	}
+
+	private void readReported(JsonReader reader) {
+		while (reader.nextMember()) {
+			String group = findGroup(reader);
+			if (group != null) {
+				if (reader.next() == JsonReader.BEGIN_OBJECT) {
+					while (reader.nextMember()) {
+						acknowledge(reader, group);
+					}
+				} else {
+					reader.skipValue();
+				}
+			} else {
+				acknowledge(reader, null);
+			}
+		}
+	}
+
+	/**
+	 * Acknowledges the field the reader is on if the value in the document is the current value.
+	 */
+	private void acknowledge(JsonReader reader, String group) {
+		Field field = findField(reader, group);
+		if (field == null) {
+			return;
+		}
+		int token = reader.next();
+		boolean matches;
+		switch (field.type) {
+		case TYPE_STRING:
+			matches = reader.valueEquals(field.stringValue);
+			break;
+		case TYPE_LONG:
+			matches = token == JsonReader.NUMBER && reader.longValue() == field.longValue;
+			break;
+		default:
+			matches = token == JsonReader.BOOLEAN && reader.booleanValue() == (field.longValue != 0);
+		}
+		field.acknowledged = matches;
+		reader.skipValue();
+	}
+
+	private String findGroup(JsonReader reader) {
+		for (int i = 0; i < this.fieldCount; i++) {
+			String group = this.fields[i].group;
+			if (group != null && reader.nameEquals(group)) {
+				return group;
+			}
+		}
+		return null;
+	}
+
+	private Field findField(JsonReader reader, String group) {
+		for (int i = 0; i < this.fieldCount; i++) {
+			Field field = this.fields[i];
+			if (sameGroup(field.group, group) && reader.nameEquals(field.name)) {
+				return field;
+			}
+		}
+		return null;
+	}
+
+	private static boolean sameGroup(String group1, String group2) {
+		return group1 == null ? group2 == null : group1.equals(group2);
+	}
+
+	private void setPrimitive(String group, String name, int type, long value) {
+		Field field = getField(group, name);
+		if (field.type != type || field.longValue != value) {
+			field.type = type;
+			field.longValue = value;
+			field.acknowledged = false;
+		}
+	}
+
+	private Field getField(String group, String name) {
+		Field[] fields = this.fields;
+		int fieldCount = this.fieldCount;
+		for (int i = 0; i < fieldCount; i++) {
+			Field field = fields[i];
+			if (field.name.equals(name) && sameGroup(field.group, group)) {
+				return field;
+			}
+		}
+		if (fieldCount == fields.length) {
+			Field[] newFields = new Field[fieldCount * 2];
+			System.arraycopy(fields, 0, newFields, 0, fieldCount);
+			this.fields = fields = newFields;
+		}
+		Field field = new Field(group, name);
+		// a new field is not acknowledged whatever its value
+		field.type = -1;
+		fields[fieldCount] = field;
+		this.fieldCount = fieldCount + 1;
+		return field;
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.shadow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.Timer;
+import ej.bon.TimerTask;
+import ej.bon.Util;
+
+/**
+ * Reports the changes of the device state to the shadow, coalescing the changes made within a short window into one
+ * update and following the outcome of each update.
+ * <p>
+ * The first change after an update opens a coalescing window: the changes made until the window closes are sent in the
+ * same update, see {@link ShadowCache#report(String, int)}, and get the same {@link ShadowUpdate}. Each update carries
+ * a unique client token, echoed by the {@code update/accepted} or {@code update/rejected} response, which completes the
+ * update; an update without a response after the timeout is completed as timed out.
+ * <p>
+ * Up to a maximum number of updates are in flight at once, each one expecting the version the previous ones lead to.
+ * When the maximum is reached, the window stays open until a response arrives. The fields of a rejected or timed out
+ * update stay unacknowledged in the cache and are sent again with the next update.
+ */
+@SuppressWarnings("nls")
+public class ShadowClient {
+
+	private static final Logger LOGGER = Logger.getLogger(ShadowClient.class.getName());
+
+	private final ShadowCache cache;
+	private final Timer timer;
+	private final long coalesceDelay;
+	private final long timeout;
+	private final int maxPendingUpdates;
+
+	// Sends are serialized so that the updates are published in the order of their expected versions
+	private final Object sendLock = new Object();
+
+	// Distinguishes the tokens of this boot from the ones of the responses to a previous boot
+	private final String tokenPrefix;
+	private int tokenCount;
+
+	// Update collecting the changes of the current window, sent when the window closes
+	private ShadowUpdate next;
+	private TimerTask closeTask;
+	// Whether the window has closed while the maximum number of updates were in flight
+	private boolean deferred;
+	// Updates sent and waiting for their response, in the order they were sent
+	private final List<ShadowUpdate> pendingUpdates = new ArrayList<>();
+
+	/**
+	 * Creates a shadow client.
+	 *
+	 * @param cache
+	 *            the cache of the reported state
+	 * @param timer
+	 *            the timer closing the coalescing windows and the timeouts
+	 * @param coalesceDelay
+	 *            the duration in milliseconds of a coalescing window
+	 * @param timeout
+	 *            the maximum time in milliseconds to wait for the response of an update
+	 * @param maxPendingUpdates
+	 *            the maximum number of updates waiting for their response
+	 */
+	public ShadowClient(ShadowCache cache, Timer timer, long coalesceDelay, long timeout, int maxPendingUpdates) {
+		if (coalesceDelay < 0 || timeout <= 0 || maxPendingUpdates <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.cache = cache;
+		this.timer = timer;
+		this.coalesceDelay = coalesceDelay;
+		this.timeout = timeout;
+		this.maxPendingUpdates = maxPendingUpdates;
+		this.tokenPrefix = Integer.toHexString((int) Util.platformTimeNanos()) + "-";
+	}
+
+	/**
+	 * Sets the value of a string field, see {@link ShadowCache#set(String, String, String)}.
+	 *
+	 * @param group
+	 *            the group of the field or {@code null} if the field is at the root of the reported state
+	 * @param name
+	 *            the name of the field
+	 * @param value
+	 *            the value of the field
+	 * @return the update carrying the change
+	 */
+	public ShadowUpdate set(String group, String name, String value) {
+		this.cache.set(group, name, value);
+		return openWindow();
+	}
+
+	/**
+	 * Sets the value of an integer field, see {@link ShadowCache#set(String, String, long)}.
+	 *
+	 * @param group
+	 *            the group of the field or {@code null} if the field is at the root of the reported state
+	 * @param name
+	 *            the name of the field
+	 * @param value
+	 *            the value of the field
+	 * @return the update carrying the change
+	 */
+	public ShadowUpdate set(String group, String name, long value) {
+		this.cache.set(group, name, value);
+		return openWindow();
+	}
+
+	/**
+	 * Sets the value of a boolean field, see {@link ShadowCache#set(String, String, boolean)}.
+	 *
+	 * @param group
+	 *            the group of the field or {@code null} if the field is at the root of the reported state
+	 * @param name
+	 *            the name of the field
+	 * @param value
+	 *            the value of the field
+	 * @return the update carrying the change
+	 */
+	public ShadowUpdate set(String group, String name, boolean value) {
+		this.cache.set(group, name, value);
+		return openWindow();
+	}
+
+	/**
+	 * Closes the current window and sends its update now, for example for the changes made directly in the cache. An
+	 * update is created if no window is open.
+	 *
+	 * @return the update sent, completed as accepted if every field is already acknowledged
+	 */
+	public ShadowUpdate flush() {
+		ShadowUpdate update;
+		synchronized (this) {
+			update = this.next;
+			if (update == null) {
+				update = newUpdate();
+				this.next = update;
+			}
+		}
+		send();
+		return update;
+	}
+
+	/**
+	 * Gets the cache of the reported state.
+	 *
+	 * @return the cache
+	 */
+	public ShadowCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Gets the number of updates waiting for their response.
+	 *
+	 * @return the number of updates in flight
+	 */
+	public synchronized int getPendingCount() {
+		return this.pendingUpdates.size();
+	}
+
+	/**
+	 * Gets whether an update sent by this client is waiting for its response.
+	 *
+	 * @param clientToken
+	 *            the client token of the update
+	 * @return {@code true} if the update is in flight, {@code false} otherwise
+	 */
+	public synchronized boolean isPending(String clientToken) {
+		if (clientToken == null) {
+			return false;
+		}
+		List<ShadowUpdate> pendingUpdates = this.pendingUpdates;
+		for (int i = 0; i < pendingUpdates.size(); i++) {
+			if (clientToken.equals(pendingUpdates.get(i).getClientToken())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Completes the update of an {@code update/accepted} message.
+	 *
+	 * @param clientToken
+	 *            the client token of the message
+	 * @param version
+	 *            the version of the shadow after the update
+	 */
+	public void onAccepted(String clientToken, long version) {
+		complete(clientToken, ShadowUpdate.ACCEPTED, version, ShadowResponse.NONE, null);
+	}
+
+	/**
+	 * Completes the update of an {@code update/rejected} message.
+	 *
+	 * @param clientToken
+	 *            the client token of the message
+	 * @param code
+	 *            the error code of the message
+	 * @param message
+	 *            the error message of the message
+	 */
+	public void onRejected(String clientToken, int code, String message) {
+		complete(clientToken, ShadowUpdate.REJECTED, ShadowResponse.NONE, code, message);
+	}
+
+	private synchronized ShadowUpdate openWindow() {
+		ShadowUpdate update = this.next;
+		if (update == null) {
+			update = newUpdate();
+			this.next = update;
+			TimerTask closeTask = new TimerTask() {
+				@Override
+				public void run() {
+					send();
+				}
+			};
+			this.closeTask = closeTask;
+			this.timer.schedule(closeTask, this.coalesceDelay);
+		}
+		return update;
+	}
+
+	private ShadowUpdate newUpdate() {
+		return new ShadowUpdate(this.tokenPrefix + Integer.toString(++this.tokenCount));
+	}
+
+	/**
+	 * Sends the update of the current window, unless the maximum number of updates are in flight.
+	 */
+	private void send() {
+		synchronized (this.sendLock) {
+			final ShadowUpdate update;
+			int pendingCount;
+			synchronized (this) {
+				update = this.next;
+				if (update == null) {
+					return;
+				}
+				List<ShadowUpdate> pendingUpdates = this.pendingUpdates;
+				pendingCount = pendingUpdates.size();
+				if (pendingCount >= this.maxPendingUpdates) {
+					this.deferred = true;
+					return;
+				}
+				this.next = null;
+				this.deferred = false;
+				TimerTask closeTask = this.closeTask;
+				if (closeTask != null) {
+					closeTask.cancel();
+					this.closeTask = null;
+				}
+				// registered before publishing, the response may come before the publication returns
+				pendingUpdates.add(update);
+			}
+
+			boolean sent;
+			try {
+				sent = this.cache.report(update.getClientToken(), pendingCount);
+			} catch (AwsIotException e) {
+				remove(update);
+				update.complete(ShadowUpdate.FAILED, ShadowResponse.NONE, ShadowResponse.NONE, e.getMessage());
+				LOGGER.severe("An error occured while reporting the shadow state. " + e.getMessage());
+				return;
+			}
+			if (!sent) {
+				remove(update);
+				update.complete(ShadowUpdate.ACCEPTED, this.cache.getVersion(), ShadowResponse.NONE, null);
+				return;
+			}
+			TimerTask timeoutTask = new TimerTask() {
+				@Override
+				public void run() {
+					onTimeout(update);
+				}
+			};
+			this.timer.schedule(timeoutTask, this.timeout);
+			if (!update.setTimeoutTask(timeoutTask)) {
+				// the response has already completed the update
+				timeoutTask.cancel();
+			}
+		}
+	}
+
+	private void onTimeout(ShadowUpdate update) {
+		if (remove(update) && update.complete(ShadowUpdate.TIMED_OUT, ShadowResponse.NONE, ShadowResponse.NONE, null)) {
+			LOGGER.warning("Shadow update timed out, " + update);
+			sendDeferred();
+		}
+	}
+
+	private void complete(String clientToken, int state, long version, int code, String message) {
+		if (clientToken == null) {
+			return;
+		}
+		ShadowUpdate update = null;
+		synchronized (this) {
+			List<ShadowUpdate> pendingUpdates = this.pendingUpdates;
+			for (int i = 0; i < pendingUpdates.size(); i++) {
+				if (clientToken.equals(pendingUpdates.get(i).getClientToken())) {
+					update = pendingUpdates.remove(i);
+					break;
+				}
+			}
+		}
+		if (update == null) {
+			// timed out, or sent by another client
+			return;
+		}
+		update.complete(state, version, code, message);
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Shadow update completed, " + update);
+		}
+		sendDeferred();
+	}
+
+	private void sendDeferred() {
+		synchronized (this) {
+			if (!this.deferred) {
+				return;
+			}
+		}
+		send();
+	}
+
+	private synchronized boolean remove(ShadowUpdate update) {
+		return this.pendingUpdates.remove(update);
+	}
+}
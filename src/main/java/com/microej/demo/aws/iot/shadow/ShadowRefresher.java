@@ -0,0 +1,65 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.shadow;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microej.demo.aws.iot.connection.ConnectionListener;
+import com.microej.demo.aws.iot.publish.MessagePublisher;
+
+import ej.aws.iot.AwsIotException;
+
+/**
+ * Reads a shadow each time the connection is established, so that its {@code get/accepted} response seeds the
+ * {@link ShadowCache} with the reported state and the version of the shadow. The changes made by other clients while
+ * the device was disconnected are then known before the next report, instead of causing a version conflict.
+ */
+@SuppressWarnings("nls")
+public class ShadowRefresher implements ConnectionListener {
+
+	private static final Logger LOGGER = Logger.getLogger(ShadowRefresher.class.getName());
+
+	private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+	private final MessagePublisher publisher;
+	private final String getTopic;
+
+	/**
+	 * Creates a shadow refresher.
+	 *
+	 * @param publisher
+	 *            the publisher of the get requests
+	 * @param getTopic
+	 *            the get request topic of the shadow
+	 */
+	public ShadowRefresher(MessagePublisher publisher, String getTopic) {
+		this.publisher = publisher;
+		this.getTopic = getTopic;
+	}
+
+	/**
+	 * Requests the shadow document, answered on the {@code get/accepted} or {@code get/rejected} topic.
+	 */
+	public void refresh() {
+		try {
+			this.publisher.publish(this.getTopic, EMPTY_PAYLOAD);
+		} catch (AwsIotException e) {
+			LOGGER.log(Level.WARNING, "Shadow get request failed on topic='" + this.getTopic + "'", e);
+		}
+	}
+
+	@Override
+	public void onConnected() {
+		refresh();
+	}
+
+	@Override
+	public void onDisconnected() {
+		// the shadow is read again once reconnected
+	}
+}
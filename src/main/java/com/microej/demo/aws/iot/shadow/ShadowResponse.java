@@ -0,0 +1,104 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.shadow;
+
+import com.microej.demo.aws.iot.payload.JsonReader;
+
+/**
+ * Top-level members of a shadow response message, read from the raw payload without parsing the state document.
+ */
+@SuppressWarnings("nls")
+class ShadowResponse {
+
+	/**
+	 * Value of {@link #version} and {@link #code} when the member is not present.
+	 */
+	static final int NONE = -1;
+
+	long version;
+	long timestamp;
+	int code;
+	String clientToken;
+	String message;
+
+	/**
+	 * Reads the top-level members of a shadow response. The other members are skipped.
+	 *
+	 * @param reader
+	 *            the reader, reset on the message payload
+	 */
+	void read(JsonReader reader) {
+		this.version = NONE;
+		this.timestamp = 0;
+		this.code = NONE;
+		this.clientToken = null;
+		this.message = null;
+
+		if (reader.next() != JsonReader.BEGIN_OBJECT) {
+			return;
+		}
+		while (reader.nextMember()) {
+			if (reader.nameEquals("version")) {
+				this.version = readLong(reader, NONE);
+			} else if (reader.nameEquals("timestamp")) {
+				this.timestamp = readLong(reader, 0);
+			} else if (reader.nameEquals("code")) {
+				this.code = (int) readLong(reader, NONE);
+			} else if (reader.nameEquals("clientToken")) {
+				this.clientToken = readString(reader);
+			} else if (reader.nameEquals("message")) {
+				this.message = readString(reader);
+			}
+		}
+	}
+
+	/**
+	 * Reads the value of the current member as a long.
+	 *
+	 * @param reader
+	 *            the reader, on a member name
+	 * @param defaultValue
+	 *            the value returned if the member is not a number
+	 * @return the value of the member
+	 */
+	static long readLong(JsonReader reader, long defaultValue) {
+		int token = reader.next();
+		if (token == JsonReader.NUMBER) {
+			return reader.longValue();
+		}
+		reader.skipValue();
+		return defaultValue;
+	}
+
+	/**
+	 * Reads the value of the current member as a string.
+	 *
+	 * @param reader
+	 *            the reader, on a member name
+	 * @return the value of the member or {@code null} if it is not a string
+	 */
+	static String readString(JsonReader reader) {
+		int token = reader.next();
+		if (token == JsonReader.STRING) {
+			return reader.stringValue();
+		}
+		reader.skipValue();
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		if (this.code != NONE) {
+			builder.append("code=").append(this.code).append(", message='").append(this.message).append("', ");
+		}
+		if (this.version != NONE) {
+			builder.append("version=").append(this.version).append(", ");
+		}
+		return builder.append("clientToken=").append(this.clientToken).toString();
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.shadow;
+
+import ej.bon.TimerTask;
+import ej.bon.Util;
+
+/**
+ * Outcome of a shadow update sent by a {@link ShadowClient}, completed when the {@code update/accepted} or
+ * {@code update/rejected} message carrying its client token is received, or when its timeout elapses.
+ * <p>
+ * The changes made during the same coalescing window share the same update.
+ */
+@SuppressWarnings("nls")
+public class ShadowUpdate {
+
+	/**
+	 * State of an update not sent yet, or waiting for its response.
+	 */
+	public static final int PENDING = 0;
+	/**
+	 * State of an update accepted by the shadow service, or with nothing to report.
+	 */
+	public static final int ACCEPTED = 1;
+	/**
+	 * State of an update rejected by the shadow service, see {@link #getCode()}.
+	 */
+	public static final int REJECTED = 2;
+	/**
+	 * State of an update whose response has not been received in time.
+	 */
+	public static final int TIMED_OUT = 3;
+	/**
+	 * State of an update that could not be sent.
+	 */
+	public static final int FAILED = 4;
+
+	private final String clientToken;
+
+	private int state = PENDING;
+	private long version = ShadowResponse.NONE;
+	private int code = ShadowResponse.NONE;
+	private String message;
+	// Completes the update as timed out, cancelled once the update is completed
+	private TimerTask timeoutTask;
+
+	/**
+	 * Creates a pending update.
+	 *
+	 * @param clientToken
+	 *            the client token of the update
+	 */
+	ShadowUpdate(String clientToken) {
+		this.clientToken = clientToken;
+	}
+
+	/**
+	 * Gets the client token of the update, echoed by the shadow service in its response.
+	 *
+	 * @return the client token
+	 */
+	public String getClientToken() {
+		return this.clientToken;
+	}
+
+	/**
+	 * Gets the state of the update.
+	 *
+	 * @return one of the state constants of this class
+	 */
+	public synchronized int getState() {
+		return this.state;
+	}
+
+	/**
+	 * Gets whether the update is completed.
+	 *
+	 * @return {@code true} if the state is not {@link #PENDING}, {@code false} otherwise
+	 */
+	public synchronized boolean isDone() {
+		return this.state != PENDING;
+	}
+
+	/**
+	 * Gets the version of the shadow after an accepted update.
+	 *
+	 * @return the version, or a negative value if it is unknown
+	 */
+	public synchronized long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Gets the error code of a rejected update, for example {@link ShadowCache#VERSION_CONFLICT}.
+	 *
+	 * @return the error code, or a negative value if the update is not rejected
+	 */
+	public synchronized int getCode() {
+		return this.code;
+	}
+
+	/**
+	 * Gets the error message of a rejected or failed update.
+	 *
+	 * @return the error message, or {@code null} if there is none
+	 */
+	public synchronized String getMessage() {
+		return this.message;
+	}
+
+	/**
+	 * Waits until the update is completed.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds, 0 to wait forever
+	 * @return {@code true} if the update is completed, {@code false} if the timeout elapsed before
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized boolean await(long timeout) throws InterruptedException {
+		long deadline = Util.platformTimeMillis() + timeout;
+		while (this.state == PENDING) {
+			long remaining = timeout == 0 ? 0 : deadline - Util.platformTimeMillis();
+			if (timeout != 0 && remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the task completing the update as timed out, cancelled when the update is completed.
+	 *
+	 * @return {@code true} if the task has been set, {@code false} if the update is already completed
+	 */
+	synchronized boolean setTimeoutTask(TimerTask timeoutTask) {
+		if (this.state != PENDING) {
+			return false;
+		}
+		this.timeoutTask = timeoutTask;
+		return true;
+	}
+
+	/**
+	 * Completes the update and cancels its timeout. Does nothing if it is already completed.
+	 *
+	 * @return {@code true} if the update has been completed by this call, {@code false} otherwise
+	 */
+	synchronized boolean complete(int state, long version, int code, String message) {
+		if (this.state != PENDING) {
+			return false;
+		}
+		this.state = state;
+		this.version = version;
+		this.code = code;
+		this.message = message;
+		TimerTask timeoutTask = this.timeoutTask;
+		if (timeoutTask != null) {
+			timeoutTask.cancel();
+			this.timeoutTask = null;
+		}
+		notifyAll();
+		return true;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder("clientToken=").append(this.clientToken).append(", state=");
+		switch (this.state) {
+		case PENDING:
+			builder.append("pending");
+			break;
+		case ACCEPTED:
+			builder.append("accepted, version=").append(this.version);
+			break;
+		case REJECTED:
+			builder.append("rejected, code=").append(this.code).append(", message='").append(this.message).append('\'');
+			break;
+		case TIMED_OUT:
+			builder.append("timed out");
+			break;
+		default:
+			builder.append("failed, message='").append(this.message).append('\'');
+		}
+		return builder.toString();
+	}
+}
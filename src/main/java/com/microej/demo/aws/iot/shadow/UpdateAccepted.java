@@ -6,8 +6,11 @@
  */
 package com.microej.demo.aws.iot.shadow;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.microej.demo.aws.iot.payload.JsonReader;
+
 import ej.aws.iot.AwsIotMessage;
 import ej.aws.iot.AwsIotMessageCallback;
 
@@ -20,11 +23,36 @@ public class UpdateAccepted implements AwsIotMessageCallback {
 
 	private static final Logger LOGGER = Logger.getLogger(UpdateAccepted.class.getName());
 
+	private final JsonReader reader = new JsonReader();
+	private final ShadowResponse response = new ShadowResponse();
+	private final ShadowCache cache;
+	private final ShadowClient client;
+
+	/**
+	 * Creates the callback.
+	 *
+	 * @param cache
+	 *            the shadow cache the reported fields are acknowledged to
+	 * @param client
+	 *            the shadow client whose update is completed
+	 */
+	public UpdateAccepted(ShadowCache cache, ShadowClient client) {
+		this.cache = cache;
+		this.client = client;
+	}
+
 	@Override
 	public void onMessageReceived(AwsIotMessage message) {
-		LOGGER.fine("Message received on topic='" + message.getTopic() + ", payload='"
-				+ new String(message.getPayload()) + "'");
-
+		byte[] payload = message.getPayload();
+		ShadowResponse response = this.response;
+		response.read(this.reader.reset(payload));
+		ShadowClient client = this.client;
+		this.cache.onUpdateAccepted(this.reader.reset(payload), client.isPending(response.clientToken));
+		// the update is completed once the cache is up to date, so that the next update expects the new version
+		client.onAccepted(response.clientToken, response.version);
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Shadow updated on topic='" + message.getTopic() + "', version=" + this.cache.getVersion());
+		}
 	}
 
 }
@@ -8,6 +8,8 @@ package com.microej.demo.aws.iot.shadow;
 
 import java.util.logging.Logger;
 
+import com.microej.demo.aws.iot.payload.JsonReader;
+
 import ej.aws.iot.AwsIotMessage;
 import ej.aws.iot.AwsIotMessageCallback;
 
@@ -19,10 +21,30 @@ public class UpdateRejected implements AwsIotMessageCallback {
 
 	private static final Logger LOGGER = Logger.getLogger(UpdateRejected.class.getName());
 
+	private final JsonReader reader = new JsonReader();
+	private final ShadowResponse response = new ShadowResponse();
+	private final ShadowCache cache;
+	private final ShadowClient client;
+
+	/**
+	 * Creates the callback.
+	 *
+	 * @param cache
+	 *            the shadow cache invalidated by a version conflict
+	 * @param client
+	 *            the shadow client whose update is completed
+	 */
+	public UpdateRejected(ShadowCache cache, ShadowClient client) {
+		this.cache = cache;
+		this.client = client;
+	}
+
 	@Override
 	public void onMessageReceived(AwsIotMessage message) {
-		LOGGER.info("Message received on topic='" + message.getTopic() + ", payload='"
-				+ new String(message.getPayload()) + "'");
+		this.response.read(this.reader.reset(message.getPayload()));
+		LOGGER.info("Shadow update rejected on topic='" + message.getTopic() + "', " + this.response);
+		this.cache.onUpdateRejected(this.response.code);
+		this.client.onRejected(this.response.clientToken, this.response.code, this.response.message);
 	}
 
 }
@@ -0,0 +1,147 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.time;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import ej.bon.Util;
+
+/**
+ * Minimal SNTP client (RFC 4330) measuring the offset of a server clock from the platform clock, without changing the
+ * local time.
+ * <p>
+ * The offset is the time of the server minus the platform time ({@link Util#platformTimeMillis()}), estimated from the
+ * four timestamps of an exchange assuming a symmetric network delay; the error of the estimate is at most half the
+ * round-trip delay. The replies not answering the request, not coming from a synchronized server, or from a server
+ * asking to stop (kiss-o'-death) are rejected.
+ */
+@SuppressWarnings("nls")
+class SntpClient {
+
+	private static final int PACKET_SIZE = 48;
+	// Leap indicator 0, version 4, mode 3 (client)
+	private static final byte CLIENT_HEADER = 0x23;
+	private static final int MODE_SERVER = 4;
+	private static final int LEAP_UNSYNCHRONIZED = 3;
+	private static final int MAX_STRATUM = 15;
+
+	private static final int ORIGINATE_OFFSET = 24;
+	private static final int RECEIVE_OFFSET = 32;
+	private static final int TRANSMIT_OFFSET = 40;
+
+	// Seconds from 1900-01-01 (NTP epoch) to 1970-01-01 (Java epoch)
+	private static final long NTP_EPOCH_OFFSET = 2208988800L;
+	private static final long MILLIS_PER_SECOND = 1000;
+	private static final long ERA_SECONDS = 1L << 32;
+	private static final long ERA_THRESHOLD = 1L << 31;
+
+	private final byte[] buffer = new byte[PACKET_SIZE];
+
+	private long offset;
+	private long delay;
+
+	/**
+	 * Queries a server.
+	 *
+	 * @param host
+	 *            the host name of the server
+	 * @param port
+	 *            the UDP port of the server
+	 * @param timeout
+	 *            the maximum time in milliseconds to wait for the reply
+	 * @throws IOException
+	 *             if the server cannot be reached, does not reply in time or sends an invalid reply
+	 */
+	void query(String host, int port, int timeout) throws IOException {
+		byte[] buffer = this.buffer;
+		for (int i = 0; i < PACKET_SIZE; i++) {
+			buffer[i] = 0;
+		}
+		buffer[0] = CLIENT_HEADER;
+		// the transmit timestamp is only echoed by the server: a random-looking value lets us match the reply
+		long nonce = Util.platformTimeNanos() ^ System.identityHashCode(this);
+		writeLong(buffer, TRANSMIT_OFFSET, nonce);
+
+		InetAddress address = InetAddress.getByName(host);
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.setSoTimeout(timeout);
+			DatagramPacket packet = new DatagramPacket(buffer, PACKET_SIZE, address, port);
+			long requestTime = Util.platformTimeMillis();
+			socket.send(packet);
+			socket.receive(packet);
+			long replyTime = Util.platformTimeMillis();
+
+			if (packet.getLength() < PACKET_SIZE) {
+				throw new IOException("short reply from " + host);
+			}
+			int leap = (buffer[0] >> 6) & 0x3;
+			int mode = buffer[0] & 0x7;
+			int stratum = buffer[1] & 0xff;
+			if (mode != MODE_SERVER || readLong(buffer, ORIGINATE_OFFSET) != nonce) {
+				throw new IOException("unexpected reply from " + host);
+			}
+			if (stratum == 0 || stratum > MAX_STRATUM || leap == LEAP_UNSYNCHRONIZED) {
+				throw new IOException(host + " is not synchronized (stratum " + stratum + ")");
+			}
+			long receiveTime = readTimestamp(buffer, RECEIVE_OFFSET);
+			long transmitTime = readTimestamp(buffer, TRANSMIT_OFFSET);
+
+			this.offset = ((receiveTime - requestTime) + (transmitTime - replyTime)) / 2;
+			this.delay = Math.max(0, (replyTime - requestTime) - (transmitTime - receiveTime));
+		}
+	}
+
+	/**
+	 * Gets the offset measured by the last query.
+	 *
+	 * @return the time of the server minus the platform time, in milliseconds
+	 */
+	long getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * Gets the round-trip delay measured by the last query.
+	 *
+	 * @return the network round-trip delay in milliseconds, twice the maximum error of the offset
+	 */
+	long getDelay() {
+		return this.delay;
+	}
+
+	/**
+	 * Reads an NTP timestamp (seconds since 1900 and fraction of second, 32 bits each) as milliseconds since 1970.
+	 */
+	private static long readTimestamp(byte[] buffer, int offset) {
+		long timestamp = readLong(buffer, offset);
+		long seconds = timestamp >>> 32;
+		long fraction = timestamp & 0xffffffffL;
+		if (seconds < ERA_THRESHOLD) {
+			// the seconds wrap around in 2036, small values are in the next era
+			seconds += ERA_SECONDS;
+		}
+		return (seconds - NTP_EPOCH_OFFSET) * MILLIS_PER_SECOND + ((fraction * MILLIS_PER_SECOND) >>> 32);
+	}
+
+	private static long readLong(byte[] buffer, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (buffer[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	private static void writeLong(byte[] buffer, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			buffer[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.time;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ej.bon.Util;
+
+/**
+ * Clock of the application, kept synchronized with a list of NTP servers in the background.
+ * <p>
+ * The time is the platform time ({@link Util#platformTimeMillis()}) plus an offset:
+ * <ul>
+ * <li>At startup, the offset is restored from the last time saved to a file, or from the local time if it is later,
+ * so that the application can start without waiting for a server: the time is then a lower bound of the real time,
+ * and the local time is set to it if it was earlier (after a reset of the real-time clock, for example).</li>
+ * <li>A thread queries the servers in turn until one replies, then again every resync period; when no server replies,
+ * the next round is delayed by a backoff doubled after each failed round. The offset measured by each reply sets the
+ * local time, and the drift of the platform clock is estimated from the successive replies so that the offset is
+ * corrected between two replies.</li>
+ * <li>The time returned by {@link #currentTimeMillis()} is slewed towards the measured time at a bounded rate, so that
+ * the timestamps never jump nor go backwards. Only the first reply after startup, or an error larger than the step
+ * threshold, steps the time.</li>
+ * </ul>
+ * The time and the drift are saved after each round, so that the next startup begins from a recent time.
+ */
+@SuppressWarnings("nls")
+public class TimeService implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(TimeService.class.getName());
+
+	private static final int FILE_MAGIC = 0x54494d45;
+	private static final int DEFAULT_PORT = 123;
+
+	// The drift is only measured over intervals long enough for the reply errors to be negligible
+	private static final long MIN_DRIFT_INTERVAL = 60_000;
+	// Drifts beyond this value (parts per billion) are measurement errors, a crystal drifts by tens of ppm
+	private static final long MAX_DRIFT = 500_000;
+	// Drift left after the correction, used to estimate how the uncertainty grows between two replies
+	private static final long RESIDUAL_DRIFT_PPM = 50;
+
+	private final String[] hosts;
+	private final int[] ports;
+	private final int timeout;
+	private final long resyncPeriod;
+	private final long retryDelay;
+	private final long maxRetryDelay;
+	private final long slewRate;
+	private final long stepThreshold;
+	private final File file;
+	private final File tmpFile;
+	private final SntpClient client = new SntpClient();
+
+	// Offset measured by the last reply, predicted from then on with the drift (in parts per billion)
+	private boolean synced;
+	private long syncTime;
+	private long syncOffset;
+	private long syncError;
+	private long drift;
+	private boolean driftMeasured;
+	// Offset applied to the timestamps in microseconds, slewed towards the predicted offset
+	private long appliedOffset;
+	private long updateTime;
+	private long lastTime;
+	// Index of the last server that replied, tried first
+	private int server;
+	private Thread thread;
+
+	/**
+	 * Creates a time service and restores the last time saved, see {@link #start()}.
+	 *
+	 * @param path
+	 *            the path of the file the time and the drift are saved to
+	 * @param servers
+	 *            the comma-separated list of the NTP servers, as host names optionally followed by {@code :port}
+	 * @param timeout
+	 *            the maximum time in milliseconds to wait for the reply of a server
+	 * @param resyncPeriod
+	 *            the period in milliseconds between two successful synchronizations
+	 * @param retryDelay
+	 *            the delay in milliseconds before a new round after a round where no server replied, doubled after
+	 *            each failed round
+	 * @param maxRetryDelay
+	 *            the maximum delay in milliseconds between two rounds
+	 * @param slewRate
+	 *            the maximum rate of the corrections of the timestamps, in microseconds per second (parts per million)
+	 * @param stepThreshold
+	 *            the error in milliseconds above which the time is stepped instead of slewed
+	 */
+	public TimeService(String path, String servers, int timeout, long resyncPeriod, long retryDelay,
+			long maxRetryDelay, long slewRate, long stepThreshold) {
+		if (retryDelay <= 0 || maxRetryDelay < retryDelay || slewRate <= 0) {
+			throw new IllegalArgumentException();
+		}
+		int count = 1;
+		for (int i = 0; i < servers.length(); i++) {
+			if (servers.charAt(i) == ',') {
+				count++;
+			}
+		}
+		this.hosts = new String[count];
+		this.ports = new int[count];
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int end = servers.indexOf(',', start);
+			if (end < 0) {
+				end = servers.length();
+			}
+			String server = servers.substring(start, end).trim();
+			int colon = server.indexOf(':');
+			this.hosts[i] = colon < 0 ? server : server.substring(0, colon);
+			this.ports[i] = colon < 0 ? DEFAULT_PORT : Integer.parseInt(server.substring(colon + 1));
+			start = end + 1;
+		}
+		this.timeout = timeout;
+		this.resyncPeriod = resyncPeriod;
+		this.retryDelay = retryDelay;
+		this.maxRetryDelay = maxRetryDelay;
+		this.slewRate = slewRate;
+		this.stepThreshold = stepThreshold;
+		this.file = new File(path);
+		this.tmpFile = new File(path + ".tmp");
+		restore();
+	}
+
+	/**
+	 * Starts the thread synchronizing the time.
+	 */
+	public synchronized void start() {
+		if (this.thread == null) {
+			Thread thread = new Thread(this, "aws-time");
+			this.thread = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the thread synchronizing the time. The time keeps being corrected with the last drift measured.
+	 */
+	public synchronized void stop() {
+		Thread thread = this.thread;
+		if (thread != null) {
+			thread.interrupt();
+			this.thread = null;
+		}
+	}
+
+	/**
+	 * Gets the current time. The successive times never go backwards, unless the time is stepped.
+	 *
+	 * @return the current time in milliseconds since the epoch
+	 */
+	public synchronized long currentTimeMillis() {
+		long now = Util.platformTimeMillis();
+		update(now);
+		long time = Math.max(this.lastTime, now + this.appliedOffset / 1000);
+		this.lastTime = time;
+		return time;
+	}
+
+	/**
+	 * Gets whether a server has replied since startup.
+	 *
+	 * @return {@code true} if the time is synchronized, {@code false} if it is only a lower bound of the real time
+	 */
+	public synchronized boolean isSynchronized() {
+		return this.synced;
+	}
+
+	/**
+	 * Gets the maximum error of {@link #currentTimeMillis()}: half the round trip of the last reply, plus the residual
+	 * drift since then, plus the part of the correction not slewed yet.
+	 *
+	 * @return the uncertainty in milliseconds, or -1 if no server has replied since startup
+	 */
+	public synchronized long getUncertainty() {
+		if (!this.synced) {
+			return -1;
+		}
+		long now = Util.platformTimeMillis();
+		update(now);
+		long residual = Math.abs(predictOffset(now) - this.appliedOffset) / 1000;
+		return this.syncError + (now - this.syncTime) * RESIDUAL_DRIFT_PPM / 1_000_000 + residual;
+	}
+
+	/**
+	 * Gets the estimated drift of the platform clock.
+	 *
+	 * @return the drift in parts per billion, positive if the platform clock is slow
+	 */
+	public synchronized long getDrift() {
+		return this.drift;
+	}
+
+	/**
+	 * Waits until a server replies.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds, 0 to wait forever
+	 * @return {@code true} if the time is synchronized, {@code false} if the timeout elapsed before
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized boolean awaitSynchronization(long timeout) throws InterruptedException {
+		long deadline = Util.platformTimeMillis() + timeout;
+		while (!this.synced) {
+			long remaining = timeout == 0 ? 0 : deadline - Util.platformTimeMillis();
+			if (timeout != 0 && remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		long delay = this.retryDelay;
+		try {
+			for (;;) {
+				boolean synced = synchronize();
+				save();
+				if (synced) {
+					delay = this.retryDelay;
+					Thread.sleep(this.resyncPeriod);
+				} else {
+					LOGGER.warning("No time server replied, retrying in " + delay + " ms");
+					Thread.sleep(delay);
+					delay = Math.min(delay * 2, this.maxRetryDelay);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queries the servers in turn, starting with the last one that replied, until one replies.
+	 *
+	 * @return {@code true} if a server replied, {@code false} otherwise
+	 */
+	private boolean synchronize() {
+		int count = this.hosts.length;
+		int first = this.server;
+		for (int i = 0; i < count; i++) {
+			int server = (first + i) % count;
+			try {
+				this.client.query(this.hosts[server], this.ports[server], this.timeout);
+			} catch (IOException e) {
+				LOGGER.info("Time server " + this.hosts[server] + " failed. " + e.getMessage());
+				continue;
+			}
+			this.server = server;
+			onReply(this.client.getOffset(), this.client.getDelay());
+			return true;
+		}
+		return false;
+	}
+
+	private synchronized void onReply(long offset, long delay) {
+		long now = Util.platformTimeMillis();
+		update(now);
+		if (this.synced) {
+			long interval = now - this.syncTime;
+			if (interval >= MIN_DRIFT_INTERVAL) {
+				long measured = (offset - this.syncOffset) * 1_000_000_000L / interval;
+				if (Math.abs(measured) <= MAX_DRIFT) {
+					// smoothed, a single reply delayed by the network should not change the drift much
+					this.drift = this.driftMeasured ? this.drift + (measured - this.drift) / 4 : measured;
+					this.driftMeasured = true;
+				}
+			}
+		}
+		long error = offset * 1000 - this.appliedOffset;
+		if (!this.synced || Math.abs(error) > this.stepThreshold * 1000) {
+			LOGGER.info("Time stepped by " + error / 1000 + " ms");
+			this.appliedOffset = offset * 1000;
+			// the timestamps restart from the new time, even if it is earlier
+			this.lastTime = 0;
+		}
+		this.syncTime = now;
+		this.syncOffset = offset;
+		this.syncError = delay / 2;
+		this.synced = true;
+		// the local time is used by the TLS stack to check the certificates
+		Util.setCurrentTimeMillis(now + offset);
+		notifyAll();
+	}
+
+	/**
+	 * Slews the applied offset towards the predicted offset, by at most the slew rate times the time elapsed since the
+	 * last update.
+	 */
+	private void update(long now) {
+		long elapsed = now - this.updateTime;
+		if (elapsed <= 0) {
+			return;
+		}
+		this.updateTime = now;
+		long maxCorrection = elapsed * this.slewRate / 1000;
+		long correction = predictOffset(now) - this.appliedOffset;
+		if (correction > maxCorrection) {
+			correction = maxCorrection;
+		} else if (correction < -maxCorrection) {
+			correction = -maxCorrection;
+		}
+		this.appliedOffset += correction;
+	}
+
+	/**
+	 * Predicts the offset at a platform time from the last reply and the drift.
+	 *
+	 * @return the offset in microseconds
+	 */
+	private long predictOffset(long now) {
+		return this.syncOffset * 1000 + (now - this.syncTime) * this.drift / 1_000_000;
+	}
+
+	/**
+	 * Restores the time and the drift saved by the last run, and sets the local time to the saved time if it is later.
+	 */
+	private void restore() {
+		long now = Util.platformTimeMillis();
+		long time = Util.currentTimeMillis();
+		File file = this.file;
+		if (!file.exists() && this.tmpFile.exists()) {
+			// interrupted while replacing the file
+			this.tmpFile.renameTo(file);
+		}
+		if (file.exists()) {
+			try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+				if (input.readInt() == FILE_MAGIC) {
+					long savedTime = input.readLong();
+					long savedDrift = input.readLong();
+					if (input.readLong() == (savedTime ^ savedDrift ^ FILE_MAGIC)) {
+						if (savedTime > time) {
+							LOGGER.info("Local time set to the last saved time");
+							Util.setCurrentTimeMillis(savedTime);
+							time = savedTime;
+						}
+						this.drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, savedDrift));
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Cannot restore the saved time", e);
+			}
+		}
+		this.syncTime = now;
+		this.syncOffset = time - now;
+		this.appliedOffset = this.syncOffset * 1000;
+		this.updateTime = now;
+	}
+
+	/**
+	 * Saves the current time and the drift, replacing the file through a temporary file.
+	 */
+	private void save() {
+		long time = currentTimeMillis();
+		long drift = getDrift();
+		File tmpFile = this.tmpFile;
+		try {
+			try (DataOutputStream output = new DataOutputStream(new FileOutputStream(tmpFile))) {
+				output.writeInt(FILE_MAGIC);
+				output.writeLong(time);
+				output.writeLong(drift);
+				output.writeLong(time ^ drift ^ FILE_MAGIC);
+			}
+			File file = this.file;
+			if (file.exists() && !file.delete()) {
+				throw new IOException("cannot delete " + file.getPath());
+			}
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("cannot rename " + tmpFile.getPath());
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Cannot save the time", e);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.wifi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ej.ecom.wifi.SecurityMode;
+import ej.net.util.wifi.AccessPointConfiguration;
+
+/**
+ * File-backed store of the Wi-Fi access point configuration, so that the device joins the network configured before a
+ * reboot instead of mounting the soft access point again.
+ * <p>
+ * Besides the configuration (SSID, passphrase and security mode), the store keeps the BSSID and the channel of the
+ * access point last joined, for the platforms able to join a given access point without scanning.
+ * <p>
+ * Each write replaces the whole file: the record is written to a temporary file, which is then renamed. The record
+ * ends with a CRC-32 of its content, so that a record torn by a power loss is detected and ignored; at startup, a
+ * complete temporary file is newer than the file and replaces it. The passphrase is stored in clear, like in the
+ * memory of the Wi-Fi driver.
+ */
+@SuppressWarnings("nls")
+public class WifiConfigurationStore {
+
+	private static final Logger LOGGER = Logger.getLogger(WifiConfigurationStore.class.getName());
+
+	private static final int FILE_MAGIC = 0x57494649;
+	private static final int MAX_RECORD_SIZE = 512;
+	private static final int CRC_POLYNOMIAL = 0xedb88320;
+	private static final String HEX_DIGITS = "0123456789abcdef";
+
+	private final File file;
+	private final File tmpFile;
+
+	private boolean loaded;
+	private AccessPointConfiguration configuration;
+	private byte[] bssid;
+	private int channel;
+
+	/**
+	 * Creates a store. The file is read on the first access.
+	 *
+	 * @param path
+	 *            the path of the file
+	 */
+	public WifiConfigurationStore(String path) {
+		this.file = new File(path);
+		this.tmpFile = new File(path + ".tmp");
+	}
+
+	/**
+	 * Loads the configuration stored.
+	 *
+	 * @return the configuration, or {@code null} if none is stored
+	 */
+	public synchronized AccessPointConfiguration load() {
+		ensureLoaded();
+		return this.configuration;
+	}
+
+	/**
+	 * Stores a configuration. The BSSID and the channel are kept if the SSID has not changed.
+	 *
+	 * @param configuration
+	 *            the configuration
+	 */
+	public synchronized void store(AccessPointConfiguration configuration) {
+		ensureLoaded();
+		AccessPointConfiguration previous = this.configuration;
+		if (previous == null || !previous.getSSID().equals(configuration.getSSID())) {
+			this.bssid = null;
+			this.channel = 0;
+		}
+		this.configuration = configuration;
+		save();
+	}
+
+	/**
+	 * Stores the access point joined with the stored configuration. Nothing is written if it has not changed.
+	 *
+	 * @param bssid
+	 *            the BSSID of the access point
+	 * @param channel
+	 *            the channel of the access point
+	 */
+	public synchronized void setAccessPoint(byte[] bssid, int channel) {
+		ensureLoaded();
+		if (this.configuration == null || (equals(this.bssid, bssid) && this.channel == channel)) {
+			return;
+		}
+		this.bssid = bssid.clone();
+		this.channel = channel;
+		save();
+	}
+
+	/**
+	 * Gets the BSSID of the access point last joined.
+	 *
+	 * @return the BSSID, or {@code null} if unknown
+	 */
+	public synchronized byte[] getBssid() {
+		ensureLoaded();
+		byte[] bssid = this.bssid;
+		return bssid != null ? bssid.clone() : null;
+	}
+
+	/**
+	 * Gets the channel of the access point last joined.
+	 *
+	 * @return the channel, or 0 if unknown
+	 */
+	public synchronized int getChannel() {
+		ensureLoaded();
+		return this.channel;
+	}
+
+	/**
+	 * Formats a BSSID for the logs.
+	 *
+	 * @param bssid
+	 *            the BSSID
+	 * @return the BSSID, for example {@code 00:1a:2b:3c:4d:5e}
+	 */
+	public static String toString(byte[] bssid) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < bssid.length; i++) {
+			if (i > 0) {
+				builder.append(':');
+			}
+			int value = bssid[i] & 0xff;
+			builder.append(HEX_DIGITS.charAt(value >> 4)).append(HEX_DIGITS.charAt(value & 0xf));
+		}
+		return builder.toString();
+	}
+
+	private void ensureLoaded() {
+		if (this.loaded) {
+			return;
+		}
+		this.loaded = true;
+		File file = this.file;
+		File tmpFile = this.tmpFile;
+		// a complete temporary file is the last record written, interrupted before replacing the file
+		if (tmpFile.exists()) {
+			if (read(tmpFile)) {
+				if ((!file.exists() || file.delete()) && tmpFile.renameTo(file)) {
+					return;
+				}
+			} else {
+				tmpFile.delete();
+			}
+		}
+		if (file.exists() && !read(file)) {
+			LOGGER.warning("Corrupted Wi-Fi configuration ignored");
+		}
+	}
+
+	/**
+	 * Reads a record.
+	 *
+	 * @return {@code true} if the record is complete and valid, {@code false} otherwise
+	 */
+	private boolean read(File file) {
+		try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+			if (input.readInt() != FILE_MAGIC) {
+				return false;
+			}
+			int length = input.readUnsignedShort();
+			if (length > MAX_RECORD_SIZE) {
+				return false;
+			}
+			byte[] record = new byte[length];
+			input.readFully(record);
+			if (input.readInt() != crc32(record)) {
+				return false;
+			}
+
+			DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+			String ssid = fields.readUTF();
+			String passphrase = fields.readBoolean() ? fields.readUTF() : null;
+			SecurityMode securityMode = SecurityMode.valueOf(fields.readUTF());
+			byte[] bssid = new byte[fields.readUnsignedByte()];
+			fields.readFully(bssid);
+			int channel = fields.readInt();
+
+			this.configuration = new AccessPointConfiguration(ssid, passphrase, securityMode);
+			this.bssid = bssid.length > 0 ? bssid : null;
+			this.channel = channel;
+			return true;
+		} catch (IOException | IllegalArgumentException e) {
+			// truncated record, or unknown security mode
+			return false;
+		}
+	}
+
+	private void save() {
+		AccessPointConfiguration configuration = this.configuration;
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream(MAX_RECORD_SIZE);
+			DataOutputStream fields = new DataOutputStream(record);
+			fields.writeUTF(configuration.getSSID());
+			String passphrase = configuration.getPassphrase();
+			fields.writeBoolean(passphrase != null);
+			if (passphrase != null) {
+				fields.writeUTF(passphrase);
+			}
+			fields.writeUTF(configuration.getSecurityMode().name());
+			byte[] bssid = this.bssid != null ? this.bssid : new byte[0];
+			fields.writeByte(bssid.length);
+			fields.write(bssid);
+			fields.writeInt(this.channel);
+			byte[] bytes = record.toByteArray();
+
+			File tmpFile = this.tmpFile;
+			try (DataOutputStream output = new DataOutputStream(new FileOutputStream(tmpFile))) {
+				output.writeInt(FILE_MAGIC);
+				output.writeShort(bytes.length);
+				output.write(bytes);
+				output.writeInt(crc32(bytes));
+			}
+			File file = this.file;
+			if (file.exists() && !file.delete()) {
+				throw new IOException("cannot delete " + file.getPath());
+			}
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("cannot rename " + tmpFile.getPath());
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Cannot store the Wi-Fi configuration", e);
+		}
+	}
+
+	private static int crc32(byte[] data) {
+		int crc = 0xffffffff;
+		for (byte b : data) {
+			crc ^= b & 0xff;
+			for (int i = 0; i < 8; i++) {
+				crc = (crc >>> 1) ^ (CRC_POLYNOMIAL & -(crc & 1));
+			}
+		}
+		return ~crc;
+	}
+
+	private static boolean equals(byte[] a, byte[] b) {
+		if (a == null || b == null || a.length != b.length) {
+			return false;
+		}
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
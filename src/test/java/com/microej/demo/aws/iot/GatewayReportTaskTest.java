@@ -0,0 +1,71 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.gateway.GatewayShadows;
+import com.microej.demo.aws.iot.payload.PayloadFormat;
+import com.microej.demo.aws.iot.publish.BatchPublisher;
+import com.microej.demo.aws.iot.publish.MessagePublisher;
+
+import ej.aws.iot.AwsIotException;
+
+/**
+ * Tests the sizing of the batch of a {@link GatewayReportTask}.
+ */
+@SuppressWarnings("nls")
+public class GatewayReportTaskTest {
+
+	/**
+	 * Publisher recording the payloads.
+	 */
+	private static class RecordingPublisher implements MessagePublisher {
+		final List<byte[]> payloads = new ArrayList<>();
+
+		@Override
+		public void publish(String topic, byte[] data) {
+			this.payloads.add(data);
+		}
+	}
+
+	/**
+	 * Tests that the samples of every field of every thing, with the longest values, fit in one message.
+	 *
+	 * @throws AwsIotException
+	 *             not expected
+	 */
+	@Test
+	public void testRunFitsInOneMessage() throws AwsIotException {
+		for (PayloadFormat format : PayloadFormat.values()) {
+			RecordingPublisher publisher = new RecordingPublisher();
+			GatewayShadows shadows = new GatewayShadows(publisher,
+					GatewayShadows.parseList("sensor-1,sensor-2,a-much-longer-sensor-name"),
+					GatewayShadows.parseList("temperature,battery,humidit\u00e9"), 256);
+			int capacity = GatewayReportTask.getBatchCapacity(shadows);
+			BatchPublisher batchPublisher = new BatchPublisher(publisher, "sample", capacity, capacity, 1000,
+					format.newWriter(GatewayReportTask.getBatchPayloadSize(shadows)), null);
+			for (int thing = 0; thing < shadows.getThingCount(); thing++) {
+				for (int field = 0; field < shadows.getFieldCount(); field++) {
+					batchPublisher.add(shadows.getThingName(thing) + "/" + shadows.getFieldName(field) + "="
+							+ Long.MIN_VALUE);
+				}
+			}
+
+			batchPublisher.flush();
+
+			assertEquals(format.toString(), 1, publisher.payloads.size());
+			assertEquals(format.toString(), capacity, batchPublisher.getLastFlushCount());
+			assertEquals(format.toString(), 0, batchPublisher.getDroppedCount());
+		}
+	}
+}
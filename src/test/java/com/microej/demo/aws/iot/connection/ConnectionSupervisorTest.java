@@ -0,0 +1,230 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.network.NetworkState;
+import com.microej.demo.aws.iot.network.Readiness;
+
+import ej.aws.iot.AwsIotClient;
+import ej.aws.iot.AwsIotClientOptions.Builder;
+import ej.aws.iot.AwsIotException;
+
+/**
+ * Tests that a {@link ConnectionSupervisor} waits for the IP address of the device instead of backing off, detects a
+ * connection loss with its checks and does not retry a refused connection.
+ */
+@SuppressWarnings("nls")
+public class ConnectionSupervisorTest {
+
+	private static final long BASE_DELAY = 10;
+	// Longer than the tests, a connection within the test comes from the end of the wait for the address
+	private static final long MAX_DELAY = 60000;
+	private static final long TIMEOUT = 5000;
+	private static final long CHECK_PERIOD = 20;
+
+	private NetworkState networkState;
+	private TestClient client;
+	private ConnectionSupervisor supervisor;
+	private Thread supervisorThread;
+	private int connections;
+	private int disconnections;
+
+	/**
+	 * Client failing while the broker is unreachable, or refusing its connections with a reason code.
+	 */
+	private static class TestClient extends AwsIotClient {
+		volatile boolean unreachable;
+		volatile int refusalCode;
+		volatile int connectCount;
+
+		TestClient() {
+			super(Builder.builder().host("localhost").thingName("Thermostat-1").clientID("Thermostat-1").build());
+		}
+
+		@Override
+		public void connect() throws AwsIotException {
+			this.connectCount++;
+			if (this.refusalCode != 0) {
+				throw new AwsIotException(new MqttException(this.refusalCode));
+			}
+			checkReachable();
+		}
+
+		@Override
+		public void unsubscribe(String topic) throws AwsIotException {
+			checkReachable();
+		}
+
+		private void checkReachable() throws AwsIotException {
+			if (this.unreachable) {
+				throw new AwsIotException(new IOException("Network unreachable"));
+			}
+		}
+	}
+
+	/**
+	 * Listener recording the connection and the thread of the supervisor.
+	 */
+	private class Listener implements ConnectionListener {
+		@Override
+		public void onConnected() {
+			synchronized (ConnectionSupervisorTest.this) {
+				ConnectionSupervisorTest.this.supervisorThread = Thread.currentThread();
+				ConnectionSupervisorTest.this.connections++;
+				ConnectionSupervisorTest.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void onDisconnected() {
+			synchronized (ConnectionSupervisorTest.this) {
+				ConnectionSupervisorTest.this.disconnections++;
+				ConnectionSupervisorTest.this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Creates a supervisor following the network state, not connected yet.
+	 */
+	@Before
+	public void createSupervisor() {
+		this.networkState = new NetworkState();
+		this.client = new TestClient();
+		this.supervisor = new ConnectionSupervisor(this.client, "Thermostat-1", BASE_DELAY, MAX_DELAY);
+		this.supervisor.setNetworkState(this.networkState);
+		this.supervisor.addListener(new Listener());
+	}
+
+	/**
+	 * Stops the thread of the supervisor.
+	 */
+	@After
+	public synchronized void stopSupervisor() {
+		if (this.supervisorThread != null) {
+			this.supervisorThread.interrupt();
+		}
+	}
+
+	/**
+	 * Tests that the supervisor connects as soon as the address is acquired, without waiting for the backoff.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testConnectOnceAddressAcquired() throws Exception {
+		this.supervisor.start();
+		Thread.sleep(100);
+		assertFalse(this.supervisor.isConnected());
+
+		this.networkState.setReady(Readiness.IP_ACQUIRED);
+		assertTrue(awaitConnected());
+		// the first connection is not a reconnection
+		assertEquals(0, this.supervisor.getReconnectCount());
+	}
+
+	/**
+	 * Tests that the supervisor connects without waiting when the address is already acquired.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testConnectWithAddress() throws Exception {
+		this.networkState.setReady(Readiness.IP_ACQUIRED);
+		this.supervisor.start();
+		assertTrue(awaitConnected());
+	}
+
+	/**
+	 * Tests that the checks detect a connection loss while nothing is published, and that the client is reconnected.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testConnectionCheck() throws Exception {
+		this.networkState.setReady(Readiness.IP_ACQUIRED);
+		this.supervisor.setCheckPeriod(CHECK_PERIOD);
+		this.supervisor.start();
+		assertTrue(awaitConnected());
+
+		this.client.unreachable = true;
+		assertTrue(awaitCount(true, 1));
+		assertFalse(this.supervisor.isConnected());
+
+		this.client.unreachable = false;
+		assertTrue(awaitCount(false, 2));
+		assertEquals(1, this.supervisor.getReconnectCount());
+	}
+
+	/**
+	 * Tests that a connection refused for bad credentials is not retried.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testRefusalNotRetried() throws Exception {
+		this.client.refusalCode = MqttException.REASON_CODE_FAILED_AUTHENTICATION;
+		try {
+			this.supervisor.connect();
+			fail("Refused connection retried");
+		} catch (AwsIotException e) {
+			// expected
+		}
+		assertEquals(1, this.client.connectCount);
+		assertFalse(this.supervisor.isConnected());
+	}
+
+	/**
+	 * Tests that an unavailable broker is retried.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testUnavailableRetried() throws Exception {
+		this.networkState.setReady(Readiness.IP_ACQUIRED);
+		this.client.refusalCode = MqttException.REASON_CODE_BROKER_UNAVAILABLE;
+		this.supervisor.start();
+		Thread.sleep(100);
+		assertTrue(this.client.connectCount > 1);
+
+		this.client.refusalCode = 0;
+		assertTrue(awaitConnected());
+	}
+
+	private boolean awaitConnected() throws InterruptedException {
+		return awaitCount(false, 1) && this.supervisor.isConnected();
+	}
+
+	private synchronized boolean awaitCount(boolean disconnections, int count) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while ((disconnections ? this.disconnections : this.connections) < count) {
+			long delay = end - System.currentTimeMillis();
+			if (delay <= 0) {
+				return false;
+			}
+			wait(delay);
+		}
+		return true;
+	}
+}
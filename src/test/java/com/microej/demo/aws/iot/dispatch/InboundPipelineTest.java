@@ -0,0 +1,127 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.tools.MessageRecorder;
+import com.microej.demo.aws.iot.tools.TestMessage;
+
+/**
+ * Tests that the overflow policies of an {@link InboundPipeline} never drop the messages of the AWS reserved topics.
+ * The queue is filled before the workers are started.
+ */
+@SuppressWarnings("nls")
+public class InboundPipelineTest {
+
+	private static final String SAMPLE = "awsiot/demo/sample";
+	private static final String DELTA = "$aws/things/Thermostat-1/shadow/name/runtime/update/delta";
+	private static final int CAPACITY = 3;
+
+	private final MessageRecorder recorder = new MessageRecorder();
+	private InboundPipeline pipeline;
+
+	/**
+	 * Stops the workers.
+	 */
+	@After
+	public void stopPipeline() {
+		if (this.pipeline != null) {
+			this.pipeline.stop();
+		}
+	}
+
+	/**
+	 * Tests that dropping the oldest message skips the reserved messages.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testDropOldestKeepsReserved() throws Exception {
+		this.pipeline = new InboundPipeline(this.recorder, 1, CAPACITY, OverflowPolicy.DROP_OLDEST);
+		receive(DELTA, 0);
+		receive(SAMPLE, 1);
+		receive(SAMPLE, 2);
+		receive(SAMPLE, 3);
+		receive(DELTA, 4);
+		assertEquals(2, this.pipeline.getDroppedCount());
+
+		assertHandled(DELTA, 0, SAMPLE, 3, DELTA, 4);
+	}
+
+	/**
+	 * Tests that a reserved message is queued when the new messages are dropped.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testDropNewestKeepsReserved() throws Exception {
+		this.pipeline = new InboundPipeline(this.recorder, 1, CAPACITY, OverflowPolicy.DROP_NEWEST);
+		receive(SAMPLE, 0);
+		receive(SAMPLE, 1);
+		receive(SAMPLE, 2);
+		receive(SAMPLE, 3);
+		receive(DELTA, 4);
+		assertEquals(2, this.pipeline.getDroppedCount());
+
+		assertHandled(SAMPLE, 1, SAMPLE, 2, DELTA, 4);
+	}
+
+	/**
+	 * Tests that a queue holding only reserved messages drops the other messages and makes a reserved message wait.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testOnlyReservedQueued() throws Exception {
+		this.pipeline = new InboundPipeline(this.recorder, 1, CAPACITY, OverflowPolicy.DROP_OLDEST);
+		receive(DELTA, 0);
+		receive(DELTA, 1);
+		receive(DELTA, 2);
+		receive(SAMPLE, 3);
+		assertEquals(1, this.pipeline.getDroppedCount());
+
+		Thread receiver = new Thread() {
+			@Override
+			public void run() {
+				receive(DELTA, 3);
+			}
+		};
+		receiver.start();
+		receiver.join(100);
+		assertTrue(receiver.isAlive());
+
+		assertHandled(DELTA, 0, DELTA, 1, DELTA, 2, DELTA, 3);
+		receiver.join();
+		assertEquals(1, this.pipeline.getDroppedCount());
+	}
+
+	private void receive(String topic, int index) {
+		this.pipeline.onMessageReceived(new TestMessage(topic, new byte[] { (byte) index }));
+	}
+
+	/**
+	 * Starts the workers and checks the handled messages, given as pairs of topic and index.
+	 */
+	private void assertHandled(Object... expected) throws InterruptedException {
+		this.pipeline.start();
+		int count = expected.length / 2;
+		assertTrue(this.recorder.await(count));
+		assertEquals(count, this.recorder.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals(expected[2 * i], this.recorder.get(i).getTopic());
+			assertEquals(((Integer) expected[2 * i + 1]).byteValue(), this.recorder.get(i).getPayload()[0]);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.dispatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.tools.TestMessage;
+
+import ej.aws.iot.AwsIotMessage;
+import ej.aws.iot.AwsIotMessageCallback;
+import ej.bon.Util;
+
+/**
+ * Measures the dispatch latency of a {@link TopicRouter} versus its number of routes, as in a gateway managing the
+ * shadows of many things, compared with a linear matching of the filters. The measurements are logged; the assertions
+ * only check that each message reaches its handler.
+ */
+@SuppressWarnings("nls")
+public class TopicRouterBenchmarkTest {
+
+	private static final Logger LOGGER = Logger.getLogger(TopicRouterBenchmarkTest.class.getName());
+
+	private static final int[] ROUTE_COUNTS = { 1, 10, 100, 1000, 10000 };
+	private static final int DISPATCHES = 20000;
+	// Number of filters matched per measurement of the linear matching, whatever the number of routes
+	private static final int LINEAR_MATCHES = 2000000;
+
+	/**
+	 * Handler counting the messages.
+	 */
+	private static class CountingHandler implements AwsIotMessageCallback {
+		int count;
+
+		@Override
+		public void onMessageReceived(AwsIotMessage message) {
+			this.count++;
+		}
+	}
+
+	/**
+	 * Measures the dispatch latency for an increasing number of routes.
+	 */
+	@Test
+	public void testDispatchLatency() {
+		for (int routeCount : ROUTE_COUNTS) {
+			TopicRouter router = new TopicRouter();
+			String[] filters = new String[routeCount];
+			CountingHandler handler = new CountingHandler();
+			for (int i = 0; i < routeCount; i++) {
+				filters[i] = getTopic(i);
+				router.addRoute(filters[i], handler);
+			}
+			// the messages are spread over the routes
+			AwsIotMessage[] messages = new AwsIotMessage[Math.min(routeCount, 100)];
+			for (int i = 0; i < messages.length; i++) {
+				messages[i] = new TestMessage(getTopic(i * routeCount / messages.length), new byte[0]);
+			}
+
+			// warm-up
+			dispatch(router, messages, DISPATCHES);
+			long start = Util.platformTimeNanos();
+			dispatch(router, messages, DISPATCHES);
+			long routerTime = Util.platformTimeNanos() - start;
+			assertEquals(2 * DISPATCHES, handler.count);
+
+			int linearDispatches = Math.max(1, LINEAR_MATCHES / routeCount);
+			start = Util.platformTimeNanos();
+			int matched = matchLinearly(filters, messages, linearDispatches);
+			long linearTime = Util.platformTimeNanos() - start;
+			assertEquals(linearDispatches, matched);
+
+			LOGGER.info("Topic router: " + routeCount + " routes, " + routerTime / DISPATCHES
+					+ " ns per dispatch (linear matching: " + linearTime / linearDispatches + " ns)");
+		}
+	}
+
+	private static void dispatch(TopicRouter router, AwsIotMessage[] messages, int count) {
+		for (int i = 0; i < count; i++) {
+			router.onMessageReceived(messages[i % messages.length]);
+		}
+	}
+
+	private static int matchLinearly(String[] filters, AwsIotMessage[] messages, int count) {
+		int matched = 0;
+		for (int i = 0; i < count; i++) {
+			String topic = messages[i % messages.length].getTopic();
+			for (String filter : filters) {
+				if (TopicRouter.matches(filter, topic)) {
+					matched++;
+				}
+			}
+		}
+		return matched;
+	}
+
+	private static String getTopic(int thing) {
+		return "$aws/things/thing-" + thing + "/shadow/update/accepted";
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.tools.BrokerStandIn;
+import com.microej.demo.aws.iot.tools.MessageRecorder;
+import com.microej.demo.aws.iot.tools.MqttTestClient;
+import com.microej.demo.aws.iot.tools.TestMessage;
+
+import ej.aws.iot.AwsIotMessage;
+import ej.aws.iot.AwsIotMessageCallback;
+import ej.aws.iot.ShadowAction;
+import ej.aws.iot.ShadowResult;
+
+/**
+ * Tests the routes and the topic filters of a {@link TopicRouter}.
+ */
+@SuppressWarnings("nls")
+public class TopicRouterTest {
+
+	private static final String GATEWAY_FILTER = "$aws/things/+/shadow/update/accepted";
+	private static final String SAMPLE_TOPIC = "awsiot/demo/sample";
+	private static final byte[] PAYLOAD = "{}".getBytes();
+
+	/**
+	 * Tests that a message is delivered to the handlers of the matching routes, once per handler.
+	 */
+	@Test
+	public void testRoutes() {
+		TopicRouter router = new TopicRouter();
+		MessageRecorder exact = new MessageRecorder();
+		MessageRecorder singleLevel = new MessageRecorder();
+		MessageRecorder multiLevel = new MessageRecorder();
+		router.addRoute(SAMPLE_TOPIC, exact);
+		router.addRoute("awsiot/+/sample", singleLevel);
+		router.addRoute("awsiot/#", multiLevel);
+		// matching twice, delivered once
+		router.addRoute("awsiot/demo/#", multiLevel);
+		router.addRoute(SAMPLE_TOPIC, exact);
+		assertEquals(4, router.getRouteCount());
+
+		router.onMessageReceived(new TestMessage(SAMPLE_TOPIC, PAYLOAD));
+		router.onMessageReceived(new TestMessage("awsiot/demo", PAYLOAD));
+		router.onMessageReceived(new TestMessage("awsiot/demo/sample/3", PAYLOAD));
+		router.onMessageReceived(new TestMessage("other/demo/sample", PAYLOAD));
+
+		assertEquals(1, exact.size());
+		assertEquals(1, singleLevel.size());
+		assertEquals(3, multiLevel.size());
+
+		assertTrue(router.removeRoute("awsiot/#", multiLevel));
+		assertFalse(router.removeRoute("awsiot/#", multiLevel));
+		router.onMessageReceived(new TestMessage("awsiot/demo", PAYLOAD));
+		assertEquals(4, multiLevel.size());
+		router.onMessageReceived(new TestMessage("awsiot/other", PAYLOAD));
+		assertEquals(4, multiLevel.size());
+	}
+
+	/**
+	 * Tests that a failing handler does not prevent the other handlers from receiving the message.
+	 */
+	@Test
+	public void testFailingHandler() {
+		TopicRouter router = new TopicRouter();
+		MessageRecorder recorder = new MessageRecorder();
+		router.addRoute(SAMPLE_TOPIC, new AwsIotMessageCallback() {
+			@Override
+			public void onMessageReceived(AwsIotMessage message) {
+				throw new IllegalStateException("failing handler");
+			}
+		});
+		router.addRoute("awsiot/demo/+", recorder);
+
+		router.onMessageReceived(new TestMessage(SAMPLE_TOPIC, PAYLOAD));
+		assertEquals(1, recorder.size());
+	}
+
+	/**
+	 * Tests that an invalid filter is rejected.
+	 */
+	@Test
+	public void testInvalidFilter() {
+		try {
+			new TopicRouter().addRoute("awsiot/#/sample", new MessageRecorder());
+			fail("invalid filter accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests the routing of the messages received from a broker through a wildcard subscription.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testRoutesThroughBroker() throws Exception {
+		BrokerStandIn broker = new BrokerStandIn();
+		int port = broker.start(0);
+		try {
+			TopicRouter router = new TopicRouter();
+			MessageRecorder first = new MessageRecorder();
+			MessageRecorder second = new MessageRecorder();
+			router.addRoute(SAMPLE_TOPIC + "/1", first);
+			router.addRoute(SAMPLE_TOPIC + "/2", second);
+			MqttTestClient subscriber = MqttTestClient.connect("subscriber", port, router);
+			subscriber.subscribe(SAMPLE_TOPIC + "/+");
+			MqttTestClient publisher = MqttTestClient.connect("publisher", port, null);
+
+			for (int i = 0; i < 10; i++) {
+				publisher.publish(SAMPLE_TOPIC + "/" + (i % 3), Integer.toString(i).getBytes());
+			}
+
+			assertTrue(first.await(3));
+			assertTrue(second.await(3));
+			assertEquals("1", new String(first.get(0).getPayload()));
+			assertEquals("7", new String(first.get(2).getPayload()));
+			assertEquals(SAMPLE_TOPIC + "/2", second.get(0).getTopic());
+			publisher.close();
+			subscriber.close();
+		} finally {
+			broker.stop();
+		}
+	}
+
+	/**
+	 * Tests that the shadow wildcard of a gateway covers the classic shadow of the device, not its named shadows.
+	 */
+	@Test
+	public void testGatewayFilterMatches() {
+		assertTrue(TopicRouter.matches(GATEWAY_FILTER, "$aws/things/Thermostat-1/shadow/update/accepted"));
+		assertFalse(TopicRouter.matches(GATEWAY_FILTER, "$aws/things/Thermostat-1/shadow/update/rejected"));
+		assertFalse(TopicRouter.matches(GATEWAY_FILTER,
+				"$aws/things/Thermostat-1/shadow/name/runtime/update/accepted"));
+		assertFalse(TopicRouter.matches(GATEWAY_FILTER, "$aws/things/Thermostat-1/shadow/update/accepted/more"));
+		assertFalse(TopicRouter.matches(GATEWAY_FILTER, "$aws/things/Thermostat-1/shadow/update"));
+	}
+
+	/**
+	 * Tests the wildcards of the filters.
+	 */
+	@Test
+	public void testWildcardsMatch() {
+		assertTrue(TopicRouter.matches("awsiot/demo/sample", "awsiot/demo/sample"));
+		assertFalse(TopicRouter.matches("awsiot/demo/sample", "awsiot/demo/samples"));
+		assertTrue(TopicRouter.matches("awsiot/demo/sample/+", "awsiot/demo/sample/3"));
+		assertFalse(TopicRouter.matches("awsiot/demo/sample/+", "awsiot/demo/sample"));
+		assertTrue(TopicRouter.matches("awsiot/#", "awsiot/demo/sample"));
+		assertTrue(TopicRouter.matches("awsiot/#", "awsiot"));
+		assertTrue(TopicRouter.matches("#", "awsiot/demo"));
+		// the topics starting with '$' are not matched by a wildcard at the first level
+		assertFalse(TopicRouter.matches("#", "$aws/things/Thermostat-1/shadow/update"));
+		assertFalse(TopicRouter.matches("+/things/#", "$aws/things/Thermostat-1/shadow/update"));
+	}
+
+	/**
+	 * Tests that the result filter of a shadow matches the results of every action, but neither the requests nor the
+	 * results of the other shadows.
+	 */
+	@Test
+	public void testShadowResultFilter() {
+		String[] shadowNames = { null, "runtime" };
+		for (String shadowName : shadowNames) {
+			String filter = TopicRouter.getShadowResultFilter("Thermostat-1", shadowName);
+			for (ShadowAction action : ShadowAction.values()) {
+				for (ShadowResult result : ShadowResult.values()) {
+					assertTrue(TopicRouter.matches(filter,
+							TopicRouter.getShadowTopic("Thermostat-1", shadowName, action, result)));
+				}
+				assertFalse(TopicRouter.matches(filter,
+						TopicRouter.getShadowRequestTopic("Thermostat-1", shadowName, action)));
+			}
+		}
+		String filter = TopicRouter.getShadowResultFilter("Thermostat-1", null);
+		assertEquals("$aws/things/Thermostat-1/shadow/+/+", filter);
+		assertFalse(TopicRouter.matches(filter, "$aws/things/Thermostat-1/shadow/name/runtime/update/accepted"));
+		assertFalse(TopicRouter.matches(filter, "$aws/things/Thermostat-2/shadow/update/accepted"));
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.dispatch.TopicRouter;
+import com.microej.demo.aws.iot.payload.JsonReader;
+import com.microej.demo.aws.iot.publish.MessagePublisher;
+import com.microej.demo.aws.iot.tools.BrokerStandIn;
+import com.microej.demo.aws.iot.tools.MessageRecorder;
+import com.microej.demo.aws.iot.tools.MqttTestClient;
+import com.microej.demo.aws.iot.tools.TestMessage;
+
+/**
+ * Tests the shadows of the downstream things of a gateway against the shadow service of a {@link BrokerStandIn}.
+ */
+@SuppressWarnings("nls")
+public class GatewayShadowsTest {
+
+	private static final String[] THINGS = { "sensor-2", "sensor-1" };
+	private static final String[] FIELDS = { "temperature", "humidity" };
+	private static final int PAYLOAD_SIZE = 256;
+
+	private BrokerStandIn broker;
+	private int port;
+	private GatewayShadows shadows;
+	// Records the shadow responses once they have been handled by the shadows
+	private MessageRecorder responses;
+
+	/**
+	 * Starts the broker and subscribes the shadows of the things to their responses.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Before
+	public void startGateway() throws Exception {
+		this.broker = new BrokerStandIn();
+		this.port = this.broker.start(0);
+		TopicRouter router = new TopicRouter();
+		MqttTestClient gateway = MqttTestClient.connect("gateway", this.port, router);
+		this.shadows = new GatewayShadows(gateway, THINGS, FIELDS, PAYLOAD_SIZE);
+		this.responses = new MessageRecorder();
+		for (String filter : GatewayShadows.getFilters()) {
+			router.addRoute(filter, this.shadows);
+			router.addRoute(filter, this.responses);
+			gateway.subscribe(filter);
+		}
+	}
+
+	/**
+	 * Stops the broker.
+	 */
+	@After
+	public void stopBroker() {
+		this.broker.stop();
+	}
+
+	/**
+	 * Tests that the things are sorted and found by name.
+	 */
+	@Test
+	public void testThings() {
+		assertEquals(2, this.shadows.getThingCount());
+		assertEquals("sensor-1", this.shadows.getThingName(0));
+		assertEquals(1, this.shadows.indexOf("sensor-2"));
+		assertEquals(-1, this.shadows.indexOf("sensor-3"));
+		assertEquals(2, GatewayShadows.parseList(" sensor-1 ,sensor-2").length);
+	}
+
+	/**
+	 * Tests that only the changed fields are reported, and that the accepted updates give the versions.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testReportChanges() throws Exception {
+		this.shadows.set(0, 0, 21);
+		// every field is reported first
+		assertEquals(2, this.shadows.report());
+		assertTrue(this.responses.await(2));
+		assertEquals(1, this.shadows.getVersion(0));
+		assertEquals(1, this.shadows.getVersion(1));
+		assertEquals(0, this.shadows.report());
+
+		this.shadows.set(1, 1, 60);
+		this.shadows.set(1, 0, 0);
+		assertEquals(1, this.shadows.report());
+		assertTrue(this.responses.await(3));
+		assertEquals(1, this.shadows.getVersion(0));
+		assertEquals(2, this.shadows.getVersion(1));
+	}
+
+	/**
+	 * Tests that only the response to the last update of a thing acknowledges or re-marks its fields, whatever the
+	 * other responses received meanwhile.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testResponsesCorrelated() throws Exception {
+		final List<byte[]> updates = new ArrayList<>();
+		GatewayShadows shadows = new GatewayShadows(new MessagePublisher() {
+			@Override
+			public void publish(String topic, byte[] payload) {
+				updates.add(payload);
+			}
+		}, THINGS, FIELDS, PAYLOAD_SIZE);
+		String acceptedTopic = "$aws/things/sensor-1/shadow/update/accepted";
+		String rejectedTopic = "$aws/things/sensor-1/shadow/update/rejected";
+
+		assertEquals(2, shadows.report());
+		String first = readToken(updates.get(0));
+		// accepted update of an application setting a desired value, then the rejection of the update of the gateway
+		shadows.onMessageReceived(new TestMessage(acceptedTopic, "{\"version\":2}".getBytes()));
+		shadows.onMessageReceived(new TestMessage(rejectedTopic,
+				("{\"code\":429,\"clientToken\":\"" + first + "\"}").getBytes()));
+		assertEquals(2, shadows.getVersion(0));
+		// the rejected fields are sent again
+		assertEquals(1, shadows.report());
+		String second = readToken(updates.get(2));
+
+		// two updates in flight, the first one is answered after the second one has been sent
+		shadows.set(0, 0, 21);
+		assertEquals(1, shadows.report());
+		String third = readToken(updates.get(3));
+		shadows.onMessageReceived(new TestMessage(rejectedTopic,
+				("{\"code\":429,\"clientToken\":\"" + second + "\"}").getBytes()));
+		assertEquals(0, shadows.report());
+		shadows.onMessageReceived(new TestMessage(acceptedTopic,
+				("{\"version\":3,\"clientToken\":\"" + third + "\"}").getBytes()));
+		assertEquals(3, shadows.getVersion(0));
+		shadows.set(0, 0, 21);
+		assertEquals(0, shadows.report());
+	}
+
+	private static String readToken(byte[] update) {
+		JsonReader reader = new JsonReader().reset(update);
+		assertEquals(JsonReader.BEGIN_OBJECT, reader.next());
+		assertTrue(reader.moveToMember("clientToken"));
+		reader.next();
+		return reader.stringValue();
+	}
+
+	/**
+	 * Tests that a desired value set by an application is applied and reported back, and that the responses of the
+	 * other things are ignored.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testDesiredValue() throws Exception {
+		this.shadows.report();
+		assertTrue(this.responses.await(2));
+
+		MqttTestClient application = MqttTestClient.connect("application", this.port, null);
+		application.publish("$aws/things/sensor-2/shadow/update",
+				"{\"state\":{\"desired\":{\"temperature\":30,\"unknown\":1}}}".getBytes());
+		application.publish("$aws/things/Thermostat-1/shadow/update",
+				"{\"state\":{\"desired\":{\"temperature\":40}}}".getBytes());
+		// accepted and delta of each thing
+		assertTrue(this.responses.await(6));
+
+		assertEquals(30, this.shadows.get(1, 0));
+		assertEquals(0, this.shadows.get(0, 0));
+		assertEquals(1, this.shadows.report());
+		assertTrue(this.responses.await(7));
+		assertEquals(3, this.shadows.getVersion(1));
+		application.close();
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the statistics of a {@link Histogram}.
+ */
+public class HistogramTest {
+
+	/**
+	 * Tests the statistics of the values from 1 to 100.
+	 */
+	@Test
+	public void testStatistics() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(0, histogram.getMin());
+		for (int i = 100; i >= 1; i--) {
+			histogram.record(i);
+		}
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(50, histogram.getMean());
+		assertEquals(1, histogram.getMin());
+		assertEquals(100, histogram.getMax());
+		// upper bounds of the power of two buckets, capped by the maximum
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(63, histogram.getPercentile(50));
+		assertEquals(100, histogram.getPercentile(99));
+		assertEquals(100, histogram.getPercentile(100));
+	}
+
+	/**
+	 * Tests that the zeros, the negative values and the largest values are recorded in the outer buckets.
+	 */
+	@Test
+	public void testBounds() {
+		Histogram histogram = new Histogram();
+		histogram.record(-5);
+		histogram.record(0);
+		assertEquals(0, histogram.getPercentile(100));
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getMin());
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+	}
+
+	/**
+	 * Tests that removing a copy keeps the values recorded since the copy.
+	 */
+	@Test
+	public void testRemoveCopy() {
+		Histogram histogram = new Histogram();
+		histogram.record(10);
+		histogram.record(1000);
+		Histogram copy = new Histogram();
+		histogram.copyTo(copy);
+		assertEquals(2, copy.getCount());
+		assertEquals(505, copy.getMean());
+
+		histogram.record(20);
+		histogram.remove(copy);
+		assertEquals(1, histogram.getCount());
+		assertEquals(20, histogram.getMean());
+		assertEquals(31, histogram.getPercentile(100));
+
+		histogram.copyTo(copy);
+		histogram.remove(copy);
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		histogram.record(7);
+		assertEquals(7, histogram.getMin());
+	}
+}
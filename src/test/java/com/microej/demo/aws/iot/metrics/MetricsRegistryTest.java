@@ -0,0 +1,99 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.payload.JsonReader;
+import com.microej.demo.aws.iot.payload.JsonWriter;
+import com.microej.demo.aws.iot.payload.PayloadWriter;
+
+/**
+ * Tests the snapshots of a {@link MetricsRegistry}.
+ */
+@SuppressWarnings("nls")
+public class MetricsRegistryTest {
+
+	private static final int PAYLOAD_SIZE = 1024;
+
+	/**
+	 * Tests that the histogram values are kept until a snapshot is published.
+	 */
+	@Test
+	public void testHistogramClearedOncePublished() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Histogram latency = registry.histogram("publish.latency");
+		latency.record(10);
+		latency.record(20);
+
+		// not published, for example while disconnected
+		assertEquals(2, readHistogramCount(snapshot(registry)));
+		latency.record(30);
+		assertEquals(3, readHistogramCount(snapshot(registry)));
+
+		// recorded between the snapshot and its publication
+		latency.record(40);
+		registry.onSnapshotPublished();
+		assertEquals(1, latency.getCount());
+		assertEquals(40, latency.getMean());
+		assertEquals(1, readHistogramCount(snapshot(registry)));
+	}
+
+	/**
+	 * Tests that the topic counters of a snapshot are bounded by the capacity of the writer.
+	 */
+	@Test
+	public void testTopicCountersBounded() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("publish.count").increment();
+		int messages = 0;
+		for (int i = 0; i < 40; i++) {
+			for (int j = 0; j <= i; j++) {
+				registry.onMessageReceived("$aws/things/Thermostat-" + i + "/shadow/name/runtime/update/accepted");
+				messages++;
+			}
+		}
+
+		byte[] snapshot = snapshot(registry);
+
+		assertTrue(snapshot.length <= PAYLOAD_SIZE);
+		JsonReader reader = new JsonReader().reset(snapshot);
+		reader.next();
+		assertTrue(reader.moveToMember("t"));
+		assertEquals(JsonReader.BEGIN_OBJECT, reader.next());
+		long total = 0;
+		boolean other = false;
+		while (reader.nextMember()) {
+			other |= MetricsRegistry.OTHER_TOPICS.equals(reader.stringValue());
+			reader.next();
+			total += Long.parseLong(reader.stringValue());
+		}
+		assertTrue(other);
+		assertEquals(messages, total);
+	}
+
+	private static byte[] snapshot(MetricsRegistry registry) {
+		PayloadWriter writer = new JsonWriter(PAYLOAD_SIZE).reset().beginObject();
+		registry.writeMembers(writer);
+		return writer.endObject().toPayload();
+	}
+
+	private static long readHistogramCount(byte[] snapshot) {
+		JsonReader reader = new JsonReader().reset(snapshot);
+		reader.next();
+		assertTrue(reader.moveToMember("h"));
+		reader.next();
+		assertTrue(reader.moveToMember("publish.latency"));
+		reader.next();
+		assertTrue(reader.moveToMember("n"));
+		reader.next();
+		return Long.parseLong(reader.stringValue());
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link CborWriter} and the {@link CborReader}.
+ */
+@SuppressWarnings("nls")
+public class CborCodecTest {
+
+	private static final int PAYLOAD_SIZE = 512;
+
+	/**
+	 * Tests that a written document is read back token by token.
+	 */
+	@Test
+	public void testRoundTrip() {
+		byte[] payload = SampleDocument.write(new CborWriter(PAYLOAD_SIZE));
+		SampleDocument.read(new CborReader().reset(payload));
+		SampleDocument.navigate(new CborReader(), payload);
+	}
+
+	/**
+	 * Tests that the integers are written in their shortest encoding, with the examples of RFC 8949.
+	 */
+	@Test
+	public void testIntegerEncoding() {
+		assertEncoding(new int[] { 0x00 }, 0);
+		assertEncoding(new int[] { 0x17 }, 23);
+		assertEncoding(new int[] { 0x18, 0x18 }, 24);
+		assertEncoding(new int[] { 0x19, 0x03, 0xe8 }, 1000);
+		assertEncoding(new int[] { 0x1a, 0x00, 0x0f, 0x42, 0x40 }, 1000000);
+		assertEncoding(new int[] { 0x1b, 0x00, 0x00, 0x00, 0xe8, 0xd4, 0xa5, 0x10, 0x00 }, 1000000000000L);
+		assertEncoding(new int[] { 0x20 }, -1);
+		assertEncoding(new int[] { 0x29 }, -10);
+		assertEncoding(new int[] { 0x38, 0x63 }, -100);
+		assertEncoding(new int[] { 0x39, 0x03, 0xe7 }, -1000);
+	}
+
+	/**
+	 * Tests that the documents of other writers are read: definite-length containers, tags and floats.
+	 */
+	@Test
+	public void testForeignDocument() {
+		// {"v": [1, 1.5], "t": 1(1363896240), "n": "x"} with a definite-length map and array, a half float and a tag
+		byte[] document = bytes(new int[] { 0xa3, 0x61, 'v', 0x82, 0x01, 0xf9, 0x3e, 0x00, 0x61, 't', 0xc1, 0x1a, 0x51,
+				0x4b, 0x67, 0xb0, 0x61, 'n', 0x61, 'x' });
+		CborReader reader = new CborReader().reset(document);
+		assertEquals(CborReader.BEGIN_OBJECT, reader.next());
+		assertTrue(reader.moveToMember("v"));
+		assertEquals(CborReader.BEGIN_ARRAY, reader.next());
+		assertEquals(CborReader.NUMBER, reader.next());
+		assertEquals(1, reader.longValue());
+		assertEquals(CborReader.NUMBER, reader.next());
+		assertEquals(1, reader.longValue());
+		assertEquals(CborReader.END_ARRAY, reader.next());
+		assertTrue(reader.moveToMember("t"));
+		assertEquals(CborReader.NUMBER, reader.next());
+		assertEquals(1363896240, reader.longValue());
+		assertTrue(reader.moveToMember("n"));
+		assertEquals(CborReader.STRING, reader.next());
+		assertTrue(reader.valueEquals("x"));
+		assertEquals(CborReader.END_OBJECT, reader.next());
+		assertEquals(CborReader.END_DOCUMENT, reader.next());
+	}
+
+	/**
+	 * Tests that writing beyond the capacity of the writer fails instead of truncating the document.
+	 */
+	@Test
+	public void testOverflow() {
+		CborWriter writer = new CborWriter(8).reset().beginObject();
+		try {
+			writer.name("temperature").value(21);
+			fail("overflow not detected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(2, writer.reset().beginObject().endObject().toPayload().length);
+	}
+
+	/**
+	 * Tests that a truncated document is rejected.
+	 */
+	@Test
+	public void testTruncatedDocument() {
+		byte[] payload = SampleDocument.write(new CborWriter(PAYLOAD_SIZE));
+		byte[] truncated = new byte[payload.length / 2];
+		System.arraycopy(payload, 0, truncated, 0, truncated.length);
+		CborReader reader = new CborReader().reset(truncated);
+		try {
+			while (reader.next() != CborReader.END_DOCUMENT) {
+				// read until the error
+			}
+			// the truncation may fall between two items, the document then ends without its breaks
+			assertTrue(reader.depth() > 0);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests that a string or container length too large to fit in a long, thus negative, is rejected instead of moving
+	 * the reader backwards.
+	 */
+	@Test
+	public void testNegativeLength() {
+		int[][] payloads = { { 0x9f, 0x7b, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xf7 },
+				{ 0x5b, 0x80, 0, 0, 0, 0, 0, 0, 0 }, { 0x9b, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xf7 } };
+		for (int[] payload : payloads) {
+			CborReader reader = new CborReader().reset(bytes(payload));
+			try {
+				for (int i = 0; i < payload.length; i++) {
+					if (reader.next() == CborReader.END_DOCUMENT) {
+						break;
+					}
+				}
+				fail("negative length not detected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	private static void assertEncoding(int[] expected, long value) {
+		byte[] payload = new CborWriter(16).reset().value(value).toPayload();
+		byte[] expectedBytes = bytes(expected);
+		assertEquals(Long.toString(value), expectedBytes.length, payload.length);
+		for (int i = 0; i < expectedBytes.length; i++) {
+			assertEquals(Long.toString(value), expectedBytes[i], payload[i]);
+		}
+		CborReader reader = new CborReader().reset(payload);
+		assertEquals(CborReader.NUMBER, reader.next());
+		assertEquals(value, reader.longValue());
+	}
+
+	private static byte[] bytes(int[] values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link JsonWriter} and the {@link JsonReader}.
+ */
+@SuppressWarnings("nls")
+public class JsonCodecTest {
+
+	private static final int PAYLOAD_SIZE = 512;
+
+	/**
+	 * Tests that a written document is read back token by token.
+	 */
+	@Test
+	public void testRoundTrip() {
+		byte[] payload = SampleDocument.write(new JsonWriter(PAYLOAD_SIZE));
+		SampleDocument.read(new JsonReader().reset(payload));
+		SampleDocument.navigate(new JsonReader(), payload);
+	}
+
+	/**
+	 * Tests the text of a written document.
+	 */
+	@Test
+	public void testWrittenText() {
+		JsonWriter writer = new JsonWriter(PAYLOAD_SIZE).reset().beginObject();
+		writer.name("a").value(1).name("b").beginArray().value("x").value(true).value((String) null).endArray();
+		writer.name("c").value("say \"hi\"\\");
+		assertEquals("{\"a\":1,\"b\":[\"x\",true,null],\"c\":\"say \\\"hi\\\"\\\\\"}",
+				new String(writer.endObject().toPayload()));
+	}
+
+	/**
+	 * Tests that the documents of other writers are read: whitespaces, escape sequences and fractional numbers.
+	 */
+	@Test
+	public void testForeignDocument() {
+		String document = " {\n\t\"state\" : { \"desired\" : { \"name\" : \"\\u0041\\/B\" , \"ratio\" : -12.5e1 } } ,"
+				+ " \"list\" : [ ] , \"version\" : 42 }\n";
+		JsonReader reader = new JsonReader().reset(document.getBytes());
+		reader.next();
+		assertTrue(reader.moveToMember("state"));
+		reader.next();
+		assertTrue(reader.moveToMember("desired"));
+		reader.next();
+		assertTrue(reader.moveToMember("name"));
+		reader.next();
+		assertEquals("A/B", reader.stringValue());
+		assertTrue(reader.moveToMember("ratio"));
+		reader.next();
+		assertEquals(-12, reader.longValue());
+		assertEquals(JsonReader.END_OBJECT, reader.next());
+		assertEquals(JsonReader.END_OBJECT, reader.next());
+		assertTrue(reader.moveToMember("version"));
+		reader.next();
+		assertEquals(42, reader.longValue());
+	}
+
+	/**
+	 * Tests that writing beyond the capacity of the writer fails instead of truncating the document.
+	 */
+	@Test
+	public void testOverflow() {
+		JsonWriter writer = new JsonWriter(16).reset().beginObject();
+		try {
+			writer.name("temperature").value(21).name("unit").value("C");
+			fail("overflow not detected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// the writer can be reused
+		assertEquals("{}", new String(writer.reset().beginObject().endObject().toPayload()));
+	}
+
+	/**
+	 * Tests that a malformed document is rejected.
+	 */
+	@Test
+	public void testMalformedDocument() {
+		JsonReader reader = new JsonReader().reset("{\"name\":\"unterminated}".getBytes());
+		try {
+			while (reader.next() != JsonReader.END_DOCUMENT) {
+				// read until the error
+			}
+			fail("malformed document not detected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.publish.BatchPublisher;
+import com.microej.demo.aws.iot.publish.MessagePublisher;
+
+/**
+ * Counts the memory allocated per publication on the hot path: encoding a document and flushing a batch must only
+ * allocate the payload array handed over to the publisher.
+ * <p>
+ * The payloads are kept until the end of a measurement, so that a garbage collection during the measurement cannot
+ * hide an allocation.
+ * <p>
+ * On a JVM, the heap is handed out to the threads in allocation buffers (TLAB) of several kilobytes, so the free memory
+ * only changes by whole buffers. The bytes allocated by the thread are then read from the
+ * {@code com.sun.management.ThreadMXBean} of the JVM, which counts each allocation whatever the buffers. The bean is
+ * looked up by reflection, as it is not available on the MicroEJ VM, whose free memory changes with each allocation
+ * and is used instead.
+ */
+@SuppressWarnings("nls")
+public class PayloadAllocationTest {
+
+	private static final int PAYLOAD_SIZE = 512;
+	private static final int ITERATIONS = 20;
+	private static final int BATCH_SIZE = 5;
+	// Maximum size of the header of an array
+	private static final int ARRAY_HEADER_SIZE = 16;
+	// Size of a reference in an array
+	private static final int REFERENCE_SIZE = 8;
+	// Bytes allocated by a measurement itself, whatever the number of iterations
+	private static final int MEASUREMENT_SLACK = 256;
+
+	// Calls warming up the reflective accessor of the bean, so that its generation is not measured
+	private static final int BEAN_WARM_UP = 20;
+
+	private static final String[] SAMPLES = { "MicroEJ", "is", "a", "unique", "solution" };
+
+	private static Object threadBean;
+	private static Method allocatedBytesMethod;
+
+	static {
+		try {
+			Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean")
+					.invoke(null);
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes",
+					long.class);
+			long allocated = 0;
+			for (int i = 0; i < BEAN_WARM_UP; i++) {
+				allocated = ((Long) method.invoke(bean, Thread.currentThread().getId())).longValue();
+			}
+			// negative when the JVM does not count the allocations
+			if (allocated >= 0) {
+				threadBean = bean;
+				allocatedBytesMethod = method;
+			}
+		} catch (Exception e) {
+			// not a HotSpot based JVM, the free memory is measured
+		}
+	}
+
+	/**
+	 * Publisher keeping the payloads until the end of the measurement.
+	 */
+	private static class KeepingPublisher implements MessagePublisher {
+		final byte[][] payloads = new byte[ITERATIONS][];
+		int count;
+		int size;
+
+		@Override
+		public void publish(String topic, byte[] data) {
+			this.payloads[this.count++] = data;
+			this.size = data.length;
+		}
+	}
+
+	/**
+	 * Tests that writing a JSON document only allocates its payload.
+	 */
+	@Test
+	public void testJsonDocument() {
+		testDocument(new JsonWriter(PAYLOAD_SIZE));
+	}
+
+	/**
+	 * Tests that writing a CBOR document only allocates its payload.
+	 */
+	@Test
+	public void testCborDocument() {
+		testDocument(new CborWriter(PAYLOAD_SIZE));
+	}
+
+	/**
+	 * Tests that flushing a JSON batch only allocates its payload.
+	 */
+	@Test
+	public void testJsonBatch() {
+		testBatch(PayloadFormat.JSON);
+	}
+
+	/**
+	 * Tests that flushing a CBOR batch only allocates its payload.
+	 */
+	@Test
+	public void testCborBatch() {
+		testBatch(PayloadFormat.CBOR);
+	}
+
+	private static void testDocument(PayloadWriter writer) {
+		byte[][] payloads = new byte[ITERATIONS][];
+		// warm up
+		int size = writeDocument(writer).length;
+
+		long start = startMeasurement();
+		for (int i = 0; i < ITERATIONS; i++) {
+			payloads[i] = writeDocument(writer);
+		}
+		long allocated = allocatedBytes() - start;
+
+		assertAllocated(allocated, size);
+		assertTrue(payloads[ITERATIONS - 1].length == size);
+	}
+
+	private static void testBatch(PayloadFormat format) {
+		KeepingPublisher publisher = new KeepingPublisher();
+		BatchPublisher batchPublisher = new BatchPublisher(publisher, "sample", BATCH_SIZE, BATCH_SIZE, Long.MAX_VALUE,
+				format.newWriter(PAYLOAD_SIZE), null);
+		try {
+			// warm up
+			fillBatch(batchPublisher);
+			batchPublisher.flush();
+			publisher.count = 0;
+
+			long start = startMeasurement();
+			for (int i = 0; i < ITERATIONS; i++) {
+				fillBatch(batchPublisher);
+				batchPublisher.flush();
+			}
+			long allocated = allocatedBytes() - start;
+
+			assertAllocated(allocated, publisher.size);
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static void fillBatch(BatchPublisher batchPublisher) {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			batchPublisher.add(SAMPLES[i]);
+		}
+	}
+
+	private static byte[] writeDocument(PayloadWriter writer) {
+		writer.reset().beginObject();
+		writer.name("temperature").value(21).name("unit").value("C").name("heating").value(true);
+		writer.name("location").beginObject().name("city").value("Nantes").endObject();
+		return writer.endObject().toPayload();
+	}
+
+	private static long startMeasurement() {
+		Runtime.getRuntime().gc();
+		return allocatedBytes();
+	}
+
+	/**
+	 * Gets the bytes allocated by the current thread, or the used memory when they are not counted by the VM. Only
+	 * the difference between two calls is meaningful.
+	 */
+	private static long allocatedBytes() {
+		if (allocatedBytesMethod != null) {
+			try {
+				return ((Long) allocatedBytesMethod.invoke(threadBean, Thread.currentThread().getId())).longValue();
+			} catch (Exception e) {
+				throw new AssertionError(e);
+			}
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void assertAllocated(long allocated, int payloadSize) {
+		long expected = align(ARRAY_HEADER_SIZE + payloadSize);
+		assertTrue("allocated " + (allocated / ITERATIONS) + " bytes per publication, expected at most " + expected,
+				allocated <= ITERATIONS * expected + MEASUREMENT_SLACK);
+	}
+
+	private static long align(long size) {
+		return (size + REFERENCE_SIZE - 1) / REFERENCE_SIZE * REFERENCE_SIZE;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.payload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Document written and read back by the tests of the payload formats, with every kind of token.
+ */
+@SuppressWarnings("nls")
+class SampleDocument {
+
+	static final String ESCAPED = "a \"quoted\" \\ path\n";
+	static final long[] HISTORY = { 0, 23, 24, 255, 256, 65535, 65536, 4294967296L, -1, -24, -25, -65537 };
+
+	private SampleDocument() {
+		// static methods only
+	}
+
+	/**
+	 * Writes the document.
+	 *
+	 * @return the payload
+	 */
+	static byte[] write(PayloadWriter writer) {
+		writer.reset().beginObject();
+		writer.name("temperature").value(-21);
+		writer.name("max").value(Long.MAX_VALUE);
+		writer.name("min").value(Long.MIN_VALUE);
+		writer.name("unit").value("C");
+		writer.name("label").value(ESCAPED);
+		writer.name("heating").value(true);
+		writer.name("cooling").value(false);
+		writer.name("error").value((String) null);
+		writer.name("history").beginArray();
+		for (long value : HISTORY) {
+			writer.value(value);
+		}
+		writer.endArray();
+		writer.name("location").beginObject().name("city").value("Nantes").name("empty").beginObject().endObject()
+				.endObject();
+		return writer.endObject().toPayload();
+	}
+
+	/**
+	 * Reads the document token by token.
+	 */
+	static void read(PayloadReader reader) {
+		assertEquals(PayloadReader.BEGIN_OBJECT, reader.next());
+		assertEquals(1, reader.depth());
+		assertMember(reader, "temperature", PayloadReader.NUMBER);
+		assertEquals(-21, reader.longValue());
+		assertMember(reader, "max", PayloadReader.NUMBER);
+		assertEquals(Long.MAX_VALUE, reader.longValue());
+		assertMember(reader, "min", PayloadReader.NUMBER);
+		assertEquals(Long.MIN_VALUE, reader.longValue());
+		assertMember(reader, "unit", PayloadReader.STRING);
+		assertTrue(reader.valueEquals("C"));
+		assertFalse(reader.valueEquals("F"));
+		assertMember(reader, "label", PayloadReader.STRING);
+		assertEquals(ESCAPED, reader.stringValue());
+		assertMember(reader, "heating", PayloadReader.BOOLEAN);
+		assertTrue(reader.booleanValue());
+		assertMember(reader, "cooling", PayloadReader.BOOLEAN);
+		assertFalse(reader.booleanValue());
+		assertMember(reader, "error", PayloadReader.NULL);
+		assertMember(reader, "history", PayloadReader.BEGIN_ARRAY);
+		assertEquals(2, reader.depth());
+		for (long value : HISTORY) {
+			assertEquals(PayloadReader.NUMBER, reader.next());
+			assertEquals(value, reader.longValue());
+		}
+		assertEquals(PayloadReader.END_ARRAY, reader.next());
+		assertMember(reader, "location", PayloadReader.BEGIN_OBJECT);
+		assertMember(reader, "city", PayloadReader.STRING);
+		assertEquals("Nantes", reader.stringValue());
+		assertMember(reader, "empty", PayloadReader.BEGIN_OBJECT);
+		assertEquals(PayloadReader.END_OBJECT, reader.next());
+		assertEquals(PayloadReader.END_OBJECT, reader.next());
+		assertEquals(1, reader.depth());
+		assertEquals(PayloadReader.END_OBJECT, reader.next());
+		assertEquals(0, reader.depth());
+		assertEquals(PayloadReader.END_DOCUMENT, reader.next());
+	}
+
+	/**
+	 * Reads the document by moving to some of its members, skipping the other ones.
+	 */
+	static void navigate(PayloadReader reader, byte[] payload) {
+		reader.reset(payload).next();
+		assertTrue(reader.moveToMember("history"));
+		reader.skipValue();
+		assertTrue(reader.nextMember());
+		assertTrue(reader.nameEquals("location"));
+		reader.next();
+		assertTrue(reader.moveToMember("empty"));
+		assertFalse(reader.nextMember());
+		assertFalse(reader.nextMember());
+		assertEquals(0, reader.depth());
+
+		reader.reset(payload).next();
+		assertFalse(reader.moveToMember("pressure"));
+		assertEquals(PayloadReader.END_OBJECT, reader.token());
+	}
+
+	private static void assertMember(PayloadReader reader, String name, int token) {
+		assertEquals(PayloadReader.NAME, reader.next());
+		assertTrue(name, reader.nameEquals(name));
+		assertEquals(name, reader.stringValue());
+		assertEquals(name, token, reader.next());
+	}
+}
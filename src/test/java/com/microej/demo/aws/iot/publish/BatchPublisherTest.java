@@ -0,0 +1,226 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.metrics.LatencyProbe;
+import com.microej.demo.aws.iot.payload.JsonReader;
+import com.microej.demo.aws.iot.payload.JsonWriter;
+
+import ej.aws.iot.AwsIotException;
+
+/**
+ * Tests the flushes of a {@link BatchPublisher}: backlog larger than a message, oversized sample and concurrent adds.
+ */
+@SuppressWarnings("nls")
+public class BatchPublisherTest {
+
+	private static final int CAPACITY = 32;
+	private static final int PAYLOAD_SIZE = 1024;
+	private static final long TIMEOUT = 5000;
+
+	/**
+	 * Publisher recording the payloads, failing while {@link #failing} is set.
+	 */
+	private static class RecordingPublisher implements MessagePublisher {
+		final List<byte[]> payloads = new ArrayList<>();
+		boolean failing;
+
+		@Override
+		public void publish(String topic, byte[] data) throws AwsIotException {
+			if (this.failing) {
+				throw new AwsIotException("disconnected");
+			}
+			this.payloads.add(data);
+		}
+	}
+
+	/**
+	 * Publisher blocking until released, then failing or recording the payloads.
+	 */
+	private static class BlockingPublisher implements MessagePublisher {
+		final List<byte[]> payloads = new ArrayList<>();
+		boolean publishing;
+		boolean released;
+		boolean failing;
+
+		@Override
+		public synchronized void publish(String topic, byte[] data) throws AwsIotException {
+			this.publishing = true;
+			notifyAll();
+			try {
+				while (!this.released) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (this.failing) {
+				this.failing = false;
+				this.released = false;
+				throw new AwsIotException("disconnected");
+			}
+			this.payloads.add(data);
+		}
+
+		synchronized boolean awaitPublishing() throws InterruptedException {
+			long end = System.currentTimeMillis() + TIMEOUT;
+			while (!this.publishing) {
+				long delay = end - System.currentTimeMillis();
+				if (delay <= 0) {
+					return false;
+				}
+				wait(delay);
+			}
+			return true;
+		}
+
+		synchronized void release(boolean fail) {
+			this.released = true;
+			this.failing = fail;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Tests that a backlog larger than a message is published over several flushes, in order and without loss.
+	 *
+	 * @throws AwsIotException
+	 *             not expected
+	 */
+	@Test
+	public void testBacklogDrained() throws AwsIotException {
+		RecordingPublisher publisher = new RecordingPublisher();
+		BatchPublisher batchPublisher = new BatchPublisher(publisher, "sample", CAPACITY, CAPACITY, Long.MAX_VALUE,
+				new JsonWriter(PAYLOAD_SIZE), new LatencyProbe(0));
+
+		publisher.failing = true;
+		for (int i = 0; i < CAPACITY; i++) {
+			batchPublisher.add("sample-" + i);
+			try {
+				batchPublisher.flushIfNeeded();
+			} catch (AwsIotException e) {
+				// disconnected, the samples stay in the buffer
+			}
+		}
+		assertEquals(CAPACITY, batchPublisher.size());
+
+		publisher.failing = false;
+		int flushes = 0;
+		while (batchPublisher.size() > 0) {
+			batchPublisher.flush();
+			flushes++;
+			assertTrue("no progress", flushes <= CAPACITY);
+		}
+
+		assertTrue("backlog published in a single message", flushes > 1);
+		assertEquals(flushes, publisher.payloads.size());
+		int next = 0;
+		for (byte[] payload : publisher.payloads) {
+			assertTrue(payload.length <= PAYLOAD_SIZE);
+			next = assertSamples(payload, next);
+		}
+		assertEquals(CAPACITY, next);
+		assertEquals(0, batchPublisher.getDroppedCount());
+	}
+
+	/**
+	 * Tests that a sample too large for a message is dropped instead of blocking the next ones.
+	 *
+	 * @throws AwsIotException
+	 *             not expected
+	 */
+	@Test
+	public void testOversizedSampleDropped() throws AwsIotException {
+		RecordingPublisher publisher = new RecordingPublisher();
+		BatchPublisher batchPublisher = new BatchPublisher(publisher, "sample", CAPACITY, CAPACITY, Long.MAX_VALUE,
+				new JsonWriter(64), null);
+		StringBuilder oversized = new StringBuilder();
+		for (int i = 0; i < 64; i++) {
+			oversized.append('x');
+		}
+		batchPublisher.add(oversized.toString());
+		batchPublisher.add("sample-0");
+
+		batchPublisher.flush();
+
+		assertEquals(1, batchPublisher.getDroppedCount());
+		assertEquals(0, batchPublisher.size());
+		assertEquals(1, publisher.payloads.size());
+		assertEquals(1, assertSamples(publisher.payloads.get(0), 0));
+	}
+
+	/**
+	 * Tests that samples can be added while a batch is being published, and that the samples of a failed publication
+	 * are put back before them.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testAddDuringPublish() throws Exception {
+		final BlockingPublisher publisher = new BlockingPublisher();
+		final BatchPublisher batchPublisher = new BatchPublisher(publisher, "sample", CAPACITY, CAPACITY,
+				Long.MAX_VALUE, new JsonWriter(PAYLOAD_SIZE), null);
+		batchPublisher.add("sample-0");
+		batchPublisher.add("sample-1");
+		Thread flusher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					batchPublisher.flush();
+				} catch (AwsIotException e) {
+					// expected, the samples are put back
+				}
+			}
+		};
+		flusher.start();
+		assertTrue(publisher.awaitPublishing());
+
+		// the samples of the batch being published have been taken from the buffer
+		assertEquals(0, batchPublisher.size());
+		batchPublisher.add("sample-2");
+		assertEquals(1, batchPublisher.size());
+
+		publisher.release(true);
+		flusher.join(TIMEOUT);
+		assertEquals(3, batchPublisher.size());
+
+		publisher.release(false);
+		batchPublisher.flush();
+		assertEquals(0, batchPublisher.size());
+		assertEquals(3, assertSamples(publisher.payloads.get(0), 0));
+	}
+
+	/**
+	 * Checks that a batch holds the consecutive samples starting at the given index.
+	 *
+	 * @return the index of the sample following the batch
+	 */
+	private static int assertSamples(byte[] payload, int first) {
+		JsonReader reader = new JsonReader().reset(payload);
+		assertEquals(JsonReader.BEGIN_ARRAY, reader.next());
+		int next = first;
+		while (reader.next() == JsonReader.BEGIN_OBJECT) {
+			assertTrue(reader.moveToMember("message"));
+			reader.next();
+			assertEquals("sample-" + next, reader.stringValue());
+			while (reader.nextMember()) {
+				reader.skipValue();
+			}
+			next++;
+		}
+		return next;
+	}
+}
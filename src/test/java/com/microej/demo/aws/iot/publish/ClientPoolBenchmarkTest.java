@@ -0,0 +1,136 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.tools.BrokerStandIn;
+import com.microej.demo.aws.iot.tools.MqttTestClient;
+import com.microej.demo.aws.iot.tools.TestSupervisor;
+
+import ej.aws.iot.AwsIotException;
+import ej.bon.Util;
+
+/**
+ * Measures the aggregate throughput of a {@link ClientPool} versus its number of connections, against a
+ * {@link BrokerStandIn} limiting the publications per connection as AWS IoT Core does. The messages are published
+ * through a {@link PublishWindow}, as by the demo, over more topics than connections. The measurements are logged; the
+ * assertions check that every message is published and that the pool scales.
+ */
+@SuppressWarnings("nls")
+public class ClientPoolBenchmarkTest {
+
+	private static final Logger LOGGER = Logger.getLogger(ClientPoolBenchmarkTest.class.getName());
+
+	private static final int[] SHARD_COUNTS = { 1, 2, 4 };
+	// Publications per second and per connection
+	private static final int RATE_LIMIT = 100;
+	private static final int MESSAGES = 150;
+	private static final int TOPICS = 16;
+	private static final int WINDOW_SIZE = 8;
+	private static final long TIMEOUT = 20000;
+	private static final int VIRTUAL_NODES = 32;
+	private static final String TOPIC_PREFIX = "awsiot/demo/sample/";
+
+	/**
+	 * Callback counting the completed messages.
+	 */
+	private static class CompletionCounter implements PublishCallback {
+		int published;
+		int failed;
+
+		@Override
+		public synchronized void onPublished(String topic, byte[] payload) {
+			this.published++;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void onFailed(String topic, byte[] payload, AwsIotException error) {
+			this.failed++;
+			notifyAll();
+		}
+
+		synchronized boolean await(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + TIMEOUT;
+			while (this.published + this.failed < count) {
+				long delay = end - System.currentTimeMillis();
+				if (delay <= 0) {
+					return false;
+				}
+				wait(delay);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Measures the throughput for an increasing number of connections.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testThroughputVersusShards() throws Exception {
+		long singleThroughput = 0;
+		long throughput = 0;
+		for (int shardCount : SHARD_COUNTS) {
+			throughput = measure(shardCount);
+			if (shardCount == 1) {
+				singleThroughput = throughput;
+			}
+			LOGGER.info("Client pool: " + shardCount + " connections, " + throughput + " msg/s (limit " + RATE_LIMIT
+					+ " msg/s per connection)");
+		}
+		assertTrue(throughput > singleThroughput);
+	}
+
+	private static long measure(int shardCount) throws Exception {
+		BrokerStandIn broker = new BrokerStandIn();
+		broker.setPublishRateLimit(RATE_LIMIT);
+		int port = broker.start(0);
+		MqttTestClient[] clients = new MqttTestClient[shardCount];
+		PublishWindow window = null;
+		try {
+			ClientPool pool = new ClientPool(VIRTUAL_NODES, TIMEOUT);
+			for (int i = 0; i < shardCount; i++) {
+				String clientId = "Thermostat-" + i;
+				clients[i] = MqttTestClient.connect(clientId, port, null);
+				pool.addShard(clientId, clients[i], new TestSupervisor(clientId, clients[i]));
+			}
+			window = new PublishWindow(pool, WINDOW_SIZE, TIMEOUT);
+			CompletionCounter counter = new CompletionCounter();
+			window.setCallback(counter);
+			window.start();
+
+			byte[] payload = new byte[100];
+			long start = Util.platformTimeNanos();
+			for (int i = 0; i < MESSAGES; i++) {
+				window.publish(TOPIC_PREFIX + i % TOPICS, payload);
+			}
+			assertTrue(counter.await(MESSAGES));
+			long duration = Util.platformTimeNanos() - start;
+			assertEquals(MESSAGES, counter.published);
+			return MESSAGES * 1_000_000_000L / duration;
+		} finally {
+			if (window != null) {
+				window.stop();
+			}
+			for (MqttTestClient client : clients) {
+				if (client != null) {
+					client.close();
+				}
+			}
+			broker.stop();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.tools.BrokerStandIn;
+import com.microej.demo.aws.iot.tools.MessageRecorder;
+import com.microej.demo.aws.iot.tools.MqttTestClient;
+import com.microej.demo.aws.iot.tools.TestSupervisor;
+
+import ej.aws.iot.AwsIotMessage;
+
+/**
+ * Tests the sharding of the topics of a {@link ClientPool} over connections to a {@link BrokerStandIn}.
+ */
+@SuppressWarnings("nls")
+public class ClientPoolTest {
+
+	private static final int SHARDS = 4;
+	private static final int TOPICS = 40;
+	private static final int VIRTUAL_NODES = 16;
+	private static final String TOPIC_PREFIX = "awsiot/demo/sample/";
+
+	private BrokerStandIn broker;
+	private int port;
+	private MqttTestClient[] clients;
+	private ClientPool pool;
+
+	/**
+	 * Starts the broker and connects the shards of the pool.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Before
+	public void startPool() throws Exception {
+		this.broker = new BrokerStandIn();
+		this.port = this.broker.start(0);
+		this.clients = new MqttTestClient[SHARDS];
+		this.pool = new ClientPool(VIRTUAL_NODES, 60000);
+		for (int i = 0; i < SHARDS; i++) {
+			String clientId = "Thermostat-" + i;
+			MqttTestClient client = MqttTestClient.connect(clientId, this.port, null);
+			this.clients[i] = client;
+			this.pool.addShard(clientId, client, new TestSupervisor(clientId, client));
+		}
+	}
+
+	/**
+	 * Stops the broker.
+	 */
+	@After
+	public void stopBroker() {
+		for (MqttTestClient client : this.clients) {
+			client.close();
+		}
+		this.broker.stop();
+	}
+
+	/**
+	 * Tests that the topics are spread over all the shards and that the messages of a topic stay ordered.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testTopicsSpread() throws Exception {
+		MessageRecorder recorder = subscribe();
+		int messages = publishRound(3);
+
+		assertTrue(recorder.await(messages));
+		assertEquals(SHARDS, this.pool.getHealthyCount());
+		long published = 0;
+		for (int i = 0; i < SHARDS; i++) {
+			assertTrue("shard " + i + " unused", this.pool.getPublishedCount(i) > 0);
+			published += this.pool.getPublishedCount(i);
+		}
+		assertEquals(messages, published);
+		assertOrdered(recorder);
+	}
+
+	/**
+	 * Tests that the topics of a lost connection go to the other shards without loss, and only them.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testConnectionLost() throws Exception {
+		MessageRecorder recorder = subscribe();
+		String lostId = this.pool.getShardId(TOPIC_PREFIX + 0);
+		int lost = Integer.parseInt(lostId.substring(lostId.indexOf('-') + 1));
+		long[] before = new long[SHARDS];
+		for (int i = 0; i < SHARDS; i++) {
+			before[i] = this.pool.getPublishedCount(i);
+		}
+
+		this.clients[lost].close();
+		assertEquals(SHARDS - 1, this.pool.getHealthyCount());
+		int messages = publishRound(2);
+
+		assertTrue(recorder.await(messages));
+		assertEquals(before[lost], this.pool.getPublishedCount(lost));
+		assertOrdered(recorder);
+	}
+
+	/**
+	 * Tests that adding a shard only moves the topics it takes over.
+	 */
+	@Test
+	public void testConsistentHashing() {
+		String[] owners = new String[TOPICS];
+		for (int i = 0; i < TOPICS; i++) {
+			owners[i] = this.pool.getShardId(TOPIC_PREFIX + i);
+		}
+		String newId = "Thermostat-" + SHARDS;
+		this.pool.addShard(newId, this.clients[0], new TestSupervisor(newId, this.clients[0]));
+
+		int moved = 0;
+		for (int i = 0; i < TOPICS; i++) {
+			String owner = this.pool.getShardId(TOPIC_PREFIX + i);
+			if (!owner.equals(owners[i])) {
+				assertEquals(newId, owner);
+				moved++;
+			}
+		}
+		assertTrue(moved > 0 && moved < TOPICS / 2);
+	}
+
+	private MessageRecorder subscribe() throws Exception {
+		MessageRecorder recorder = new MessageRecorder();
+		MqttTestClient subscriber = MqttTestClient.connect("subscriber", this.port, recorder);
+		subscriber.subscribe(TOPIC_PREFIX + "+");
+		return recorder;
+	}
+
+	/**
+	 * Publishes messages numbered in sequence on every topic.
+	 *
+	 * @return the number of messages published
+	 */
+	private int publishRound(int count) throws Exception {
+		for (int sequence = 0; sequence < count; sequence++) {
+			for (int topic = 0; topic < TOPICS; topic++) {
+				this.pool.publish(TOPIC_PREFIX + topic, Integer.toString(sequence).getBytes());
+			}
+		}
+		return count * TOPICS;
+	}
+
+	private static void assertOrdered(MessageRecorder recorder) {
+		Map<String, Integer> last = new HashMap<>();
+		for (int i = 0; i < recorder.size(); i++) {
+			AwsIotMessage message = recorder.get(i);
+			int sequence = Integer.parseInt(new String(message.getPayload()));
+			Integer previous = last.put(message.getTopic(), Integer.valueOf(sequence));
+			assertEquals(message.getTopic(), previous == null ? 0 : previous.intValue() + 1, sequence);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.tools.BrokerStandIn;
+import com.microej.demo.aws.iot.tools.MessageRecorder;
+import com.microej.demo.aws.iot.tools.MqttTestClient;
+
+import ej.bon.Util;
+
+/**
+ * Measures the write throughput of an {@link OfflineQueue} and the time to replay it to a {@link BrokerStandIn}, with
+ * the size and the replay rate of the demo ({@code aws.offline.*} constants). The measurements are logged; the
+ * assertions only check that every message is stored and replayed in order.
+ */
+@SuppressWarnings("nls")
+public class OfflineQueueBenchmarkTest {
+
+	private static final Logger LOGGER = Logger.getLogger(OfflineQueueBenchmarkTest.class.getName());
+
+	private static final String PATH = "offline-queue-benchmark.log";
+	private static final String TOPIC = "awsiot/demo/sample";
+	// aws.offline.queue.size, aws.offline.replay.count and aws.offline.replay.period
+	private static final int MAX_SIZE = 65536;
+	private static final int REPLAY_COUNT = 4;
+	private static final long REPLAY_PERIOD = 1000;
+	// Size of a sample batch in JSON
+	private static final int PAYLOAD_SIZE = 100;
+	// Number of messages filling most of the queue, a record taking 7 bytes, the topic and the payload
+	private static final int MESSAGES = 480;
+
+	/**
+	 * Deletes the files of the queue.
+	 */
+	@Before
+	@After
+	public void deleteFiles() {
+		new File(PATH).delete();
+		new File(PATH + ".ack").delete();
+		new File(PATH + ".tmp").delete();
+	}
+
+	/**
+	 * Measures the time to append messages to the queue, as while disconnected, and to reopen it, as after a reboot.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testWriteThroughput() throws Exception {
+		OfflineQueue queue = new OfflineQueue(PATH, MAX_SIZE);
+		long start = Util.platformTimeNanos();
+		appendMessages(queue);
+		long writeTime = Util.platformTimeNanos() - start;
+
+		start = Util.platformTimeNanos();
+		queue = new OfflineQueue(PATH, MAX_SIZE);
+		long openTime = Util.platformTimeNanos() - start;
+
+		assertEquals(MESSAGES, queue.size());
+		assertEquals(0, queue.getDroppedCount());
+		LOGGER.info("Offline queue: " + MESSAGES + " appends of " + PAYLOAD_SIZE + " bytes in " + toMicros(writeTime)
+				+ " us (" + perSecond(MESSAGES, writeTime) + " msg/s, " + perSecond(MESSAGES * PAYLOAD_SIZE, writeTime)
+				+ " B/s), reopened in " + toMicros(openTime) + " us");
+	}
+
+	/**
+	 * Measures the time to replay a full queue to the broker, once the connection is back, until the last message is
+	 * received by a subscriber.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testReplayTime() throws Exception {
+		OfflineQueue queue = new OfflineQueue(PATH, MAX_SIZE);
+		appendMessages(queue);
+
+		BrokerStandIn broker = new BrokerStandIn();
+		int port = broker.start(0);
+		try {
+			MessageRecorder recorder = new MessageRecorder();
+			MqttTestClient subscriber = MqttTestClient.connect("subscriber", port, recorder);
+			subscriber.subscribe(TOPIC);
+			MqttTestClient device = MqttTestClient.connect("device", port, null);
+
+			long start = Util.platformTimeNanos();
+			int calls = 0;
+			while (!queue.isEmpty()) {
+				queue.replay(device, REPLAY_COUNT);
+				calls++;
+			}
+			long replayTime = Util.platformTimeNanos() - start;
+			assertTrue(recorder.await(MESSAGES));
+			long deliveryTime = Util.platformTimeNanos() - start;
+
+			for (int i = 0; i < MESSAGES; i++) {
+				assertEquals(i, readIndex(recorder.get(i).getPayload()));
+			}
+			LOGGER.info("Offline queue: " + MESSAGES + " messages replayed in " + calls + " calls of " + REPLAY_COUNT
+					+ ", " + toMicros(replayTime) + " us (" + perSecond(MESSAGES, replayTime) + " msg/s), received in "
+					+ toMicros(deliveryTime) + " us; at one call every " + REPLAY_PERIOD + " ms, the replay takes "
+					+ (calls - 1) * REPLAY_PERIOD / 1000 + " s");
+			device.close();
+			subscriber.close();
+		} finally {
+			broker.stop();
+		}
+	}
+
+	private static void appendMessages(OfflineQueue queue) throws Exception {
+		byte[] payload = new byte[PAYLOAD_SIZE];
+		for (int i = 0; i < PAYLOAD_SIZE; i++) {
+			payload[i] = '0';
+		}
+		for (int i = 0; i < MESSAGES; i++) {
+			// the index is written at the beginning of the payload, to check the order of the replay
+			payload[0] = (byte) (i >> 8);
+			payload[1] = (byte) i;
+			assertTrue(queue.append(TOPIC, payload));
+		}
+	}
+
+	private static int readIndex(byte[] payload) {
+		return ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+	}
+
+	private static long toMicros(long nanos) {
+		return nanos / 1000;
+	}
+
+	private static long perSecond(long count, long nanos) {
+		return nanos == 0 ? 0 : count * 1_000_000_000L / nanos;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.tools.BrokerStandIn;
+import com.microej.demo.aws.iot.tools.MessageRecorder;
+import com.microej.demo.aws.iot.tools.MqttTestClient;
+
+/**
+ * Tests the replay of an {@link OfflineQueue}, to a {@link BrokerStandIn} and when its log contains invalid records.
+ */
+@SuppressWarnings("nls")
+public class OfflineQueueTest {
+
+	private static final String PATH = "offline-queue-test.log";
+	private static final int MAX_SIZE = 4096;
+	// Size of the header of a record: marker, topic length and payload length
+	private static final int HEADER_SIZE = 7;
+	private static final String TOPIC = "awsiot/demo/sample";
+
+	/**
+	 * Publisher recording the payloads.
+	 */
+	private static class RecordingPublisher implements MessagePublisher {
+		final List<String> payloads = new ArrayList<>();
+
+		@Override
+		public void publish(String topic, byte[] data) {
+			this.payloads.add(new String(data));
+		}
+	}
+
+	/**
+	 * Deletes the files of the queue.
+	 */
+	@Before
+	@After
+	public void deleteFiles() {
+		new File(PATH).delete();
+		new File(PATH + ".ack").delete();
+		new File(PATH + ".tmp").delete();
+	}
+
+	/**
+	 * Tests that a record with an oversized length is discarded, with the following ones, when the queue is opened.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testInvalidLengthOnOpen() throws Exception {
+		OfflineQueue queue = new OfflineQueue(PATH, MAX_SIZE);
+		appendMessages(queue, 3);
+
+		corruptPayloadLength(1);
+		queue = new OfflineQueue(PATH, MAX_SIZE);
+
+		assertEquals(1, queue.size());
+		RecordingPublisher publisher = new RecordingPublisher();
+		assertEquals(1, queue.replay(publisher, 10));
+		assertEquals("message-0", publisher.payloads.get(0));
+	}
+
+	/**
+	 * Tests that a record altered after the queue is opened is detected by the replay, which truncates the queue
+	 * instead of allocating the length read.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testInvalidLengthOnReplay() throws Exception {
+		OfflineQueue queue = new OfflineQueue(PATH, MAX_SIZE);
+		appendMessages(queue, 3);
+
+		corruptPayloadLength(1);
+		RecordingPublisher publisher = new RecordingPublisher();
+
+		assertEquals(1, queue.replay(publisher, 10));
+		assertEquals(0, queue.size());
+		assertEquals(2, queue.getDroppedCount());
+
+		// the queue is usable again
+		appendMessages(queue, 1);
+		assertEquals(1, queue.replay(publisher, 10));
+		assertEquals("message-0", publisher.payloads.get(1));
+	}
+
+	/**
+	 * Tests that the messages are replayed to the broker in order, by batches, and are removed from the queue once
+	 * acknowledged.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testReplayToBroker() throws Exception {
+		OfflineQueue queue = new OfflineQueue(PATH, MAX_SIZE);
+		appendMessages(queue, 5);
+
+		BrokerStandIn broker = new BrokerStandIn();
+		int port = broker.start(0);
+		try {
+			MessageRecorder recorder = new MessageRecorder();
+			MqttTestClient subscriber = MqttTestClient.connect("subscriber", port, recorder);
+			subscriber.subscribe(TOPIC);
+			MqttTestClient device = MqttTestClient.connect("device", port, null);
+
+			assertEquals(3, queue.replay(device, 3));
+			assertEquals(2, queue.size());
+			assertEquals(2, queue.replay(device, 3));
+			assertEquals(0, queue.size());
+
+			assertTrue(recorder.await(5));
+			for (int i = 0; i < 5; i++) {
+				assertEquals("message-" + i, new String(recorder.get(i).getPayload()));
+			}
+			device.close();
+			subscriber.close();
+		} finally {
+			broker.stop();
+		}
+	}
+
+	private static void appendMessages(OfflineQueue queue, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			queue.append(TOPIC, ("message-" + i).getBytes());
+		}
+	}
+
+	/**
+	 * Sets the payload length of a record of the log to the largest positive integer. The messages of the log must
+	 * have been appended by {@link #appendMessages(OfflineQueue, int)} and be below 10.
+	 */
+	private static void corruptPayloadLength(int index) throws IOException {
+		File file = new File(PATH);
+		byte[] log = new byte[(int) file.length()];
+		try (InputStream input = new FileInputStream(file)) {
+			int offset = 0;
+			while (offset < log.length) {
+				offset += input.read(log, offset, log.length - offset);
+			}
+		}
+		int recordSize = HEADER_SIZE + TOPIC.length() + "message-0".length();
+		int lengthOffset = index * recordSize + 3;
+		log[lengthOffset] = 0x7f;
+		log[lengthOffset + 1] = (byte) 0xff;
+		log[lengthOffset + 2] = (byte) 0xff;
+		log[lengthOffset + 3] = (byte) 0xff;
+		try (OutputStream output = new FileOutputStream(file)) {
+			output.write(log);
+		}
+	}
+}
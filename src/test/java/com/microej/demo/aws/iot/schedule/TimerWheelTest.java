@@ -0,0 +1,133 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the runs of the streams of a {@link TimerWheel}. The timings are checked with a large tolerance, so that a
+ * loaded machine does not fail the tests.
+ */
+@SuppressWarnings("nls")
+public class TimerWheelTest {
+
+	private static final long TICK = 10;
+	private static final int SLOTS = 8;
+	private static final long DURATION = 1000;
+
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+			// counted by the stream
+		}
+	};
+
+	private TimerWheel wheel;
+
+	/**
+	 * Creates the wheel.
+	 */
+	@Before
+	public void createWheel() {
+		this.wheel = new TimerWheel(TICK, SLOTS);
+	}
+
+	/**
+	 * Stops the wheel.
+	 */
+	@After
+	public void stopWheel() {
+		this.wheel.stop();
+	}
+
+	/**
+	 * Tests that the streams run at their period, including the periods longer than a turn of the wheel.
+	 *
+	 * @throws InterruptedException
+	 *             not expected
+	 */
+	@Test
+	public void testPeriods() throws InterruptedException {
+		ScheduledStream fast = this.wheel.schedule(NOTHING, 50, 0);
+		ScheduledStream slow = this.wheel.schedule(NOTHING, 250, 100);
+		assertEquals(2, this.wheel.size());
+
+		this.wheel.start();
+		Thread.sleep(DURATION);
+		this.wheel.stop();
+
+		assertRunCount(fast, DURATION / 50 + 1);
+		// runs at 100, 350, 600 and 850 ms
+		assertRunCount(slow, 4);
+	}
+
+	/**
+	 * Tests that a cancelled stream does not run anymore and is removed from the wheel.
+	 *
+	 * @throws InterruptedException
+	 *             not expected
+	 */
+	@Test
+	public void testCancel() throws InterruptedException {
+		ScheduledStream stream = this.wheel.schedule(NOTHING, 20, 0);
+		this.wheel.start();
+		Thread.sleep(200);
+		stream.cancel();
+		long runCount = stream.getRunCount();
+		assertTrue(runCount > 0);
+
+		Thread.sleep(200);
+		assertTrue(stream.getRunCount() <= runCount + 1);
+		assertEquals(0, this.wheel.size());
+	}
+
+	/**
+	 * Tests that a stream slower than its period skips the missed runs, and that a failing stream does not stop the
+	 * other ones.
+	 *
+	 * @throws InterruptedException
+	 *             not expected
+	 */
+	@Test
+	public void testOverruns() throws InterruptedException {
+		ScheduledStream slow = this.wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(3 * TICK);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, TICK, 0);
+		ScheduledStream failing = this.wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("failing stream");
+			}
+		}, 5 * TICK, 0);
+
+		this.wheel.start();
+		Thread.sleep(DURATION / 2);
+		this.wheel.stop();
+
+		assertTrue(slow.getOverrunCount() > 0);
+		assertTrue(slow.getRunCount() < DURATION / 2 / TICK);
+		assertTrue(failing.getRunCount() > 1);
+	}
+
+	private static void assertRunCount(ScheduledStream stream, long expected) {
+		long runCount = stream.getRunCount();
+		assertTrue("ran " + runCount + " times, expected " + expected,
+				runCount >= expected * 3 / 4 && runCount <= expected + 1);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.dispatch.TopicRouter;
+import com.microej.demo.aws.iot.metrics.Counter;
+import com.microej.demo.aws.iot.metrics.MetricsRegistry;
+import com.microej.demo.aws.iot.tools.BrokerStandIn;
+import com.microej.demo.aws.iot.tools.MessageRecorder;
+import com.microej.demo.aws.iot.tools.MqttTestClient;
+import com.microej.demo.aws.iot.tools.TestMessage;
+
+import ej.aws.iot.ShadowAction;
+import ej.aws.iot.ShadowResult;
+
+/**
+ * Tests the {@link DeltaProcessor} against the delta and documents messages of the shadow service of a
+ * {@link BrokerStandIn}.
+ */
+@SuppressWarnings("nls")
+public class DeltaProcessorTest {
+
+	private static final String THING = "Thermostat-1";
+	private static final String SHADOW = "runtime";
+
+	private BrokerStandIn broker;
+	private MqttTestClient device;
+	private MqttTestClient application;
+	private DeltaProcessor processor;
+	// Records the delta and documents messages once they have been handled by the processor
+	private MessageRecorder messages;
+
+	private long applied;
+	private long duplicated;
+	private long stale;
+
+	/**
+	 * Starts the broker and subscribes the processor to the delta and documents messages of the shadow.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Before
+	public void startBroker() throws Exception {
+		this.broker = new BrokerStandIn();
+		int port = this.broker.start(0);
+		TopicRouter router = new TopicRouter();
+		this.device = MqttTestClient.connect(THING, port, router);
+		this.processor = new DeltaProcessor();
+		this.messages = new MessageRecorder();
+		String[] topics = { getTopic(ShadowResult.delta), getTopic(ShadowResult.documents) };
+		for (String topic : topics) {
+			router.addRoute(topic, this.processor);
+			router.addRoute(topic, this.messages);
+			this.device.subscribe(topic);
+		}
+		this.application = MqttTestClient.connect("application", port, null);
+
+		// the counters of the default registry are shared by the tests
+		this.applied = getCounter("applied");
+		this.duplicated = getCounter("duplicated");
+		this.stale = getCounter("stale");
+	}
+
+	/**
+	 * Stops the broker.
+	 */
+	@After
+	public void stopBroker() {
+		this.application.close();
+		this.device.close();
+		this.broker.stop();
+	}
+
+	/**
+	 * Tests that the delta and documents messages of a desired update are applied once, whatever their order.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testDuplicatesSuppressed() throws Exception {
+		updateDesired("{\"state\":{\"desired\":{\"setpoint\":21}}}");
+		updateDesired("{\"state\":{\"desired\":{\"setpoint\":22,\"mode\":\"eco\"}}}");
+		// documents and delta of each update
+		assertTrue(this.messages.await(4));
+
+		assertEquals(2, this.processor.getLastVersion());
+		assertEquals(2, getCounter("applied") - this.applied);
+		assertEquals(2, getCounter("duplicated") - this.duplicated);
+		assertEquals(0, getCounter("stale") - this.stale);
+	}
+
+	/**
+	 * Tests that a documents message without desired changes counts its version without being applied, and that an
+	 * older message is dropped as stale.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testReportedOnlyAndStale() throws Exception {
+		updateDesired("{\"state\":{\"desired\":{\"setpoint\":21}}}");
+		assertTrue(this.messages.await(2));
+		// the device reports the desired value: documents message only, without changes
+		this.device.publish(TopicRouter.getShadowRequestTopic(THING, SHADOW, ShadowAction.update),
+				"{\"state\":{\"reported\":{\"setpoint\":21}}}".getBytes());
+		assertTrue(this.messages.await(3));
+		assertEquals(2, this.processor.getLastVersion());
+		assertEquals(1, getCounter("applied") - this.applied);
+
+		this.processor.onMessageReceived(new TestMessage(getTopic(ShadowResult.delta),
+				"{\"version\":1,\"state\":{\"setpoint\":20}}".getBytes()));
+		assertEquals(1, getCounter("stale") - this.stale);
+		assertEquals(1, getCounter("applied") - this.applied);
+
+		// the versions of a deleted shadow start over
+		this.processor.reset();
+		this.processor.onMessageReceived(new TestMessage(getTopic(ShadowResult.delta),
+				"{\"version\":1,\"state\":{\"setpoint\":20}}".getBytes()));
+		assertEquals(1, this.processor.getLastVersion());
+		assertEquals(2, getCounter("applied") - this.applied);
+	}
+
+	private void updateDesired(String document) throws Exception {
+		this.application.publish(TopicRouter.getShadowRequestTopic(THING, SHADOW, ShadowAction.update),
+				document.getBytes());
+	}
+
+	private static String getTopic(ShadowResult result) {
+		return TopicRouter.getShadowTopic(THING, SHADOW, ShadowAction.update, result);
+	}
+
+	private static long getCounter(String name) {
+		Counter counter = MetricsRegistry.getDefault().counter("shadow.delta." + name);
+		return counter.getValue();
+	}
+}
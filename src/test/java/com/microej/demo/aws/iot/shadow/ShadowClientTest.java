@@ -0,0 +1,229 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microej.demo.aws.iot.dispatch.InboundPipeline;
+import com.microej.demo.aws.iot.dispatch.OverflowPolicy;
+import com.microej.demo.aws.iot.dispatch.TopicRouter;
+import com.microej.demo.aws.iot.tools.BrokerStandIn;
+import com.microej.demo.aws.iot.tools.MqttTestClient;
+
+import ej.aws.iot.ShadowAction;
+import ej.aws.iot.ShadowResult;
+import ej.bon.Timer;
+
+/**
+ * Tests the updates of a {@link ShadowClient} and the versions of its {@link ShadowCache} against the shadow service
+ * of a {@link BrokerStandIn}.
+ */
+@SuppressWarnings("nls")
+public class ShadowClientTest {
+
+	private static final String THING = "Thermostat-1";
+	private static final String SHADOW = "runtime";
+	private static final int PAYLOAD_SIZE = 512;
+	private static final long COALESCE_DELAY = 20;
+	private static final long TIMEOUT = 5000;
+	private static final int MAX_PENDING_UPDATES = 2;
+
+	private BrokerStandIn broker;
+	private int port;
+	private TopicRouter router;
+	private MqttTestClient device;
+	private Timer timer;
+	private ShadowCache cache;
+	private ShadowClient client;
+
+	/**
+	 * Starts the broker and subscribes the client to the responses of its updates.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Before
+	public void startClient() throws Exception {
+		this.broker = new BrokerStandIn();
+		this.port = this.broker.start(0);
+		TopicRouter router = new TopicRouter();
+		this.router = router;
+		this.device = MqttTestClient.connect(THING, this.port, router);
+		this.cache = new ShadowCache(this.device, TopicRouter.getShadowRequestTopic(THING, SHADOW, ShadowAction.update),
+				PAYLOAD_SIZE);
+		this.timer = new Timer();
+		this.client = new ShadowClient(this.cache, this.timer, COALESCE_DELAY, TIMEOUT, MAX_PENDING_UPDATES);
+
+		String acceptedTopic = getTopic(ShadowResult.accepted);
+		router.addRoute(acceptedTopic, new UpdateAccepted(this.cache, this.client));
+		this.device.subscribe(acceptedTopic);
+		String rejectedTopic = getTopic(ShadowResult.rejected);
+		router.addRoute(rejectedTopic, new UpdateRejected(this.cache, this.client));
+		this.device.subscribe(rejectedTopic);
+	}
+
+	/**
+	 * Stops the timer and the broker.
+	 */
+	@After
+	public void stopBroker() {
+		this.timer.cancel();
+		this.device.close();
+		this.broker.stop();
+	}
+
+	/**
+	 * Tests that the changes of a coalescing window are sent in one update, and that the accepted updates give the
+	 * versions of the shadow.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testUpdatesAccepted() throws Exception {
+		this.client.set(null, "mode", "eco");
+		ShadowUpdate update = this.client.set("sensors", "temperature", 21);
+		assertAccepted(update, 1);
+
+		update = this.client.set("sensors", "temperature", 22);
+		assertAccepted(update, 2);
+		assertEquals(2, this.broker.getReceivedMessages());
+
+		// nothing to report
+		update = this.client.flush();
+		assertAccepted(update, 2);
+		assertEquals(2, this.broker.getReceivedMessages());
+	}
+
+	/**
+	 * Tests that the updates sent while others are in flight expect the versions the latter lead to.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testPipelinedUpdates() throws Exception {
+		assertAccepted(this.client.set(null, "mode", "eco"), 1);
+
+		this.client.set(null, "mode", "comfort");
+		ShadowUpdate first = this.client.flush();
+		this.client.set(null, "on", true);
+		ShadowUpdate second = this.client.flush();
+
+		assertAccepted(first, 2);
+		assertAccepted(second, 3);
+		assertEquals(0, this.client.getPendingCount());
+	}
+
+	/**
+	 * Tests that reading the shadow, as after a reconnection, seeds the cache with the version of the updates made by
+	 * another client, so that the next update does not conflict.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testRefreshAvoidsConflict() throws Exception {
+		assertAccepted(this.client.set(null, "mode", "eco"), 1);
+
+		MqttTestClient application = MqttTestClient.connect("application", this.port, null);
+		application.publish(TopicRouter.getShadowRequestTopic(THING, SHADOW, ShadowAction.update),
+				"{\"state\":{\"desired\":{\"mode\":\"comfort\"}}}".getBytes());
+		application.close();
+
+		String getAcceptedTopic = TopicRouter.getShadowTopic(THING, SHADOW, ShadowAction.get, ShadowResult.accepted);
+		this.router.addRoute(getAcceptedTopic, new GetAccepeted(this.cache));
+		this.device.subscribe(getAcceptedTopic);
+		new ShadowRefresher(this.device, TopicRouter.getShadowRequestTopic(THING, SHADOW, ShadowAction.get))
+				.onConnected();
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (this.cache.getVersion() < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, this.cache.getVersion());
+
+		assertAccepted(this.client.set(null, "mode", "comfort"), 3);
+	}
+
+	/**
+	 * Tests that the fields of a deleted shadow are reported again, and that the versions of the shadow created again
+	 * follow those of the deleted one.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testDeleteReportsAgain() throws Exception {
+		String deleteAcceptedTopic = TopicRouter.getShadowTopic(THING, SHADOW, ShadowAction.delete,
+				ShadowResult.accepted);
+		// the report is published out of the receiving thread of the client, as by the application
+		InboundPipeline pipeline = new InboundPipeline(new DeleteAccepted(new DeltaProcessor(), this.client), 1, 1,
+				OverflowPolicy.BLOCK);
+		pipeline.start();
+		this.router.addRoute(deleteAcceptedTopic, pipeline);
+		this.device.subscribe(deleteAcceptedTopic);
+		assertAccepted(this.client.set(null, "mode", "eco"), 1);
+
+		MqttTestClient application = MqttTestClient.connect("application", this.port, null);
+		application.publish(TopicRouter.getShadowRequestTopic(THING, SHADOW, ShadowAction.delete), new byte[0]);
+		application.close();
+
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (this.broker.getReceivedMessages() < 3 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		// the update, the delete request and the full report
+		assertEquals(3, this.broker.getReceivedMessages());
+		// the report is accepted without version, once the update has been received
+		while (this.cache.getVersion() < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, this.cache.getVersion());
+		assertEquals(0, this.client.getPendingCount());
+		pipeline.stop();
+	}
+
+	/**
+	 * Tests that a version conflict, caused by the update of another client, is resolved by a full report.
+	 *
+	 * @throws Exception
+	 *             not expected
+	 */
+	@Test
+	public void testVersionConflict() throws Exception {
+		assertAccepted(this.client.set(null, "mode", "eco"), 1);
+
+		MqttTestClient application = MqttTestClient.connect("application", this.port, null);
+		application.publish(TopicRouter.getShadowRequestTopic(THING, SHADOW, ShadowAction.update),
+				"{\"state\":{\"desired\":{\"mode\":\"comfort\"}}}".getBytes());
+		application.close();
+
+		ShadowUpdate update = this.client.set(null, "mode", "comfort");
+		assertTrue(update.await(TIMEOUT));
+		assertEquals(ShadowUpdate.REJECTED, update.getState());
+		assertEquals(ShadowCache.VERSION_CONFLICT, update.getCode());
+		assertTrue(this.cache.getVersion() < 0);
+
+		// every field is reported again, without version
+		assertAccepted(this.client.flush(), 3);
+	}
+
+	private static void assertAccepted(ShadowUpdate update, long version) throws InterruptedException {
+		assertTrue(update.await(TIMEOUT));
+		assertEquals(ShadowUpdate.ACCEPTED, update.getState());
+		assertEquals(version, update.getVersion());
+	}
+
+	private static String getTopic(ShadowResult result) {
+		return TopicRouter.getShadowTopic(THING, SHADOW, ShadowAction.update, result);
+	}
+}
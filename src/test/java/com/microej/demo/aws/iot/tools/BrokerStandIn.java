@@ -0,0 +1,451 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MQTT broker standing in for AWS IoT Core, to run the tests, the benchmarks and the load test of the demo without an
+ * AWS endpoint.
+ * <p>
+ * The broker implements the subset of MQTT 3.1.1 used by the device: connection, subscriptions with wildcards,
+ * publications (QoS 1 publications are acknowledged, messages are delivered with QoS 0) and keep-alive. The messages
+ * published to the {@code $aws/things/<thing>/shadow/...} topics are handled by a {@link ShadowService} emulating the
+ * accepted, rejected, delta and documents responses of the shadow service.
+ * <p>
+ * The tests start the broker in-process on an ephemeral port with {@link #start(int)}. On the host, the
+ * {@code BrokerStandInLauncher} of {@code tools/broker-standin} serves it on a plain or a TLS socket and prints its
+ * throughput.
+ */
+@SuppressWarnings("nls")
+public class BrokerStandIn {
+
+	private static final String UTF_8 = "UTF-8";
+
+	private static final int CONNECT = 1;
+	private static final int CONNACK = 2;
+	private static final int PUBLISH = 3;
+	private static final int PUBACK = 4;
+	private static final int SUBSCRIBE = 8;
+	private static final int SUBACK = 9;
+	private static final int UNSUBSCRIBE = 10;
+	private static final int UNSUBACK = 11;
+	private static final int PINGREQ = 12;
+	private static final int PINGRESP = 13;
+	private static final int DISCONNECT = 14;
+
+	// Guarded by the broker, copied before delivering a message
+	private final List<Session> sessions = new ArrayList<>();
+	private final ShadowService shadowService = new ShadowService(this);
+	private ServerSocket serverSocket;
+	private int publishRateLimit;
+
+	// Guarded by the broker
+	private long receivedMessages;
+	private long receivedBytes;
+	private long deliveredMessages;
+
+	/**
+	 * A connected client.
+	 */
+	private class Session implements Runnable {
+		private final Socket socket;
+		private final DataInputStream input;
+		private final OutputStream output;
+		// Guarded by the session
+		private final List<String> filters = new ArrayList<>();
+		private String clientId = "?";
+		// Time in nanoseconds before which the next publication of the client is not acknowledged
+		private long nextPublishTime;
+
+		Session(Socket socket) throws IOException {
+			this.socket = socket;
+			this.input = new DataInputStream(socket.getInputStream());
+			this.output = socket.getOutputStream();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					int header = this.input.read();
+					if (header < 0) {
+						break;
+					}
+					byte[] body = new byte[readRemainingLength()];
+					this.input.readFully(body);
+					if (!handle(header, new DataInputStream(new ByteArrayInputStream(body)), body.length)) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// closed by the client or by the broker
+			} finally {
+				removeSession(this);
+				close();
+			}
+		}
+
+		private boolean handle(int header, DataInputStream packet, int length) throws IOException {
+			switch (header >> 4) {
+			case CONNECT:
+				packet.readUTF(); // protocol name
+				packet.readUnsignedByte(); // protocol level
+				packet.readUnsignedByte(); // flags
+				packet.readUnsignedShort(); // keep alive
+				this.clientId = packet.readUTF();
+				send(CONNACK << 4, new byte[] { 0, 0 });
+				return true;
+			case PUBLISH:
+				int qos = (header >> 1) & 3;
+				String topic = packet.readUTF();
+				int consumed = 2 + topic.getBytes(UTF_8).length;
+				if (qos > 0) {
+					int packetId = packet.readUnsignedShort();
+					consumed += 2;
+					throttle();
+					send(PUBACK << 4, new byte[] { (byte) (packetId >> 8), (byte) packetId });
+				}
+				byte[] payload = new byte[length - consumed];
+				packet.readFully(payload);
+				onReceived(payload.length);
+				if (!BrokerStandIn.this.shadowService.handle(topic, payload)) {
+					publish(topic, payload);
+				}
+				return true;
+			case SUBSCRIBE:
+			case UNSUBSCRIBE:
+				int packetId = packet.readUnsignedShort();
+				int count = 0;
+				byte[] granted = new byte[length];
+				while (packet.available() > 0) {
+					String filter = packet.readUTF();
+					synchronized (this) {
+						if (header >> 4 == SUBSCRIBE) {
+							packet.readUnsignedByte(); // requested QoS, QoS 0 is granted
+							if (!this.filters.contains(filter)) {
+								this.filters.add(filter);
+							}
+							granted[count++] = 0;
+						} else {
+							this.filters.remove(filter);
+						}
+					}
+				}
+				byte[] ack = new byte[2 + count];
+				ack[0] = (byte) (packetId >> 8);
+				ack[1] = (byte) packetId;
+				System.arraycopy(granted, 0, ack, 2, count);
+				send(header >> 4 == SUBSCRIBE ? SUBACK << 4 : UNSUBACK << 4, ack);
+				return true;
+			case PUBACK:
+				return true;
+			case PINGREQ:
+				send(PINGRESP << 4, new byte[0]);
+				return true;
+			case DISCONNECT:
+				return false;
+			default:
+				throw new IOException("unsupported packet type " + (header >> 4) + " from " + this.clientId);
+			}
+		}
+
+		/**
+		 * Waits until the client may publish again, according to the publish rate limit of the broker.
+		 */
+		private void throttle() throws IOException {
+			int rateLimit = getPublishRateLimit();
+			if (rateLimit <= 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			long publishTime = Math.max(now, this.nextPublishTime);
+			this.nextPublishTime = publishTime + 1_000_000_000L / rateLimit;
+			long delay = publishTime - now;
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+		}
+
+		synchronized boolean isSubscribed(String topic) {
+			List<String> filters = this.filters;
+			for (int i = 0; i < filters.size(); i++) {
+				if (matches(filters.get(i), topic)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void deliver(String topic, byte[] payload) {
+			try {
+				byte[] topicBytes = topic.getBytes(UTF_8);
+				byte[] body = new byte[2 + topicBytes.length + payload.length];
+				body[0] = (byte) (topicBytes.length >> 8);
+				body[1] = (byte) topicBytes.length;
+				System.arraycopy(topicBytes, 0, body, 2, topicBytes.length);
+				System.arraycopy(payload, 0, body, 2 + topicBytes.length, payload.length);
+				send(PUBLISH << 4, body);
+				onDelivered();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void send(int header, byte[] body) throws IOException {
+			OutputStream output = this.output;
+			synchronized (output) {
+				output.write(header);
+				int remaining = body.length;
+				do {
+					int digit = remaining % 128;
+					remaining /= 128;
+					output.write(remaining > 0 ? digit | 0x80 : digit);
+				} while (remaining > 0);
+				output.write(body);
+				output.flush();
+			}
+		}
+
+		private int readRemainingLength() throws IOException {
+			int value = 0;
+			int multiplier = 1;
+			int digit;
+			do {
+				digit = this.input.read();
+				if (digit < 0) {
+					throw new EOFException();
+				}
+				value += (digit & 0x7f) * multiplier;
+				multiplier *= 128;
+			} while ((digit & 0x80) != 0);
+			return value;
+		}
+
+		void close() {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	/**
+	 * Starts the broker on a plain TCP socket, accepting the connections in a dedicated thread.
+	 *
+	 * @param port
+	 *            the port to listen on, or 0 for an ephemeral port
+	 * @return the port the broker listens on
+	 * @throws IOException
+	 *             if the socket cannot be opened
+	 */
+	public int start(int port) throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(port);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					serve(serverSocket);
+				} catch (IOException e) {
+					// stopped
+				}
+			}
+		}, "broker-standin");
+		acceptor.start();
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accepts the connections of a server socket until it is closed, in the calling thread.
+	 *
+	 * @param serverSocket
+	 *            the server socket, plain or TLS
+	 * @throws IOException
+	 *             when the socket is closed, for example by {@link #stop()}
+	 */
+	public void serve(ServerSocket serverSocket) throws IOException {
+		synchronized (this) {
+			this.serverSocket = serverSocket;
+		}
+		while (true) {
+			Socket socket = serverSocket.accept();
+			socket.setTcpNoDelay(true);
+			Session session = new Session(socket);
+			synchronized (this) {
+				this.sessions.add(session);
+			}
+			new Thread(session, "broker-standin-" + socket.getPort()).start();
+		}
+	}
+
+	/**
+	 * Stops the broker: the server socket and the connections of the clients are closed. The state of the shadows is
+	 * lost.
+	 */
+	public void stop() {
+		Session[] sessions;
+		synchronized (this) {
+			ServerSocket serverSocket = this.serverSocket;
+			if (serverSocket != null) {
+				try {
+					serverSocket.close();
+				} catch (IOException e) {
+					// already closed
+				}
+				this.serverSocket = null;
+			}
+			sessions = getSessions();
+		}
+		for (Session session : sessions) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Closes the connections of the clients, as a broker restart or a network loss would, without stopping the
+	 * broker.
+	 */
+	public void disconnectClients() {
+		for (Session session : getSessions()) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Limits the number of QoS 1 publications acknowledged per second on each connection, as the per-connection
+	 * throughput limit of AWS IoT Core: a client publishing faster waits for the acknowledgments.
+	 *
+	 * @param messagesPerSecond
+	 *            the maximum number of publications per second and per connection, or 0 for no limit
+	 */
+	public synchronized void setPublishRateLimit(int messagesPerSecond) {
+		this.publishRateLimit = messagesPerSecond;
+	}
+
+	private synchronized int getPublishRateLimit() {
+		return this.publishRateLimit;
+	}
+
+	/**
+	 * Gets the number of connected clients.
+	 *
+	 * @return the number of clients
+	 */
+	public synchronized int getClientCount() {
+		return this.sessions.size();
+	}
+
+	/**
+	 * Gets the number of messages published by the clients, shadow requests included.
+	 *
+	 * @return the number of received messages
+	 */
+	public synchronized long getReceivedMessages() {
+		return this.receivedMessages;
+	}
+
+	/**
+	 * Gets the number of payload bytes published by the clients.
+	 *
+	 * @return the number of received bytes
+	 */
+	public synchronized long getReceivedBytes() {
+		return this.receivedBytes;
+	}
+
+	/**
+	 * Gets the number of messages delivered to the subscribed clients, shadow responses included.
+	 *
+	 * @return the number of delivered messages
+	 */
+	public synchronized long getDeliveredMessages() {
+		return this.deliveredMessages;
+	}
+
+	/**
+	 * Delivers a message to the subscribed clients.
+	 *
+	 * @param topic
+	 *            the topic of the message
+	 * @param payload
+	 *            the payload of the message
+	 */
+	void publish(String topic, byte[] payload) {
+		for (Session session : getSessions()) {
+			if (session.isSubscribed(topic)) {
+				session.deliver(topic, payload);
+			}
+		}
+	}
+
+	private synchronized Session[] getSessions() {
+		return this.sessions.toArray(new Session[this.sessions.size()]);
+	}
+
+	private synchronized void removeSession(Session session) {
+		this.sessions.remove(session);
+	}
+
+	private synchronized void onReceived(int bytes) {
+		this.receivedMessages++;
+		this.receivedBytes += bytes;
+	}
+
+	private synchronized void onDelivered() {
+		this.deliveredMessages++;
+	}
+
+	/**
+	 * Checks whether a topic matches an MQTT topic filter.
+	 */
+	static boolean matches(String filter, String topic) {
+		if (topic.startsWith("$") && (filter.startsWith("+") || filter.startsWith("#"))) {
+			return false;
+		}
+		int filterStart = 0;
+		int topicStart = 0;
+		while (true) {
+			int filterEnd = levelEnd(filter, filterStart);
+			String level = filter.substring(filterStart, filterEnd);
+			if (level.equals("#")) {
+				return true;
+			}
+			if (topicStart > topic.length()) {
+				// the topic has fewer levels than the filter
+				return false;
+			}
+			int topicEnd = levelEnd(topic, topicStart);
+			if (!level.equals("+") && !level.equals(topic.substring(topicStart, topicEnd))) {
+				return false;
+			}
+			if (filterEnd == filter.length()) {
+				return topicEnd == topic.length();
+			}
+			filterStart = filterEnd + 1;
+			topicStart = topicEnd + 1;
+		}
+	}
+
+	private static int levelEnd(String string, int start) {
+		int end = string.indexOf('/', start);
+		return end < 0 ? string.length() : end;
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer for the shadow service emulation.
+ * <p>
+ * Objects are read as {@link HashMap}, arrays as {@link ArrayList}, numbers as {@link Long} or {@link Double}.
+ */
+@SuppressWarnings("nls")
+final class Json {
+
+	private static final String HEX_DIGITS = "0123456789abcdef";
+
+	private final String text;
+	private int position;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parses a JSON document.
+	 *
+	 * @param text
+	 *            the document
+	 * @return the value of the document
+	 * @throws IllegalArgumentException
+	 *             if the document is not valid
+	 */
+	static Object parse(String text) {
+		Json json = new Json(text);
+		Object value = json.readValue();
+		json.skipWhitespaces();
+		if (json.position != text.length()) {
+			throw json.error("trailing characters");
+		}
+		return value;
+	}
+
+	/**
+	 * Writes a value as a JSON document.
+	 *
+	 * @param value
+	 *            the value
+	 * @return the document
+	 */
+	static String write(Object value) {
+		StringBuilder builder = new StringBuilder();
+		write(builder, value);
+		return builder.toString();
+	}
+
+	private static void write(StringBuilder builder, Object value) {
+		if (value instanceof Map) {
+			builder.append('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!first) {
+					builder.append(',');
+				}
+				first = false;
+				writeString(builder, (String) entry.getKey());
+				builder.append(':');
+				write(builder, entry.getValue());
+			}
+			builder.append('}');
+		} else if (value instanceof List) {
+			builder.append('[');
+			boolean first = true;
+			for (Object element : (List<?>) value) {
+				if (!first) {
+					builder.append(',');
+				}
+				first = false;
+				write(builder, element);
+			}
+			builder.append(']');
+		} else if (value instanceof String) {
+			writeString(builder, (String) value);
+		} else {
+			builder.append(value);
+		}
+	}
+
+	private static void writeString(StringBuilder builder, String value) {
+		builder.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if (c < 0x20) {
+				builder.append("\\u00").append(HEX_DIGITS.charAt(c >> 4)).append(HEX_DIGITS.charAt(c & 0xf));
+			} else {
+				builder.append(c);
+			}
+		}
+		builder.append('"');
+	}
+
+	private Object readValue() {
+		skipWhitespaces();
+		if (this.position >= this.text.length()) {
+			throw error("unexpected end");
+		}
+		char c = this.text.charAt(this.position);
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			return readLiteral("true", Boolean.TRUE);
+		case 'f':
+			return readLiteral("false", Boolean.FALSE);
+		case 'n':
+			return readLiteral("null", null);
+		default:
+			return readNumber();
+		}
+	}
+
+	private Map<String, Object> readObject() {
+		Map<String, Object> object = new HashMap<>();
+		this.position++;
+		skipWhitespaces();
+		if (peek() == '}') {
+			this.position++;
+			return object;
+		}
+		while (true) {
+			skipWhitespaces();
+			String name = readString();
+			skipWhitespaces();
+			expect(':');
+			object.put(name, readValue());
+			skipWhitespaces();
+			if (peek() == ',') {
+				this.position++;
+			} else {
+				expect('}');
+				return object;
+			}
+		}
+	}
+
+	private List<Object> readArray() {
+		List<Object> array = new ArrayList<>();
+		this.position++;
+		skipWhitespaces();
+		if (peek() == ']') {
+			this.position++;
+			return array;
+		}
+		while (true) {
+			array.add(readValue());
+			skipWhitespaces();
+			if (peek() == ',') {
+				this.position++;
+			} else {
+				expect(']');
+				return array;
+			}
+		}
+	}
+
+	private String readString() {
+		expect('"');
+		StringBuilder builder = new StringBuilder();
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return builder.toString();
+			} else if (c == '\\') {
+				char escaped = next();
+				switch (escaped) {
+				case 'b':
+					builder.append('\b');
+					break;
+				case 'f':
+					builder.append('\f');
+					break;
+				case 'n':
+					builder.append('\n');
+					break;
+				case 'r':
+					builder.append('\r');
+					break;
+				case 't':
+					builder.append('\t');
+					break;
+				case 'u':
+					builder.append((char) Integer.parseInt(this.text.substring(this.position, this.position + 4), 16));
+					this.position += 4;
+					break;
+				default:
+					builder.append(escaped);
+				}
+			} else {
+				builder.append(c);
+			}
+		}
+	}
+
+	private Object readNumber() {
+		int start = this.position;
+		while (this.position < this.text.length() && "+-0123456789.eE".indexOf(this.text.charAt(this.position)) >= 0) {
+			this.position++;
+		}
+		String number = this.text.substring(start, this.position);
+		if (number.length() == 0) {
+			throw error("unexpected character");
+		}
+		try {
+			return Long.valueOf(number);
+		} catch (NumberFormatException e) {
+			return Double.valueOf(number);
+		}
+	}
+
+	private Object readLiteral(String literal, Object value) {
+		if (!this.text.startsWith(literal, this.position)) {
+			throw error("unexpected literal");
+		}
+		this.position += literal.length();
+		return value;
+	}
+
+	private void skipWhitespaces() {
+		while (this.position < this.text.length() && isWhitespace(this.text.charAt(this.position))) {
+			this.position++;
+		}
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	private char peek() {
+		return this.position < this.text.length() ? this.text.charAt(this.position) : 0;
+	}
+
+	private char next() {
+		if (this.position >= this.text.length()) {
+			throw error("unexpected end");
+		}
+		return this.text.charAt(this.position++);
+	}
+
+	private void expect(char c) {
+		if (next() != c) {
+			throw error("'" + c + "' expected");
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at " + this.position);
+	}
+}
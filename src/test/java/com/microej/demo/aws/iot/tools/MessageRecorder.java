@@ -0,0 +1,73 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ej.aws.iot.AwsIotMessage;
+import ej.aws.iot.AwsIotMessageCallback;
+
+/**
+ * Callback recording the received messages, so that a test can wait for them.
+ */
+public class MessageRecorder implements AwsIotMessageCallback {
+
+	/**
+	 * Maximum time in milliseconds to wait for the messages of a test.
+	 */
+	public static final long TIMEOUT = 5000;
+
+	private final List<AwsIotMessage> messages = new ArrayList<>();
+
+	@Override
+	public synchronized void onMessageReceived(AwsIotMessage message) {
+		this.messages.add(message);
+		notifyAll();
+	}
+
+	/**
+	 * Waits until a number of messages have been received, or until {@link #TIMEOUT}.
+	 *
+	 * @param count
+	 *            the number of messages
+	 * @return {@code true} if the messages have been received, {@code false} on timeout
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized boolean await(int count) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (this.messages.size() < count) {
+			long delay = end - System.currentTimeMillis();
+			if (delay <= 0) {
+				return false;
+			}
+			wait(delay);
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of received messages.
+	 *
+	 * @return the number of messages
+	 */
+	public synchronized int size() {
+		return this.messages.size();
+	}
+
+	/**
+	 * Gets a received message.
+	 *
+	 * @param index
+	 *            the index of the message, in the order they were received
+	 * @return the message
+	 */
+	public synchronized AwsIotMessage get(int index) {
+		return this.messages.get(index);
+	}
+}
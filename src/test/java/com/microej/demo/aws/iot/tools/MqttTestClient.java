@@ -0,0 +1,322 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.microej.demo.aws.iot.publish.MessagePublisher;
+
+import ej.aws.iot.AwsIotException;
+import ej.aws.iot.AwsIotMessageCallback;
+
+/**
+ * Minimal MQTT 3.1.1 client of the tests, connected to a {@link BrokerStandIn} without TLS.
+ * <p>
+ * As the AWS client, the client publishes with QoS 1 and {@link #publish(String, byte[])} returns once the broker has
+ * acknowledged the message; several threads may publish at once. The received messages are given to the callback in
+ * the thread of the client, in the order they are received.
+ */
+@SuppressWarnings("nls")
+public class MqttTestClient implements MessagePublisher {
+
+	/**
+	 * Maximum time in milliseconds to wait for an acknowledgment of the broker.
+	 */
+	public static final long ACK_TIMEOUT = 5000;
+
+	private static final String LOCAL_HOST = "localhost";
+
+	private static final int CONNECT = 0x10;
+	private static final int PUBLISH_QOS_1 = 0x32;
+	private static final int SUBSCRIBE = 0x82;
+	private static final int DISCONNECT = 0xe0;
+	private static final int CONNACK = 2;
+	private static final int PUBLISH = 3;
+	private static final int PUBACK = 4;
+	private static final int SUBACK = 9;
+
+	private static final int KEEP_ALIVE = 60;
+	private static final int CLEAN_SESSION = 0x02;
+
+	private final String clientId;
+	private final AwsIotMessageCallback callback;
+
+	private Socket socket;
+	private OutputStream output;
+
+	// Guarded by the client
+	private boolean connected;
+	private int nextPacketId;
+	private final List<Integer> acknowledged = new ArrayList<>();
+
+	/**
+	 * Creates a client.
+	 *
+	 * @param clientId
+	 *            the MQTT client ID
+	 * @param callback
+	 *            the callback of the received messages, or {@code null} to ignore them
+	 */
+	public MqttTestClient(String clientId, AwsIotMessageCallback callback) {
+		this.clientId = clientId;
+		this.callback = callback;
+	}
+
+	/**
+	 * Creates a client and connects it to a broker running on the local host.
+	 *
+	 * @param clientId
+	 *            the MQTT client ID
+	 * @param port
+	 *            the port of the broker, see {@link BrokerStandIn#start(int)}
+	 * @param callback
+	 *            the callback of the received messages, or {@code null} to ignore them
+	 * @return the connected client
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public static MqttTestClient connect(String clientId, int port, AwsIotMessageCallback callback)
+			throws IOException {
+		MqttTestClient client = new MqttTestClient(clientId, callback);
+		client.connect(LOCAL_HOST, port);
+		return client;
+	}
+
+	/**
+	 * Connects the client and waits for the acknowledgment of the broker.
+	 *
+	 * @param host
+	 *            the host of the broker
+	 * @param port
+	 *            the port of the broker
+	 * @throws IOException
+	 *             if the connection fails or is not acknowledged in time
+	 */
+	public void connect(String host, int port) throws IOException {
+		Socket socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		this.socket = socket;
+		this.output = socket.getOutputStream();
+		final DataInputStream input = new DataInputStream(socket.getInputStream());
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive(input);
+			}
+		}, "mqtt-" + this.clientId).start();
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(body);
+		data.writeUTF("MQTT");
+		data.writeByte(4); // protocol level
+		data.writeByte(CLEAN_SESSION);
+		data.writeShort(KEEP_ALIVE);
+		data.writeUTF(this.clientId);
+		send(CONNECT, body.toByteArray());
+		if (!awaitAck(0)) {
+			close();
+			throw new IOException("connection of " + this.clientId + " not acknowledged");
+		}
+		synchronized (this) {
+			this.connected = true;
+		}
+	}
+
+	/**
+	 * Subscribes to a topic filter and waits for the acknowledgment of the broker.
+	 *
+	 * @param filter
+	 *            the topic filter
+	 * @throws IOException
+	 *             if the subscription fails or is not acknowledged in time
+	 */
+	public void subscribe(String filter) throws IOException {
+		int packetId = nextPacketId();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(body);
+		data.writeShort(packetId);
+		data.writeUTF(filter);
+		data.writeByte(1); // requested QoS
+		send(SUBSCRIBE, body.toByteArray());
+		if (!awaitAck(packetId)) {
+			throw new IOException("subscription to " + filter + " not acknowledged");
+		}
+	}
+
+	/**
+	 * Publishes a message with QoS 1 and waits for its acknowledgment.
+	 *
+	 * @throws AwsIotException
+	 *             if the client is not connected, or if the message is not acknowledged in time
+	 */
+	@Override
+	public void publish(String topic, byte[] payload) throws AwsIotException {
+		if (!isConnected()) {
+			throw new AwsIotException("not connected");
+		}
+		int packetId = nextPacketId();
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length + topic.length() + 4);
+			DataOutputStream data = new DataOutputStream(body);
+			data.writeUTF(topic);
+			data.writeShort(packetId);
+			data.write(payload);
+			send(PUBLISH_QOS_1, body.toByteArray());
+		} catch (IOException e) {
+			close();
+			throw new AwsIotException(e);
+		}
+		if (!awaitAck(packetId)) {
+			throw new AwsIotException("publication on " + topic + " not acknowledged");
+		}
+	}
+
+	/**
+	 * Gets whether the client is connected.
+	 *
+	 * @return {@code true} if the client is connected, {@code false} if it has been closed or the connection is lost
+	 */
+	public synchronized boolean isConnected() {
+		return this.connected;
+	}
+
+	/**
+	 * Disconnects the client.
+	 */
+	public void close() {
+		try {
+			send(DISCONNECT, new byte[0]);
+		} catch (IOException e) {
+			// already closed
+		}
+		closeSocket();
+	}
+
+	private void receive(DataInputStream input) {
+		try {
+			while (true) {
+				int header = input.read();
+				if (header < 0) {
+					break;
+				}
+				byte[] body = new byte[readRemainingLength(input)];
+				input.readFully(body);
+				switch (header >> 4) {
+				case CONNACK:
+					onAck(0);
+					break;
+				case PUBACK:
+				case SUBACK:
+					onAck(((body[0] & 0xff) << 8) | (body[1] & 0xff));
+					break;
+				case PUBLISH:
+					int topicLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+					String topic = new String(body, 2, topicLength, "UTF-8");
+					// delivered with QoS 0 by the broker, no packet identifier
+					byte[] payload = new byte[body.length - 2 - topicLength];
+					System.arraycopy(body, 2 + topicLength, payload, 0, payload.length);
+					if (this.callback != null) {
+						this.callback.onMessageReceived(new TestMessage(topic, payload));
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// closed
+		} finally {
+			closeSocket();
+		}
+	}
+
+	private void send(int header, byte[] body) throws IOException {
+		OutputStream output = this.output;
+		if (output == null) {
+			throw new IOException("not connected");
+		}
+		synchronized (output) {
+			output.write(header);
+			int remaining = body.length;
+			do {
+				int digit = remaining % 128;
+				remaining /= 128;
+				output.write(remaining > 0 ? digit | 0x80 : digit);
+			} while (remaining > 0);
+			output.write(body);
+			output.flush();
+		}
+	}
+
+	private static int readRemainingLength(DataInputStream input) throws IOException {
+		int value = 0;
+		int multiplier = 1;
+		int digit;
+		do {
+			digit = input.read();
+			if (digit < 0) {
+				throw new EOFException();
+			}
+			value += (digit & 0x7f) * multiplier;
+			multiplier *= 128;
+		} while ((digit & 0x80) != 0);
+		return value;
+	}
+
+	private synchronized int nextPacketId() {
+		// packet identifiers are between 1 and 65535, 0 stands for the connection acknowledgment
+		this.nextPacketId = this.nextPacketId % 0xffff + 1;
+		return this.nextPacketId;
+	}
+
+	private synchronized void onAck(int packetId) {
+		this.acknowledged.add(Integer.valueOf(packetId));
+		notifyAll();
+	}
+
+	private synchronized boolean awaitAck(int packetId) {
+		long end = System.currentTimeMillis() + ACK_TIMEOUT;
+		Integer id = Integer.valueOf(packetId);
+		while (!this.acknowledged.remove(id)) {
+			long delay = end - System.currentTimeMillis();
+			if (delay <= 0 || (packetId != 0 && !this.connected)) {
+				return false;
+			}
+			try {
+				wait(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void closeSocket() {
+		Socket socket;
+		synchronized (this) {
+			this.connected = false;
+			notifyAll();
+			socket = this.socket;
+		}
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.tools;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Emulation of the AWS IoT device shadow service: handles the messages published to the
+ * {@code $aws/things/<thing>/shadow[/name/<shadow>]/(update|get|delete)} topics and publishes the same
+ * {@code accepted}, {@code rejected}, {@code delta} and {@code documents} responses as the real service.
+ * <p>
+ * The emulation keeps the desired and reported states and the version of each shadow. As with the real service, the
+ * versions of a deleted shadow do not start over when it is created again. It does not keep the metadata and does not
+ * enforce the size limits of the real service.
+ */
+@SuppressWarnings("nls")
+class ShadowService {
+
+	private static final String UTF_8 = "UTF-8";
+	private static final String THINGS_PREFIX = "$aws/things/";
+	private static final String SHADOW_LEVEL = "/shadow/";
+	private static final String NAME_LEVEL = "name/";
+
+	private static final int BAD_REQUEST = 400;
+	private static final int NOT_FOUND = 404;
+	private static final int VERSION_CONFLICT = 409;
+
+	/**
+	 * The state of a shadow.
+	 */
+	private static class Shadow {
+		Map<String, Object> desired = new HashMap<>();
+		Map<String, Object> reported = new HashMap<>();
+		long version;
+	}
+
+	private final BrokerStandIn broker;
+	// Shadows by topic prefix, for example $aws/things/Thermostat-1/shadow/
+	private final Map<String, Shadow> shadows = new HashMap<>();
+	// Versions of the deleted shadows, continued when they are created again
+	private final Map<String, Long> deletedVersions = new HashMap<>();
+
+	ShadowService(BrokerStandIn broker) {
+		this.broker = broker;
+	}
+
+	/**
+	 * Handles a message if it is a shadow request.
+	 *
+	 * @param topic
+	 *            the topic of the message
+	 * @param payload
+	 *            the payload of the message
+	 * @return {@code true} if the message was a shadow request, {@code false} otherwise
+	 */
+	synchronized boolean handle(String topic, byte[] payload) {
+		if (!topic.startsWith(THINGS_PREFIX)) {
+			return false;
+		}
+		int shadowLevel = topic.indexOf(SHADOW_LEVEL, THINGS_PREFIX.length());
+		if (shadowLevel < 0) {
+			return false;
+		}
+		int operationStart = shadowLevel + SHADOW_LEVEL.length();
+		if (topic.startsWith(NAME_LEVEL, operationStart)) {
+			int nameEnd = topic.indexOf('/', operationStart + NAME_LEVEL.length());
+			if (nameEnd < 0) {
+				return false;
+			}
+			operationStart = nameEnd + 1;
+		}
+		String prefix = topic.substring(0, operationStart);
+		String operation = topic.substring(operationStart);
+
+		Map<String, Object> request;
+		try {
+			Object document = payload.length == 0 ? new HashMap<String, Object>()
+					: Json.parse(new String(payload, UTF_8));
+			request = document instanceof Map ? asMap(document) : null;
+		} catch (IllegalArgumentException | UnsupportedEncodingException e) {
+			request = null;
+		}
+		switch (operation) {
+		case "update":
+			update(prefix, request);
+			return true;
+		case "get":
+			get(prefix, request);
+			return true;
+		case "delete":
+			delete(prefix, request);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void update(String prefix, Map<String, Object> request) {
+		Object state = request != null ? request.get("state") : null;
+		if (!(state instanceof Map)) {
+			reject(prefix + "update", request, BAD_REQUEST, "Missing required node: state");
+			return;
+		}
+		Shadow shadow = this.shadows.get(prefix);
+		Object version = request.get("version");
+		Long deletedVersion = this.deletedVersions.get(prefix);
+		long currentVersion = shadow != null ? shadow.version : deletedVersion != null ? deletedVersion.longValue() : 0;
+		if (version instanceof Long && ((Long) version).longValue() != currentVersion) {
+			reject(prefix + "update", request, VERSION_CONFLICT, "Version conflict");
+			return;
+		}
+		Map<String, Object> previous = shadow != null ? document(shadow) : null;
+		if (shadow == null) {
+			shadow = new Shadow();
+			shadow.version = currentVersion;
+			this.deletedVersions.remove(prefix);
+			this.shadows.put(prefix, shadow);
+		}
+		Map<String, Object> stateUpdate = asMap(state);
+		boolean desiredUpdated = stateUpdate.containsKey("desired");
+		shadow.desired = apply(shadow.desired, stateUpdate, "desired");
+		shadow.reported = apply(shadow.reported, stateUpdate, "reported");
+		shadow.version++;
+
+		Map<String, Object> accepted = response(request);
+		accepted.put("state", stateUpdate);
+		accepted.put("metadata", new HashMap<>());
+		accepted.put("version", shadow.version);
+		publish(prefix + "update/accepted", accepted);
+
+		Map<String, Object> documents = response(request);
+		documents.put("previous", previous);
+		documents.put("current", document(shadow));
+		publish(prefix + "update/documents", documents);
+
+		Map<String, Object> delta = delta(shadow.desired, shadow.reported);
+		if (desiredUpdated && !delta.isEmpty()) {
+			Map<String, Object> deltaMessage = new HashMap<>();
+			deltaMessage.put("version", shadow.version);
+			deltaMessage.put("timestamp", timestamp());
+			deltaMessage.put("state", delta);
+			deltaMessage.put("metadata", new HashMap<>());
+			publish(prefix + "update/delta", deltaMessage);
+		}
+	}
+
+	private void get(String prefix, Map<String, Object> request) {
+		Shadow shadow = this.shadows.get(prefix);
+		if (shadow == null) {
+			reject(prefix + "get", request, NOT_FOUND, "No shadow exists with name: '" + thingName(prefix) + "'");
+			return;
+		}
+		Map<String, Object> accepted = response(request);
+		Map<String, Object> state = new HashMap<>();
+		putIfNotEmpty(state, "desired", shadow.desired);
+		putIfNotEmpty(state, "reported", shadow.reported);
+		putIfNotEmpty(state, "delta", delta(shadow.desired, shadow.reported));
+		accepted.put("state", state);
+		accepted.put("metadata", new HashMap<>());
+		accepted.put("version", shadow.version);
+		publish(prefix + "get/accepted", accepted);
+	}
+
+	private void delete(String prefix, Map<String, Object> request) {
+		Shadow shadow = this.shadows.remove(prefix);
+		if (shadow == null) {
+			reject(prefix + "delete", request, NOT_FOUND, "No shadow exists with name: '" + thingName(prefix) + "'");
+			return;
+		}
+		this.deletedVersions.put(prefix, Long.valueOf(shadow.version));
+		Map<String, Object> accepted = response(request);
+		accepted.put("version", shadow.version);
+		publish(prefix + "delete/accepted", accepted);
+	}
+
+	private void reject(String operationTopic, Map<String, Object> request, int code, String message) {
+		Map<String, Object> rejected = new HashMap<>();
+		rejected.put("code", Long.valueOf(code));
+		rejected.put("message", message);
+		rejected.put("timestamp", timestamp());
+		if (request != null && request.get("clientToken") != null) {
+			rejected.put("clientToken", request.get("clientToken"));
+		}
+		publish(operationTopic + "/rejected", rejected);
+	}
+
+	private void publish(String topic, Map<String, Object> message) {
+		try {
+			this.broker.publish(topic, Json.write(message).getBytes(UTF_8));
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Creates a response with the timestamp and the client token of the request.
+	 */
+	private static Map<String, Object> response(Map<String, Object> request) {
+		Map<String, Object> response = new HashMap<>();
+		response.put("timestamp", timestamp());
+		if (request != null && request.get("clientToken") != null) {
+			response.put("clientToken", request.get("clientToken"));
+		}
+		return response;
+	}
+
+	private static Map<String, Object> document(Shadow shadow) {
+		Map<String, Object> state = new HashMap<>();
+		putIfNotEmpty(state, "desired", copy(shadow.desired));
+		putIfNotEmpty(state, "reported", copy(shadow.reported));
+		Map<String, Object> document = new HashMap<>();
+		document.put("state", state);
+		document.put("metadata", new HashMap<>());
+		document.put("version", shadow.version);
+		return document;
+	}
+
+	/**
+	 * Applies the update of a section (desired or reported): {@code null} values remove the fields, a {@code null}
+	 * section clears it.
+	 */
+	private static Map<String, Object> apply(Map<String, Object> current, Map<String, Object> stateUpdate,
+			String section) {
+		if (!stateUpdate.containsKey(section)) {
+			return current;
+		}
+		Object update = stateUpdate.get(section);
+		if (!(update instanceof Map)) {
+			return new HashMap<>();
+		}
+		merge(current, asMap(update));
+		return current;
+	}
+
+	private static void merge(Map<String, Object> target, Map<String, Object> update) {
+		for (Map.Entry<String, Object> entry : update.entrySet()) {
+			Object value = entry.getValue();
+			Object existing = target.get(entry.getKey());
+			if (value == null) {
+				target.remove(entry.getKey());
+			} else if (value instanceof Map && existing instanceof Map) {
+				merge(asMap(existing), asMap(value));
+			} else {
+				target.put(entry.getKey(), value instanceof Map ? copy(asMap(value)) : value);
+			}
+		}
+	}
+
+	/**
+	 * Computes the desired fields that differ from the reported ones.
+	 */
+	private static Map<String, Object> delta(Map<String, Object> desired, Map<String, Object> reported) {
+		Map<String, Object> delta = new HashMap<>();
+		for (Map.Entry<String, Object> entry : desired.entrySet()) {
+			Object desiredValue = entry.getValue();
+			Object reportedValue = reported.get(entry.getKey());
+			if (desiredValue instanceof Map && reportedValue instanceof Map) {
+				putIfNotEmpty(delta, entry.getKey(), delta(asMap(desiredValue), asMap(reportedValue)));
+			} else if (desiredValue == null ? reportedValue != null : !desiredValue.equals(reportedValue)) {
+				delta.put(entry.getKey(), desiredValue);
+			}
+		}
+		return delta;
+	}
+
+	private static Map<String, Object> copy(Map<String, Object> map) {
+		Map<String, Object> copy = new HashMap<>();
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			Object value = entry.getValue();
+			copy.put(entry.getKey(), value instanceof Map ? copy(asMap(value)) : value);
+		}
+		return copy;
+	}
+
+	private static void putIfNotEmpty(Map<String, Object> target, String name, Map<String, Object> value) {
+		if (!value.isEmpty()) {
+			target.put(name, value);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> asMap(Object value) {
+		return (Map<String, Object>) value;
+	}
+
+	private static String thingName(String prefix) {
+		return prefix.substring(THINGS_PREFIX.length(), prefix.indexOf(SHADOW_LEVEL, THINGS_PREFIX.length()));
+	}
+
+	private static Long timestamp() {
+		return Long.valueOf(System.currentTimeMillis() / 1000);
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.tools;
+
+import ej.aws.iot.AwsIotMessage;
+
+/**
+ * A message built by the tests, or received from the broker by a {@link MqttTestClient}.
+ */
+public class TestMessage extends AwsIotMessage {
+
+	private final String topic;
+	private final byte[] payload;
+
+	/**
+	 * Creates a message.
+	 *
+	 * @param topic
+	 *            the topic of the message
+	 * @param payload
+	 *            the payload of the message
+	 */
+	public TestMessage(String topic, byte[] payload) {
+		this.topic = topic;
+		this.payload = payload;
+	}
+
+	@Override
+	public String getTopic() {
+		return this.topic;
+	}
+
+	@Override
+	public byte[] getPayload() {
+		return this.payload;
+	}
+}
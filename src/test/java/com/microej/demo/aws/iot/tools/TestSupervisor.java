@@ -0,0 +1,42 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.tools;
+
+import com.microej.demo.aws.iot.connection.ConnectionSupervisor;
+
+import ej.aws.iot.AwsIotClient;
+import ej.aws.iot.AwsIotClientOptions.Builder;
+
+/**
+ * Supervisor reporting the connection state of a {@link MqttTestClient}, so that the components following the
+ * connection state (such as the client pool) can be tested with the clients of the tests. Its own AWS client is never
+ * connected.
+ */
+@SuppressWarnings("nls")
+public class TestSupervisor extends ConnectionSupervisor {
+
+	private final MqttTestClient client;
+
+	/**
+	 * Creates a supervisor.
+	 *
+	 * @param clientId
+	 *            the client ID of the client
+	 * @param client
+	 *            the client
+	 */
+	public TestSupervisor(String clientId, MqttTestClient client) {
+		super(new AwsIotClient(Builder.builder().host("localhost").thingName(clientId).clientID(clientId).build()),
+				clientId, 1, 1);
+		this.client = client;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return this.client.isConnected();
+	}
+}
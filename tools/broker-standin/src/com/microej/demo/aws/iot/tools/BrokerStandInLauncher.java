@@ -0,0 +1,104 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.tools;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Host-side launcher of the {@link BrokerStandIn} of the tests, to run the demo and its load test without an AWS
+ * endpoint. Every 10 seconds, the launcher prints the number of messages and bytes received and delivered.
+ * <p>
+ * Usage: {@code BrokerStandInLauncher [port] [keystore password]}. With a PKCS#12 key store, the broker accepts TLS
+ * connections only; its certificate must then be trusted by the device.
+ */
+@SuppressWarnings("nls")
+public class BrokerStandInLauncher {
+
+	private static final int DEFAULT_PORT = 1883;
+	private static final long REPORT_PERIOD = 10_000;
+
+	private BrokerStandInLauncher() {
+		// static methods only
+	}
+
+	/**
+	 * Starts the broker.
+	 *
+	 * @param args
+	 *            the port, and optionally a PKCS#12 key store and its password to accept TLS connections
+	 * @throws Exception
+	 *             if the broker cannot be started
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		ServerSocket serverSocket;
+		if (args.length >= 3) {
+			serverSocket = createTlsContext(args[1], args[2].toCharArray()).getServerSocketFactory()
+					.createServerSocket(port);
+			System.out.println("Listening for TLS connections on port " + port);
+		} else {
+			serverSocket = new ServerSocket(port);
+			System.out.println("Listening on port " + port);
+		}
+		final BrokerStandIn broker = new BrokerStandIn();
+		Thread reporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				report(broker);
+			}
+		}, "report");
+		reporter.setDaemon(true);
+		reporter.start();
+		broker.serve(serverSocket);
+	}
+
+	private static SSLContext createTlsContext(String keyStorePath, char[] password)
+			throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		try (InputStream input = new FileInputStream(keyStorePath)) {
+			keyStore.load(input, password);
+		}
+		KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, password);
+		SSLContext context = SSLContext.getInstance("TLSv1.2");
+		context.init(keyManagerFactory.getKeyManagers(), null, null);
+		return context;
+	}
+
+	private static void report(BrokerStandIn broker) {
+		long lastReceived = 0;
+		long lastBytes = 0;
+		long lastDelivered = 0;
+		while (true) {
+			try {
+				Thread.sleep(REPORT_PERIOD);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long received = broker.getReceivedMessages();
+			long bytes = broker.getReceivedBytes();
+			long delivered = broker.getDeliveredMessages();
+			if (received != lastReceived || delivered != lastDelivered) {
+				System.out.printf("received %.1f msg/s (%.0f B/s), delivered %.1f msg/s, %d clients%n",
+						(received - lastReceived) * 1000.0 / REPORT_PERIOD,
+						(bytes - lastBytes) * 1000.0 / REPORT_PERIOD,
+						(delivered - lastDelivered) * 1000.0 / REPORT_PERIOD, broker.getClientCount());
+			}
+			lastReceived = received;
+			lastBytes = bytes;
+			lastDelivered = delivered;
+		}
+	}
+}
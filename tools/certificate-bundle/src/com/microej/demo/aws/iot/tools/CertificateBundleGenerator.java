@@ -0,0 +1,133 @@
+/*
+ * Java
+ *
+ * Copyright 2022 MicroEJ Corp. All rights reserved.
+ * Use of this source code is governed by a BSD-style license that can be found with this software.
+ */
+package com.microej.demo.aws.iot.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+
+/**
+ * Build-time tool that converts the certificates and keys listed in a file, in the format of a resources list, into a
+ * single binary bundle.
+ * <p>
+ * PEM resources are decoded to DER, other resources are stored as is. Resources that do not exist (for example the
+ * device certificates that have not been generated yet) are skipped.
+ * <p>
+ * The bundle is made of a header (magic {@code AWSB}, format version, entry count and size of the entries) followed by
+ * the entries. An entry is made of its resource path (modified UTF-8, as written by
+ * {@link DataOutputStream#writeUTF(String)}), the size of its data (4 bytes) and its data.
+ * <p>
+ * Usage: {@code CertificateBundleGenerator <certificates list> <resources directory> <bundle file>}
+ */
+@SuppressWarnings("nls")
+public class CertificateBundleGenerator {
+
+	private static final byte[] MAGIC = { 'A', 'W', 'S', 'B' };
+	private static final int VERSION = 1;
+
+	private static final String CERTIFICATES_DIRECTORY = "/certificates/";
+	private static final String PEM_BEGIN = "-----BEGIN ";
+	private static final String PEM_END = "-----END ";
+
+	private CertificateBundleGenerator() {
+		// Forbid instantiation
+	}
+
+	/**
+	 * Generates the bundle.
+	 *
+	 * @param args
+	 *            the certificates list file, the resources directory and the bundle file
+	 * @throws IOException
+	 *             if a resource cannot be read or the bundle cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: CertificateBundleGenerator <certificates list> <resources directory> <bundle file>");
+			System.exit(1);
+		}
+		File resourcesList = new File(args[0]);
+		File resourcesDirectory = new File(args[1]);
+		File bundle = new File(args[2]);
+
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		DataOutputStream entriesOutput = new DataOutputStream(entries);
+		int count = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(Files.newInputStream(resourcesList.toPath()), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String path = normalize(line);
+				if (path == null || !path.startsWith(CERTIFICATES_DIRECTORY) || path.endsWith(bundle.getName())) {
+					continue;
+				}
+				File resource = new File(resourcesDirectory, path.substring(1));
+				if (!resource.isFile()) {
+					System.out.println("Skipping missing resource " + path);
+					continue;
+				}
+				byte[] data = decode(Files.readAllBytes(resource.toPath()));
+				entriesOutput.writeUTF(path);
+				entriesOutput.writeInt(data.length);
+				entriesOutput.write(data);
+				count++;
+				System.out.println("Added " + path + " (" + data.length + " bytes)");
+			}
+		}
+		entriesOutput.flush();
+
+		File parent = bundle.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("cannot create " + parent);
+		}
+		try (OutputStream output = new FileOutputStream(bundle);
+				DataOutputStream bundleOutput = new DataOutputStream(output)) {
+			bundleOutput.write(MAGIC);
+			bundleOutput.writeByte(VERSION);
+			bundleOutput.writeShort(count);
+			bundleOutput.writeInt(entries.size());
+			entries.writeTo(bundleOutput);
+		}
+		System.out.println("Generated " + bundle + " with " + count + " entries");
+	}
+
+	/**
+	 * Gets the absolute resource path of a line of the list, or {@code null} for comments and blank lines.
+	 */
+	private static String normalize(String line) {
+		String path = line.trim();
+		if (path.isEmpty() || path.startsWith("#")) {
+			return null;
+		}
+		return path.startsWith("/") ? path : "/" + path;
+	}
+
+	/**
+	 * Decodes the first PEM block of the given data, or returns the data as is if it is not PEM encoded.
+	 */
+	private static byte[] decode(byte[] data) {
+		String text = new String(data, StandardCharsets.US_ASCII);
+		int begin = text.indexOf(PEM_BEGIN);
+		if (begin < 0) {
+			return data;
+		}
+		int bodyStart = text.indexOf('\n', begin);
+		int bodyEnd = text.indexOf(PEM_END, begin);
+		if (bodyStart < 0 || bodyEnd < bodyStart) {
+			throw new IllegalArgumentException("malformed PEM data");
+		}
+		return Base64.getMimeDecoder().decode(text.substring(bodyStart + 1, bodyEnd));
+	}
+}